@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.benchmarks;
+
+import org.iq80.memcached.Association;
+import org.iq80.memcached.HashFunction;
+import org.iq80.memcached.Item;
+import org.iq80.memcached.Items;
+import org.iq80.memcached.JenkinsHashFunction;
+import org.iq80.memcached.NullMonitor;
+import org.iq80.memcached.SlabAllocator;
+import org.iq80.memcached.XxHash64;
+import org.iq80.memory.Region;
+import org.iq80.memory.UnsafeAllocator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hash table operations at several load factors.  The table never expands
+ * during a run since the largest load factor is the expansion threshold.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AssociationBenchmark
+{
+    private static final int HASH_POWER = 16;
+
+    @Param({"0.5", "1.0", "1.5"})
+    public double loadFactor;
+
+    @Param({"16", "64"})
+    public int keyLength;
+
+    @Param({"false", "true"})
+    public boolean compact;
+
+    @Param({"xxhash64", "lookup3"})
+    public String hashFunction;
+
+    private Association association;
+    private Item[] items;
+    private Region[] keys;
+    private Region[] missingKeys;
+    private int index;
+
+    @Setup
+    public void setup()
+    {
+        SlabAllocator slabAllocator = new SlabAllocator(UnsafeAllocator.INSTANCE, 0, 2.0, false, 48, 1024 * 1024);
+        Items itemStore = new Items(slabAllocator, compact);
+
+        HashFunction function = "lookup3".equals(hashFunction) ? JenkinsHashFunction.INSTANCE : XxHash64.INSTANCE;
+        association = new Association(itemStore.getLayout(), function, NullMonitor.INSTANCE, HASH_POWER);
+
+        int count = (int) (loadFactor * (1 << HASH_POWER));
+        items = new Item[count];
+        keys = new Region[count];
+        missingKeys = new Region[count];
+        for (int i = 0; i < count; i++) {
+            byte[] key = BenchmarkUtil.createKey(i, keyLength);
+            items[i] = itemStore.allocateItem(key, 0, 0, 2);
+            association.insert(items[i]);
+            keys[i] = BenchmarkUtil.toRegion(UnsafeAllocator.INSTANCE, key);
+            missingKeys[i] = BenchmarkUtil.toRegion(UnsafeAllocator.INSTANCE, BenchmarkUtil.createKey(count + i, keyLength));
+        }
+    }
+
+    private int nextIndex()
+    {
+        index++;
+        if (index == keys.length) {
+            index = 0;
+        }
+        return index;
+    }
+
+    @Benchmark
+    public Item findHit()
+    {
+        return association.find(keys[nextIndex()]);
+    }
+
+    @Benchmark
+    public Item findMiss()
+    {
+        return association.find(missingKeys[nextIndex()]);
+    }
+
+    /**
+     * Deletes an item and inserts it again, keeping the load factor constant.
+     */
+    @Benchmark
+    public boolean deleteInsert()
+    {
+        int i = nextIndex();
+        boolean deleted = association.delete(keys[i]);
+        association.insert(items[i]);
+        return deleted;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.benchmarks;
+
+import org.iq80.memory.Allocator;
+import org.iq80.memory.ByteBufferAllocator;
+import org.iq80.memory.Region;
+import org.iq80.memory.UnsafeAllocator;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+final class BenchmarkUtil
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private BenchmarkUtil()
+    {
+    }
+
+    /**
+     * Gets the allocator for a backend parameter: unsafe or bytebuffer.
+     */
+    static Allocator getAllocator(String backend)
+    {
+        if ("unsafe".equals(backend)) {
+            return UnsafeAllocator.INSTANCE;
+        }
+        if ("bytebuffer".equals(backend)) {
+            return ByteBufferAllocator.INSTANCE;
+        }
+        throw new IllegalArgumentException("Unknown allocator backend: " + backend);
+    }
+
+    /**
+     * Creates a key of exactly the specified length.  Keys are distinct for
+     * distinct indexes as long as the length can hold the index.
+     */
+    static byte[] createKey(int index, int length)
+    {
+        byte[] key = new byte[length];
+        byte[] prefix = ("key" + index).getBytes(UTF8);
+        for (int i = 0; i < length; i++) {
+            key[i] = i < prefix.length ? prefix[i] : (byte) 'x';
+        }
+        return key;
+    }
+
+    static Region toRegion(Allocator allocator, byte[] bytes)
+    {
+        Region region = allocator.allocate(bytes.length);
+        region.putBytes(0, bytes);
+        return region;
+    }
+
+    static byte[] randomBytes(int length)
+    {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.benchmarks;
+
+import org.iq80.memcached.Hash;
+import org.iq80.memcached.XxHash64;
+import org.iq80.memory.Allocation;
+import org.iq80.memory.Region;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key hashing by key length and key alignment.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark
+{
+    @Param({"unsafe", "bytebuffer"})
+    public String allocator;
+
+    @Param({"8", "16", "32", "64", "128", "250"})
+    public int keyLength;
+
+    /**
+     * Offset of the key from an 8 byte aligned address
+     */
+    @Param({"0", "1", "2", "4"})
+    public int alignment;
+
+    private Allocation allocation;
+    private Region key;
+    private byte[] keyBytes;
+
+    @Setup
+    public void setup()
+    {
+        keyBytes = BenchmarkUtil.randomBytes(keyLength);
+        allocation = BenchmarkUtil.getAllocator(allocator).allocate(keyLength + 8);
+        allocation.putBytes(alignment, keyBytes);
+        key = allocation.getRegion(alignment, keyLength);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        allocation.free();
+    }
+
+    @Benchmark
+    public int lookup3()
+    {
+        return Hash.hash(key, 0);
+    }
+
+    @Benchmark
+    public int lookup3ByteArray()
+    {
+        return Hash.hashLittleEndian(keyBytes, 0);
+    }
+
+    @Benchmark
+    public long xxHash64()
+    {
+        return XxHash64.INSTANCE.hash(key);
+    }
+
+    @Benchmark
+    public long xxHash64ByteArray()
+    {
+        return XxHash64.INSTANCE.hash(keyBytes, 0, keyLength);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.benchmarks;
+
+import org.iq80.memcached.Item;
+import org.iq80.memcached.Items;
+import org.iq80.memcached.SlabAllocator;
+import org.iq80.memory.Allocator;
+import org.iq80.memory.Region;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end item store operations: get and set (allocate, copy the value
+ * and insert or replace).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemsBenchmark
+{
+    private static final int KEY_COUNT = 64 * 1024;
+
+    @Param({"unsafe", "bytebuffer"})
+    public String allocator;
+
+    @Param({"16", "64"})
+    public int keyLength;
+
+    @Param({"32", "1024"})
+    public int valueSize;
+
+    @Param({"false", "true"})
+    public boolean compact;
+
+    private Items items;
+    private byte[][] keyBytes;
+    private Region[] keys;
+    private byte[] value;
+    private int index;
+
+    @Setup
+    public void setup()
+    {
+        Allocator backend = BenchmarkUtil.getAllocator(allocator);
+        SlabAllocator slabAllocator = new SlabAllocator(backend, 0, 1.25, false, 48, 1024 * 1024);
+        items = new Items(slabAllocator, compact);
+
+        value = BenchmarkUtil.randomBytes(valueSize + 2);
+        value[valueSize] = '\r';
+        value[valueSize + 1] = '\n';
+
+        keyBytes = new byte[KEY_COUNT][];
+        keys = new Region[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keyBytes[i] = BenchmarkUtil.createKey(i, keyLength);
+            keys[i] = BenchmarkUtil.toRegion(backend, keyBytes[i]);
+            set(i);
+        }
+    }
+
+    private int nextIndex()
+    {
+        index++;
+        if (index == KEY_COUNT) {
+            index = 0;
+        }
+        return index;
+    }
+
+    private void set(int i)
+    {
+        Item item = items.allocateItem(keyBytes[i], 0, 0, value.length);
+        item.getValue().putBytes(0, value);
+
+        Item oldItem = items.get(keys[i]);
+        if (oldItem == null) {
+            items.insert(item);
+        }
+        else {
+            items.replace(oldItem, item);
+            items.release(oldItem);
+        }
+        items.release(item);
+    }
+
+    @Benchmark
+    public int get()
+    {
+        Item item = items.get(keys[nextIndex()]);
+        int length = item.getValueLength();
+        items.release(item);
+        return length;
+    }
+
+    @Benchmark
+    public void set()
+    {
+        set(nextIndex());
+    }
+}
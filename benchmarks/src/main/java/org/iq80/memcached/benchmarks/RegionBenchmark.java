@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.benchmarks;
+
+import org.iq80.memory.Allocation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Primitive and bulk access to UnsafeAllocation and ByteBufferAllocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionBenchmark
+{
+    @Param({"unsafe", "bytebuffer"})
+    public String allocator;
+
+    @Param({"64", "1024", "16384"})
+    public int valueSize;
+
+    private Allocation source;
+    private Allocation target;
+    private byte[] value;
+    private long offset;
+
+    @Setup
+    public void setup()
+    {
+        value = BenchmarkUtil.randomBytes(valueSize);
+        source = BenchmarkUtil.getAllocator(allocator).allocate(valueSize);
+        source.putBytes(0, value);
+        target = BenchmarkUtil.getAllocator(allocator).allocate(valueSize);
+        target.putBytes(0, value);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        source.free();
+        target.free();
+    }
+
+    @Benchmark
+    public long getLong()
+    {
+        offset = (offset + 8) & (valueSize - 8);
+        return source.getLong(offset);
+    }
+
+    @Benchmark
+    public void putLong()
+    {
+        offset = (offset + 8) & (valueSize - 8);
+        target.putLong(offset, offset);
+    }
+
+    @Benchmark
+    public int getInt()
+    {
+        offset = (offset + 4) & (valueSize - 4);
+        return source.getInt(offset);
+    }
+
+    @Benchmark
+    public void putInt()
+    {
+        offset = (offset + 4) & (valueSize - 4);
+        target.putInt(offset, (int) offset);
+    }
+
+    @Benchmark
+    public void putBytes()
+    {
+        target.putBytes(0, value);
+    }
+
+    @Benchmark
+    public byte[] getBytes()
+    {
+        return source.getBytes(0, valueSize);
+    }
+
+    @Benchmark
+    public void copyMemory()
+    {
+        source.copyMemory(0, target, 0, valueSize);
+    }
+
+    /**
+     * Compares equal values, which is the worst case
+     */
+    @Benchmark
+    public int compareMemory()
+    {
+        return source.compareMemory(0, target, 0, valueSize);
+    }
+}
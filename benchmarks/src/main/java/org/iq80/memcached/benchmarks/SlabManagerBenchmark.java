@@ -0,0 +1,80 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.benchmarks;
+
+import org.iq80.memcached.SlabAllocator;
+import org.iq80.memcached.SlabManager;
+import org.iq80.memory.Region;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunk allocation and free in a single slab class.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SlabManagerBenchmark
+{
+    private static final int BATCH_SIZE = 1024;
+
+    @Param({"unsafe", "bytebuffer"})
+    public String allocator;
+
+    @Param({"64", "1024", "16384"})
+    public int itemSize;
+
+    private SlabManager slabManager;
+    private final Region[] regions = new Region[BATCH_SIZE];
+
+    @Setup
+    public void setup()
+    {
+        SlabAllocator slabAllocator = new SlabAllocator(BenchmarkUtil.getAllocator(allocator), 0, 2.0, false, 48, 1024 * 1024);
+        slabManager = slabAllocator.selectSlabManager(itemSize);
+    }
+
+    /**
+     * Allocates a batch of chunks and then frees them, so the free list is
+     * exercised as well as the open slab.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void allocateAndFree()
+    {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            regions[i] = slabManager.allocate(itemSize);
+        }
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            slabManager.free(regions[i], itemSize);
+        }
+    }
+}
@@ -17,7 +17,6 @@
 package org.iq80.memcached;
 
 import org.iq80.memcached.Item.HashChain;
-import org.iq80.memory.Allocator;
 import org.iq80.memory.Region;
 
 public class Association
@@ -32,6 +31,14 @@ public class Association
         return hashSize(n) - 1;
     }
 
+    private final ItemLayout layout;
+
+    /**
+     * Hashes keys; the low 32 bits of the hash select the bucket and are
+     * stored in the item
+     */
+    private final HashFunction hashFunction;
+
     private final Monitor monitor;
 
     /**
@@ -42,13 +49,13 @@ public class Association
     /**
      * Main hash table. This is where we look except during expansion.
      */
-    private long[] primaryHashtable;
+    private Buckets primaryHashtable;
 
     /**
      * Previous hash table. During expansion, we look here for keys that haven't
      * been moved over to the primary yet.
      */
-    private long[] oldHashtable;
+    private Buckets oldHashtable;
 
     /**
      * Number of items in the hash table.
@@ -67,37 +74,63 @@ public class Association
     private int expandBucket = 0;
 
 
-    public Association(Monitor monitor)
+    public Association(ItemLayout layout, Monitor monitor)
     {
-        this(monitor, 16);
+        this(layout, XxHash64.INSTANCE, monitor, 16);
     }
 
-    public Association(Monitor monitor, int hashPower)
+    public Association(ItemLayout layout, HashFunction hashFunction, Monitor monitor)
     {
+        this(layout, hashFunction, monitor, 16);
+    }
+
+    public Association(ItemLayout layout, HashFunction hashFunction, Monitor monitor, int hashPower)
+    {
+        this.layout = layout;
+        this.hashFunction = hashFunction;
         this.monitor = monitor;
         this.hashPower = hashPower;
-        primaryHashtable = new long[hashSize(hashPower)];
+        primaryHashtable = createBuckets(hashSize(hashPower));
+    }
+
+    public int size()
+    {
+        return hashItems;
+    }
+
+    public HashFunction getHashFunction()
+    {
+        return hashFunction;
+    }
+
+    /**
+     * Hash of the key as stored in the items.
+     */
+    int hash(Region key)
+    {
+        return (int) hashFunction.hash(key);
     }
 
     public Item find(Region key)
     {
-        int hashCode = Hash.hash(key, 0);
+        int hashCode = hash(key);
 
         if (expanding) {
             int oldBucket = hashCode & hashMask(hashPower - 1);
             if (oldBucket >= expandBucket) {
-                return findFromBucket(key, oldHashtable, oldBucket);
+                return findFromBucket(key, hashCode, oldHashtable, oldBucket);
             }
         }
 
-        return findFromBucket(key, primaryHashtable, hashCode & hashMask(hashPower));
+        return findFromBucket(key, hashCode, primaryHashtable, hashCode & hashMask(hashPower));
     }
 
-    private Item findFromBucket(Region key, long[] hashtable, int bucket)
+    private Item findFromBucket(Region key, int hashCode, Buckets hashtable, int bucket)
     {
         int depth = 0;
-        for (Item item : new HashChain(key.getAllocator(), hashtable[bucket])) {
-            if (item.keyEquals(key)) {
+        for (Item item : new HashChain(layout, hashtable.get(bucket))) {
+            // the stored hash rejects most chain neighbours without touching the key
+            if (item.getHash() == hashCode && item.keyEquals(key)) {
                 monitor.assocFind(item, depth);
                 return item;
             }
@@ -118,7 +151,8 @@ public class Association
         // shouldn't have duplicately named things defined
         assert find(item.getKey()) == null;
 
-        int hashCode = Hash.hash(item.getKey(), 0);
+        int hashCode = hash(item.getKey());
+        item.setHash(hashCode);
 
         if (expanding) {
             int oldbucket = hashCode & hashMask(hashPower - 1);
@@ -131,10 +165,10 @@ public class Association
         insertInBucket(item, primaryHashtable, hashCode & hashMask(hashPower));
     }
 
-    private void insertInBucket(Item item, long[] hashtable, int bucket)
+    private void insertInBucket(Item item, Buckets hashtable, int bucket)
     {
-        item.setHashClainNext(hashtable[bucket]);
-        hashtable[bucket] = item.getAddress();
+        item.setHashClainNext(hashtable.get(bucket));
+        hashtable.set(bucket, item.getAddress());
 
         hashItems++;
         if (!expanding && hashItems > (hashSize(hashPower) * 3) / 2) {
@@ -149,50 +183,48 @@ public class Association
         // This would be way easier with dummy nodes
         //
 
-        int hashCode = Hash.hash(key, 0);
+        int hashCode = hash(key);
 
         if (expanding) {
             int oldbucket = hashCode & hashMask(hashPower - 1);
             if (oldbucket >= expandBucket) {
-                return deleteFromBucket(key, oldHashtable, oldbucket);
+                return deleteFromBucket(key, hashCode, oldHashtable, oldbucket);
             }
             // fallthrough
         }
 
-        return deleteFromBucket(key, primaryHashtable, hashCode & hashMask(hashPower));
+        return deleteFromBucket(key, hashCode, primaryHashtable, hashCode & hashMask(hashPower));
     }
 
-    private boolean deleteFromBucket(Region key, long[] hashtable, int bucket)
+    private boolean deleteFromBucket(Region key, int hashCode, Buckets hashtable, int bucket)
     {
         // If we didn't find anything, just stop here
-        if (hashtable[bucket] != 0) {
+        if (hashtable.get(bucket) == 0) {
             return false;
         }
 
-        Item item = Item.cast(key.getAllocator(), hashtable[bucket]);
+        Item item = Item.cast(layout, hashtable.get(bucket));
 
         // If this is the one, delete it from the table
-        if (item.keyEquals(key)) {
+        if (item.getHash() == hashCode && item.keyEquals(key)) {
             hashItems--;
-            if (item.getHashClainNext() != 0) {
-                hashtable[bucket] = item.getHashClainNext();
-            }
+            hashtable.set(bucket, item.getHashClainNext());
             item.setHashClainNext(0);
             return true;
         }
 
         // search though the hash chain...
         Item before = item;
-        for (Item next : new HashChain(before.getAllocator(), before.getHashClainNext())) {
+        for (Item next : new HashChain(layout, before.getHashClainNext())) {
             // If this is the one, delete it from the chain
-            if (next.keyEquals(key)) {
+            if (next.getHash() == hashCode && next.keyEquals(key)) {
                 hashItems--;
                 before.setHashClainNext(next.getHashClainNext());
                 next.setHashClainNext(0); // pointless by why not
                 return true;
             }
             // remember the previous item in the chain so we can update the hashChainNext pointer
-            before.setAddress(next.getAllocator(), next.getAddress());
+            before = next;
         }
 
         // Before should still be non null unless something went wrong
@@ -204,6 +236,43 @@ public class Association
         return false;
     }
 
+    /**
+     * Replaces an item in the table with a copy of it at another address.
+     * The copy has the hash and the hash chain next of the original.
+     */
+    public void relocate(Item from, Item to)
+    {
+        int hashCode = from.getHash();
+
+        if (expanding) {
+            int oldbucket = hashCode & hashMask(hashPower - 1);
+            if (oldbucket >= expandBucket) {
+                relocateInBucket(from, to, oldHashtable, oldbucket);
+                return;
+            }
+        }
+
+        relocateInBucket(from, to, primaryHashtable, hashCode & hashMask(hashPower));
+    }
+
+    private void relocateInBucket(Item from, Item to, Buckets hashtable, int bucket)
+    {
+        if (hashtable.get(bucket) == from.getAddress()) {
+            hashtable.set(bucket, to.getAddress());
+            return;
+        }
+
+        // point the item before the original to the copy
+        for (Item item : new HashChain(layout, hashtable.get(bucket))) {
+            if (item.getHashClainNext() == from.getAddress()) {
+                item.setHashClainNext(to.getAddress());
+                return;
+            }
+        }
+
+        throw new IllegalStateException("Item is not in the hash table: " + from);
+    }
+
     /**
      * Grows the hashtable to the next power of 2.
      */
@@ -213,7 +282,7 @@ public class Association
         oldHashtable = primaryHashtable;
 
         // create the new primary hashtable
-        primaryHashtable = new long[hashSize(hashPower + 1)];
+        primaryHashtable = createBuckets(hashSize(hashPower + 1));
 
         // log expansion
 //        if (settings.verbose > 1) {
@@ -227,6 +296,13 @@ public class Association
 //            pthread_cond_signal( & maintenance_cond);
     }
 
+    private Buckets createBuckets(int size)
+    {
+        if (layout.isCompact()) {
+            return new CompactBuckets(layout, size);
+        }
+        return new WideBuckets(size);
+    }
 
     static volatile boolean do_run_maintenance_thread = true;
 
@@ -234,7 +310,7 @@ public class Association
 
     int hash_bulk_move = DEFAULT_HASH_BULK_MOVE;
 
-    private void associateMaintenanceThread(Allocator allocator)
+    private void associateMaintenanceThread()
     {
 
         while (do_run_maintenance_thread) {
@@ -243,20 +319,20 @@ public class Association
 
             // migrate a batch of buckets
             for (int i = 0; i < hash_bulk_move && expanding; ++i) {
-                for (Item next, item = Item.cast(allocator, oldHashtable[expandBucket]); null != item; item = next) {
+                for (Item next, item = Item.cast(layout, oldHashtable.get(expandBucket)); null != item; item = next) {
                     // remember the next because it will be overwritten below
-                    next = Item.cast(item.getAllocator(), item.getHashClainNext());
+                    next = Item.cast(layout, item.getHashClainNext());
 
-                    // rehash
-                    int bucket = Hash.hash(item.getKey(), 0) & hashMask(hashPower);
+                    // the hash is stored in the item so the key is not rehashed
+                    int bucket = item.getHash() & hashMask(hashPower);
 
                     // move item
-                    item.setHashClainNext(primaryHashtable[bucket]);
-                    primaryHashtable[bucket] = item.getAddress();
+                    item.setHashClainNext(primaryHashtable.get(bucket));
+                    primaryHashtable.set(bucket, item.getAddress());
                 }
 
                 // clear the address in the old table
-                oldHashtable[expandBucket] = 0;
+                oldHashtable.set(expandBucket, 0);
 
                 expandBucket++;
                 if (expandBucket == hashSize(hashPower - 1)) {
@@ -315,4 +391,56 @@ public class Association
 //        pthread_join(maintenance_tid, null);
     }
 
+    /**
+     * Hash table bucket heads.  The wide layout stores item addresses and the
+     * compact layout stores 32-bit slab page handles.
+     */
+    private static abstract class Buckets
+    {
+        abstract long get(int bucket);
+
+        abstract void set(int bucket, long address);
+    }
+
+    private static final class WideBuckets extends Buckets
+    {
+        private final long[] addresses;
+
+        private WideBuckets(int size)
+        {
+            addresses = new long[size];
+        }
+
+        long get(int bucket)
+        {
+            return addresses[bucket];
+        }
+
+        void set(int bucket, long address)
+        {
+            addresses[bucket] = address;
+        }
+    }
+
+    private static final class CompactBuckets extends Buckets
+    {
+        private final ItemLayout layout;
+        private final int[] handles;
+
+        private CompactBuckets(ItemLayout layout, int size)
+        {
+            this.layout = layout;
+            handles = new int[size];
+        }
+
+        long get(int bucket)
+        {
+            return layout.toAddress(handles[bucket]);
+        }
+
+        void set(int bucket, long address)
+        {
+            handles[bucket] = layout.toHandle(address);
+        }
+    }
 }
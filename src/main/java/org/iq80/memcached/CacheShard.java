@@ -0,0 +1,297 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A partition of the cache owned by a single event loop thread.  The shard
+ * has its own slab allocator, hash table and LRUs, and they are only used by
+ * the owner thread, so the storage path needs no locks.
+ * <p/>
+ * Work for the shard is sent as tasks through one {@link SpscQueue} per
+ * sending thread: one for each shard of the cache and one for a single
+ * external thread, such as a connection acceptor.  The owner thread runs the
+ * tasks in order per sender.
+ * <p/>
+ * Between tasks, the owner thread runs an {@link ExpirationReaper} once per
+ * second of the clock of the items, so expired items are freed even when
+ * they are never read again, and a bounded {@link SlabDefragmenter} run
+ * every {@link #DEFRAGMENT_INTERVAL} seconds, so slabs left sparse by a
+ * workload shift are returned to the other slab classes.
+ */
+public class CacheShard
+        implements Runnable
+{
+    private static final Logger log = Logger.getLogger(CacheShard.class.getName());
+
+    /**
+     * Polls of empty queues before the thread parks
+     */
+    private static final int SPIN_TRIES = 100;
+
+    /**
+     * Longest park; bounds the delay of a missed wake up
+     */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Seconds of the clock of the items between defragmenter runs
+     */
+    public static final int DEFRAGMENT_INTERVAL = 5;
+
+    private final ShardedCache cache;
+    private final int id;
+    private final Items items;
+    private final ExpirationReaper reaper;
+    private final SlabDefragmenter defragmenter;
+    private final List<SpscQueue<Runnable>> inbound;
+
+    /**
+     * Time of the clock of the items at the last reaper run
+     */
+    private int lastReapTime;
+
+    /**
+     * Time of the clock of the items at the last defragmenter run
+     */
+    private int lastDefragmentTime;
+
+    private volatile Thread thread;
+    private volatile boolean sleeping;
+    private volatile boolean running = true;
+
+    CacheShard(ShardedCache cache, int id, Items items, int queueCapacity)
+    {
+        this.cache = cache;
+        this.id = id;
+        this.items = items;
+        this.reaper = new ExpirationReaper(items);
+        this.lastReapTime = items.getCurrentTime();
+        this.defragmenter = new SlabDefragmenter(items);
+        this.lastDefragmentTime = items.getCurrentTime();
+
+        // one queue per shard plus one for the external thread
+        List<SpscQueue<Runnable>> inbound = new ArrayList<SpscQueue<Runnable>>(cache.getShardCount() + 1);
+        for (int i = 0; i <= cache.getShardCount(); i++) {
+            inbound.add(new SpscQueue<Runnable>(queueCapacity));
+        }
+        this.inbound = Collections.unmodifiableList(inbound);
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    /**
+     * Gets the items of this shard.  Must only be used by the owner thread.
+     */
+    public Items getItems()
+    {
+        assert isOwnerThread() : "items used outside of the owner thread";
+        return items;
+    }
+
+    /**
+     * Gets the reaper of the expired items of this shard.
+     */
+    public ExpirationReaper getReaper()
+    {
+        return reaper;
+    }
+
+    /**
+     * Gets the defragmenter of the slabs of this shard.
+     */
+    public SlabDefragmenter getDefragmenter()
+    {
+        return defragmenter;
+    }
+
+    /**
+     * Is the current thread the owner of this shard?
+     */
+    public boolean isOwnerThread()
+    {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Sends a task from this shard to the target shard.  Must be called by
+     * the owner thread of this shard.  A task for this shard runs
+     * immediately.  When the target queue is full, this shard keeps running
+     * its own tasks until there is room, so two shards sending to each other
+     * cannot deadlock.
+     */
+    public void send(CacheShard target, Runnable task)
+    {
+        assert isOwnerThread() : "send called outside of the owner thread";
+        if (target == this) {
+            task.run();
+            return;
+        }
+        SpscQueue<Runnable> queue = target.inbound.get(id);
+        while (!queue.offer(task)) {
+            target.wakeUp();
+            if (!runTasks()) {
+                Thread.yield();
+            }
+        }
+        target.wakeUp();
+    }
+
+    /**
+     * Sends a task to this shard from the external thread.  Only one
+     * thread may use this method.
+     *
+     * @return false if the queue is full
+     */
+    public boolean offerExternal(Runnable task)
+    {
+        if (!inbound.get(cache.getShardCount()).offer(task)) {
+            return false;
+        }
+        wakeUp();
+        return true;
+    }
+
+    @Override
+    public void run()
+    {
+        thread = Thread.currentThread();
+        int idle = 0;
+        while (running) {
+            reapExpired();
+            if (runTasks()) {
+                idle = 0;
+                continue;
+            }
+            if (++idle < SPIN_TRIES) {
+                continue;
+            }
+
+            // announce the park, then check once more for work sent before the announcement
+            sleeping = true;
+            if (!hasTasks() && running) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            sleeping = false;
+            idle = 0;
+        }
+        thread = null;
+    }
+
+    void stop()
+    {
+        running = false;
+        wakeUp();
+    }
+
+    Thread getThread()
+    {
+        return thread;
+    }
+
+    /**
+     * Runs the queued tasks of every sender once.
+     *
+     * @return true if any task ran
+     */
+    private boolean runTasks()
+    {
+        boolean ran = false;
+        for (SpscQueue<Runnable> queue : inbound) {
+            Runnable task;
+            while ((task = queue.poll()) != null) {
+                ran = true;
+                try {
+                    task.run();
+                }
+                catch (RuntimeException e) {
+                    log.log(Level.WARNING, "Task failed in shard " + id, e);
+                }
+            }
+        }
+        return ran;
+    }
+
+    /**
+     * Runs the reaper if the clock moved since the last run, and the
+     * defragmenter if the defragment interval has passed.
+     */
+    private void reapExpired()
+    {
+        int currentTime = items.getCurrentTime();
+        if (currentTime == lastReapTime) {
+            return;
+        }
+        lastReapTime = currentTime;
+        try {
+            reaper.run();
+        }
+        catch (RuntimeException e) {
+            log.log(Level.WARNING, "Expiration reaper failed in shard " + id, e);
+        }
+
+        if (currentTime - lastDefragmentTime < DEFRAGMENT_INTERVAL) {
+            return;
+        }
+        lastDefragmentTime = currentTime;
+        try {
+            defragmenter.run();
+        }
+        catch (RuntimeException e) {
+            log.log(Level.WARNING, "Slab defragmenter failed in shard " + id, e);
+        }
+    }
+
+    private boolean hasTasks()
+    {
+        for (SpscQueue<Runnable> queue : inbound) {
+            if (!queue.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void wakeUp()
+    {
+        if (sleeping) {
+            Thread owner = thread;
+            if (owner != null) {
+                LockSupport.unpark(owner);
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("CacheShard");
+        sb.append("{id=").append(id);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Source of the ids of the changes to items, which are used for compare and
+ * swap operations.  Each thread takes a block of ids from a shared counter
+ * and hands them out without synchronization, so the shared counter is
+ * touched once per block instead of once per write.
+ * <p/>
+ * The ids are unique but only ordered within a thread.  An id for a new
+ * version of an item is requested with {@link #next(long)} so it is larger
+ * than the id of the version it replaces.
+ * <p/>
+ * Every id handed out is less than {@link #getHighWaterMark()}.  A cache
+ * restarted with saved items passes the saved high water mark as the last id
+ * of its new generator, or calls {@link #observe(long)} with the id of each
+ * restored item, so new ids are larger than the old ones.
+ */
+public class CasIdGenerator
+{
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private final AtomicLong nextBlock;
+    private final int blockSize;
+    private final ThreadLocal<Block> blocks = new ThreadLocal<Block>()
+    {
+        @Override
+        protected Block initialValue()
+        {
+            return new Block();
+        }
+    };
+
+    public CasIdGenerator()
+    {
+        this(0, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param lastId ids are larger than this value
+     * @param blockSize number of ids taken from the shared counter at once
+     */
+    public CasIdGenerator(long lastId, int blockSize)
+    {
+        if (lastId < 0) {
+            throw new IllegalArgumentException("lastId is negative: " + lastId);
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+        }
+        this.nextBlock = new AtomicLong(lastId + 1);
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Gets a new id.
+     */
+    public long next()
+    {
+        Block block = blocks.get();
+        if (block.next == block.limit) {
+            block.next = nextBlock.getAndAdd(blockSize);
+            block.limit = block.next + blockSize;
+        }
+        return block.next++;
+    }
+
+    /**
+     * Gets a new id larger than the specified id.
+     */
+    public long next(long previousId)
+    {
+        long id = next();
+        if (id > previousId) {
+            return id;
+        }
+
+        // the previous id came from a newer block of another thread, so
+        // drop this block and take one after the previous id
+        observe(previousId);
+        Block block = blocks.get();
+        block.next = block.limit;
+        return next();
+    }
+
+    /**
+     * Makes sure blocks taken after this call only contain ids larger than
+     * the specified id.
+     */
+    public void observe(long id)
+    {
+        while (true) {
+            long current = nextBlock.get();
+            if (current > id || nextBlock.compareAndSet(current, id + 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets a value larger than every id handed out so far.
+     */
+    public long getHighWaterMark()
+    {
+        return nextBlock.get();
+    }
+
+    private static class Block
+    {
+        private long next;
+        private long limit;
+    }
+}
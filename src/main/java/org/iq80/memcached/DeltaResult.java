@@ -0,0 +1,37 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+/**
+ * Outcome of an INCR or DECR, see {@link Items#addDelta}.
+ */
+public enum DeltaResult
+{
+    /**
+     * The value was changed
+     */
+    OK,
+
+    /**
+     * The value is not an unsigned 64-bit decimal number
+     */
+    NON_NUMERIC,
+
+    /**
+     * The value needed more digits and there was no memory for a new item
+     */
+    EOM
+}
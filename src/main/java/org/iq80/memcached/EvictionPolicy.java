@@ -0,0 +1,78 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+/**
+ * Tracks the linked items of a slab class and chooses the items to evict
+ * when the slab class is out of memory.  The methods are called with the
+ * cache lock held.
+ */
+public interface EvictionPolicy
+{
+    /**
+     * Number of items tracked by this policy.
+     */
+    long size();
+
+    /**
+     * Check if there are any expired items that can be reused.
+     *
+     * @return the unlinked item or null
+     */
+    Item findExpired(int tries, int currentTime);
+
+    /**
+     * Unlinks an item so its memory can be reused.  Items with a reference
+     * count are skipped; at most tries of them are checked.
+     *
+     * @return the unlinked item or null
+     */
+    Item freeLeastRecentlyUsed(int tries, int currentTime);
+
+    /**
+     * Search for an item that has been locked for more then 3 hours, which is a
+     * bug, and frees that item.
+     */
+    Item tryTailRepair(int tries, int currentTime);
+
+    /**
+     * Adds a newly linked item.
+     */
+    void add(Item item);
+
+    /**
+     * Removes an item that is being unlinked.
+     */
+    void remove(Item item);
+
+    /**
+     * Records an access to the item.
+     */
+    void touch(Item item, int currentTime);
+
+    /**
+     * Replaces a linked item with a copy of it at another address.  The copy
+     * takes the place of the original, which is no longer tracked.
+     */
+    void relocate(Item from, Item to);
+
+    /**
+     * Walks entire cache, freeing expired items. expires items that are more
+     * recent than the oldest_live setting.  The freed items are removed from
+     * the hash and the expiration wheel.
+     */
+    void flushExpired(long oldestLive, Association assoc, TimerWheel expirations);
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+/**
+ * Removes the expired items of a cache a batch at a time.  The items are
+ * found with the expiration wheel of the cache, so a run costs time in
+ * proportion to the number of items that expired, and the memory of a bulk
+ * expiration is freed without waiting for the items to reach the tail of an
+ * eviction policy.
+ * <p/>
+ * Items are not thread safe, so a run must happen on the thread that owns
+ * the cache, for example between the requests of a {@link CacheShard}.
+ */
+public class ExpirationReaper implements Runnable
+{
+    /**
+     * Number of expired items processed by one run
+     */
+    public static final int DEFAULT_MAX_ITEMS_PER_RUN = 10000;
+
+    private final Items items;
+    private final int maxItemsPerRun;
+    private long reclaimedItems;
+
+    public ExpirationReaper(Items items)
+    {
+        this(items, DEFAULT_MAX_ITEMS_PER_RUN);
+    }
+
+    public ExpirationReaper(Items items, int maxItemsPerRun)
+    {
+        if (items == null) {
+            throw new NullPointerException("items is null");
+        }
+        if (maxItemsPerRun <= 0) {
+            throw new IllegalArgumentException("maxItemsPerRun must be positive: " + maxItemsPerRun);
+        }
+        this.items = items;
+        this.maxItemsPerRun = maxItemsPerRun;
+    }
+
+    /**
+     * Gets the number of items removed by all runs.
+     */
+    public long getReclaimedItems()
+    {
+        return reclaimedItems;
+    }
+
+    @Override
+    public void run()
+    {
+        reclaimedItems += items.reclaimExpired(maxItemsPerRun);
+    }
+}
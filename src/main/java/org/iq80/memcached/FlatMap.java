@@ -25,13 +25,11 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import static org.iq80.memory.Allocator.BYTE_SIZE;
 import static org.iq80.memory.Allocator.INT_SIZE;
 import static org.iq80.memory.Allocator.LONG_SIZE;
-import static org.iq80.memory.Allocator.SHORT_SIZE;
 
 public class FlatMap
 {
@@ -39,10 +37,10 @@ public class FlatMap
     private static final Charset UTF8 = Charset.forName("UTF-8");
 
     /**
-     * Atomic id of the last change to an item, which is used for compare and
-     * swap operations.
+     * Ids of the changes to items, which are used for compare and swap
+     * operations.
      */
-    private static final AtomicLong CAS_ID = new AtomicLong();
+    private static final CasIdGenerator CAS_IDS = new CasIdGenerator();
 
     /**
      * Current time is set once per invocation to reduce
@@ -227,9 +225,12 @@ public class FlatMap
 
         assert !oldItem.isSlabbed();
 
+        // the old item may be freed by the remove
+        long previousCas = oldItem.getCas();
+
         // todo don't fire monitor events
         itemManagers.get(oldItem.getSlabId()).remove(oldItem);
-        itemManagers.get(newItem.getSlabId()).insert(newItem);
+        itemManagers.get(newItem.getSlabId()).insert(newItem, previousCas);
         return 1;
     }
 
@@ -532,7 +533,7 @@ public class FlatMap
             tail = createItem(0, slabAllocator.selectSlabManager(FIXED_SIZE));
         }
 
-        public byte getId()
+        public int getId()
         {
             return slabManager.getId();
         }
@@ -705,7 +706,7 @@ public class FlatMap
 
             // Initialize the item block
             item.setSlabId((byte) 0);
-            item.setRefCount((short) 0);
+            item.setRefCount(0);
         }
 
         /**
@@ -740,6 +741,15 @@ public class FlatMap
          * Insert
          */
         public void insert(Item item)
+        {
+            insert(item, 0);
+        }
+
+        /**
+         * @param previousCas the compare and swap id of the replaced version
+         * of the item, which the new id must be larger than
+         */
+        public void insert(Item item, long previousCas)
         {
             // make sure this is the correct manager
             assert item.getSlabId() == slabManager.getId();
@@ -765,7 +775,7 @@ public class FlatMap
             // Allocate a new CAS ID on link.
             // set the compare and swap id
             if (useCas) {
-                item.setCas(CAS_ID.incrementAndGet());
+                item.setCas(CAS_IDS.next(previousCas));
             }
 
             // add new item after the dummy head of LRU
@@ -858,20 +868,23 @@ public class FlatMap
     // temp
     private static final int ITEM_SLABBED = 4;
 
-    private static final int NEXT_OFFSET = 0;                               //  0
-    private static final int PREV_OFFSET = NEXT_OFFSET + LONG_SIZE;         //  8
-    private static final int HASH_NEXT_OFFSET = PREV_OFFSET + LONG_SIZE;    // 16
-    private static final int TIME_OFFSET = HASH_NEXT_OFFSET + LONG_SIZE;    // 24
-    private static final int EXPIRE_TIME_OFFSET = TIME_OFFSET + INT_SIZE;   // 28
-    private static final int VALUE_LENGTH_OFFSET = EXPIRE_TIME_OFFSET + INT_SIZE; // 32
-    private static final int REF_COUNT_OFFSET = VALUE_LENGTH_OFFSET + INT_SIZE; // 36
-    private static final int SUFFIX_LENGTH_OFFSET = REF_COUNT_OFFSET + SHORT_SIZE; // 38
-    private static final int FLAGS_OFFSET = SUFFIX_LENGTH_OFFSET + BYTE_SIZE; // 39
-    private static final int SLAB_ID_OFFSET = FLAGS_OFFSET + BYTE_SIZE; // 40
-    private static final int KEY_LENGTH_OFFSET = SLAB_ID_OFFSET + BYTE_SIZE; // 41
-    public static final int FIXED_SIZE = KEY_LENGTH_OFFSET + BYTE_SIZE;
-    private static final int CAS_OFFSET = KEY_LENGTH_OFFSET + BYTE_SIZE; // 42   todo should be 8 byte aligned
-    private static final int FIXED_SIZE_WITH_CAS = CAS_OFFSET + LONG_SIZE;
+    // Same layout as the wide ItemLayout: the fields read while walking a hash
+    // chain come first and every field is naturally aligned.
+    private static final int HASH_NEXT_OFFSET = 0;                          //  0
+    private static final int HASH_OFFSET = HASH_NEXT_OFFSET + LONG_SIZE;    //  8
+    private static final int EXPIRE_TIME_OFFSET = HASH_OFFSET + INT_SIZE;   // 12
+    private static final int TIME_OFFSET = EXPIRE_TIME_OFFSET + INT_SIZE;   // 16
+    private static final int VALUE_LENGTH_OFFSET = TIME_OFFSET + INT_SIZE;  // 20
+    private static final int REF_COUNT_OFFSET = VALUE_LENGTH_OFFSET + INT_SIZE; // 24
+    private static final int FLAGS_OFFSET = REF_COUNT_OFFSET + INT_SIZE;    // 28
+    private static final int SLAB_ID_OFFSET = FLAGS_OFFSET + BYTE_SIZE;     // 29
+    private static final int KEY_LENGTH_OFFSET = SLAB_ID_OFFSET + BYTE_SIZE; // 30
+    private static final int SUFFIX_LENGTH_OFFSET = KEY_LENGTH_OFFSET + BYTE_SIZE; // 31
+    private static final int NEXT_OFFSET = SUFFIX_LENGTH_OFFSET + BYTE_SIZE; // 32
+    private static final int PREV_OFFSET = NEXT_OFFSET + LONG_SIZE;         // 40
+    public static final int FIXED_SIZE = PREV_OFFSET + LONG_SIZE;           // 48
+    private static final int CAS_OFFSET = FIXED_SIZE;                       // 48
+    private static final int FIXED_SIZE_WITH_CAS = CAS_OFFSET + LONG_SIZE;  // 56
 
     public Item cast(long address)
     {
@@ -946,7 +959,7 @@ public class FlatMap
             setHashClainNext(0);
 
             // the caller will have a reference
-            setRefCount((short) 1);
+            setRefCount(1);
             log.fine("REFERENCE: " + this + " *");
 
             setExptime((int) exptime);
@@ -987,9 +1000,7 @@ public class FlatMap
         public void addReference()
         {
             int refCount = getRefCount() + 1;
-
-            // verify count is < short
-            setRefCount((short) refCount);
+            setRefCount(refCount);
 
             log.fine("REFERENCE: " + this + " +");
         }
@@ -1002,7 +1013,7 @@ public class FlatMap
             assert !isSlabbed();
 
             // if ref count is not 0, decrement it
-            short refCount = getRefCount();
+            int refCount = getRefCount();
             if (refCount != 0) {
                 refCount--;
                 setRefCount(refCount);
@@ -1089,7 +1100,7 @@ public class FlatMap
         }
 
         /**
-         * struct _stritem next: offset=0 length=8
+         * struct _stritem next: offset=32 length=8
          */
         public long getNext()
         {
@@ -1108,7 +1119,7 @@ public class FlatMap
         }
 
         /**
-         * struct _stritem prev: offset=8 length=8
+         * struct _stritem prev: offset=40 length=8
          */
         public long getPrev()
         {
@@ -1127,7 +1138,7 @@ public class FlatMap
         }
 
         /**
-         * hash chain next struct _stritem h_next: offset=16 length=8
+         * hash chain next struct _stritem h_next: offset=0 length=8
          */
         public long getHashClainNext()
         {
@@ -1144,7 +1155,7 @@ public class FlatMap
         //
 
         /**
-         * least recent access rel_time_t time: offset=24 length=4
+         * least recent access rel_time_t time: offset=16 length=4
          */
         public int getTime()
         {
@@ -1157,7 +1168,7 @@ public class FlatMap
         }
 
         /**
-         * expire time rel_time_t exptime: offset=28 length=4
+         * expire time rel_time_t exptime: offset=12 length=4
          */
         public int getExptime()
         {
@@ -1170,7 +1181,7 @@ public class FlatMap
         }
 
         /**
-         * size of data int nbytes: offset=32 length=4
+         * size of data int nbytes: offset=20 length=4
          */
         public int getValueLength()
         {
@@ -1183,20 +1194,20 @@ public class FlatMap
         }
 
         /**
-         * unsigned short refcount: offset=36 length=2
+         * unsigned short refcount: offset=24 length=4
          */
-        public short getRefCount()
+        public int getRefCount()
         {
-            return region.getShort(REF_COUNT_OFFSET);
+            return region.getInt(REF_COUNT_OFFSET);
         }
 
-        public void setRefCount(short refCount)
+        public void setRefCount(int refCount)
         {
-            region.putShort(REF_COUNT_OFFSET, refCount);
+            region.putInt(REF_COUNT_OFFSET, refCount);
         }
 
         /**
-         * length of flags-and-length string uint8_t nsuffix: offset=38 length=1
+         * length of flags-and-length string uint8_t nsuffix: offset=31 length=1
          */
         public byte getSuffixLength()
         {
@@ -1246,7 +1257,7 @@ public class FlatMap
         }
 
         /**
-         * uint8_t it_flags: offset=39 length=1
+         * uint8_t it_flags: offset=28 length=1
          */
         public byte getFlags()
         {
@@ -1259,7 +1270,7 @@ public class FlatMap
         }
 
         /**
-         * Which slab class we're in uint8_t slabs_clsid: offset=40 length=1
+         * Which slab class we're in uint8_t slabs_clsid: offset=29 length=1
          */
         public byte getSlabId()
         {
@@ -1274,7 +1285,7 @@ public class FlatMap
         }
 
         /**
-         * key length, w/terminating null and padding uint8_t nkey: offset=41
+         * key length, w/terminating null and padding uint8_t nkey: offset=30
          * length=1
          */
         public byte getKeyLength()
@@ -1290,7 +1301,7 @@ public class FlatMap
         }
 
         /**
-         * todo optional : offset=41 length=8
+         * optional: offset=48 length=8
          */
         public long getCas()
         {
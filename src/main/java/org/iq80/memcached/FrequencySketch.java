@@ -0,0 +1,160 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ * Copyright 2015 Ben Manes. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+/**
+ * Count-min sketch estimating how often a key was used recently.  Each key
+ * is counted in four 4-bit counters, sixteen of which are packed in a long,
+ * and the estimate is the smallest of the four.  After ten times the
+ * capacity increments every counter is halved, so the estimates age and
+ * keys that were popular a long time ago lose their weight.
+ * <p/>
+ * Keys are identified by the 32-bit hash stored in the item.
+ * <p/>
+ * Adapted from the FrequencySketch of the Caffeine caching library.
+ */
+public class FrequencySketch
+{
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L,
+            0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL,
+            0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    public FrequencySketch(long capacity)
+    {
+        ensureCapacity(capacity);
+    }
+
+    /**
+     * Grows the sketch to track the specified number of keys.  The counters
+     * of a key are found by masking its index with the table size, so
+     * copying the table into each part of the larger table keeps the counts
+     * of every key.
+     */
+    public void ensureCapacity(long capacity)
+    {
+        int maximum = (int) Math.min(Math.max(capacity, 1), MAXIMUM_CAPACITY);
+        if (table != null && table.length >= maximum) {
+            return;
+        }
+        long[] newTable = new long[Math.max(Integer.highestOneBit(maximum - 1) << 1, 8)];
+        if (table != null) {
+            for (int i = 0; i < newTable.length; i += table.length) {
+                System.arraycopy(table, 0, newTable, i, table.length);
+            }
+        }
+        table = newTable;
+        tableMask = table.length - 1;
+        sampleSize = 10 * maximum;
+    }
+
+    /**
+     * Gets the estimated number of times the key was used, up to 15.
+     */
+    public int frequency(int hash)
+    {
+        int spread = spread(hash);
+        int start = (spread & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(spread, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xF);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records a use of the key.
+     */
+    public void increment(int hash)
+    {
+        int spread = spread(hash);
+        int start = (spread & 3) << 2;
+
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(spread, i), start + i);
+        }
+
+        if (added && ++size == sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Number of increments since the counts were last halved.
+     */
+    int getSize()
+    {
+        return size;
+    }
+
+    int getSampleSize()
+    {
+        return sampleSize;
+    }
+
+    private boolean incrementAt(int index, int counter)
+    {
+        int offset = counter << 2;
+        long mask = 0xFL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves every counter.
+     */
+    private void reset()
+    {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        // the odd counters lost half an increment each
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int spread, int i)
+    {
+        long hash = (spread + SEEDS[i]) * SEEDS[i];
+        hash += hash >>> 32;
+        return ((int) hash) & tableMask;
+    }
+
+    private static int spread(int x)
+    {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -26,15 +26,34 @@ package org.iq80.memcached;
 
 import org.iq80.memory.Region;
 import org.iq80.memory.UnsafeAllocator;
+import org.jboss.netty.buffer.ChannelBuffer;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+import static org.iq80.memory.UnsafeAllocator.unsafe;
+
 /**
  * Functions for producing 32-bit hashes for hash table lookup.
  */
 @SuppressWarnings({"PointlessArithmeticExpression"})
 public class Hash
 {
+    private static final long BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+    private static final long BUFFER_ADDRESS_OFFSET;
+
+    static {
+        try {
+            // the address of a direct buffer is a field of java.nio.Buffer
+            BUFFER_ADDRESS_OFFSET = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        }
+        catch (NoSuchFieldException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    private static final boolean NATIVE_BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
     // Why is this so big?  I read 12 bytes at a time into 3 4-byte integers,
     // then mix those integers.  This is fast (you can do a lot more thorough
     // mixing with 12*3 instructions on 3 integers than you can with 3 instructions
@@ -80,240 +99,239 @@ public class Hash
      */
     public static int hashLittleEndian(Region key, int initialValue)
     {
-
         int length = (int) key.size();
 
+        if (key.getAllocator() == UnsafeAllocator.INSTANCE) {
+            return hashLittleEndian(null, key.getAddress(), length, initialValue);
+        }
+
         // internal state
         InternalState state = new InternalState(0xdeadbeef + length + initialValue);
 
-        Alignment alignment = Alignment.ALIGN_8;
-        if( key.getAllocator() == UnsafeAllocator.INSTANCE ) {
-            alignment = Alignment.getAlignment(key.getAddress());
+        //
+        // Not raw memory
+        // Read one byte at a time
+        //
+        Region k = key;
+
+        //--------------- all but the last block: affect some 32 bits of (x.a,x.b,x.c)
+        while (length > 12) {
+            state.a += k.getByte(0) & 0xFF;
+            state.a += (k.getByte(1) & 0xFF) << 8;
+            state.a += (k.getByte(2) & 0xFF) << 16;
+            state.a += (k.getByte(3) & 0xFF) << 24;
+            state.b += k.getByte(4) & 0xFF;
+            state.b += (k.getByte(5) & 0xFF) << 8;
+            state.b += (k.getByte(6) & 0xFF) << 16;
+            state.b += (k.getByte(7) & 0xFF) << 24;
+            state.c += k.getByte(8) & 0xFF;
+            state.c += (k.getByte(9) & 0xFF) << 8;
+            state.c += (k.getByte(10) & 0xFF) << 16;
+            state.c += (k.getByte(11) & 0xFF) << 24;
+            mix(state);
+            length -= 12;
+            k = k.getRegion(12);
         }
-        if (alignment == Alignment.ALIGN_32) {
-            //
-            // 32 bit aligned
-            // As much as possible, read as int
-            //
-            Region k = key;
-
-            /*------ all but last block: aligned reads and affect 32 bits of (a,b,c) */
-            while (length > 12) {
-                state.a += k.getInt(0 * 4);
-                state.b += k.getInt(1 * 4);
-                state.c += k.getInt(2 * 4);
-                mix(state);
-                length -= 12;
-                k = k.getRegion(3 * 4);
-            }
 
-            //----------------------------- handle the last (probably partial) block
-
-            // "k[2]&0xffffff" actually reads beyond the end of the string, but
-            // then masks off the part it's not allowed to read.  Because the
-            // string is aligned, the masked-off tail is in the same word as the
-            // rest of the string.  Every machine with memory protection I've seen
-            // does it on word boundaries, so is OK with this.  But VALGRIND will
-            // still catch it and complain.  The masking trick does make the hash
-            // noticably faster for short strings (like English words).
-            switch (length) {
-                // 3 ints
-                case 12:
-                    state.c += k.getInt(2 * 4);
-                    state.b += k.getInt(1 * 4);
-                    state.a += k.getInt(0 * 4);
-                    break;
-
-                // 0-3 bytes + 2 ints
-                case 11:
-                    state.c += ((int) k.getByte(10)) << 16;
-                    // fall through
-                case 10:
-                    state.c += ((int) k.getByte(9)) << 8;
-                    // fall through
-                case 9:
-                    state.c += k.getByte(8);
-                    // fall through
-                case 8:
-                    state.b += k.getInt(1 * 4);
-                    state.a += k.getInt(0 * 4);
-                    break;
-
-
-                // 0-3 bytes + 1 ints
-                case 7:
-                    state.b += ((int) k.getByte(6)) << 16;
-                    // fall through
-                case 6:
-                    state.b += ((int) k.getByte(5)) << 8;
-                    // fall through
-                case 5:
-                    state.b += k.getByte(4);
-                    // fall through
-                case 4:
-                    state.a += k.getInt(0 * 4);
-                    break;
-
-                // 0-3 bytes + 0 ints
-                case 3:
-                    state.a += ((int) k.getByte(2)) << 16;
-                    // fall through
-                case 2:
-                    state.a += ((int) k.getByte(1)) << 8;
-                    // fall through
-                case 1:
-                    state.a += k.getByte(0);
-                    break;
-
-                // zero length strings require no mixing
-                case 0:
-                    return state.c;
-            }
+        //-------------------------------- last block: affect all 32 bits of (c)
+        switch (length) {
+            // all the case statements fall through
+            case 12:
+                state.c += (k.getByte(11) & 0xFF) << 24;
+            case 11:
+                state.c += (k.getByte(10) & 0xFF) << 16;
+            case 10:
+                state.c += (k.getByte(9) & 0xFF) << 8;
+            case 9:
+                state.c += k.getByte(8) & 0xFF;
+            case 8:
+                state.b += (k.getByte(7) & 0xFF) << 24;
+            case 7:
+                state.b += (k.getByte(6) & 0xFF) << 16;
+            case 6:
+                state.b += (k.getByte(5) & 0xFF) << 8;
+            case 5:
+                state.b += k.getByte(4) & 0xFF;
+            case 4:
+                state.a += (k.getByte(3) & 0xFF) << 24;
+            case 3:
+                state.a += (k.getByte(2) & 0xFF) << 16;
+            case 2:
+                state.a += (k.getByte(1) & 0xFF) << 8;
+            case 1:
+                state.a += k.getByte(0) & 0xFF;
+                break;
+
+            // zero length strings require no mixing
+            case 0:
+                return state.c;
         }
-        else if (alignment == Alignment.ALIGN_16) {
-            //
-            // 16 bit aligned
-            // As much as possible, read as shorts
-            //
-            Region k = key;
-
-            //--------------- all but last block: aligned reads and different mixing
-            while (length > 12) {
-                state.a += k.getShort(0 * 2) + (((int) k.getShort(1 * 2)) << 16);
-                state.b += k.getShort(2 * 2) + (((int) k.getShort(3 * 2)) << 16);
-                state.c += k.getShort(4 * 2) + (((int) k.getShort(5 * 2)) << 16);
-                mix(state);
-                length -= 12;
-                k = k.getRegion(6 * 2);
-            }
-
-            //----------------------------- handle the last (probably partial) block
-            switch (length) {
-                // 6 shorts
-                case 12:
-                    state.c += k.getShort(4 * 2) + (((int) k.getShort(5 * 2)) << 16);
-                    state.b += k.getShort(2 * 2) + (((int) k.getShort(3 * 2)) << 16);
-                    state.a += k.getShort(0 * 2) + (((int) k.getShort(1 * 2)) << 16);
-                    break;
-
-                // 0-1 bytes + 5 shorts
-                case 11:
-                    state.c += ((int) k.getByte(10)) << 16;
-                    // @fallthrough
-                case 10:
-                    state.c += k.getShort(2 * 4);
-                    state.b += k.getShort(2 * 2) + (((int) k.getShort(2 * 3)) << 16);
-                    state.a += k.getShort(2 * 0) + (((int) k.getShort(2 * 1)) << 16);
-                    break;
-
-                // 0-1 bytes + 4 shorts
-                case 9:
-                    state.c += k.getByte(8);
-                    // @fallthrough
-                case 8:
-                    state.b += k.getShort(2 * 2) + (((int) k.getShort(2 * 3)) << 16);
-                    state.a += k.getShort(2 * 0) + (((int) k.getShort(2 * 1)) << 16);
-                    break;
+        finalMix(state);
+        return state.c;
+    }
 
-                // 0-1 bytes + 3 shorts
-                case 7:
-                    state.b += ((int) k.getByte(6)) << 16;
-                    // @fallthrough
-                case 6:
-                    state.b += k.getShort(2 * 2);
-                    state.a += k.getShort(2 * 0) + (((int) k.getShort(2 * 1)) << 16);
-                    break;
+    /**
+     * Little endian hash of a byte array.  The result is the same as the hash
+     * of a region containing the same bytes.
+     */
+    public static int hashLittleEndian(byte[] key, int initialValue)
+    {
+        return hashLittleEndian(key, 0, key.length, initialValue);
+    }
 
-                // 0-1 bytes + 2 shorts
-                case 5:
-                    state.b += k.getByte(4);
-                    // @fallthrough
-                case 4:
-                    state.a += k.getShort(2 * 0) + (((int) k.getShort(2 * 1)) << 16);
-                    break;
+    /**
+     * Little endian hash of length bytes of the array starting at offset.
+     */
+    public static int hashLittleEndian(byte[] key, int offset, int length, int initialValue)
+    {
+        if (offset < 0 || length < 0 || offset > key.length - length) {
+            throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length + " array length=" + key.length);
+        }
+        return hashLittleEndian(key, BYTE_ARRAY_OFFSET + offset, length, initialValue);
+    }
 
-                // 0-1 bytes + 1 shorts
-                case 3:
-                    state.a += ((int) k.getByte(2)) << 16;
-                    // @fallthrough
-                case 2:
-                    state.a += k.getShort(2 * 0);
-                    break;
+    /**
+     * Little endian hash of the remaining bytes of the buffer.  The position
+     * of the buffer is not changed.
+     */
+    public static int hashLittleEndian(ByteBuffer key, int initialValue)
+    {
+        int length = key.remaining();
+        if (key.hasArray()) {
+            return hashLittleEndian(key.array(), key.arrayOffset() + key.position(), length, initialValue);
+        }
+        if (key.isDirect()) {
+            return hashLittleEndian(null, unsafe.getLong(key, BUFFER_ADDRESS_OFFSET) + key.position(), length, initialValue);
+        }
 
-                // 0-1 bytes + 0 shorts
-                case 1:
-                    state.a += k.getByte(0);
-                    break;
+        // read only heap buffers do not expose the array
+        byte[] bytes = new byte[length];
+        key.duplicate().get(bytes);
+        return hashLittleEndian(bytes, 0, length, initialValue);
+    }
 
-                // zero length strings require no mixing 
-                case 0:
-                    return state.c;
-            }
+    /**
+     * Little endian hash of the readable bytes of the buffer.  The reader
+     * index of the buffer is not changed.
+     */
+    public static int hashLittleEndian(ChannelBuffer key, int initialValue)
+    {
+        // heap and direct buffers are wrapped without copying
+        return hashLittleEndian(key.toByteBuffer(key.readerIndex(), key.readableBytes()), initialValue);
+    }
 
+    /**
+     * Little endian hash of raw memory.  The base is an array or null for
+     * off-heap memory, like the Unsafe accessors.  The state is kept in
+     * locals and the key is read an int at a time.
+     */
+    private static int hashLittleEndian(Object base, long address, int length, int initialValue)
+    {
+        int a = 0xdeadbeef + length + initialValue;
+        int b = a;
+        int c = a;
+
+        //------ all but last block: read and affect 32 bits of (a,b,c)
+        while (length > 12) {
+            a += getIntLittleEndian(base, address);
+            b += getIntLittleEndian(base, address + 4);
+            c += getIntLittleEndian(base, address + 8);
+
+            // mix(a, b, c)
+            a -= c;
+            a ^= rot(c, 4);
+            c += b;
+
+            b -= a;
+            b ^= rot(a, 6);
+            a += c;
+
+            c -= b;
+            c ^= rot(b, 8);
+            b += a;
+
+            a -= c;
+            a ^= rot(c, 16);
+            c += b;
+
+            b -= a;
+            b ^= rot(a, 19);
+            a += c;
+
+            c -= b;
+            c ^= rot(b, 4);
+            b += a;
+
+            length -= 12;
+            address += 12;
         }
-        else {
-            //
-            // Not aligned
-            // Read one byte at a time
-            //
-            Region k = key;
 
-            //--------------- all but the last block: affect some 32 bits of (x.a,x.b,x.c)
-            while (length > 12) {
-                state.a += k.getByte(0);
-                state.a += ((int) k.getByte(1)) << 8;
-                state.a += ((int) k.getByte(2)) << 16;
-                state.a += ((int) k.getByte(3)) << 24;
-                state.b += k.getByte(4);
-                state.b += ((int) k.getByte(5)) << 8;
-                state.b += ((int) k.getByte(6)) << 16;
-                state.b += ((int) k.getByte(7)) << 24;
-                state.c += k.getByte(8);
-                state.c += ((int) k.getByte(9)) << 8;
-                state.c += ((int) k.getByte(10)) << 16;
-                state.c += ((int) k.getByte(11)) << 24;
-                mix(state);
-                length -= 12;
-                k = k.getRegion(12);
-            }
+        //-------------------------------- last block: affect all 32 bits of (c)
+        switch (length) {
+            // partial words are read a byte at a time and fall through to
+            // the full words below them
+            case 12:
+                c += getIntLittleEndian(base, address + 8);
+                b += getIntLittleEndian(base, address + 4);
+                a += getIntLittleEndian(base, address);
+                break;
+            case 11:
+                c += (unsafe.getByte(base, address + 10) & 0xFF) << 16;
+            case 10:
+                c += (unsafe.getByte(base, address + 9) & 0xFF) << 8;
+            case 9:
+                c += unsafe.getByte(base, address + 8) & 0xFF;
+            case 8:
+                b += getIntLittleEndian(base, address + 4);
+                a += getIntLittleEndian(base, address);
+                break;
+            case 7:
+                b += (unsafe.getByte(base, address + 6) & 0xFF) << 16;
+            case 6:
+                b += (unsafe.getByte(base, address + 5) & 0xFF) << 8;
+            case 5:
+                b += unsafe.getByte(base, address + 4) & 0xFF;
+            case 4:
+                a += getIntLittleEndian(base, address);
+                break;
+            case 3:
+                a += (unsafe.getByte(base, address + 2) & 0xFF) << 16;
+            case 2:
+                a += (unsafe.getByte(base, address + 1) & 0xFF) << 8;
+            case 1:
+                a += unsafe.getByte(base, address) & 0xFF;
+                break;
+
+            // zero length strings require no mixing
+            case 0:
+                return c;
+        }
 
-            //-------------------------------- last block: affect all 32 bits of (c)
-            switch (length) {
-                // all the case statements fall through
-                case 12:
-                    state.c += ((int) k.getByte(11)) << 24;
-                case 11:
-                    state.c += ((int) k.getByte(10)) << 16;
-                case 10:
-                    state.c += ((int) k.getByte(9)) << 8;
-                case 9:
-                    state.c += k.getByte(8);
-                case 8:
-                    state.b += ((int) k.getByte(7)) << 24;
-                case 7:
-                    state.b += ((int) k.getByte(6)) << 16;
-                case 6:
-                    state.b += ((int) k.getByte(5)) << 8;
-                case 5:
-                    state.b += k.getByte(4);
-                case 4:
-                    state.a += ((int) k.getByte(3)) << 24;
-                case 3:
-                    state.a += ((int) k.getByte(2)) << 16;
-                case 2:
-                    state.a += ((int) k.getByte(1)) << 8;
-                case 1:
-                    state.a += k.getByte(0);
-                    break;
+        // finalMix(a, b, c)
+        c ^= b;
+        c -= rot(b, 14);
+        a ^= c;
+        a -= rot(c, 11);
+        b ^= a;
+        b -= rot(a, 25);
+        c ^= b;
+        c -= rot(b, 16);
+        a ^= c;
+        a -= rot(c, 4);
+        b ^= a;
+        b -= rot(a, 14);
+        c ^= b;
+        c -= rot(b, 24);
+        return c;
+    }
 
-                // zero length strings require no mixing
-                case 0:
-                    return state.c;
-            }
+    private static int getIntLittleEndian(Object base, long address)
+    {
+        int value = unsafe.getInt(base, address);
+        if (NATIVE_BIG_ENDIAN) {
+            value = Integer.reverseBytes(value);
         }
-
-        finalMix(state);
-        return state.c;
+        return value;
     }
 
     /**
@@ -361,13 +379,13 @@ public class Hash
 
                 // 0-3 bytes + 2 ints
                 case 11:
-                    state.c += ((int) k.getByte(10)) << 8;
+                    state.c += (k.getByte(10) & 0xFF) << 8;
                     // fall through
                 case 10:
-                    state.c += ((int) k.getByte(9)) << 16;
+                    state.c += (k.getByte(9) & 0xFF) << 16;
                     // fall through
                 case 9:
-                    state.c += ((int) k.getByte(8)) << 24;
+                    state.c += (k.getByte(8) & 0xFF) << 24;
                     // fall through
                 case 8:
                     state.b += k.getInt(4 * 1);
@@ -376,13 +394,13 @@ public class Hash
 
                 // 0-3 bytes + 1 ints
                 case 7:
-                    state.b += ((int) k.getByte(6)) << 8;
+                    state.b += (k.getByte(6) & 0xFF) << 8;
                     // fall through
                 case 6:
-                    state.b += ((int) k.getByte(5)) << 16;
+                    state.b += (k.getByte(5) & 0xFF) << 16;
                     // fall through
                 case 5:
-                    state.b += ((int) k.getByte(4)) << 24;
+                    state.b += (k.getByte(4) & 0xFF) << 24;
                     // fall through
                 case 4:
                     state.a += k.getInt(4 * 0);
@@ -390,13 +408,13 @@ public class Hash
 
                 // 0-3 bytes + 0 ints
                 case 3:
-                    state.a += ((int) k.getByte(2)) << 8;
+                    state.a += (k.getByte(2) & 0xFF) << 8;
                     // fall through
                 case 2:
-                    state.a += ((int) k.getByte(1)) << 16;
+                    state.a += (k.getByte(1) & 0xFF) << 16;
                     // fall through
                 case 1:
-                    state.a += ((int) k.getByte(0)) << 24;
+                    state.a += (k.getByte(0) & 0xFF) << 24;
                     break;
 
                 // zero length strings require no mixing
@@ -413,18 +431,18 @@ public class Hash
 
             //--------------- all but the last block: affect some 32 bits of (x.a,x.b,x.c)
             while (length > 12) {
-                state.a += ((int) k.getByte(0)) << 24;
-                state.a += ((int) k.getByte(1)) << 16;
-                state.a += ((int) k.getByte(2)) << 8;
-                state.a += ((int) k.getByte(3));
-                state.b += ((int) k.getByte(4)) << 24;
-                state.b += ((int) k.getByte(5)) << 16;
-                state.b += ((int) k.getByte(6)) << 8;
-                state.b += ((int) k.getByte(7));
-                state.c += ((int) k.getByte(8)) << 24;
-                state.c += ((int) k.getByte(9)) << 16;
-                state.c += ((int) k.getByte(10)) << 8;
-                state.c += ((int) k.getByte(11));
+                state.a += (k.getByte(0) & 0xFF) << 24;
+                state.a += (k.getByte(1) & 0xFF) << 16;
+                state.a += (k.getByte(2) & 0xFF) << 8;
+                state.a += (k.getByte(3) & 0xFF);
+                state.b += (k.getByte(4) & 0xFF) << 24;
+                state.b += (k.getByte(5) & 0xFF) << 16;
+                state.b += (k.getByte(6) & 0xFF) << 8;
+                state.b += (k.getByte(7) & 0xFF);
+                state.c += (k.getByte(8) & 0xFF) << 24;
+                state.c += (k.getByte(9) & 0xFF) << 16;
+                state.c += (k.getByte(10) & 0xFF) << 8;
+                state.c += (k.getByte(11) & 0xFF);
                 mix(state);
                 length -= 12;
                 k = k.getRegion(12);
@@ -434,29 +452,29 @@ public class Hash
             switch (length) {
                 // all the case statements fall through
                 case 12:
-                    state.c += k.getByte(11);
+                    state.c += k.getByte(11) & 0xFF;
                 case 11:
-                    state.c += ((int) k.getByte(10)) << 8;
+                    state.c += (k.getByte(10) & 0xFF) << 8;
                 case 10:
-                    state.c += ((int) k.getByte(9)) << 16;
+                    state.c += (k.getByte(9) & 0xFF) << 16;
                 case 9:
-                    state.c += ((int) k.getByte(8)) << 24;
+                    state.c += (k.getByte(8) & 0xFF) << 24;
                 case 8:
-                    state.b += k.getByte(7);
+                    state.b += k.getByte(7) & 0xFF;
                 case 7:
-                    state.b += ((int) k.getByte(6)) << 8;
+                    state.b += (k.getByte(6) & 0xFF) << 8;
                 case 6:
-                    state.b += ((int) k.getByte(5)) << 16;
+                    state.b += (k.getByte(5) & 0xFF) << 16;
                 case 5:
-                    state.b += ((int) k.getByte(4)) << 24;
+                    state.b += (k.getByte(4) & 0xFF) << 24;
                 case 4:
-                    state.a += k.getByte(3);
+                    state.a += k.getByte(3) & 0xFF;
                 case 3:
-                    state.a += ((int) k.getByte(2)) << 8;
+                    state.a += (k.getByte(2) & 0xFF) << 8;
                 case 2:
-                    state.a += ((int) k.getByte(1)) << 16;
+                    state.a += (k.getByte(1) & 0xFF) << 16;
                 case 1:
-                    state.a += ((int) k.getByte(0)) << 24;
+                    state.a += (k.getByte(0) & 0xFF) << 24;
                     break;
 
                 // zero length strings require no mixing
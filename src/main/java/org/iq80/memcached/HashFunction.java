@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.iq80.memory.Region;
+
+/**
+ * Hash function used to index item keys.
+ * <p/>
+ * The hash of a region and the hash of an array holding the same bytes
+ * must be equal.  The low 32 bits select the hash bucket and are stored in
+ * the item, where the bits above the bucket mask act as a tag that rejects
+ * most chain neighbours without comparing keys.  The high 32 bits may be
+ * zero, so users of the whole hash, like {@link ShardedCache}, mix all 64
+ * bits instead of relying on the high bits.
+ */
+public interface HashFunction
+{
+    long hash(Region key);
+
+    long hash(byte[] key, int offset, int length);
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.iq80.memory.Region;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the most frequently used keys with the Space-Saving algorithm.  A
+ * random sample of the requests is recorded in a fixed number of counters
+ * keyed by the key hash.  A key that is not tracked replaces the key with the
+ * smallest count and inherits that count as its error, so every key used
+ * more often than samples / capacity times is tracked, and the count of a
+ * tracked key overestimates its samples by at most its error.
+ * <p/>
+ * The key bytes are only copied when a key starts being tracked.  Like the
+ * rest of the item store the tracker is used with the cache lock held.
+ */
+public class HotKeyTracker
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final int DEFAULT_CAPACITY = 128;
+
+    /**
+     * One in this many requests is recorded by default
+     */
+    public static final int DEFAULT_SAMPLE_RATE = 16;
+
+    private final int capacity;
+    private final int sampleRate;
+    private final int sampleMask;
+
+    private final int[] hashes;
+    private final long[] counts;
+    private final long[] errors;
+    private final byte[][] keys;
+    private int size;
+
+    /**
+     * Open addressing table from key hash to counter index plus one
+     */
+    private final int[] index;
+    private final int indexMask;
+
+    private int random = 0x2545F491;
+    private long startTime;
+
+    public HotKeyTracker()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_SAMPLE_RATE);
+    }
+
+    /**
+     * @param capacity number of keys tracked
+     * @param sampleRate one in this many requests is recorded; must be a
+     * power of two
+     */
+    public HotKeyTracker(int capacity, int sampleRate)
+    {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (sampleRate <= 0 || Integer.bitCount(sampleRate) != 1) {
+            throw new IllegalArgumentException("sampleRate must be a power of two: " + sampleRate);
+        }
+        this.capacity = capacity;
+        this.sampleRate = sampleRate;
+        this.sampleMask = sampleRate - 1;
+
+        hashes = new int[capacity];
+        counts = new long[capacity];
+        errors = new long[capacity];
+        keys = new byte[capacity][];
+
+        index = new int[Integer.highestOneBit(capacity) << 2];
+        indexMask = index.length - 1;
+
+        startTime = System.nanoTime();
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    /**
+     * Should the current request be recorded?
+     */
+    public boolean sample()
+    {
+        if (sampleMask == 0) {
+            return true;
+        }
+        // xorshift
+        int x = random;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        random = x;
+        return (x & sampleMask) == 0;
+    }
+
+    /**
+     * Records a sampled use of the key.
+     */
+    public void record(int hash, Region key)
+    {
+        int slot = find(hash);
+        if (index[slot] != 0) {
+            counts[index[slot] - 1]++;
+            return;
+        }
+
+        int counter;
+        long count;
+        if (size < capacity) {
+            counter = size++;
+            count = 0;
+        }
+        else {
+            // replace the key with the smallest count
+            counter = 0;
+            for (int i = 1; i < size; i++) {
+                if (counts[i] < counts[counter]) {
+                    counter = i;
+                }
+            }
+            count = counts[counter];
+            delete(find(hashes[counter]));
+            // the slot may have moved
+            slot = find(hash);
+        }
+
+        hashes[counter] = hash;
+        counts[counter] = count + 1;
+        errors[counter] = count;
+        keys[counter] = key.getBytes(0, (int) key.size());
+        index[slot] = counter + 1;
+    }
+
+    /**
+     * Gets the most frequently used keys, most used first.
+     */
+    public List<HotKey> getHotKeys(int limit)
+    {
+        double seconds = Math.max(System.nanoTime() - startTime, 1) / (double) TimeUnit.SECONDS.toNanos(1);
+
+        List<HotKey> hotKeys = new ArrayList<HotKey>(size);
+        for (int i = 0; i < size; i++) {
+            long count = counts[i] * sampleRate;
+            hotKeys.add(new HotKey(Arrays.copyOf(keys[i], keys[i].length), count, errors[i] * sampleRate, count / seconds));
+        }
+        Collections.sort(hotKeys, new Comparator<HotKey>()
+        {
+            @Override
+            public int compare(HotKey o1, HotKey o2)
+            {
+                return o1.count < o2.count ? 1 : (o1.count == o2.count ? 0 : -1);
+            }
+        });
+        return hotKeys.subList(0, Math.min(limit, hotKeys.size()));
+    }
+
+    /**
+     * Formats the most frequently used keys as stats lines, for example
+     * <code>STAT hotkey:0 foo 12000 400.0</code> with the estimated number of
+     * requests and the requests per second.
+     */
+    public String formatStats(int limit)
+    {
+        StringBuilder sb = new StringBuilder();
+        List<HotKey> hotKeys = getHotKeys(limit);
+        for (int i = 0; i < hotKeys.size(); i++) {
+            HotKey hotKey = hotKeys.get(i);
+            sb.append(String.format("STAT hotkey:%d %s %d %.1f\r\n", i, hotKey.getKeyString(), hotKey.getCount(), hotKey.getRate()));
+        }
+        sb.append("END\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * Forgets all keys and restarts the rate measurement.
+     */
+    public void reset()
+    {
+        Arrays.fill(index, 0);
+        Arrays.fill(keys, null);
+        size = 0;
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Finds the index slot of the hash or the empty slot where it belongs.
+     */
+    private int find(int hash)
+    {
+        int slot = mix(hash) & indexMask;
+        while (index[slot] != 0 && hashes[index[slot] - 1] != hash) {
+            slot = (slot + 1) & indexMask;
+        }
+        return slot;
+    }
+
+    /**
+     * Removes a slot and moves the following entries of the probe sequence
+     * back, so lookups never need tombstones.
+     */
+    private void delete(int slot)
+    {
+        index[slot] = 0;
+        int next = (slot + 1) & indexMask;
+        while (index[next] != 0) {
+            int home = mix(hashes[index[next] - 1]) & indexMask;
+            // move the entry if its home is not between the hole and its slot
+            if (((next - home) & indexMask) >= ((next - slot) & indexMask)) {
+                index[slot] = index[next];
+                index[next] = 0;
+                slot = next;
+            }
+            next = (next + 1) & indexMask;
+        }
+    }
+
+    private static int mix(int hash)
+    {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    public static class HotKey
+    {
+        private final byte[] key;
+        private final long count;
+        private final long error;
+        private final double rate;
+
+        public HotKey(byte[] key, long count, long error, double rate)
+        {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+            this.rate = rate;
+        }
+
+        public byte[] getKey()
+        {
+            return key;
+        }
+
+        public String getKeyString()
+        {
+            return new String(key, UTF8);
+        }
+
+        /**
+         * Estimated number of requests for the key.
+         */
+        public long getCount()
+        {
+            return count;
+        }
+
+        /**
+         * Maximum overestimate of the count.
+         */
+        public long getError()
+        {
+            return error;
+        }
+
+        /**
+         * Estimated requests per second.
+         */
+        public double getRate()
+        {
+            return rate;
+        }
+
+        @Override
+        public String toString()
+        {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("HotKey");
+            sb.append("{key=").append(getKeyString());
+            sb.append(", count=").append(count);
+            sb.append(", error=").append(error);
+            sb.append(", rate=").append(rate);
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+}
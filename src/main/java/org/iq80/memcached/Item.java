@@ -17,45 +17,30 @@
 package org.iq80.memcached;
 
 import org.iq80.memory.Allocator;
+import org.iq80.memory.AllocatorUtil;
 import org.iq80.memory.Region;
-import org.iq80.memory.UnsafeAllocation;
 
+import java.nio.charset.Charset;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
-import static org.iq80.memory.Allocator.BYTE_SIZE;
-import static org.iq80.memory.Allocator.INT_SIZE;
-import static org.iq80.memory.Allocator.LONG_SIZE;
-import static org.iq80.memory.Allocator.SHORT_SIZE;
+import static org.iq80.memory.UnsafeAllocator.unsafe;
 
 @SuppressWarnings({"PointlessArithmeticExpression"})
 public class Item
 {
-    private final Logger log = Logger.getLogger(Item.class.getName());
+    private static final Logger log = Logger.getLogger(Item.class.getName());
 
     private static final int ITEM_LINKED = 1;
     private static final int ITEM_CAS = 2;
     // temp
     private static final int ITEM_SLABBED = 4;
+    private static final int ITEM_REFERENCED = 8;
+    private static final int ITEM_WINDOW = 16;
+    private static final int ITEM_COUNTER = 32;
 
-    private static final int NEXT_OFFSET = 0;                               //  0
-    private static final int PREV_OFFSET = NEXT_OFFSET + LONG_SIZE;         //  8
-    private static final int HASH_NEXT_OFFSET = PREV_OFFSET + LONG_SIZE;    // 16
-    private static final int TIME_OFFSET = HASH_NEXT_OFFSET + LONG_SIZE;    // 24
-    private static final int EXPIRE_TIME_OFFSET = TIME_OFFSET + INT_SIZE;   // 28
-    private static final int VALUE_LENGTH_OFFSET = EXPIRE_TIME_OFFSET + INT_SIZE; // 32
-    private static final int REF_COUNT_OFFSET = VALUE_LENGTH_OFFSET + INT_SIZE; // 36
-    private static final int SUFFIX_LENGTH_OFFSET = REF_COUNT_OFFSET + SHORT_SIZE; // 38
-    private static final int FLAGS_OFFSET = SUFFIX_LENGTH_OFFSET + BYTE_SIZE; // 39
-    private static final int SLAB_ID_OFFSET = FLAGS_OFFSET + BYTE_SIZE; // 40
-    private static final int KEY_LENGTH_OFFSET = SLAB_ID_OFFSET + BYTE_SIZE; // 41
-
-    public static final int FIXED_SIZE = KEY_LENGTH_OFFSET + BYTE_SIZE;
-
-    private static final int CAS_OFFSET = KEY_LENGTH_OFFSET + BYTE_SIZE; // 42   todo should be 8 byte aligned
-
-    private static final int FIXED_SIZE_WITH_CAS = CAS_OFFSET + LONG_SIZE;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
 
     /// **
@@ -80,43 +65,57 @@ public class Item
     //     /* then data with terminating \r\n (no terminating null; it's binary!) */
     // } item;
 
-    public static Item cast(Allocator allocator, long address)
+    public static Item cast(ItemLayout layout, long address)
     {
         if (address == 0) {
-            return new Item(allocator.region(address, FIXED_SIZE));
+            return null;
         }
-        return new Item(Allocator.NULL_POINTER);
+        if (layout.unchecked) {
+            // a page table lookup per cast is too slow for release mode, so
+            // the address is only verified when assertions are enabled
+            assert layout.verifyItemAddress(address) > 0;
+            return new Item(layout, address, 0, null);
+        }
+        return new Item(layout, address, 0, layout.getAllocator().region(address));
     }
 
-    public static Item createItem(long totalLength, SlabManager slabManager, boolean useCas)
+    public static Item createItem(ItemLayout layout, long totalLength, SlabManager slabManager, boolean useCas)
     {
         Region region = slabManager.allocate(totalLength);
         if (region == null) {
             return null;
         }
-        region.setMemory((byte) 0);
+        // only the header must be cleared; init writes the key and suffix and
+        // the caller writes the value
+        region.setMemory(0, useCas ? layout.getFixedSizeWithCas() : layout.getFixedSize(), (byte) 0);
+        layout.putHandle(region);
 
-        Item item = new Item(region);
+        Item item = new Item(layout, region.getAddress(), slabManager.getChunkSize(), region);
         if (useCas) {
             item.setFlags((byte) ITEM_CAS);
         }
         return item;
     }
 
-    public static int calculateTotalSize(int keyLength, int suffixLength, int valueLength, boolean usingCas)
-    {
-        if (usingCas) {
-            return FIXED_SIZE_WITH_CAS + keyLength + 1 + suffixLength + valueLength;
-        }
-        else {
-            return FIXED_SIZE + keyLength + 1 + suffixLength + valueLength;
-        }
-    }
+    private final ItemLayout layout;
+    private long address;
+
+    /**
+     * Size of the chunk holding the item; only used by unchecked layouts,
+     * which look it up from the slab id on first use when it is 0
+     */
+    private int chunkSize;
 
+    /**
+     * Region of the item; created on demand for unchecked layouts
+     */
     private Region region;
 
-    private Item(Region region)
+    private Item(ItemLayout layout, long address, int chunkSize, Region region)
     {
+        this.layout = layout;
+        this.address = address;
+        this.chunkSize = chunkSize;
         this.region = region;
     }
 
@@ -127,16 +126,22 @@ public class Item
         assert (getSlabId() == 0);
 
         // reset item
-        setNext(0);
-        setPrev(0);
+        if (!layout.isClock()) {
+            setNext(0);
+            setPrev(0);
+        }
         setHashClainNext(0);
+        setHash(0);
 
         // the caller will have a reference
-        setRefCount((short) 1);
+        setRefCount(1);
         log.fine("REFERENCE: " + this + " *");
 
         setExptime((int) exptime);
 
+        // a reused item may have been a counter
+        setFlags((byte) (getFlags() & ~ITEM_COUNTER));
+
         // key
         setKeyLength((byte) key.length);
         getKey().putBytes(0, key);
@@ -161,7 +166,7 @@ public class Item
 
         // Clear the slabId so slab size changer can tell later if item is
         // already free or not
-        setSlabId((byte) 0);
+        setSlabId(0);
         setSlabbed(true);
 
         log.fine("REFERENCE: " + this + " Free");
@@ -172,10 +177,15 @@ public class Item
 
     public void addReference()
     {
-        int refCount = getRefCount() + 1;
-
-        // verify count is < short
-        setRefCount((short) refCount);
+        if (layout.unchecked) {
+            int refCount;
+            do {
+                refCount = getRefCount();
+            } while (!unsafe.compareAndSwapInt(null, address + layout.refCountOffset, refCount, refCount + 1));
+        }
+        else {
+            region.getAndAddInt(layout.refCountOffset, 1);
+        }
 
         log.fine("REFERENCE: " + this + " +");
     }
@@ -188,10 +198,15 @@ public class Item
         assert !isSlabbed();
 
         // if ref count is not 0, decrement it
-        short refCount = getRefCount();
+        int refCount;
+        do {
+            refCount = getRefCount();
+            if (refCount == 0) {
+                break;
+            }
+        } while (!compareAndSwapInt(layout.refCountOffset, refCount, refCount - 1));
         if (refCount != 0) {
             refCount--;
-            setRefCount(refCount);
             log.fine("REFERENCE: " + this + " -");
         }
 
@@ -204,40 +219,51 @@ public class Item
     public void insertAfter(long address)
     {
         assert !isSlabbed();
+        assert !layout.isClock() : "clock layout items are not in a linked list";
 
         // update linked list
         setPrev(0);
         setNext(address);
         if (address != 0) {
             // Cas use doen't matter since use are only using the fixed region of the struct
-            cast(region.getAllocator(), address).setPrev(getAddress());
+            cast(layout, address).setPrev(getAddress());
         }
     }
 
+    /**
+     * Removes this item from the linked list.  The linked flag is not
+     * changed since the item may be moved within the list.
+     */
     public void unlink()
     {
+        assert !layout.isClock() : "clock layout items are not in a linked list";
         // verify we don't have a circular reference
         assert (getNext() != getAddress());
         assert (getPrev() != getAddress());
 
-        // mark item as unlinked
-        setLinked(false);
-
         // if we have a next, set item.next.prev = item.prev
-        if (getNext() != 0) {
+        long next = getNext();
+        long prev = getPrev();
+        if (next != 0) {
             // Cas use doen't matter since use are only using the fixed region of the struct
-            cast(region.getAllocator(), getNext()).setPrev(getPrev());
+            cast(layout, next).setPrev(prev);
         }
-        if (getPrev() != 0) {
+        if (prev != 0) {
             // Cas use doen't matter since use are only using the fixed region of the struct
-            cast(region.getAllocator(), getPrev()).setNext(getNext());
+            cast(layout, prev).setNext(next);
         }
+        setNext(0);
+        setPrev(0);
+    }
 
+    public ItemLayout getLayout()
+    {
+        return layout;
     }
 
     public Region getKey()
     {
-        return region.getRegion(getKeyOffset(), getKeyLength());
+        return getRegion(getKeyOffset(), getKeyLength());
     }
 
     public void setKey(byte[] key)
@@ -249,82 +275,158 @@ public class Item
     public boolean keyEquals(Region key)
     {
         long keySize = key.size();
-        return key.size() == keySize && region.compareMemory(getKeyOffset(), key, 0, keySize) == 0;
+        if (getKeyLength() != keySize) {
+            return false;
+        }
+        int keyOffset = getKeyOffset();
+        if (layout.unchecked && AllocatorUtil.isUnsafe(key)) {
+            checkChunk(keyOffset, keySize);
+            return AllocatorUtil.compareUnsafeMemory(address + keyOffset, key.getAddress(), keySize) == 0;
+        }
+        return getRegion().compareMemory(keyOffset, key, 0, keySize) == 0;
     }
 
     public Region getSuffix()
     {
-        return region.getRegion(getSuffixOffset(), getSuffixLength());
+        return getRegion(getSuffixOffset(), getSuffixLength());
     }
 
     public Region getValue()
     {
-        return region.getRegion(getValueOffset(), getValueLength());
+        return getRegion(getValueOffset(), getValueLength());
+    }
+
+    /**
+     * Adds data before or after the value using the unused space at the end
+     * of the chunk.  The value is moved when the new suffix is longer or the
+     * data is prepended.
+     *
+     * @param chunkSize the chunk size of the slab class of the item
+     * @param suffix the " flags length\r\n" suffix for the new length
+     * @param data the bytes to add, without a trailing \r\n
+     * @return false if the item would not fit in its chunk
+     */
+    public boolean extendValue(int chunkSize, byte[] suffix, byte[] data, boolean append)
+    {
+        assert !isCounter();
+
+        int valueLength = getValueLength();
+        if (layout.calculateTotalSize(getKeyLength(), suffix.length, valueLength + data.length, isUsingCas()) > chunkSize) {
+            return false;
+        }
+
+        // the region of the item may only cover the allocated size
+        Region region = layout.getAllocator().region(address, chunkSize);
+        this.region = region;
+
+        int valueOffset = getValueOffset();
+        int newValueOffset = getSuffixOffset() + suffix.length;
+        if (append) {
+            // move the text, then add the data and the \r\n
+            int textLength = valueLength - 2;
+            if (newValueOffset != valueOffset) {
+                region.copyMemory(valueOffset, region, newValueOffset, textLength);
+            }
+            region.putBytes(newValueOffset + textLength, data);
+            region.putByte(newValueOffset + textLength + data.length, (byte) '\r');
+            region.putByte(newValueOffset + textLength + data.length + 1, (byte) '\n');
+        }
+        else {
+            region.copyMemory(valueOffset, region, newValueOffset + data.length, valueLength);
+            region.putBytes(newValueOffset, data);
+        }
+
+        // the suffix may overwrite the start of the old value
+        setSuffixLength((byte) suffix.length);
+        getSuffix().putBytes(0, suffix);
+        setValueLength(valueLength + data.length);
+        return true;
     }
 
     public long getAddress()
     {
-        return region.getAddress();
+        return address;
     }
 
-    public void setAddress(Allocator allocator, long address)
+    public void setAddress(long address)
     {
-        this.region = allocator.region(address, FIXED_SIZE);
+        this.address = address;
+        if (layout.unchecked) {
+            assert layout.verifyItemAddress(address) > 0;
+            this.chunkSize = 0;
+            this.region = null;
+        }
+        else {
+            this.region = layout.getAllocator().region(address);
+        }
     }
 
     /**
-     * struct _stritem next: offset=0 length=8
+     * struct _stritem next: offset=32 (wide) or 28 (compact)
      */
     public long getNext()
     {
-        return region.getLong(NEXT_OFFSET);
+        return getReference(layout.nextOffset);
     }
 
     public void setNext(long next)
     {
-        region.putLong(NEXT_OFFSET, next);
+        putReference(layout.nextOffset, next);
     }
 
     public void setNext(Item next)
     {
         long nextAddress = next == null ? 0 : next.getAddress();
-        region.putLong(NEXT_OFFSET, nextAddress);
+        setNext(nextAddress);
     }
 
     /**
-     * struct _stritem prev: offset=8 length=8
+     * struct _stritem prev: offset=40 (wide) or 32 (compact)
      */
     public long getPrev()
     {
-        return region.getLong(PREV_OFFSET);
+        return getReference(layout.prevOffset);
     }
 
     public void setPrev(long prev)
     {
-        region.putLong(PREV_OFFSET, prev);
+        putReference(layout.prevOffset, prev);
     }
 
     public void setPrev(Item prev)
     {
         long prevAddress = prev == null ? 0 : prev.getAddress();
-        region.putLong(PREV_OFFSET, prevAddress);
+        setPrev(prevAddress);
     }
 
     public Allocator getAllocator() {
-        return region.getAllocator();
+        return getRegion().getAllocator();
     }
 
     /**
-     * hash chain next struct _stritem h_next: offset=16 length=8
+     * hash chain next struct _stritem h_next: offset=0
      */
     public long getHashClainNext()
     {
-        return region.getLong(HASH_NEXT_OFFSET);
+        return getReference(layout.hashNextOffset);
     }
 
     public void setHashClainNext(long hashClainNext)
     {
-        region.putLong(HASH_NEXT_OFFSET, hashClainNext);
+        putReference(layout.hashNextOffset, hashClainNext);
+    }
+
+    /**
+     * hash of the key uint32_t hv: offset=8 (wide) or 4 (compact) length=4
+     */
+    public int getHash()
+    {
+        return getInt(layout.hashOffset);
+    }
+
+    public void setHash(int hash)
+    {
+        putInt(layout.hashOffset, hash);
     }
 
     //
@@ -332,68 +434,74 @@ public class Item
     //
 
     /**
-     * least recent access rel_time_t time: offset=24 length=4
+     * least recent access rel_time_t time: offset=16 (wide) or 12 (compact)
+     * length=4
      */
     public int getTime()
     {
-        return region.getInt(TIME_OFFSET);
+        return getInt(layout.timeOffset);
     }
 
     public void setTime(int time)
     {
-        region.putInt(TIME_OFFSET, time);
+        putInt(layout.timeOffset, time);
     }
 
     /**
-     * expire time rel_time_t exptime: offset=28 length=4
+     * expire time rel_time_t exptime: offset=12 (wide) or 8 (compact)
+     * length=4
      */
     public int getExptime()
     {
-        return region.getInt(EXPIRE_TIME_OFFSET);
+        return getInt(layout.expireTimeOffset);
     }
 
     public void setExptime(int exptime)
     {
-        region.putInt(EXPIRE_TIME_OFFSET, exptime);
+        putInt(layout.expireTimeOffset, exptime);
     }
 
     /**
-     * size of data int nbytes: offset=32 length=4
+     * size of data int nbytes: offset=20 (wide) or 16 (compact) length=4
      */
     public int getValueLength()
     {
-        return region.getInt(VALUE_LENGTH_OFFSET);
+        return getInt(layout.valueLengthOffset);
     }
 
     public void setValueLength(int valueLength)
     {
-        region.putInt(VALUE_LENGTH_OFFSET, valueLength);
+        putInt(layout.valueLengthOffset, valueLength);
     }
 
     /**
-     * unsigned short refcount: offset=36 length=2
+     * refcount: offset=24 (wide) or 20 (compact) length=4
+     * <p/>
+     * The refcount is read and written with volatile semantics since readers
+     * take and release references concurrently.
      */
-    public short getRefCount()
+    public int getRefCount()
     {
-        return region.getShort(REF_COUNT_OFFSET);
+        return getIntVolatile(layout.refCountOffset);
     }
 
-    public void setRefCount(short refCount)
+    public void setRefCount(int refCount)
     {
-        region.putShort(REF_COUNT_OFFSET, refCount);
+        putIntVolatile(layout.refCountOffset, refCount);
     }
 
     /**
-     * length of flags-and-length string uint8_t nsuffix: offset=38 length=1
+     * length of flags-and-length string uint8_t nsuffix: offset=31 (wide) or
+     * 27 (compact) length=1
      */
-    public byte getSuffixLength()
+    public int getSuffixLength()
     {
-        return region.getByte(SUFFIX_LENGTH_OFFSET);
+        return getByte(layout.suffixLengthOffset) & 0xFF;
     }
 
     public void setSuffixLength(byte suffixLength)
     {
-        region.putByte(SUFFIX_LENGTH_OFFSET, suffixLength);
+        putByte(layout.suffixLengthOffset, suffixLength);
     }
 
     public boolean isLinked()
@@ -434,58 +542,172 @@ public class Item
     }
 
     /**
-     * uint8_t it_flags: offset=39 length=1
+     * Has the item been used since the clock hand last passed it?
+     */
+    public boolean isReferenced()
+    {
+        return (getFlags() & ITEM_REFERENCED) != 0;
+    }
+
+    public void setReferenced(boolean referenced)
+    {
+        byte flags = getFlags();
+        if (referenced) {
+            setFlags((byte) (flags | ITEM_REFERENCED));
+        }
+        else {
+            setFlags((byte) (flags & ~ITEM_REFERENCED));
+        }
+    }
+
+    /**
+     * Is the item in the admission window of {@link ItemTinyLfu}?
+     */
+    public boolean isWindow()
+    {
+        return (getFlags() & ITEM_WINDOW) != 0;
+    }
+
+    public void setWindow(boolean window)
+    {
+        byte flags = getFlags();
+        if (window) {
+            setFlags((byte) (flags | ITEM_WINDOW));
+        }
+        else {
+            setFlags((byte) (flags & ~ITEM_WINDOW));
+        }
+    }
+
+    /**
+     * Does the value hold a 64-bit binary counter instead of text?  The
+     * value of a counter is 8 bytes followed by \r\n, and the suffix only
+     * holds the flags, since the length of the text changes with the value.
+     */
+    public boolean isCounter()
+    {
+        return (getFlags() & ITEM_COUNTER) != 0;
+    }
+
+    public void setCounter(boolean counter)
+    {
+        byte flags = getFlags();
+        if (counter) {
+            setFlags((byte) (flags | ITEM_COUNTER));
+        }
+        else {
+            setFlags((byte) (flags & ~ITEM_COUNTER));
+        }
+    }
+
+    /**
+     * Gets the unsigned 64-bit value of a counter.
+     */
+    public long getCounterValue()
+    {
+        assert isCounter();
+        return getValue().getLong(0);
+    }
+
+    public void setCounterValue(long value)
+    {
+        assert isCounter();
+        getValue().putLong(0, value);
+    }
+
+    /**
+     * Gets the value as sent to clients including the trailing \r\n.  The
+     * value of a counter is rendered as decimal digits.
+     */
+    public byte[] formatValue()
+    {
+        if (!isCounter()) {
+            Region value = getValue();
+            return value.getBytes(0, (int) value.size());
+        }
+        return (toUnsignedString(getCounterValue()) + "\r\n").getBytes(UTF8);
+    }
+
+    /**
+     * Gets the " flags length\r\n" suffix of the "VALUE" line for the value
+     * returned by {@link #formatValue()}.
+     */
+    public byte[] formatSuffix()
+    {
+        Region suffix = getSuffix();
+        byte[] bytes = suffix.getBytes(0, (int) suffix.size());
+        if (!isCounter()) {
+            return bytes;
+        }
+        int length = toUnsignedString(getCounterValue()).length();
+        return (new String(bytes, UTF8) + " " + length + "\r\n").getBytes(UTF8);
+    }
+
+    /**
+     * Formats a value as an unsigned 64-bit decimal number.
+     */
+    static String toUnsignedString(long value)
+    {
+        if (value >= 0) {
+            return Long.toString(value);
+        }
+        // divide the unsigned value by 10 without overflow
+        long quotient = (value >>> 1) / 5;
+        long remainder = value - quotient * 10;
+        return Long.toString(quotient) + remainder;
+    }
+
+    /**
+     * uint8_t it_flags: offset=28 (wide) or 24 (compact) length=1
      */
     public byte getFlags()
     {
-        return region.getByte(FLAGS_OFFSET);
+        return getByte(layout.flagsOffset);
     }
 
     public void setFlags(byte flags)
     {
-        region.putByte(FLAGS_OFFSET, flags);
+        putByte(layout.flagsOffset, flags);
     }
 
     /**
-     * Which slab class we're in uint8_t slabs_clsid: offset=40 length=1
+     * Which slab class we're in uint8_t slabs_clsid: offset=29 (wide) or 25
+     * (compact) length=1
      */
-    public byte getSlabId()
+    public int getSlabId()
     {
-        // todo mask cast to int and return int
-        return region.getByte(SLAB_ID_OFFSET);
+        return getByte(layout.slabIdOffset) & 0xFF;
     }
 
-    public void setSlabId(byte slabId)
+    public void setSlabId(int slabId)
     {
-        // todo take int and verify that size < unsigned byte
-        region.putByte(SLAB_ID_OFFSET, slabId);
+        assert slabId >= 0 && slabId <= 0xFF : "slabId is not an unsigned byte";
+        putByte(layout.slabIdOffset, (byte) slabId);
     }
 
     /**
-     * key length, w/terminating null and padding uint8_t nkey: offset=41
-     * length=1
+     * key length, w/terminating null and padding uint8_t nkey: offset=30
+     * (wide) or 26 (compact) length=1
      */
-    public byte getKeyLength()
+    public int getKeyLength()
     {
-        // todo mask cast to int and return int
-        return region.getByte(KEY_LENGTH_OFFSET);
+        return getByte(layout.keyLengthOffset) & 0xFF;
     }
 
     public void setKeyLength(byte keyLength)
     {
-        // todo take int and verify that size < unsigned byte
-        region.putByte(KEY_LENGTH_OFFSET, keyLength);
+        putByte(layout.keyLengthOffset, keyLength);
     }
 
     /**
-     * todo optional : offset=41 length=8
+     * optional: offset=48 (wide) or 40 (compact) length=8
      */
     public long getCas()
     {
         if (!isUsingCas()) {
             return 0;
         }
-        return region.getLong(CAS_OFFSET);
+        return getLongVolatile(layout.casOffset);
     }
 
     public void setCas(long cas)
@@ -493,52 +715,199 @@ public class Item
         if (!isUsingCas()) {
             return;
         }
-        region.putLong(CAS_OFFSET, cas);
+        putLongOrdered(layout.casOffset, cas);
     }
 
     private int getKeyOffset()
     {
         if (isUsingCas()) {
-            return FIXED_SIZE_WITH_CAS;
+            return layout.fixedSizeWithCas;
         }
         else {
-            return FIXED_SIZE;
+            return layout.fixedSize;
         }
     }
 
     private int getSuffixOffset()
     {
-        if (isUsingCas()) {
-            return FIXED_SIZE_WITH_CAS + getKeyLength() + 1;
+        return getKeyOffset() + getKeyLength() + 1;
+    }
+
+    private int getValueOffset()
+    {
+        return getKeyOffset() + getKeyLength() + 1 + getSuffixLength();
+    }
+
+    public int getTotalSize()
+    {
+        return layout.calculateTotalSize(getKeyLength(), getSuffixLength(), getValueLength(), isUsingCas());
+    }
+
+    private Region getRegion()
+    {
+        if (region == null) {
+            region = layout.getAllocator().region(address, getChunkSize());
+        }
+        return region;
+    }
+
+    /**
+     * Sets the size of the chunk of an unchecked item whose slab id has been
+     * cleared for reuse.
+     */
+    void setChunkSize(int chunkSize)
+    {
+        this.chunkSize = chunkSize;
+    }
+
+    private int getChunkSize()
+    {
+        if (chunkSize == 0) {
+            chunkSize = layout.getChunkSize(getSlabId());
+        }
+        return chunkSize;
+    }
+
+    private Region getRegion(int offset, int length)
+    {
+        if (layout.unchecked) {
+            checkChunk(offset, length);
+        }
+        return getRegion().getRegion(offset, length);
+    }
+
+    /**
+     * Verifies a part of an unchecked item is within the chunk of the item.
+     */
+    private void checkChunk(int offset, long length)
+    {
+        int chunkSize = getChunkSize();
+        if (offset + length > chunkSize) {
+            throw new IndexOutOfBoundsException("Item data extends past the end of the chunk: offset=" + offset + " length=" + length + " chunkSize=" + chunkSize);
+        }
+    }
+
+    //
+    // Header access.  Unchecked layouts read the header directly at the item
+    // address, otherwise the access goes through the bounds checked region.
+    //
+
+    private long getReference(int offset)
+    {
+        if (layout.unchecked) {
+            return layout.getReference(address, offset);
+        }
+        return layout.getReference(region, offset);
+    }
+
+    private void putReference(int offset, long reference)
+    {
+        if (layout.unchecked) {
+            layout.putReference(address, offset, reference);
         }
         else {
-            return FIXED_SIZE + getKeyLength() + 1;
+            layout.putReference(region, offset, reference);
         }
     }
 
-    private int getValueOffset()
+    private byte getByte(int offset)
     {
-        if (isUsingCas()) {
-            return FIXED_SIZE_WITH_CAS + getKeyLength() + 1 + getSuffixLength();
+        if (layout.unchecked) {
+            return unsafe.getByte(address + offset);
+        }
+        return region.getByte(offset);
+    }
+
+    private void putByte(int offset, byte value)
+    {
+        if (layout.unchecked) {
+            unsafe.putByte(address + offset, value);
         }
         else {
-            return FIXED_SIZE + getKeyLength() + 1 + getSuffixLength();
+            region.putByte(offset, value);
         }
     }
 
-    public int getTotalSize()
+    private int getInt(int offset)
+    {
+        if (layout.unchecked) {
+            return unsafe.getInt(address + offset);
+        }
+        return region.getInt(offset);
+    }
+
+    private void putInt(int offset, int value)
+    {
+        if (layout.unchecked) {
+            unsafe.putInt(address + offset, value);
+        }
+        else {
+            region.putInt(offset, value);
+        }
+    }
+
+    private int getIntVolatile(int offset)
+    {
+        if (layout.unchecked) {
+            return unsafe.getIntVolatile(null, address + offset);
+        }
+        return region.getIntVolatile(offset);
+    }
+
+    private void putIntVolatile(int offset, int value)
+    {
+        if (layout.unchecked) {
+            unsafe.putIntVolatile(null, address + offset, value);
+        }
+        else {
+            region.putIntVolatile(offset, value);
+        }
+    }
+
+    private boolean compareAndSwapInt(int offset, int expected, int value)
+    {
+        if (layout.unchecked) {
+            return unsafe.compareAndSwapInt(null, address + offset, expected, value);
+        }
+        return region.compareAndSwapInt(offset, expected, value);
+    }
+
+    private long getLongVolatile(int offset)
+    {
+        if (layout.unchecked) {
+            return unsafe.getLongVolatile(null, address + offset);
+        }
+        return region.getLongVolatile(offset);
+    }
+
+    private void putLongOrdered(int offset, long value)
+    {
+        if (layout.unchecked) {
+            unsafe.putOrderedLong(null, address + offset, value);
+        }
+        else {
+            region.putLongOrdered(offset, value);
+        }
+    }
+
+    @Override
+    public String toString()
     {
-        return calculateTotalSize(getKeyLength(), getSuffixLength(), getValueLength(), isUsingCas());
+        final StringBuilder sb = new StringBuilder();
+        sb.append("Item");
+        sb.append("{address=").append(getAddress());
+        sb.append('}');
+        return sb.toString();
     }
 
     public static class NextChain implements Iterable<Item>
     {
-        private final Allocator allocator;
+        private final ItemLayout layout;
         private final long start;
 
-        public NextChain(Allocator allocator, long start)
+        public NextChain(ItemLayout layout, long start)
         {
-            this.allocator = allocator;
+            this.layout = layout;
             this.start = start;
         }
 
@@ -546,11 +915,11 @@ public class Item
         {
             return new Iterator<Item>()
             {
-                private Item next = cast(allocator, start);
+                private long next = start;
 
                 public boolean hasNext()
                 {
-                    return next.getAddress() != 0;
+                    return next != 0;
                 }
 
                 public Item next()
@@ -559,8 +928,9 @@ public class Item
                         throw new NoSuchElementException();
                     }
 
-                    next.setAddress(allocator, next.getNext());
-                    return next;
+                    Item item = cast(layout, next);
+                    next = item.getNext();
+                    return item;
                 }
 
                 public void remove()
@@ -573,12 +943,12 @@ public class Item
 
     public static class PrevChain implements Iterable<Item>
     {
-        private final Allocator allocator;
+        private final ItemLayout layout;
         private final long start;
 
-        public PrevChain(Allocator allocator, long start)
+        public PrevChain(ItemLayout layout, long start)
         {
-            this.allocator = allocator;
+            this.layout = layout;
             this.start = start;
         }
 
@@ -586,11 +956,11 @@ public class Item
         {
             return new Iterator<Item>()
             {
-                private Item next = cast(allocator, start);
+                private long next = start;
 
                 public boolean hasNext()
                 {
-                    return next.getAddress() != 0;
+                    return next != 0;
                 }
 
                 public Item next()
@@ -599,8 +969,9 @@ public class Item
                         throw new NoSuchElementException();
                     }
 
-                    next.setAddress(allocator, next.getPrev());
-                    return next;
+                    Item item = cast(layout, next);
+                    next = item.getPrev();
+                    return item;
                 }
 
                 public void remove()
@@ -613,12 +984,12 @@ public class Item
 
     public static class HashChain implements Iterable<Item>
     {
-        private final Allocator allocator;
+        private final ItemLayout layout;
         private final long start;
 
-        public HashChain(Allocator allocator, long start)
+        public HashChain(ItemLayout layout, long start)
         {
-            this.allocator = allocator;
+            this.layout = layout;
             this.start = start;
         }
 
@@ -626,11 +997,11 @@ public class Item
         {
             return new Iterator<Item>()
             {
-                private Item next = cast(allocator, start);
+                private long next = start;
 
                 public boolean hasNext()
                 {
-                    return next.getAddress() != 0;
+                    return next != 0;
                 }
 
                 public Item next()
@@ -639,8 +1010,9 @@ public class Item
                         throw new NoSuchElementException();
                     }
 
-                    next.setAddress(allocator, next.getHashClainNext());
-                    return next;
+                    Item item = cast(layout, next);
+                    next = item.getHashClainNext();
+                    return item;
                 }
 
                 public void remove()
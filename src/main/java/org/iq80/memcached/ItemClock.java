@@ -0,0 +1,264 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+/**
+ * CLOCK eviction for a slab class.  A hit only sets the referenced flag of
+ * the item, and only when it is not already set, so hits do not write the
+ * neighbouring items the way moving an item in an LRU list does.  When the
+ * slab class is out of memory a hand sweeps over the chunks of the slab
+ * pages in order, clearing the referenced flag of the items it passes, and
+ * evicts the first unreferenced item.
+ * <p/>
+ * Items are found by walking the slab pages, so they need no LRU links and
+ * are stored with a {@link ItemLayout#isClock() clock layout}.
+ */
+public class ItemClock implements EvictionPolicy
+{
+    /**
+     * How long an object can reasonably be assumed to be locked before
+     * harvesting it on a low memory condition? 3 Hours.
+     */
+    private static final long TAIL_REPAIR_TIME = 3 * 3600;
+
+    private final ItemLayout layout;
+    private final SlabManager slabManager;
+    private final boolean evictToFree;
+    private final Monitor monitor;
+    private final ItemStats stats;
+
+    /**
+     * Index of the chunk under the hand, counting the chunks of all slabs of
+     * the slab class in allocation order
+     */
+    private long hand;
+    private long size;
+
+    public ItemClock(ItemLayout layout, SlabManager slabManager, boolean evictToFree, Monitor monitor, ItemStats stats)
+    {
+        if (!layout.isClock()) {
+            throw new IllegalArgumentException("layout is not a clock layout: " + layout);
+        }
+        this.layout = layout;
+        this.slabManager = slabManager;
+        this.evictToFree = evictToFree;
+        this.monitor = monitor;
+        this.stats = stats;
+    }
+
+    @Override
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * Check if any of the items ahead of the hand have expired.  The hand
+     * moves past the checked items, so the next call continues the search.
+     */
+    @Override
+    public Item findExpired(int tries, int currentTime)
+    {
+        long chunkCount = getChunkCount();
+        for (long i = 0; i <= tries && i < chunkCount; i++) {
+            Item search = getItem(hand);
+            hand = (hand + 1) % chunkCount;
+            if (search.isLinked() && search.getRefCount() == 0 && search.getExptime() != 0 && search.getExptime() < currentTime) {
+                steal(search);
+                return search;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sweep the hand until an unreferenced item is found.  Every item with a
+     * referenced flag is passed at most once, so the hand sweeps at most
+     * twice over the slab class.
+     */
+    @Override
+    public Item freeLeastRecentlyUsed(int tries, int currentTime)
+    {
+        if (!evictToFree) {
+            stats.outOfMemory();
+            return null;
+        }
+
+        if (size == 0) {
+            stats.outOfMemory();
+            return null;
+        }
+
+        long chunkCount = getChunkCount();
+        for (long i = 0; i < 2 * chunkCount; i++) {
+            Item search = getItem(hand);
+            hand = (hand + 1) % chunkCount;
+
+            if (!search.isLinked()) {
+                // free or not yet linked
+                continue;
+            }
+
+            if (search.getRefCount() != 0) {
+                // only check 50 locked items
+                tries--;
+                if (tries < 0) {
+                    break;
+                }
+                continue;
+            }
+
+            if (search.isReferenced()) {
+                // second chance
+                search.setReferenced(false);
+                continue;
+            }
+
+            if (search.getExptime() == 0 || search.getExptime() > currentTime) {
+                stats.evicted(search);
+            }
+            steal(search);
+            return search;
+        }
+        return null;
+    }
+
+    /**
+     * Search for an item ahead of the hand that has been locked for more then
+     * 3 hours, which is a bug, and frees that item.  The hand moves past the
+     * checked items.
+     */
+    @Override
+    public Item tryTailRepair(int tries, int currentTime)
+    {
+        long chunkCount = getChunkCount();
+        for (long i = 0; i <= tries && i < chunkCount; i++) {
+            Item search = getItem(hand);
+            hand = (hand + 1) % chunkCount;
+            if (search.isLinked() && search.getRefCount() != 0 && search.getTime() + TAIL_REPAIR_TIME < currentTime) {
+                stats.tailRepaired(search);
+                steal(search);
+                return search;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void add(Item item)
+    {
+        assert item.getSlabId() == slabManager.getId();
+
+        stats.added(item);
+        item.setReferenced(false);
+        size++;
+    }
+
+    @Override
+    public void remove(Item item)
+    {
+        assert item.getSlabId() == slabManager.getId();
+
+        stats.removed(item);
+        item.setReferenced(false);
+        size--;
+    }
+
+    /**
+     * Sets the referenced flag of the item.
+     */
+    @Override
+    public void touch(Item item, int currentTime)
+    {
+        assert !item.isSlabbed();
+
+        // only write the header the first time the item is hit
+        if (!item.isReferenced() && item.isLinked()) {
+            item.setReferenced(true);
+        }
+    }
+
+    /**
+     * The hand finds items by chunk, so a moved item needs no bookkeeping.
+     */
+    @Override
+    public void relocate(Item from, Item to)
+    {
+        assert to.getSlabId() == slabManager.getId();
+    }
+
+    private void steal(Item item)
+    {
+        assert item.getRefCount() == 0;
+
+        monitor.itemUnlink(item);
+
+        // if item is still in this map
+        if (item.isLinked()) {
+            remove(item);
+            item.setLinked(false);
+        }
+
+        // Initialize the item block
+        item.setSlabId(0);
+        item.setRefCount(0);
+    }
+
+    /**
+     * Walks the slab pages, freeing the items that are more recent than the
+     * oldest_live setting.  Older items are expired when they are read.
+     */
+    @Override
+    public void flushExpired(long oldestLive, Association assoc, TimerWheel expirations)
+    {
+        long chunkCount = getChunkCount();
+        for (long i = 0; i < chunkCount; i++) {
+            Item item = getItem(i);
+            if (!item.isLinked() || item.getTime() < oldestLive) {
+                continue;
+            }
+
+            monitor.itemUnlink(item);
+
+            // remove from hash
+            assoc.delete(item.getKey());
+            if (item.getExptime() != 0) {
+                expirations.remove(item.getAddress());
+            }
+
+            remove(item);
+            item.setLinked(false);
+
+            // if ref count is 0, free it; otherwise someone is still using it
+            if (item.getRefCount() == 0) {
+                item.free(slabManager);
+            }
+        }
+    }
+
+    private long getChunkCount()
+    {
+        return (long) slabManager.getSlabCount() * slabManager.getChunksPerSlab();
+    }
+
+    private Item getItem(long chunk)
+    {
+        chunk %= getChunkCount();
+        int chunksPerSlab = slabManager.getChunksPerSlab();
+        long address = slabManager.getSlabAddress((int) (chunk / chunksPerSlab)) + (chunk % chunksPerSlab) * slabManager.getChunkSize();
+        return Item.cast(layout, address);
+    }
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.iq80.memory.Allocator;
+import org.iq80.memory.Region;
+import org.iq80.memory.UnsafeAllocator;
+
+import static org.iq80.memory.Allocator.BYTE_SIZE;
+import static org.iq80.memory.Allocator.INT_SIZE;
+import static org.iq80.memory.Allocator.LONG_SIZE;
+
+/**
+ * Describes how an item header is laid out in memory.
+ * <p/>
+ * The wide layout stores the LRU and hash chain references as 64-bit
+ * addresses.  The compact layout stores them as 32-bit slab page handles
+ * (see {@link SlabPageTable}) which makes the header 8 bytes smaller.  A
+ * compact item also keeps its own handle in the padding at the end of the
+ * fixed header, written once when the chunk is allocated, so storing a
+ * reference to it reads the handle instead of searching the page table.
+ * <p/>
+ * The fields read while walking a hash chain (chain next, hash, exptime,
+ * refcount, flags and key length) come first so a lookup only touches the
+ * first cache line of an item.  Every field is naturally aligned, and the
+ * fixed header is padded to 8 bytes so the cas and the key are 8 byte
+ * aligned.  The refcount and the cas are updated with atomic operations,
+ * which requires the natural alignment.
+ * <p/>
+ * An unchecked layout accesses item headers with raw address arithmetic
+ * instead of through bounds checked regions.  The key and value are limited
+ * to the chunk of the slab class of the item.  Item addresses are verified
+ * against the slab page table when an item is cast only if assertions are
+ * enabled, since the lookup costs more than the header access it guards.
+ * Unchecked layouts are only
+ * used for Unsafe memory when bounds checking is disabled with
+ * -Dorg.iq80.memory.CHECK_BOUNDS=false; by default every access is checked.
+ * <p/>
+ * A clock layout is used when items are evicted with {@link ItemClock}
+ * instead of an LRU list.  It has no next and prev fields, which makes the
+ * header 16 bytes smaller for wide references and 8 bytes smaller for
+ * compact references.
+ * <pre>
+ *   wide  compact
+ *      0        0  hash chain next
+ *      8        4  hash
+ *     12        8  exptime
+ *     16       12  time
+ *     20       16  value length
+ *     24       20  refcount (4)
+ *     28       24  flags (1)
+ *     29       25  slab id (1)
+ *     30       26  key length (1)
+ *     31       27  suffix length (1)
+ *     32       28  next
+ *     40       32  prev
+ *      -       36  own handle (4)
+ *     48       40  cas (8) if ITEM_CAS, then the key
+ * </pre>
+ */
+@SuppressWarnings({"PointlessArithmeticExpression"})
+public final class ItemLayout
+{
+    /**
+     * Size of the fixed header of a wide layout item without cas
+     */
+    public static final int WIDE_FIXED_SIZE = fixedSize(LONG_SIZE);
+
+    /**
+     * Size of the fixed header of a compact layout item without cas
+     */
+    public static final int COMPACT_FIXED_SIZE = fixedSize(INT_SIZE);
+
+    public static ItemLayout wide(Allocator allocator)
+    {
+        return new ItemLayout(allocator, null, false, false, false);
+    }
+
+    public static ItemLayout compact(Allocator allocator, SlabPageTable pageTable)
+    {
+        if (pageTable == null) {
+            throw new NullPointerException("pageTable is null");
+        }
+        return new ItemLayout(allocator, pageTable, true, false, false);
+    }
+
+    /**
+     * Creates the layout for items stored in the slab allocator.  The layout
+     * is unchecked when bounds checking is disabled and the slabs are
+     * allocated with Unsafe.
+     */
+    public static ItemLayout forSlabAllocator(SlabAllocator slabAllocator, boolean compact)
+    {
+        return forSlabAllocator(slabAllocator, compact, false);
+    }
+
+    /**
+     * Creates the layout for items stored in the slab allocator.
+     *
+     * @param clock if true the layout has no LRU links and items must be
+     * evicted with {@link ItemClock}
+     */
+    public static ItemLayout forSlabAllocator(SlabAllocator slabAllocator, boolean compact, boolean clock)
+    {
+        boolean unchecked = !UnsafeAllocator.checkBounds && slabAllocator.getAllocator() == UnsafeAllocator.INSTANCE;
+        return new ItemLayout(slabAllocator, slabAllocator.getPageTable(), compact, unchecked, clock);
+    }
+
+    static ItemLayout create(Allocator allocator, SlabPageTable pageTable, boolean compact, boolean unchecked)
+    {
+        return create(allocator, pageTable, compact, unchecked, false);
+    }
+
+    static ItemLayout create(Allocator allocator, SlabPageTable pageTable, boolean compact, boolean unchecked, boolean clock)
+    {
+        return new ItemLayout(allocator, pageTable, compact, unchecked, clock);
+    }
+
+    /**
+     * Gets the size of the fixed header of an item without cas, which is
+     * the space a slab class must add to the data of the items it holds.
+     */
+    public static int fixedSize(boolean compact, boolean clock)
+    {
+        int referenceSize = compact ? INT_SIZE : LONG_SIZE;
+        if (clock) {
+            return align(referenceSize + 5 * INT_SIZE + 4 * BYTE_SIZE, LONG_SIZE);
+        }
+        return fixedSize(referenceSize);
+    }
+
+    private static int fixedSize(int referenceSize)
+    {
+        int size = align(referenceSize + 5 * INT_SIZE + 4 * BYTE_SIZE, referenceSize);
+        return align(size + 2 * referenceSize, LONG_SIZE);
+    }
+
+    private static int align(int offset, int alignment)
+    {
+        return (offset + alignment - 1) & -alignment;
+    }
+
+    private final Allocator allocator;
+    private final SlabPageTable pageTable;
+    private final boolean compact;
+    private final boolean clock;
+    private final int referenceSize;
+
+    /**
+     * Chunk size of each slab class by slab id; only set for unchecked
+     * layouts
+     */
+    private final int[] chunkSizes;
+
+    /**
+     * Access headers with raw addresses instead of regions
+     */
+    final boolean unchecked;
+
+    final int hashNextOffset;
+    final int hashOffset;
+    final int expireTimeOffset;
+    final int timeOffset;
+    final int valueLengthOffset;
+    final int refCountOffset;
+    final int flagsOffset;
+    final int slabIdOffset;
+    final int keyLengthOffset;
+    final int suffixLengthOffset;
+    final int nextOffset;
+    final int prevOffset;
+    final int fixedSize;
+    final int handleOffset;
+    final int casOffset;
+    final int fixedSizeWithCas;
+
+    private ItemLayout(Allocator allocator, SlabPageTable pageTable, boolean compact, boolean unchecked, boolean clock)
+    {
+        if (allocator == null) {
+            throw new NullPointerException("allocator is null");
+        }
+        if ((compact || unchecked) && pageTable == null) {
+            throw new NullPointerException("pageTable is null");
+        }
+        if (unchecked && !(allocator instanceof SlabAllocator)) {
+            throw new IllegalArgumentException("Unchecked layouts require a slab allocator");
+        }
+        this.allocator = allocator;
+        this.pageTable = pageTable;
+        this.chunkSizes = unchecked ? ((SlabAllocator) allocator).getChunkSizes() : null;
+        this.compact = compact;
+        this.unchecked = unchecked;
+        this.clock = clock;
+        this.referenceSize = compact ? INT_SIZE : LONG_SIZE;
+
+        // lookup fields
+        hashNextOffset = 0;
+        hashOffset = hashNextOffset + referenceSize;
+        expireTimeOffset = hashOffset + INT_SIZE;
+        timeOffset = expireTimeOffset + INT_SIZE;
+        valueLengthOffset = timeOffset + INT_SIZE;
+        refCountOffset = valueLengthOffset + INT_SIZE;
+        flagsOffset = refCountOffset + INT_SIZE;
+        slabIdOffset = flagsOffset + BYTE_SIZE;
+        keyLengthOffset = slabIdOffset + BYTE_SIZE;
+        suffixLengthOffset = keyLengthOffset + BYTE_SIZE;
+
+        if (clock) {
+            // no lru fields
+            nextOffset = -1;
+            prevOffset = -1;
+            fixedSize = align(suffixLengthOffset + BYTE_SIZE, LONG_SIZE);
+        }
+        else {
+            // lru fields
+            nextOffset = align(suffixLengthOffset + BYTE_SIZE, referenceSize);
+            prevOffset = nextOffset + referenceSize;
+            fixedSize = align(prevOffset + referenceSize, LONG_SIZE);
+        }
+        assert fixedSize == fixedSize(compact, clock);
+
+        // the padding after the last field holds the handle of the item
+        handleOffset = compact ? fixedSize - INT_SIZE : -1;
+        assert !compact || handleOffset >= (clock ? suffixLengthOffset + BYTE_SIZE : prevOffset + referenceSize);
+
+        casOffset = fixedSize;
+        fixedSizeWithCas = casOffset + LONG_SIZE;
+    }
+
+    public Allocator getAllocator()
+    {
+        return allocator;
+    }
+
+    public SlabPageTable getPageTable()
+    {
+        return pageTable;
+    }
+
+    public boolean isCompact()
+    {
+        return compact;
+    }
+
+    public boolean isUnchecked()
+    {
+        return unchecked;
+    }
+
+    /**
+     * Is this a layout without LRU links for items evicted with
+     * {@link ItemClock}?
+     */
+    public boolean isClock()
+    {
+        return clock;
+    }
+
+    /**
+     * Size in bytes of a stored item reference.
+     */
+    public int getReferenceSize()
+    {
+        return referenceSize;
+    }
+
+    public int getFixedSize()
+    {
+        return fixedSize;
+    }
+
+    public int getFixedSizeWithCas()
+    {
+        return fixedSizeWithCas;
+    }
+
+    public int calculateTotalSize(int keyLength, int suffixLength, int valueLength, boolean usingCas)
+    {
+        if (usingCas) {
+            return fixedSizeWithCas + keyLength + 1 + suffixLength + valueLength;
+        }
+        else {
+            return fixedSize + keyLength + 1 + suffixLength + valueLength;
+        }
+    }
+
+    /**
+     * Reads the item reference stored at the specified offset.
+     *
+     * @return the address of the referenced item or 0 for none
+     */
+    public long getReference(Region region, int offset)
+    {
+        if (!compact) {
+            return region.getLong(offset);
+        }
+        return pageTable.getAddress(region.getInt(offset));
+    }
+
+    /**
+     * Stores a reference to the item at the specified address.
+     */
+    public void putReference(Region region, int offset, long address)
+    {
+        if (!compact) {
+            region.putLong(offset, address);
+        }
+        else {
+            region.putInt(offset, toHandle(address));
+        }
+    }
+
+    /**
+     * Reads the item reference stored at the specified offset of an item
+     * without bounds checks.
+     */
+    long getReference(long itemAddress, int offset)
+    {
+        if (!compact) {
+            return UnsafeAllocator.unsafe.getLong(itemAddress + offset);
+        }
+        return pageTable.getAddress(UnsafeAllocator.unsafe.getInt(itemAddress + offset));
+    }
+
+    /**
+     * Stores a reference at the specified offset of an item without bounds
+     * checks.
+     */
+    void putReference(long itemAddress, int offset, long address)
+    {
+        if (!compact) {
+            UnsafeAllocator.unsafe.putLong(itemAddress + offset, address);
+        }
+        else {
+            UnsafeAllocator.unsafe.putInt(itemAddress + offset, toHandle(address));
+        }
+    }
+
+    /**
+     * Verifies the address is the start of a chunk in a slab page.
+     *
+     * @return the chunk size of the page
+     * @throws IllegalStateException if the address is not the start of a
+     * chunk
+     */
+    int verifyItemAddress(long address)
+    {
+        int pageIndex = pageTable.getPageIndex(address);
+        if (pageIndex == 0) {
+            throw new IllegalStateException("Item address is not in a slab page: " + address);
+        }
+        int chunkSize = pageTable.getPageChunkSize(pageIndex);
+        if ((address - pageTable.getPageAddress(pageIndex)) % chunkSize != 0) {
+            throw new IllegalStateException("Item address is not the start of a chunk: " + address);
+        }
+        return chunkSize;
+    }
+
+    /**
+     * Gets the chunk size of the slab class of an unchecked item.
+     */
+    int getChunkSize(int slabId)
+    {
+        return chunkSizes[slabId];
+    }
+
+    /**
+     * Stores the handle of a newly allocated or moved item in its header.
+     * This is the only page table search for the item.
+     */
+    void putHandle(Region region)
+    {
+        if (compact) {
+            region.putInt(handleOffset, pageTable.getHandle(region.getAddress()));
+        }
+    }
+
+    /**
+     * Converts an item address to the 32-bit handle stored by the compact
+     * layout.  The handle is read from the header of the item.
+     */
+    public int toHandle(long address)
+    {
+        if (address == 0) {
+            return 0;
+        }
+        int handle;
+        if (unchecked) {
+            handle = UnsafeAllocator.unsafe.getInt(address + handleOffset);
+        }
+        else {
+            handle = allocator.region(address, fixedSize).getInt(handleOffset);
+        }
+        assert handle == pageTable.getHandle(address) : "item handle is stale";
+        return handle;
+    }
+
+    /**
+     * Converts a 32-bit handle stored by the compact layout to an item
+     * address.
+     */
+    public long toAddress(int handle)
+    {
+        return pageTable.getAddress(handle);
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("ItemLayout");
+        sb.append("{compact=").append(compact);
+        sb.append(", unchecked=").append(unchecked);
+        sb.append(", clock=").append(clock);
+        sb.append(", fixedSize=").append(fixedSize);
+        sb.append(", fixedSizeWithCas=").append(fixedSizeWithCas);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -18,7 +18,7 @@ package org.iq80.memcached;
 
 import org.iq80.memcached.Item.PrevChain;
 
-public class ItemLru {
+public class ItemLru implements EvictionPolicy {
     /**
      * We only reposition items in the LRU queue if they haven't been
      * repositioned in this many seconds. That saves us from churning on
@@ -32,6 +32,7 @@ public class ItemLru {
      */
     private static final long TAIL_REPAIR_TIME = 3 * 3600;
 
+    private final ItemLayout layout;
     private final SlabManager slabManager;
     private final boolean evictToFree;
     private final Monitor monitor;
@@ -40,13 +41,15 @@ public class ItemLru {
     private long tail;
     private long size;
 
-    public ItemLru(SlabManager slabManager, boolean evictToFree, Monitor monitor, ItemStats stats) {
+    public ItemLru(ItemLayout layout, SlabManager slabManager, boolean evictToFree, Monitor monitor, ItemStats stats) {
+        this.layout = layout;
         this.slabManager = slabManager;
         this.evictToFree = evictToFree;
         this.monitor = monitor;
         this.stats = stats;
     }
 
+    @Override
     public long size() {
         return size;
     }
@@ -54,9 +57,10 @@ public class ItemLru {
     /**
      * Check if there are any expired items on the tail.
      */
+    @Override
     public Item findExpired(int tries, int currentTime) {
         // do a quick check if we have any expired items in the tail..
-        for (Item search : new PrevChain(slabManager.getAllocator(), tail)) {
+        for (Item search : new PrevChain(layout, tail)) {
             if (search.getRefCount() == 0 && search.getExptime() != 0 && search.getExptime() < currentTime) {
                 steal(search);
 
@@ -75,6 +79,7 @@ public class ItemLru {
     /**
      * Free least recently used.
      */
+    @Override
     public Item freeLeastRecentlyUsed(int tries, int currentTime) {
         if (!evictToFree) {
             stats.outOfMemory();
@@ -86,7 +91,7 @@ public class ItemLru {
             return null;
         }
 
-        for (Item search : new PrevChain(slabManager.getAllocator(), tail)) {
+        for (Item search : new PrevChain(layout, tail)) {
             if (search.getRefCount() == 0) {
                 if (search.getExptime() == 0 || search.getExptime() > currentTime) {
                     stats.evicted(search);
@@ -105,10 +110,30 @@ public class ItemLru {
         return null;
     }
 
+    /**
+     * Finds the least recently used item that is not locked without removing
+     * it from this LRU.
+     */
+    public Item findLeastRecentlyUsed(int tries) {
+        for (Item search : new PrevChain(layout, tail)) {
+            if (search.getRefCount() == 0) {
+                return search;
+            }
+
+            // only check 50 entries
+            tries--;
+            if (tries < 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
     /**
      * Search for an item that has been locked for more then 3 hours, which is a
      * bug, and frees that item.
      */
+    @Override
     public Item tryTailRepair(int tries, int currentTime) {
         // Last ditch effort. There is a very rare bug which causes
         // ref count leaks. We've fixed most of them, but it still happens,
@@ -116,7 +141,7 @@ public class ItemLru {
         // We can reasonably assume no item can stay locked for more than
         // three hours, so if we find one in the tail which is that old,
         // free it anyway.
-        for (Item search : new PrevChain(slabManager.getAllocator(), tail)) {
+        for (Item search : new PrevChain(layout, tail)) {
             if (search.getRefCount() != 0 && search.getTime() + TAIL_REPAIR_TIME < currentTime) {
                 stats.tailRepaired(search);
                 steal(search);
@@ -135,13 +160,35 @@ public class ItemLru {
     /**
      * Adds item to this LRU.
      */
+    @Override
     public void add(Item item) {
+        stats.added(item);
+        link(item);
+    }
+
+    /**
+     * Remove item from this LRU.
+     */
+    @Override
+    public void remove(Item item) {
+        stats.removed(item);
+        unlink(item);
+    }
+
+    /**
+     * Moves item to the head of another LRU of the same slab class.  The
+     * item is not counted as removed and added.
+     */
+    public void moveTo(Item item, ItemLru target) {
+        unlink(item);
+        target.link(item);
+    }
+
+    private void link(Item item) {
         // item is the new head
         assert item.getSlabId() == slabManager.getId();
         assert item.getAddress() != head;
 
-        stats.added(item);
-
         item.insertAfter(head);
 
         // set head
@@ -156,15 +203,10 @@ public class ItemLru {
         size++;
     }
 
-    /**
-     * Remove item from this LRU.
-     */
-    public void remove(Item item) {
+    private void unlink(Item item) {
         // verify we have a valid item
         assert item.getSlabId() == slabManager.getId();
 
-        stats.removed(item);
-
         // if this is the head item, set head to item.next
         if (head == item.getAddress()) {
             assert (item.getPrev() == 0);
@@ -186,19 +228,47 @@ public class ItemLru {
     /**
      * Sets the last modified time of the item.
      */
+    @Override
     public void touch(Item item, int currentTime) {
         // if item hasn't been moved in 60 seconds, move to head of lru
         if (item.getTime() < currentTime - ITEM_UPDATE_INTERVAL) {
             assert !item.isSlabbed();
 
             if (item.isLinked()) {
-                remove(item);
+                unlink(item);
                 item.setTime(currentTime);
-                add(item);
+                link(item);
             }
         }
     }
 
+    /**
+     * Points the neighbours of the item to the copy, which has the same
+     * next and prev links.
+     */
+    @Override
+    public void relocate(Item from, Item to) {
+        assert to.getSlabId() == slabManager.getId();
+
+        long prev = to.getPrev();
+        if (prev == 0) {
+            assert head == from.getAddress();
+            head = to.getAddress();
+        }
+        else {
+            Item.cast(layout, prev).setNext(to.getAddress());
+        }
+
+        long next = to.getNext();
+        if (next == 0) {
+            assert tail == from.getAddress();
+            tail = to.getAddress();
+        }
+        else {
+            Item.cast(layout, next).setPrev(to.getAddress());
+        }
+    }
+
     private void steal(Item item) {
         assert item.getRefCount() == 0;
 
@@ -206,36 +276,35 @@ public class ItemLru {
 
         // if item is still in this map
         if (item.isLinked()) {
-            stats.removed(item);
-
             // remove from LRU
             remove(item);
+            item.setLinked(false);
         }
 
         // Initialize the item block
-        item.setSlabId((byte) 0);
-        item.setRefCount((short) 0);
+        item.setSlabId(0);
+        item.setRefCount(0);
     }
 
     /**
      * Walks entire cache, freeing expired items. expires items that are more
      * recent than the oldest_live setting.
      */
-    public void flushExpired(long oldestLive, Association assoc) {
+    @Override
+    public void flushExpired(long oldestLive, Association assoc, TimerWheel expirations) {
         // The LRU is sorted in decreasing time order, and an item's timestamp
         // is never newer than its last access time, so we only need to walk
         // back until we hit an item older than the oldest_live time.
         // The oldest_live checking will auto-expire the remaining items.
         long nextAddress;
-        for (Item item = Item.cast(slabManager.getAllocator(), head); item != null; item.setAddress(slabManager.getAllocator(), nextAddress)) {
+        for (long address = head; address != 0; address = nextAddress) {
+            Item item = Item.cast(layout, address);
             if (item.getTime() < oldestLive) {
                 // We've hit the first old item. Continue to the next queue.
                 break;
             }
 
-            // this is weird but we need to save off the next address and
-            // manually move the pointer to avoid a lot of unnecessary o
-            // object creation
+            // save off the next address since the item is unlinked below
             nextAddress = item.getNext();
 
             // if the item is not already slabbed, free it
@@ -244,13 +313,15 @@ public class ItemLru {
 
                 // if item is still in this map
                 if (item.isLinked()) {
-                    stats.removed(item);
-
                     // remove from hash
                     assoc.delete(item.getKey());
+                    if (item.getExptime() != 0) {
+                        expirations.remove(item.getAddress());
+                    }
 
                     // remove from LRU
                     remove(item);
+                    item.setLinked(false);
 
                     // if ref count is 0, free it; otherwise someone is still using it
                     if (item.getRefCount() == 0) {
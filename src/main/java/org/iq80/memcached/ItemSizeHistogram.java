@@ -0,0 +1,253 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of the total size of the linked items, with a granularity of 32
+ * bytes.  Bucket n counts the items larger than (n - 1) * 32 bytes and at
+ * most n * 32 bytes.  The counts are updated with the cache lock held as
+ * items are linked and unlinked.
+ * <p/>
+ * The histogram can compute the chunk sizes of a set of slab classes that
+ * minimize the space wasted at the end of the chunks for the current items,
+ * see {@link #optimizeChunkSizes(int)}.
+ */
+public class ItemSizeHistogram
+{
+    public static final int BUCKET_SIZE = 32;
+
+    /**
+     * Largest number of candidate chunk sizes considered by the optimizer;
+     * adjacent buckets are merged until at most this many are non empty
+     */
+    private static final int MAX_CANDIDATES = 1024;
+
+    private final long[] counts;
+
+    public ItemSizeHistogram(int maxItemSize)
+    {
+        if (maxItemSize <= 0) {
+            throw new IllegalArgumentException("maxItemSize must be positive: " + maxItemSize);
+        }
+        counts = new long[bucket(maxItemSize) + 1];
+    }
+
+    public void added(int size)
+    {
+        counts[bucket(size)]++;
+    }
+
+    public void removed(int size)
+    {
+        counts[bucket(size)]--;
+    }
+
+    private int bucket(int size)
+    {
+        int bucket = (size + BUCKET_SIZE - 1) / BUCKET_SIZE;
+        if (counts != null && bucket >= counts.length) {
+            bucket = counts.length - 1;
+        }
+        return bucket;
+    }
+
+    public int getBucketCount()
+    {
+        return counts.length;
+    }
+
+    /**
+     * Gets the number of items in the bucket of items at most
+     * bucket * {@link #BUCKET_SIZE} bytes.
+     */
+    public long getItemCount(int bucket)
+    {
+        return counts[bucket];
+    }
+
+    /**
+     * Formats the non empty buckets as STAT lines with the largest size of
+     * the bucket and the item count.
+     */
+    public String formatStats()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            if (counts[bucket] != 0) {
+                sb.append(String.format("STAT %d %d\r\n", bucket * BUCKET_SIZE, counts[bucket]));
+            }
+        }
+        sb.append("END\r\n");
+        return sb.toString();
+    }
+
+    /**
+     * Estimates the bytes wasted at the end of the chunks if the items were
+     * stored in slab classes with the specified chunk sizes.  Each item is
+     * assumed to have the largest size of its bucket.  Items that do not fit
+     * the largest chunk size are not counted.
+     */
+    public long estimateWaste(int[] chunkSizes)
+    {
+        int[] sorted = chunkSizes.clone();
+        Arrays.sort(sorted);
+
+        long waste = 0;
+        int chunk = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            if (counts[bucket] == 0) {
+                continue;
+            }
+            long size = (long) bucket * BUCKET_SIZE;
+            while (chunk < sorted.length && sorted[chunk] < size) {
+                chunk++;
+            }
+            if (chunk == sorted.length) {
+                break;
+            }
+            waste += counts[bucket] * (sorted[chunk] - size);
+        }
+        return waste;
+    }
+
+    /**
+     * Computes the chunk sizes of at most classCount slab classes that
+     * minimize the space wasted at the end of the chunks by the current
+     * items.  The largest chunk size fits the largest item.  The chunk sizes
+     * are multiples of {@link #BUCKET_SIZE} and are returned in ascending
+     * order.
+     * <p/>
+     * The sizes are chosen with dynamic programming over the non empty
+     * buckets: the cost of storing the buckets i to j in chunks of the size
+     * of bucket j is computed from prefix sums, and the best split of the
+     * buckets into classCount ranges is found in O(classCount * n^2) time.
+     */
+    public int[] optimizeChunkSizes(int classCount)
+    {
+        if (classCount <= 0) {
+            throw new IllegalArgumentException("classCount must be positive: " + classCount);
+        }
+
+        // merge adjacent buckets until there are few enough candidates
+        int width = 1;
+        while (countCandidates(width) > MAX_CANDIDATES) {
+            width *= 2;
+        }
+
+        int candidateCount = countCandidates(width);
+        long[] sizes = new long[candidateCount];
+        long[] itemCounts = new long[candidateCount];
+        int candidate = -1;
+        long lastGroup = -1;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            if (counts[bucket] == 0) {
+                continue;
+            }
+            long group = (bucket + width - 1) / width;
+            if (group != lastGroup) {
+                candidate++;
+                sizes[candidate] = group * width * BUCKET_SIZE;
+                lastGroup = group;
+            }
+            itemCounts[candidate] += counts[bucket];
+        }
+        if (candidateCount == 0) {
+            return new int[0];
+        }
+
+        // prefix sums of the item counts and the item bytes
+        long[] countSums = new long[candidateCount + 1];
+        long[] byteSums = new long[candidateCount + 1];
+        for (int i = 0; i < candidateCount; i++) {
+            countSums[i + 1] = countSums[i] + itemCounts[i];
+            byteSums[i + 1] = byteSums[i] + itemCounts[i] * sizes[i];
+        }
+
+        // waste[j] is the least waste of the candidates 0 to j with the
+        // current number of classes, the largest of which has size j
+        int classes = Math.min(classCount, candidateCount);
+        int[][] splits = new int[classes][candidateCount];
+        long[] waste = new long[candidateCount];
+        for (int j = 0; j < candidateCount; j++) {
+            waste[j] = sizes[j] * countSums[j + 1] - byteSums[j + 1];
+        }
+        for (int k = 1; k < classes; k++) {
+            long[] nextWaste = new long[candidateCount];
+            for (int j = 0; j < candidateCount; j++) {
+                if (j < k) {
+                    // fewer candidates than classes, so each has its own
+                    nextWaste[j] = 0;
+                    splits[k][j] = -1;
+                    continue;
+                }
+                long best = Long.MAX_VALUE;
+                int bestSplit = -1;
+                for (int i = k; i <= j; i++) {
+                    // candidates i to j use chunks of size j
+                    long cost = waste[i - 1] + sizes[j] * (countSums[j + 1] - countSums[i]) - (byteSums[j + 1] - byteSums[i]);
+                    if (cost < best) {
+                        best = cost;
+                        bestSplit = i;
+                    }
+                }
+                nextWaste[j] = best;
+                splits[k][j] = bestSplit;
+            }
+            waste = nextWaste;
+        }
+
+        // walk the splits back from the largest candidate
+        int[] chunkSizes = new int[candidateCount];
+        int count = 0;
+        int j = candidateCount - 1;
+        for (int k = classes - 1; j >= 0; k--) {
+            chunkSizes[count++] = (int) sizes[j];
+            if (k == 0) {
+                break;
+            }
+            int split = splits[k][j];
+            if (split < 0) {
+                // each remaining candidate has its own class
+                for (int i = j - 1; i >= 0; i--) {
+                    chunkSizes[count++] = (int) sizes[i];
+                }
+                break;
+            }
+            j = split - 1;
+        }
+        chunkSizes = Arrays.copyOf(chunkSizes, count);
+        Arrays.sort(chunkSizes);
+        return chunkSizes;
+    }
+
+    private int countCandidates(int width)
+    {
+        int count = 0;
+        long lastGroup = -1;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            if (counts[bucket] != 0) {
+                long group = (bucket + width - 1) / width;
+                if (group != lastGroup) {
+                    count++;
+                    lastGroup = group;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+/**
+ * W-TinyLFU eviction for a slab class.  New items enter a small admission
+ * window LRU, and the rest of the items are in the main LRU.  When memory is
+ * needed and the window is over its share of the items, the least recently
+ * used item of the window competes with the least recently used item of the
+ * main LRU: the one a {@link FrequencySketch} estimates was used less often
+ * is evicted, and a winning window item moves to the main LRU.  Keys that
+ * are written once and never read again are evicted from the window without
+ * pushing frequently used items out of the cache, while the window still
+ * admits a burst of new keys.
+ * <p/>
+ * The sketch counts each insert and each hit of the slab class.
+ */
+public class ItemTinyLfu implements EvictionPolicy
+{
+    /**
+     * Share of the items of the slab class kept in the admission window
+     */
+    private static final double WINDOW_RATIO = 0.01;
+
+    private final SlabManager slabManager;
+    private final boolean evictToFree;
+    private final Monitor monitor;
+    private final ItemStats stats;
+    private final ItemLru window;
+    private final ItemLru main;
+    private final FrequencySketch sketch;
+
+    public ItemTinyLfu(ItemLayout layout, SlabManager slabManager, boolean evictToFree, Monitor monitor, ItemStats stats)
+    {
+        if (layout.isClock()) {
+            throw new IllegalArgumentException("layout is a clock layout: " + layout);
+        }
+        this.slabManager = slabManager;
+        this.evictToFree = evictToFree;
+        this.monitor = monitor;
+        this.stats = stats;
+
+        this.window = new ItemLru(layout, slabManager, evictToFree, monitor, stats);
+        this.main = new ItemLru(layout, slabManager, evictToFree, monitor, stats);
+        this.sketch = new FrequencySketch(getChunkCount());
+    }
+
+    @Override
+    public long size()
+    {
+        return window.size() + main.size();
+    }
+
+    public FrequencySketch getSketch()
+    {
+        return sketch;
+    }
+
+    @Override
+    public Item findExpired(int tries, int currentTime)
+    {
+        Item item = main.findExpired(tries, currentTime);
+        if (item == null) {
+            item = window.findExpired(tries, currentTime);
+        }
+        return item;
+    }
+
+    @Override
+    public Item freeLeastRecentlyUsed(int tries, int currentTime)
+    {
+        if (!evictToFree || size() == 0) {
+            stats.outOfMemory();
+            return null;
+        }
+
+        // items that overflowed the window before memory ran out join the main LRU
+        long maxWindowSize = getMaxWindowSize();
+        while (window.size() > maxWindowSize + 1) {
+            Item item = window.findLeastRecentlyUsed(tries);
+            if (item == null) {
+                break;
+            }
+            moveToMain(item);
+        }
+
+        Item candidate = null;
+        if (window.size() > maxWindowSize || main.size() == 0) {
+            candidate = window.findLeastRecentlyUsed(tries);
+        }
+        Item victim = main.findLeastRecentlyUsed(tries);
+
+        Item evict;
+        if (candidate == null) {
+            evict = victim;
+        }
+        else if (victim == null) {
+            evict = candidate;
+        }
+        else if (sketch.frequency(candidate.getHash()) > sketch.frequency(victim.getHash())) {
+            moveToMain(candidate);
+            evict = victim;
+        }
+        else {
+            evict = candidate;
+        }
+
+        if (evict == null) {
+            return null;
+        }
+        if (evict.getExptime() == 0 || evict.getExptime() > currentTime) {
+            stats.evicted(evict);
+        }
+        steal(evict);
+        return evict;
+    }
+
+    @Override
+    public Item tryTailRepair(int tries, int currentTime)
+    {
+        Item item = main.tryTailRepair(tries, currentTime);
+        if (item == null) {
+            item = window.tryTailRepair(tries, currentTime);
+        }
+        return item;
+    }
+
+    @Override
+    public void add(Item item)
+    {
+        sketch.ensureCapacity(getChunkCount());
+        sketch.increment(item.getHash());
+
+        item.setWindow(true);
+        window.add(item);
+    }
+
+    @Override
+    public void remove(Item item)
+    {
+        lru(item).remove(item);
+    }
+
+    @Override
+    public void touch(Item item, int currentTime)
+    {
+        sketch.increment(item.getHash());
+        lru(item).touch(item, currentTime);
+    }
+
+    @Override
+    public void relocate(Item from, Item to)
+    {
+        // the copy has the window flag of the original
+        lru(to).relocate(from, to);
+    }
+
+    @Override
+    public void flushExpired(long oldestLive, Association assoc, TimerWheel expirations)
+    {
+        window.flushExpired(oldestLive, assoc, expirations);
+        main.flushExpired(oldestLive, assoc, expirations);
+    }
+
+    private ItemLru lru(Item item)
+    {
+        return item.isWindow() ? window : main;
+    }
+
+    private void moveToMain(Item item)
+    {
+        window.moveTo(item, main);
+        item.setWindow(false);
+    }
+
+    private void steal(Item item)
+    {
+        assert item.getRefCount() == 0;
+
+        monitor.itemUnlink(item);
+
+        // if item is still in this map
+        if (item.isLinked()) {
+            remove(item);
+            item.setLinked(false);
+        }
+
+        // Initialize the item block
+        item.setSlabId(0);
+        item.setRefCount(0);
+    }
+
+    private long getMaxWindowSize()
+    {
+        return Math.max(1, (long) (size() * WINDOW_RATIO));
+    }
+
+    private long getChunkCount()
+    {
+        return (long) slabManager.getSlabCount() * slabManager.getChunksPerSlab();
+    }
+}
@@ -19,50 +19,230 @@ import org.iq80.memory.Region;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+
+import static org.iq80.memory.Allocator.LONG_SIZE;
 
 public class Items
 {
     private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] CRLF = {'\r', '\n'};
 
     /**
-     * Atomic id of the last change to an item, which is used for compare and
-     * swap operations.
+     * Largest unsigned 64-bit value that can be multiplied by 10
      */
-    private static final AtomicLong CAS_ID = new AtomicLong();
+    private static final long MAX_UNSIGNED_DIV_10 = (-1L >>> 1) / 5;
 
     /**
-     * Current time is set once per invocation to reduce
-     * System.currentTimeMillis() calls.
+     * Ids of the changes to items, which are used for compare and swap
+     * operations.  They are shared by all caches unless replaced.
      */
-    private static int current_time = 0;
+    private static final CasIdGenerator CAS_IDS = new CasIdGenerator();
+
+    /**
+     * Source of the current time, which is read once per operation to reduce
+     * System.currentTimeMillis() calls.  The shared default clock is used
+     * unless replaced.
+     */
+    private ServerClock clock = ServerClock.getDefault();
+
+    // Addresses of the items with an expiration time by expiration second
+    private TimerWheel expirations;
 
-    private final List<ItemLru> lrus;
+    private final List<EvictionPolicy> evictionPolicies;
+
+    private final List<SlabClassStats> slabClassStats;
 
     private final SlabAllocator slabAllocator;
 
+    private final ItemLayout layout;
+
     private long oldest_live = 0;
     private boolean useCas = true;
+    private CasIdGenerator casIds = CAS_IDS;
 
     // Hash of items
     private final Association assoc;
 
-    private final Monitor monitor = null;
+    private final Monitor monitor = NullMonitor.INSTANCE;
+
+    // Sampled top keys of the get and insert paths
+    private final HotKeyTracker hotKeys = new HotKeyTracker();
+
+    // Sizes of the linked items
+    private final ItemSizeHistogram sizeHistogram;
 
     public Items(SlabAllocator slabAllocator)
     {
+        this(slabAllocator, false);
+    }
+
+    /**
+     * @param compactReferences if true items reference each other with 32-bit
+     * slab page handles instead of 64-bit addresses
+     */
+    public Items(SlabAllocator slabAllocator, boolean compactReferences)
+    {
+        this(slabAllocator, compactReferences, XxHash64.INSTANCE);
+    }
+
+    /**
+     * @param hashFunction hashes the keys in the item index
+     */
+    public Items(SlabAllocator slabAllocator, boolean compactReferences, HashFunction hashFunction)
+    {
+        this(slabAllocator, ItemLayout.forSlabAllocator(slabAllocator, compactReferences), hashFunction);
+    }
+
+    /**
+     * @param layout layout of the items in the slab allocator; items with a
+     * {@link ItemLayout#isClock() clock layout} are evicted with CLOCK instead
+     * of LRU
+     */
+    public Items(SlabAllocator slabAllocator, ItemLayout layout, HashFunction hashFunction)
+    {
+        this(slabAllocator, layout, hashFunction, false);
+    }
+
+    /**
+     * @param tinyLfu if true the items of each slab class are evicted with
+     * W-TinyLFU, which keeps frequently used items when new items are
+     * written once and never read; not supported with a clock layout
+     */
+    public Items(SlabAllocator slabAllocator, ItemLayout layout, HashFunction hashFunction, boolean tinyLfu)
+    {
+        if (tinyLfu && layout.isClock()) {
+            throw new IllegalArgumentException("W-TinyLFU is not supported with a clock layout");
+        }
         this.slabAllocator = slabAllocator;
-        this.assoc = new Association(monitor);
+        this.layout = layout;
+        this.assoc = new Association(layout, hashFunction, monitor);
+        this.expirations = new TimerWheel(clock.getCurrentTime());
 
         List<SlabManager> managerList = slabAllocator.getSlabManagers();
+        this.sizeHistogram = new ItemSizeHistogram(managerList.get(managerList.size() - 1).getChunkSize());
 
-        List<ItemLru> lrus = new ArrayList<ItemLru>(managerList.size());
+        List<EvictionPolicy> evictionPolicies = new ArrayList<EvictionPolicy>(managerList.size());
+        List<SlabClassStats> slabClassStats = new ArrayList<SlabClassStats>(managerList.size());
         for (int i = 0; i < managerList.size(); i++) {
-            lrus.add(new ItemLru(slabAllocator.getSlabManager(i), true, monitor, null));
+            SlabClassStats stats = new SlabClassStats(sizeHistogram);
+            SlabManager slabManager = slabAllocator.getSlabManager(i);
+            if (layout.isClock()) {
+                evictionPolicies.add(new ItemClock(layout, slabManager, true, monitor, stats));
+            }
+            else if (tinyLfu) {
+                evictionPolicies.add(new ItemTinyLfu(layout, slabManager, true, monitor, stats));
+            }
+            else {
+                evictionPolicies.add(new ItemLru(layout, slabManager, true, monitor, stats));
+            }
+            slabClassStats.add(stats);
+        }
+        this.evictionPolicies = Collections.unmodifiableList(evictionPolicies);
+        this.slabClassStats = Collections.unmodifiableList(slabClassStats);
+    }
+
+    public ItemLayout getLayout()
+    {
+        return layout;
+    }
+
+    public SlabAllocator getSlabAllocator()
+    {
+        return slabAllocator;
+    }
+
+    /**
+     * Gets the item statistics of the specified slab class.
+     */
+    public SlabClassStats getSlabClassStats(int slabId)
+    {
+        return slabClassStats.get(slabId);
+    }
+
+    /**
+     * Gets the tracker of the most frequently read and written keys.
+     */
+    public HotKeyTracker getHotKeyTracker()
+    {
+        return hotKeys;
+    }
+
+    /**
+     * Gets the histogram of the sizes of the linked items.
+     */
+    public ItemSizeHistogram getSizeHistogram()
+    {
+        return sizeHistogram;
+    }
+
+    /**
+     * Gets the number of items in the expiration wheel, which are the linked
+     * items with an expiration time.
+     */
+    public long getExpirationCount()
+    {
+        return expirations.size();
+    }
+
+    public ServerClock getClock()
+    {
+        return clock;
+    }
+
+    /**
+     * Sets the source of the current time, for example a clock that is not
+     * started so a simulator or test controls time.  The clock must be set
+     * before items with an expiration time are stored, and a started clock
+     * should be started before the cache is used so the times of the items
+     * only move forward.
+     */
+    public void setClock(ServerClock clock)
+    {
+        if (clock == null) {
+            throw new NullPointerException("clock is null");
+        }
+        if (expirations.size() != 0) {
+            throw new IllegalStateException("Items with an expiration time have been stored");
+        }
+        this.clock = clock;
+        this.expirations = new TimerWheel(clock.getCurrentTime());
+    }
+
+    public CasIdGenerator getCasIdGenerator()
+    {
+        return casIds;
+    }
+
+    /**
+     * Sets the source of the compare and swap ids, for example a generator
+     * seeded with the high water mark saved before a restart.
+     */
+    public void setCasIdGenerator(CasIdGenerator casIds)
+    {
+        if (casIds == null) {
+            throw new NullPointerException("casIds is null");
         }
-        this.lrus = Collections.unmodifiableList(lrus);
+        this.casIds = casIds;
+    }
+
+    /**
+     * Gets the current time in seconds used for item times and expiration.
+     */
+    public int getCurrentTime()
+    {
+        return clock.getCurrentTime();
+    }
+
+    /**
+     * Sets the current time in seconds used for item times and expiration.
+     * Only a clock that has not been started can be set.
+     */
+    public void setCurrentTime(int currentTime)
+    {
+        clock.setCurrentTime(currentTime);
     }
 
     /**
@@ -72,18 +252,48 @@ public class Items
     {
         // the "VALUE" line suffix (flags, size)
         byte[] suffix = String.format(" %d %d\r\n", userFlags, valueLength - 2).getBytes(UTF8);
+        return allocateItem(key, suffix, exptime, valueLength);
+    }
+
+    /**
+     * Find an unused item or creates a new item for a counter, which holds
+     * the value as a 64-bit binary number that INCR and DECR change in place
+     * and that is only rendered as text when read.
+     *
+     * @see Item#isCounter()
+     */
+    public Item allocateCounter(byte[] key, int userFlags, long exptime, long value)
+    {
+        // the length is added to the suffix when the value is rendered
+        byte[] suffix = String.format(" %d", userFlags).getBytes(UTF8);
+        Item item = allocateItem(key, suffix, exptime, LONG_SIZE + 2);
+        if (item == null) {
+            return null;
+        }
+        item.setCounter(true);
+        item.setCounterValue(value);
+        item.getValue().putBytes(LONG_SIZE, CRLF);
+        return item;
+    }
 
+    private Item allocateItem(byte[] key, byte[] suffix, long exptime, int valueLength)
+    {
         // determine total length of the record
-        long totalLength = Item.calculateTotalSize(key.length, suffix.length, valueLength, useCas);
+        long totalLength = layout.calculateTotalSize(key.length, suffix.length, valueLength, useCas);
 
         // find a free item large enough to hold the data
-        Item item = findFreeItem(totalLength);
+        SlabManager slabManager = slabAllocator.selectSlabManager(totalLength);
+        if (slabManager == null) {
+            return null;
+        }
+        Item item = findFreeItem(totalLength, slabManager);
         if (item == null) {
             return null;
         }
 
         // initialize the time with the key and basic data
         item.init(key, suffix, exptime, valueLength);
+        item.setSlabId(slabManager.getId());
 
         return item;
     }
@@ -91,25 +301,19 @@ public class Items
     /**
      * Find a free item slot or create a new item slot.
      */
-    private Item findFreeItem(long totalLength)
+    private Item findFreeItem(long totalLength, SlabManager slabManager)
     {
-        SlabManager slabManager = slabAllocator.selectSlabManager(totalLength);
-        if (slabManager == null) {
-            return null;
-        }
-        ItemLru lru = lrus.get(slabManager.getId());
+        EvictionPolicy evictionPolicy = evictionPolicies.get(slabManager.getId());
+        int currentTime = clock.getCurrentTime();
 
         // do a quick check if we have any expired items
-        Item item = lru.findExpired(50, current_time);
+        Item item = evictionPolicy.findExpired(50, currentTime);
         if (item != null) {
-            // remove from hash
-            assoc.delete(item.getKey());
-
-            return item;
+            return reuse(item, slabManager);
         }
 
         // we didn't find a free item, allocate one
-        item = Item.createItem(totalLength, slabManager, useCas);
+        item = Item.createItem(layout, totalLength, slabManager, useCas);
         if (item != null) {
             return item;
         }
@@ -119,17 +323,14 @@ public class Items
         // failed. Try to evict some items!
         //
 
-        item = lru.freeLeastRecentlyUsed(50, current_time);
+        item = evictionPolicy.freeLeastRecentlyUsed(50, currentTime);
         if (item != null) {
-            // remove from hash
-            assoc.delete(item.getKey());
-
-            return item;
+            return reuse(item, slabManager);
         }
 
         // try to allocate again
         // maybe someone else freed some stuff
-        item = Item.createItem(totalLength, slabManager, useCas);
+        item = Item.createItem(layout, totalLength, slabManager, useCas);
         if (item != null) {
             return item;
         }
@@ -140,15 +341,29 @@ public class Items
         // We can reasonably assume no item can stay locked for more than
         // three hours, so if we find one in the tail which is that old,
         // free it anyway.
-        item = lru.tryTailRepair(50, current_time);
+        item = evictionPolicy.tryTailRepair(50, currentTime);
         if (item != null) {
-            // remove from hash
-            assoc.delete(item.getKey());
-
-            return item;
+            return reuse(item, slabManager);
         }
 
-        item = Item.createItem(totalLength, slabManager, useCas);
+        item = Item.createItem(layout, totalLength, slabManager, useCas);
+        return item;
+    }
+
+    /**
+     * Removes an item stolen from an eviction policy from the hash and the
+     * expiration wheel so its chunk can be reused.
+     */
+    private Item reuse(Item item, SlabManager slabManager)
+    {
+        // the policy cleared the slab id, which an unchecked item would
+        // otherwise use to find the size of its chunk
+        item.setChunkSize(slabManager.getChunkSize());
+
+        // remove from hash
+        assoc.delete(item.getKey());
+        removeExpiration(item);
+
         return item;
     }
 
@@ -158,20 +373,25 @@ public class Items
      */
     public Item get(Region key)
     {
+        if (hotKeys.sample()) {
+            hotKeys.record(assoc.hash(key), key);
+        }
+
         Item item = assoc.find(key);
         if (item == null) {
             // todo log "not found in hash"
             return null;
         }
 
-        if (item != null && oldest_live != 0 && oldest_live <= current_time && item.getTime() <= oldest_live) {
+        int currentTime = clock.getCurrentTime();
+        if (item != null && oldest_live != 0 && oldest_live <= currentTime && item.getTime() <= oldest_live) {
             // todo log "nuked by flush"
             // MTSAFE - cache_lock held
             remove(item);
             return null;
         }
 
-        if (item != null && item.getExptime() != 0 && item.getExptime() <= current_time) {
+        if (item != null && item.getExptime() != 0 && item.getExptime() <= currentTime) {
             // todo log "nuked by expire"
             // MTSAFE - cache_lock held
             remove(item);
@@ -201,6 +421,15 @@ public class Items
      * Insert
      */
     public int insert(Item item)
+    {
+        return insert(item, 0);
+    }
+
+    /**
+     * @param previousCas the compare and swap id of the replaced version of
+     * the item, which the new id must be larger than
+     */
+    private int insert(Item item, long previousCas)
     {
         monitor.itemLink(item);
 
@@ -214,18 +443,27 @@ public class Items
         // mark the item linked
         item.setLinked(true);
         // set the last accessed time
-        item.setTime(current_time);
+        item.setTime(clock.getCurrentTime());
         // add to hash
         assoc.insert(item);
 
+        if (hotKeys.sample()) {
+            hotKeys.record(item.getHash(), item.getKey());
+        }
+
         // Allocate a new CAS ID on link.
         // set the compare and swap id
         if (useCas) {
-            item.setCas(CAS_ID.incrementAndGet());
+            item.setCas(casIds.next(previousCas));
         }
 
         // add to lru
-        lrus.get(item.getSlabId()).add(item);
+        evictionPolicies.get(item.getSlabId()).add(item);
+
+        // add to the expiration wheel
+        if (item.getExptime() != 0) {
+            expirations.add(item.getAddress(), item.getExptime());
+        }
 
         return 1;
     }
@@ -241,9 +479,11 @@ public class Items
         if (item.isLinked()) {
             // remove from hash
             assoc.delete(item.getKey());
+            removeExpiration(item);
 
             // remove from LRU
-            lrus.get(item.getSlabId()).remove(item);
+            evictionPolicies.get(item.getSlabId()).remove(item);
+            item.setLinked(false);
 
             // if ref count is 0, free it; otherwise someone is still using it
             if (item.getRefCount() == 0) {
@@ -252,6 +492,13 @@ public class Items
         }
     }
 
+    private void removeExpiration(Item item)
+    {
+        if (item.getExptime() != 0) {
+            expirations.remove(item.getAddress());
+        }
+    }
+
     /**
      * remove old and insert new
      */
@@ -261,9 +508,12 @@ public class Items
 
         assert !oldItem.isSlabbed();
 
+        // the old item may be freed by the remove
+        long previousCas = useCas ? oldItem.getCas() : 0;
+
         // todo don't fire monitor events
         remove(oldItem);
-        return insert(newItem);
+        return insert(newItem, previousCas);
     }
 
     /**
@@ -283,7 +533,227 @@ public class Items
     {
         monitor.itemUpdate(item);
 
-        lrus.get(item.getSlabId()).touch(item, current_time);
+        evictionPolicies.get(item.getSlabId()).touch(item, clock.getCurrentTime());
+    }
+
+    /**
+     * Removes the items that have expired, taking them from the expiration
+     * wheel instead of searching the tails of the eviction policies, so the
+     * work is proportional to the number of expired items.
+     *
+     * @param limit the maximum number of wheel entries to process
+     * @return the number of items removed
+     */
+    public int reclaimExpired(int limit)
+    {
+        int currentTime = clock.getCurrentTime();
+        expirations.advance(currentTime);
+
+        int reclaimed = 0;
+        for (int i = 0; i < limit; i++) {
+            long address = expirations.pollDue();
+            if (address == 0) {
+                break;
+            }
+
+            // entries are removed when their items are unlinked, so a due
+            // entry is always a linked item that has expired; a referenced
+            // item is freed when the last reference is released
+            Item item = Item.cast(layout, address);
+            assert item.isLinked() && item.getExptime() != 0 && item.getExptime() <= currentTime;
+            remove(item);
+            reclaimed++;
+        }
+
+        // freed chunks go to the thread cache of this thread
+        if (reclaimed != 0) {
+            slabAllocator.flushThreadCaches();
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Adds or subtracts a delta from the unsigned 64-bit decimal value of a
+     * referenced item.  An increment wraps around at 2^64 and a decrement
+     * stops at 0.  The digits are written in place, padded with spaces, unless
+     * the number gets longer than the value or another thread also holds a
+     * reference, in which case the item is replaced by a new one.  A counter
+     * item is always changed in place.
+     *
+     * @param delta unsigned amount to add or subtract
+     * @param newValue receives the new value in its first element
+     */
+    public DeltaResult addDelta(Item item, boolean incr, long delta, long[] newValue)
+    {
+        long value;
+        if (item.isCounter()) {
+            value = item.getCounterValue();
+        }
+        else if (parseUnsigned(item.getValue(), item.getValueLength() - 2, newValue)) {
+            value = newValue[0];
+        }
+        else {
+            return DeltaResult.NON_NUMERIC;
+        }
+
+        if (incr) {
+            value += delta;
+        }
+        else if (value + Long.MIN_VALUE < delta + Long.MIN_VALUE) {
+            // unsigned delta is larger than the value
+            value = 0;
+        }
+        else {
+            value -= delta;
+        }
+        newValue[0] = value;
+
+        if (item.isCounter()) {
+            item.setCounterValue(value);
+            if (useCas) {
+                item.setCas(casIds.next(item.getCas()));
+            }
+            return DeltaResult.OK;
+        }
+
+        byte[] digits = Item.toUnsignedString(value).getBytes(UTF8);
+        int length = item.getValueLength() - 2;
+        if (digits.length <= length && item.getRefCount() == 1) {
+            // overwrite the digits and blank the rest of the old number
+            Region region = item.getValue();
+            region.putBytes(0, digits);
+            for (int i = digits.length; i < length; i++) {
+                region.putByte(i, (byte) ' ');
+            }
+            if (useCas) {
+                item.setCas(casIds.next(item.getCas()));
+            }
+            return DeltaResult.OK;
+        }
+
+        // the number grew or someone else is reading the item
+        byte[] key = item.getKey().getBytes(0, item.getKeyLength());
+        Item newItem = allocateItem(key, parseUserFlags(item), item.getExptime(), digits.length + 2);
+        if (newItem == null) {
+            return DeltaResult.EOM;
+        }
+        newItem.getValue().putBytes(0, digits);
+        newItem.getValue().putBytes(digits.length, CRLF);
+        replace(item, newItem);
+        release(newItem);
+        return DeltaResult.OK;
+    }
+
+    /**
+     * Adds data after (APPEND) or before (PREPEND) the value of a referenced
+     * item.  When the chunk of the item has room and no other thread holds a
+     * reference, the bytes are added in place and only the CAS id changes.
+     * Otherwise the item is replaced by a new item, from a larger slab class
+     * if needed.  A counter becomes a plain item holding its text.
+     *
+     * @param data the bytes to add, without a trailing \r\n
+     * @return false if there was no memory for a new item
+     */
+    public boolean concatenate(Item item, byte[] data, boolean append)
+    {
+        int userFlags = parseUserFlags(item);
+        byte[] value = item.isCounter() ? item.formatValue() : null;
+        int valueLength = value != null ? value.length : item.getValueLength();
+        int newValueLength = valueLength + data.length;
+
+        if (value == null && item.getRefCount() == 1) {
+            byte[] suffix = String.format(" %d %d\r\n", userFlags, newValueLength - 2).getBytes(UTF8);
+            SlabManager slabManager = slabAllocator.getSlabManager(item.getSlabId());
+            int oldSize = item.getTotalSize();
+            if (item.extendValue(slabManager.getChunkSize(), suffix, data, append)) {
+                slabManager.resized(oldSize, item.getTotalSize());
+                if (item.isLinked()) {
+                    slabClassStats.get(item.getSlabId()).resized(oldSize, item.getTotalSize());
+                }
+                if (useCas) {
+                    item.setCas(casIds.next(item.getCas()));
+                }
+                return true;
+            }
+        }
+
+        byte[] key = item.getKey().getBytes(0, item.getKeyLength());
+        Item newItem = allocateItem(key, userFlags, item.getExptime(), newValueLength);
+        if (newItem == null) {
+            return false;
+        }
+        Region newValue = newItem.getValue();
+        int valueOffset = append ? 0 : data.length;
+        if (value != null) {
+            newValue.putBytes(valueOffset, value);
+        }
+        else {
+            item.getValue().copyMemory(0, newValue, valueOffset, valueLength);
+        }
+        if (append) {
+            newValue.putBytes(valueLength - 2, data);
+            newValue.putBytes(newValueLength - 2, CRLF);
+        }
+        else {
+            newValue.putBytes(0, data);
+        }
+        replace(item, newItem);
+        release(newItem);
+        return true;
+    }
+
+    /**
+     * Parses leading decimal digits followed only by spaces.
+     *
+     * @param value receives the unsigned value in its first element
+     * @return false if the text is not an unsigned 64-bit number
+     */
+    private static boolean parseUnsigned(Region text, int length, long[] value)
+    {
+        long result = 0;
+        int position = 0;
+        for (; position < length; position++) {
+            int digit = text.getByte(position) - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            if (result + Long.MIN_VALUE > MAX_UNSIGNED_DIV_10 + Long.MIN_VALUE) {
+                return false;
+            }
+            long next = result * 10 + digit;
+            if (next + Long.MIN_VALUE < result * 10 + Long.MIN_VALUE) {
+                return false;
+            }
+            result = next;
+        }
+        if (position == 0) {
+            return false;
+        }
+        for (; position < length; position++) {
+            if (text.getByte(position) != ' ') {
+                return false;
+            }
+        }
+        value[0] = result;
+        return true;
+    }
+
+    /**
+     * Parses the flags from the " flags length\r\n" suffix of the item.
+     */
+    private static int parseUserFlags(Item item)
+    {
+        Region suffix = item.getSuffix();
+        boolean negative = suffix.size() > 1 && suffix.getByte(1) == '-';
+        int flags = 0;
+        for (int i = negative ? 2 : 1; i < suffix.size(); i++) {
+            int digit = suffix.getByte(i) - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            flags = flags * 10 + digit;
+        }
+        return negative ? -flags : flags;
     }
 
     /**
@@ -296,8 +766,281 @@ public class Items
             return;
         }
 
-        for (ItemLru lru : lrus) {
-            lru.flushExpired(oldest_live, assoc);
+        for (EvictionPolicy evictionPolicy : evictionPolicies) {
+            evictionPolicy.flushExpired(oldest_live, assoc, expirations);
+        }
+    }
+
+    /**
+     * Changes the maximum number of bytes of slabs.  When the limit is
+     * lowered, slabs are emptied and released until the cache is under the
+     * new limit.  Each slab is taken from the slab class using the most
+     * memory, preferring the slab with the fewest linked items, and the
+     * items in it are evicted.
+     *
+     * @param maxMemory the maximum number of bytes or 0 for no limit
+     * @return false if the cache is still over the limit because the
+     * remaining slabs hold referenced items or chunks cached by other threads
+     */
+    public boolean setMemoryLimit(long maxMemory)
+    {
+        slabAllocator.setMaxMemory(maxMemory);
+        slabAllocator.flushThreadCaches();
+        if (maxMemory == 0) {
+            return true;
+        }
+
+        List<SlabReleaser> releasers = new ArrayList<SlabReleaser>();
+        for (SlabManager slabManager : slabAllocator.getSlabManagers()) {
+            releasers.add(new SlabReleaser(slabManager));
+        }
+
+        while (slabAllocator.getAllocatedBytes() > maxMemory) {
+            // try the class using the most memory first
+            SlabReleaser largest = null;
+            for (SlabReleaser releaser : releasers) {
+                if (releaser.hasNext() && (largest == null || releaser.getSize() > largest.getSize())) {
+                    largest = releaser;
+                }
+            }
+            if (largest == null) {
+                return false;
+            }
+            largest.releaseNext();
+        }
+        return true;
+    }
+
+    /**
+     * Releases the slabs of a slab class in order of linked item count.  The
+     * items of the class are counted once, the first time a slab is needed,
+     * so releasing many slabs does not scan the class again for each one.
+     */
+    private class SlabReleaser
+    {
+        private final SlabManager slabManager;
+
+        /**
+         * Slab indexes in release order or null if not ordered yet
+         */
+        private int[] slabs;
+        private int next;
+
+        private SlabReleaser(SlabManager slabManager)
+        {
+            this.slabManager = slabManager;
+        }
+
+        private long getSize()
+        {
+            return (long) slabManager.getSlabCount() * slabManager.getChunkSize() * slabManager.getChunksPerSlab();
+        }
+
+        private boolean hasNext()
+        {
+            if (slabs == null) {
+                // order the slabs by linked item count in the high bits
+                int slabCount = slabManager.getSlabCount();
+                long[] counts = new long[slabCount];
+                for (int index = 0; index < slabCount; index++) {
+                    counts[index] = ((long) countLinkedItems(slabManager, index) << 32) | index;
+                }
+                Arrays.sort(counts);
+
+                slabs = new int[slabCount];
+                for (int i = 0; i < slabCount; i++) {
+                    slabs[i] = (int) counts[i];
+                }
+            }
+            return next < slabs.length;
+        }
+
+        /**
+         * Evicts the items of the next releasable slab and releases it.
+         */
+        private void releaseNext()
+        {
+            while (hasNext()) {
+                int index = slabs[next++];
+                if (!isEvictable(slabManager, index)) {
+                    continue;
+                }
+                evictSlab(slabManager, index);
+                if (slabManager.releaseSlab(index)) {
+                    // the slabs after the released one are renumbered
+                    for (int i = next; i < slabs.length; i++) {
+                        if (slabs[i] > index) {
+                            slabs[i]--;
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    private int countLinkedItems(SlabManager slabManager, int index)
+    {
+        long address = slabManager.getSlabAddress(index);
+        int count = 0;
+        for (int chunk = 0; chunk < slabManager.getChunksPerSlab(); chunk++) {
+            if (Item.cast(layout, address + (long) chunk * slabManager.getChunkSize()).isLinked()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Can the slab be released after evicting its items?  Every chunk must be
+     * free or hold an unreferenced linked item; a referenced item or a chunk
+     * cached by another thread keeps the slab, so its items are not evicted
+     * for nothing.
+     */
+    private boolean isEvictable(SlabManager slabManager, int index)
+    {
+        int chunks = slabManager.getFreeChunkCount(index);
+        long address = slabManager.getSlabAddress(index);
+        for (int chunk = 0; chunk < slabManager.getChunksPerSlab(); chunk++) {
+            Item item = Item.cast(layout, address + (long) chunk * slabManager.getChunkSize());
+            if (item.isLinked() && item.getRefCount() == 0) {
+                chunks++;
+            }
+        }
+        return chunks == slabManager.getChunksPerSlab();
+    }
+
+    /**
+     * Evicts every unreferenced item in the slab.
+     */
+    private void evictSlab(SlabManager slabManager, int index)
+    {
+        SlabClassStats stats = slabClassStats.get(slabManager.getId());
+        int currentTime = clock.getCurrentTime();
+        long address = slabManager.getSlabAddress(index);
+        for (int chunk = 0; chunk < slabManager.getChunksPerSlab(); chunk++) {
+            Item item = Item.cast(layout, address + (long) chunk * slabManager.getChunkSize());
+            if (item.isLinked() && item.getRefCount() == 0) {
+                if (item.getExptime() == 0 || item.getExptime() > currentTime) {
+                    stats.evicted(item);
+                }
+                remove(item);
+            }
+        }
+
+        // freed chunks go to the thread cache of this thread
+        slabManager.flushThreadCache();
+    }
+
+    /**
+     * Moves the items out of the sparsest slabs of a slab class into free
+     * chunks of the other slabs of the class, and releases the emptied slabs
+     * so any slab class can use the memory.  A slab is sparse when at most
+     * maxLiveRatio of its chunks hold linked items.  Only as many sparse
+     * slabs are emptied as the free chunks of the remaining slabs can hold.
+     * Referenced items are not moved, so a slab holding one is not released.
+     *
+     * @param maxSlabs the maximum number of slabs to empty
+     * @return the number of slabs released
+     */
+    public int defragment(int slabId, double maxLiveRatio, int maxSlabs)
+    {
+        SlabManager slabManager = slabAllocator.getSlabManager(slabId);
+        slabManager.flushThreadCache();
+
+        int slabCount = slabManager.getSlabCount();
+        int chunksPerSlab = slabManager.getChunksPerSlab();
+
+        // order the slabs by linked item count in the high bits
+        long[] slabs = new long[slabCount];
+        long freeChunks = 0;
+        for (int index = 0; index < slabCount; index++) {
+            int linked = countLinkedItems(slabManager, index);
+            slabs[index] = ((long) linked << 32) | index;
+            freeChunks += chunksPerSlab - linked;
+        }
+        Arrays.sort(slabs);
+
+        // choose the sparse slabs whose items fit in the free chunks of the
+        // slabs that are kept
+        int victimCount = 0;
+        long movedItems = 0;
+        while (victimCount < slabCount && victimCount < maxSlabs) {
+            int linked = (int) (slabs[victimCount] >>> 32);
+            if (linked > chunksPerSlab * maxLiveRatio) {
+                break;
+            }
+            long remainingFreeChunks = freeChunks - (chunksPerSlab - linked);
+            if (movedItems + linked > remainingFreeChunks) {
+                break;
+            }
+            freeChunks = remainingFreeChunks;
+            movedItems += linked;
+            victimCount++;
+        }
+        if (victimCount == 0) {
+            return 0;
+        }
+
+        int[] victims = new int[victimCount];
+        long[] victimAddresses = new long[victimCount];
+        for (int i = 0; i < victimCount; i++) {
+            victims[i] = (int) slabs[i];
+            victimAddresses[i] = slabManager.getSlabAddress(victims[i]);
+        }
+        Arrays.sort(victims);
+        Arrays.sort(victimAddresses);
+
+        for (int index : victims) {
+            moveItems(slabManager, index, victimAddresses);
+        }
+
+        // freed chunks go to the thread cache of this thread
+        slabManager.flushThreadCache();
+
+        // release the highest slab first so the lower indexes stay valid
+        int released = 0;
+        for (int i = victimCount - 1; i >= 0; i--) {
+            if (slabManager.releaseSlab(victims[i])) {
+                released++;
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Moves every unreferenced item in the slab to a free chunk outside of
+     * the excluded slabs.
+     */
+    private void moveItems(SlabManager slabManager, int index, long[] excludedSlabs)
+    {
+        EvictionPolicy evictionPolicy = evictionPolicies.get(slabManager.getId());
+        long address = slabManager.getSlabAddress(index);
+        for (int chunk = 0; chunk < slabManager.getChunksPerSlab(); chunk++) {
+            Item from = Item.cast(layout, address + (long) chunk * slabManager.getChunkSize());
+            if (!from.isLinked() || from.getRefCount() != 0) {
+                continue;
+            }
+
+            int size = from.getTotalSize();
+            Region region = slabManager.allocateOutside(size, excludedSlabs);
+            if (region == null) {
+                return;
+            }
+            slabAllocator.region(from.getAddress(), size).copyMemory(0, region, 0, size);
+            layout.putHandle(region);
+            Item to = Item.cast(layout, region.getAddress());
+
+            // the copy takes the place of the item in the hash chain and the lru
+            assoc.relocate(from, to);
+            evictionPolicy.relocate(from, to);
+            if (to.getExptime() != 0) {
+                expirations.remove(from.getAddress());
+                expirations.add(to.getAddress(), to.getExptime());
+            }
+
+            from.setLinked(false);
+            from.free(slabManager);
         }
     }
 
@@ -401,46 +1144,5 @@ public class Items
 //        /* getting here means both ascii and binary terminators fit */
 //        add_stats(NULL, 0, NULL, 0, c);
 //    }
-//
-//    /**
-//     * dumps out a list of objects of each size, with granularity of 32 bytes
-//     */
-//    void do_item_stats_sizes(ADD_STAT add_stats, void*c)
-//    {
-//
-//        /* max 1MB object, divided into 32 bytes size buckets */
-//        const int num_buckets = 32768;
-//        unsigned int*histogram = calloc(num_buckets, sizeof(int));
-//
-//        if (histogram != NULL) {
-//            int i;
-//
-//            /* build the histogram */
-//            for (i = 0; i < LARGEST_ID; i++) {
-//                item * iter = heads[i];
-//                while (iter) {
-//                    int ntotal = ITEM_ntotal(iter);
-//                    int bucket = ntotal / 32;
-//                    if ((ntotal % 32) != 0) bucket++;
-//                    if (bucket < num_buckets) histogram[bucket]++;
-//                    iter = iter.next;
-//                }
-//            }
-//
-//            /* write the buffer */
-//            for (i = 0; i < num_buckets; i++) {
-//                if (histogram[i] != 0) {
-//                    char key[
-//                    8];
-//                    int klen = 0;
-//                    klen = snprintf(key, sizeof(key), "%d", i * 32);
-//                    assert (klen < sizeof(key));
-//                    APPEND_STAT(key, "%u", histogram[i]);
-//                }
-//            }
-//            free(histogram);
-//        }
-//        add_stats(NULL, 0, NULL, 0, c);
-//    }
 
 }
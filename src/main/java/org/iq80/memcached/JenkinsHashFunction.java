@@ -0,0 +1,49 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.iq80.memory.Region;
+
+/**
+ * The 32-bit lookup3 hash used by memcached (see {@link Hash}).  Only the
+ * low 32 bits of the result are set.
+ */
+public class JenkinsHashFunction implements HashFunction
+{
+    public static final JenkinsHashFunction INSTANCE = new JenkinsHashFunction();
+
+    private JenkinsHashFunction()
+    {
+    }
+
+    @Override
+    public long hash(Region key)
+    {
+        return Hash.hashLittleEndian(key, 0) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public long hash(byte[] key, int offset, int length)
+    {
+        return Hash.hashLittleEndian(key, offset, length, 0) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "lookup3";
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+public class NullItemStats implements ItemStats
+{
+    public static final NullItemStats INSTANCE = new NullItemStats();
+
+    @Override
+    public void added(Item item)
+    {
+    }
+
+    @Override
+    public void removed(Item item)
+    {
+    }
+
+    @Override
+    public void evicted(Item item)
+    {
+    }
+
+    @Override
+    public void outOfMemory()
+    {
+    }
+
+    @Override
+    public void tailRepaired(Item item)
+    {
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+public class NullMonitor implements Monitor
+{
+    public static final NullMonitor INSTANCE = new NullMonitor();
+
+    @Override
+    public void itemLink(Item item)
+    {
+    }
+
+    @Override
+    public void itemUnlink(Item item)
+    {
+    }
+
+    @Override
+    public void itemRemove(Item item)
+    {
+    }
+
+    @Override
+    public void itemUpdate(Item item)
+    {
+    }
+
+    @Override
+    public void itemReplace(Item oldOld, Item newItem)
+    {
+    }
+
+    @Override
+    public void assocFind(Item item, int depth)
+    {
+    }
+
+    @Override
+    public void assocInsert(Item item, int hashItems)
+    {
+    }
+}
@@ -16,10 +16,15 @@
  */
 package org.iq80.memcached;
 
+import org.iq80.memory.Allocation;
 import org.iq80.memory.Allocator;
+import org.iq80.memory.ByteBufferAllocator;
 import org.iq80.memory.Pointer;
 import org.iq80.memory.Region;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class PrivateSlabAllocator
 {
     /* Slab sizing definitions. */
@@ -29,25 +34,158 @@ public class PrivateSlabAllocator
     public static final boolean DONT_PRE_ALLOCATE_SLABS = false;
     public static final int MAX_NUMBER_OF_SLAB_CLASSES = POWER_LARGEST + 1;
 
+    /**
+     * Alignment of a prefaulted arena, which is the size of a transparent
+     * huge page on x86-64.
+     */
+    public static final long HUGE_PAGE_SIZE = 2 * 1024 * 1024;
 
     private final Allocator allocator;
     private final Pointer preAllocatedPointer;
 
+    /**
+     * The whole preallocated chunk or null if memory was not preallocated
+     */
+    private final Region preAllocated;
+
+    /**
+     * Released pages of the preallocated chunk that can be handed out again
+     */
+    private final List<Region> releasedPages = new ArrayList<Region>();
+
+    /**
+     * The preallocated chunk if it was prefaulted; otherwise null
+     */
+    private final Region arena;
+
+    /**
+     * Maximum number of bytes to allocate or 0 for no limit
+     */
+    private long maxSize;
+
+    /**
+     * Number of bytes in pages that are in use
+     */
+    private long allocated;
+
+    /**
+     * Is newly allocated memory filled with zeros?
+     */
+    private final boolean zeroed;
+
     public PrivateSlabAllocator(Allocator allocator, long maxSize, boolean preallocate)
+    {
+        this(allocator, maxSize, preallocate, false);
+    }
+
+    /**
+     * Creates an allocator for slab pages.
+     *
+     * @param preallocate if true all memory is allocated in one large chunk
+     * up front
+     * @param prefault if true the preallocated chunk is aligned to
+     * {@link #HUGE_PAGE_SIZE} and every page of it is written with zeros by
+     * one thread per processor before this constructor returns
+     */
+    public PrivateSlabAllocator(Allocator allocator, long maxSize, boolean preallocate, boolean prefault)
     {
         this.allocator = allocator;
+        this.maxSize = maxSize;
+
+        // direct byte buffers are cleared by the JVM
+        this.zeroed = allocator instanceof ByteBufferAllocator;
 
         Pointer preAllocatedPointer = null;
+        Region preAllocated = null;
+        Region arena = null;
         if (preallocate) {
             /* Allocate everything in a big chunk with malloc */
             try {
-                preAllocatedPointer = new Pointer(allocator.allocate(maxSize), maxSize);
+                if (prefault) {
+                    // over allocate so the usable part can start on a huge page
+                    Region region = allocator.allocate(maxSize + HUGE_PAGE_SIZE);
+                    long offset = -region.getAddress() & (HUGE_PAGE_SIZE - 1);
+                    arena = region.getRegion(offset, maxSize);
+                    prefault(arena, Runtime.getRuntime().availableProcessors());
+                    preAllocated = arena;
+                }
+                else {
+                    preAllocated = allocator.allocate(maxSize);
+                }
+                preAllocatedPointer = new Pointer(preAllocated);
             }
             catch (OutOfMemoryError e) {
                 System.err.println("Warning: Failed to allocate requested memory in one large chunk.\nWill allocate in smaller chunks\n");
             }
         }
         this.preAllocatedPointer = preAllocatedPointer;
+        this.preAllocated = preAllocated;
+        this.arena = arena;
+    }
+
+    /**
+     * Writes zeros to every page of the region using the specified number
+     * of threads, so the operating system backs the whole region with
+     * physical memory before the first request instead of faulting each
+     * page in on first touch.  Each thread fills a contiguous range that
+     * starts on a huge page boundary.
+     */
+    static void prefault(final Region region, int threads)
+    {
+        long size = region.size();
+        long rangeSize = (size + threads - 1) / threads;
+        rangeSize = (rangeSize + HUGE_PAGE_SIZE - 1) & -HUGE_PAGE_SIZE;
+
+        final Throwable[] failure = new Throwable[1];
+        List<Thread> workers = new ArrayList<Thread>(threads);
+        for (long start = 0; start < size; start += rangeSize) {
+            final long offset = start;
+            final long length = Math.min(rangeSize, size - start);
+            Thread worker = new Thread("prefault-" + workers.size())
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        region.setMemory(offset, length, (byte) 0);
+                    }
+                    catch (Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+
+        boolean interrupted = false;
+        for (Thread worker : workers) {
+            while (true) {
+                try {
+                    worker.join();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    // the region must not be used until every worker is done
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (failure) {
+            if (failure[0] instanceof Error) {
+                throw (Error) failure[0];
+            }
+            if (failure[0] != null) {
+                throw new RuntimeException("Prefault failed", failure[0]);
+            }
+        }
     }
 
     public Region allocate(long size, boolean force)
@@ -55,9 +193,29 @@ public class PrivateSlabAllocator
         return memory_allocate(size, force);
     }
 
-    private Region memory_allocate(long size, boolean force)
+    private synchronized Region memory_allocate(long size, boolean force)
     {
+        if (!force && maxSize != 0 && allocated + size > maxSize) {
+            // over the memory limit
+            return null;
+        }
+
         if (preAllocatedPointer != null) {
+            // reuse a released page that is large enough
+            for (int i = 0; i < releasedPages.size(); i++) {
+                Region page = releasedPages.get(i);
+                if (page.size() >= size) {
+                    releasedPages.remove(i);
+                    if (isZeroed(page)) {
+                        // the page is handed out as zeroed memory, so the
+                        // headers of the old items must not survive
+                        page.setMemory((byte) 0);
+                    }
+                    allocated += page.size();
+                    return page;
+                }
+            }
+
             if (preAllocatedPointer.isInBounds(size)) {
                 Region region = preAllocatedPointer.getRegion(size);
 
@@ -68,6 +226,7 @@ public class PrivateSlabAllocator
                     preAllocatedPointer.seek(CHUNK_ALIGN_BYTES - (size % CHUNK_ALIGN_BYTES));
                 }
 
+                allocated += size;
                 return region;
             }
 
@@ -79,10 +238,10 @@ public class PrivateSlabAllocator
 
         }
 
-        // We are not using a preallocated large memory chunk
         try {
-            // todo check size
-            return allocator.allocate(size);
+            Region region = allocator.allocate(size);
+            allocated += size;
+            return region;
         }
         catch (OutOfMemoryError outOfMemoryError) {
             // no more memory available
@@ -90,6 +249,30 @@ public class PrivateSlabAllocator
         }
     }
 
+    /**
+     * Releases a page returned by {@link #allocate(long, boolean)}.  Pages
+     * of the preallocated chunk are kept for reuse, since the chunk can only
+     * be freed as a whole, and are cleared when they are handed out again;
+     * other pages are freed.
+     */
+    public synchronized void release(Region page)
+    {
+        allocated -= page.size();
+        if (preAllocated != null && contains(preAllocated, page)) {
+            releasedPages.add(page);
+        }
+        else {
+            ((Allocation) page).free();
+        }
+    }
+
+    private static boolean contains(Region region, Region page)
+    {
+        return region != null &&
+                page.getAddress() >= region.getAddress() &&
+                page.getAddress() + page.size() <= region.getAddress() + region.size();
+    }
+
     public Region region(long address, long length) throws IndexOutOfBoundsException {
         return allocator.region(address, length);
     }
@@ -97,4 +280,61 @@ public class PrivateSlabAllocator
     public Allocator getAllocator() {
         return allocator;
     }
+
+    /**
+     * Is the memory returned by this allocator filled with zeros?
+     */
+    public boolean isZeroed()
+    {
+        return zeroed;
+    }
+
+    /**
+     * Is the region returned by this allocator filled with zeros?  Regions
+     * from a prefaulted arena are zeroed even when the allocator is not.
+     */
+    public boolean isZeroed(Region region)
+    {
+        return zeroed || contains(arena, region);
+    }
+
+    /**
+     * Gets the prefaulted arena slabs are allocated from or null if the
+     * memory was not preallocated with prefault.
+     */
+    public Region getArena()
+    {
+        return arena;
+    }
+
+    /**
+     * Gets the maximum number of bytes to allocate or 0 for no limit.
+     */
+    public synchronized long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Changes the maximum number of bytes to allocate.  Lowering the limit
+     * does not release any pages; it only stops new pages from being
+     * allocated until enough pages are released.
+     *
+     * @param maxSize the maximum number of bytes or 0 for no limit
+     */
+    public synchronized void setMaxSize(long maxSize)
+    {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize is negative: " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Gets the number of bytes in pages that are in use.
+     */
+    public synchronized long getAllocatedBytes()
+    {
+        return allocated;
+    }
 }
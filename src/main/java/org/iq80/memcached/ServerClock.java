@@ -0,0 +1,187 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Coarse server clock.  Like the current_time of memcached, item times and
+ * expiration times are seconds relative to the start of the process, so
+ * they fit in an int.  Once started, a daemon thread updates the time every
+ * tick, and readers only pay for a volatile read instead of a call to
+ * System.currentTimeMillis().
+ * <p/>
+ * A clock that has not been started stays at the time set with
+ * {@link #setCurrentTime(int)}, which starts at 0.  Simulators and tests use
+ * it to control time.  Caches that are not given a clock share the
+ * {@link #getDefault() default clock}, which is started on first use.
+ */
+public class ServerClock
+{
+    /**
+     * Expiration times larger than this are absolute unix times (30 days)
+     */
+    public static final int REALTIME_MAXDELTA = 60 * 60 * 24 * 30;
+
+    private final long tickMillis;
+
+    /**
+     * Unix time in seconds of relative time 0.  It is 2 seconds before the
+     * start so a relative time of 0 or 1 is never the current time.
+     */
+    private final long processStarted;
+
+    private volatile int currentTime;
+    private volatile long currentTimeMillis;
+    private volatile Thread thread;
+
+    /**
+     * Gets the started clock shared by caches that are not given their own.
+     * It is started the first time it is requested.
+     */
+    public static ServerClock getDefault()
+    {
+        return DefaultClockHolder.CLOCK;
+    }
+
+    private static class DefaultClockHolder
+    {
+        private static final ServerClock CLOCK = new ServerClock();
+
+        static {
+            CLOCK.start();
+        }
+    }
+
+    public ServerClock()
+    {
+        this(TimeUnit.SECONDS.toMillis(1));
+    }
+
+    /**
+     * @param tickMillis milliseconds between updates of the time
+     */
+    public ServerClock(long tickMillis)
+    {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+        this.processStarted = System.currentTimeMillis() / 1000 - 2;
+    }
+
+    /**
+     * Starts the thread that updates the time every tick.
+     */
+    public synchronized void start()
+    {
+        if (thread != null) {
+            return;
+        }
+        update();
+        Thread thread = new Thread("server-clock")
+        {
+            @Override
+            public void run()
+            {
+                while (ServerClock.this.thread == this) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(tickMillis));
+                    update();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        this.thread = thread;
+        thread.start();
+    }
+
+    public synchronized void stop()
+    {
+        Thread thread = this.thread;
+        this.thread = null;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public boolean isRunning()
+    {
+        return thread != null;
+    }
+
+    /**
+     * Reads the system clock.
+     */
+    void update()
+    {
+        long now = System.currentTimeMillis();
+        currentTimeMillis = now;
+        currentTime = (int) (now / 1000 - processStarted);
+    }
+
+    /**
+     * Gets the current time in seconds relative to the start of the process.
+     */
+    public int getCurrentTime()
+    {
+        return currentTime;
+    }
+
+    /**
+     * Sets the current time of a clock that has not been started.
+     */
+    public void setCurrentTime(int currentTime)
+    {
+        if (thread != null) {
+            throw new IllegalStateException("Clock is running");
+        }
+        this.currentTime = currentTime;
+    }
+
+    /**
+     * Gets the unix time in milliseconds as of the last tick.
+     */
+    public long getCurrentTimeMillis()
+    {
+        return currentTimeMillis;
+    }
+
+    /**
+     * Converts an expiration time of a request to a relative time.  Zero
+     * means never expire, times up to 30 days are seconds from now, and
+     * larger times are absolute unix times.
+     *
+     * @return the relative time, 0 for never, or 1 for an expiration time
+     * that has already passed
+     */
+    public int toRelativeTime(long exptime)
+    {
+        if (exptime == 0) {
+            return 0;
+        }
+        if (exptime < 0) {
+            return 1;
+        }
+        if (exptime > REALTIME_MAXDELTA) {
+            if (exptime <= processStarted) {
+                return 1;
+            }
+            return (int) (exptime - processStarted);
+        }
+        return (int) (exptime + currentTime);
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.iq80.memory.Allocator;
+import org.iq80.memory.Region;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cache partitioned into shared-nothing shards, each owned by one event loop
+ * thread.  A key belongs to the shard selected by all 64 bits of its hash
+ * after mixing them with the finalizer of MurmurHash3, so the keys of a
+ * shard still spread evenly over the buckets selected by the low bits of
+ * the hash.  Each shard gets an equal share of the memory limit.
+ * <p/>
+ * A connection is served by one shard thread.  Requests for keys of another
+ * shard are sent to the owner with {@link CacheShard#send} and the owner
+ * sends the response back the same way.
+ */
+public class ShardedCache
+{
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final int shardCount;
+    private final List<CacheShard> shards;
+    private final HashFunction hashFunction;
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    /**
+     * Clock of every shard; runs while the cache is started
+     */
+    private final ServerClock clock = new ServerClock();
+
+    /**
+     * @param maxMemory the memory limit of the whole cache or 0 for no limit
+     * @see SlabAllocator#SlabAllocator
+     */
+    public ShardedCache(int shardCount, Allocator allocator, long maxMemory, double factor, int chunkSize, int maxItemSize, boolean compactReferences)
+    {
+        this(shardCount, allocator, maxMemory, factor, chunkSize, maxItemSize, compactReferences, XxHash64.INSTANCE, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public ShardedCache(int shardCount,
+            Allocator allocator,
+            long maxMemory,
+            double factor,
+            int chunkSize,
+            int maxItemSize,
+            boolean compactReferences,
+            HashFunction hashFunction,
+            int queueCapacity)
+    {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive: " + shardCount);
+        }
+        this.shardCount = shardCount;
+        this.hashFunction = hashFunction;
+
+        List<CacheShard> shards = new ArrayList<CacheShard>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            SlabAllocator slabAllocator = new SlabAllocator(allocator, maxMemory / shardCount, factor, false, chunkSize, maxItemSize, 0, false, ItemLayout.fixedSize(compactReferences, false));
+            Items items = new Items(slabAllocator, compactReferences, hashFunction);
+            items.setClock(clock);
+            shards.add(new CacheShard(this, i, items, queueCapacity));
+        }
+        this.shards = Collections.unmodifiableList(shards);
+    }
+
+    public int getShardCount()
+    {
+        return shardCount;
+    }
+
+    public CacheShard getShard(int id)
+    {
+        return shards.get(id);
+    }
+
+    public List<CacheShard> getShards()
+    {
+        return shards;
+    }
+
+    public HashFunction getHashFunction()
+    {
+        return hashFunction;
+    }
+
+    /**
+     * Gets the shard that owns the key.
+     */
+    public CacheShard getShard(Region key)
+    {
+        return shards.get(shardIndex(hashFunction.hash(key), shardCount));
+    }
+
+    /**
+     * Gets the shard that owns the key.
+     */
+    public CacheShard getShard(byte[] key)
+    {
+        return shards.get(shardIndex(hashFunction.hash(key, 0, key.length), shardCount));
+    }
+
+    /**
+     * Selects the shard from all 64 bits of the hash.  Some hash functions
+     * only fill the low 32 bits, so the bits are mixed first.  The shards
+     * are a pseudo random partition of the hashes, so the buckets used by
+     * the keys of a shard stay evenly spread.
+     */
+    private static int shardIndex(long hash, int shardCount)
+    {
+        // finalizer of MurmurHash3
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) ((hash >>> 1) % shardCount);
+    }
+
+    /**
+     * Gets the clock shared by the shards.
+     */
+    public ServerClock getClock()
+    {
+        return clock;
+    }
+
+    /**
+     * Starts the clock and a thread for each shard.
+     */
+    public synchronized void start()
+    {
+        if (!threads.isEmpty()) {
+            throw new IllegalStateException("Cache is already started");
+        }
+        clock.start();
+        for (CacheShard shard : shards) {
+            Thread thread = new Thread(shard, "cache-shard-" + shard.getId());
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    /**
+     * Stops the shard threads and waits for them to exit.
+     */
+    public synchronized void stop()
+            throws InterruptedException
+    {
+        for (CacheShard shard : shards) {
+            shard.stop();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        threads.clear();
+        clock.stop();
+    }
+}
@@ -21,6 +21,7 @@ import org.iq80.memory.Allocator;
 import org.iq80.memory.Region;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -32,13 +33,36 @@ public class SlabAllocator implements Allocator
     static final short POWER_LARGEST = 200;
     private static final int CHUNK_ALIGN_BYTES = 8;
 
+    /**
+     * Sizes up to this limit select their slab class with a direct table
+     */
+    private static final int SMALL_SIZE_LIMIT = 16 * 1024;
+
     private final List<SlabManager> slabManagers;
     private final int largestSlabId;
     private final Allocator allocator;
+    private final PrivateSlabAllocator privateAllocator;
+    private final SlabPageTable pageTable;
+
+    /**
+     * Chunk size of each slab class in ascending order
+     */
+    private final int[] chunkSizes;
 
     /**
-     * Create a slab allocator.  The available slab sizes are determined and a
-     * slab for each size is allocated.
+     * Slab class for each size up to smallSizeLimit in 8 byte steps,
+     * indexed by (size + 7) >> 3
+     */
+    private final short[] smallSizeClasses;
+
+    /**
+     * Largest size looked up in smallSizeClasses
+     */
+    private final int smallSizeLimit;
+
+    /**
+     * Create a slab allocator.  The available slab sizes are determined; the
+     * first slab of each size is allocated when the size is first used.
      *
      * @param maxMemory the maximum number of bytes to allocate or 0 for no
      * limit
@@ -49,33 +73,159 @@ public class SlabAllocator implements Allocator
      */
     public SlabAllocator(Allocator allocator, long maxMemory, double factor, boolean prealloc, int chunkSize, int maxItemSize)
     {
+        this(allocator, maxMemory, factor, prealloc, chunkSize, maxItemSize, 0);
+    }
+
+    /**
+     * Create a slab allocator with per-thread caches of free chunks.  Each
+     * thread caches up to magazineSize free chunks of each slab class and
+     * moves half of them at a time to and from the shared free list of the
+     * class, so threads that allocate and free concurrently rarely contend.
+     *
+     * @param magazineSize number of free chunks each thread caches per slab
+     * class or 0 for no thread caches
+     */
+    public SlabAllocator(Allocator allocator, long maxMemory, double factor, boolean prealloc, int chunkSize, int maxItemSize, int magazineSize)
+    {
+        this(allocator, maxMemory, factor, prealloc, chunkSize, maxItemSize, magazineSize, false);
+    }
+
+    /**
+     * Create a slab allocator that optionally prefaults the preallocated
+     * memory.  The preallocated memory is aligned to a 2 MB boundary so the
+     * kernel can back it with transparent huge pages, and it is written
+     * with zeros by one thread per processor before the constructor
+     * returns, so no request pays for faulting in a page.
+     *
+     * @param prefault if true and prealloc is set the preallocated memory is
+     * prefaulted
+     */
+    public SlabAllocator(Allocator allocator, long maxMemory, double factor, boolean prealloc, int chunkSize, int maxItemSize, int magazineSize, boolean prefault)
+    {
+        this(allocator, maxMemory, factor, prealloc, chunkSize, maxItemSize, magazineSize, prefault, ItemLayout.WIDE_FIXED_SIZE);
+    }
+
+    /**
+     * Create a slab allocator for items with the specified header size.  The
+     * other constructors size the classes for the wide item layout.
+     *
+     * @param itemHeaderSize the fixed header size of the item layout, see
+     * {@link ItemLayout#fixedSize(boolean, boolean)}
+     */
+    public SlabAllocator(Allocator allocator, long maxMemory, double factor, boolean prealloc, int chunkSize, int maxItemSize, int magazineSize, boolean prefault, int itemHeaderSize)
+    {
+        this(allocator, maxMemory, geometricChunkSizes(factor, itemHeaderSize + chunkSize, maxItemSize), prealloc, maxItemSize, magazineSize, prefault);
+    }
+
+    /**
+     * Create a slab allocator with the specified chunk sizes, for example
+     * the sizes computed by {@link ItemSizeHistogram#optimizeChunkSizes(int)}
+     * for a previous run.  The sizes are rounded up to a multiple of 8 bytes,
+     * and a class for items up to maxItemSize is always added.
+     *
+     * @param chunkSizes the chunk sizes of the slab classes in ascending
+     * order, each less than maxItemSize
+     */
+    public SlabAllocator(Allocator allocator, long maxMemory, int[] chunkSizes, boolean prealloc, int maxItemSize, int magazineSize)
+    {
+        this(allocator, maxMemory, chunkSizes, prealloc, maxItemSize, magazineSize, false);
+    }
+
+    public SlabAllocator(Allocator allocator, long maxMemory, int[] chunkSizes, boolean prealloc, int maxItemSize, int magazineSize, boolean prefault)
+    {
+        if (chunkSizes.length > POWER_LARGEST) {
+            throw new IllegalArgumentException("Too many chunk sizes: " + chunkSizes.length);
+        }
+        int[] alignedSizes = new int[chunkSizes.length];
+        for (int i = 0; i < chunkSizes.length; i++) {
+            // Make sure items are always n-byte aligned
+            int size = chunkSizes[i];
+            if (size % CHUNK_ALIGN_BYTES != 0) {
+                size += CHUNK_ALIGN_BYTES - (size % CHUNK_ALIGN_BYTES);
+            }
+            if (size <= 0 || size >= maxItemSize) {
+                throw new IllegalArgumentException("Chunk size must be positive and less than max item size: " + chunkSizes[i]);
+            }
+            if (i > 0 && size <= alignedSizes[i - 1]) {
+                throw new IllegalArgumentException("Chunk sizes must be ascending: " + Arrays.toString(chunkSizes));
+            }
+            alignedSizes[i] = size;
+        }
+
         this.allocator = allocator;
-        PrivateSlabAllocator privateAllocator = new PrivateSlabAllocator(allocator, maxMemory, prealloc);
+        this.privateAllocator = new PrivateSlabAllocator(allocator, maxMemory, prealloc, prefault);
+
+        // the smallest class has the most chunks per page, which determines
+        // how many bits of a page handle are needed for the chunk index
+        int smallestSize = alignedSizes.length == 0 ? maxItemSize : alignedSizes[0];
+        this.pageTable = new SlabPageTable(Math.max(1, maxItemSize / smallestSize));
+
+        List<SlabManager> slabManagers = new ArrayList<SlabManager>(POWER_LARGEST + 1);
+        for (int size : alignedSizes) {
+            slabManagers.add(new SlabManager(privateAllocator, pageTable, slabManagers.size(), size, maxItemSize / size, magazineSize));
+        }
+
+        // create a manager for the max slab size
+        slabManagers.add(new SlabManager(privateAllocator, pageTable, slabManagers.size(), maxItemSize, 1, magazineSize));
+
+        this.slabManagers = Collections.unmodifiableList(slabManagers);
+        this.largestSlabId = slabManagers.size();
 
-        // todo move to caller
-        int size = Item.FIXED_SIZE + chunkSize;
+        int[] classChunkSizes = new int[slabManagers.size()];
+        for (int i = 0; i < classChunkSizes.length; i++) {
+            classChunkSizes[i] = slabManagers.get(i).getChunkSize();
+        }
+        this.chunkSizes = classChunkSizes;
+
+        // the chunk sizes are multiples of 8, except for a max item size
+        // that is not, so every size in an 8 byte step below the largest
+        // aligned size fits the same slab classes
+        int largestChunkSize = classChunkSizes[classChunkSizes.length - 1];
+        this.smallSizeLimit = Math.min(SMALL_SIZE_LIMIT, largestChunkSize & -CHUNK_ALIGN_BYTES);
+        short[] smallSizeClasses = new short[(smallSizeLimit >> 3) + 1];
+        int slabClass = 0;
+        for (int step = 0; step < smallSizeClasses.length; step++) {
+            while (classChunkSizes[slabClass] < step << 3) {
+                slabClass++;
+            }
+            smallSizeClasses[step] = (short) slabClass;
+        }
+        this.smallSizeClasses = smallSizeClasses;
+    }
+
+    /**
+     * Computes the chunk sizes of slab classes that grow by factor, starting
+     * with smallestSize.  The classes end at half of maxItemSize.
+     */
+    private static int[] geometricChunkSizes(double factor, int smallestSize, int maxItemSize)
+    {
+        int size = smallestSize;
 
         // Factor of 2.0 means use the default memcached behavior
         if (factor == 2.0 && size < 128) {
             size = 128;
         }
 
-        List<SlabManager> slabManagers = new ArrayList<SlabManager>(POWER_LARGEST + 1);
+        int[] chunkSizes = new int[POWER_LARGEST];
+        int count = 0;
         for (short i = 0; i < POWER_LARGEST && size <= maxItemSize / 2; i++) {
             // Make sure items are always n-byte aligned
             if (size % CHUNK_ALIGN_BYTES != 0) {
                 size += CHUNK_ALIGN_BYTES - (size % CHUNK_ALIGN_BYTES);
             }
 
-            slabManagers.add(new SlabManager(privateAllocator, (byte) i, size, maxItemSize / size));
+            chunkSizes[count++] = size;
             size *= factor;
         }
+        return Arrays.copyOf(chunkSizes, count);
+    }
 
-        // create a manager for the max slab size
-        slabManagers.add(new SlabManager(privateAllocator, (byte) slabManagers.size(), maxItemSize, 1));
-
-        this.slabManagers = Collections.unmodifiableList(slabManagers);
-        this.largestSlabId = slabManagers.size();
+    /**
+     * Gets the chunk sizes of all slab classes in ascending order.
+     */
+    public int[] getChunkSizes()
+    {
+        return chunkSizes.clone();
     }
 
     public int getLargestSlabId()
@@ -103,24 +253,94 @@ public class SlabAllocator implements Allocator
         return allocator.region(address);
     }
 
+    /**
+     * Gets the allocator the slabs are allocated from.
+     */
+    public Allocator getAllocator()
+    {
+        return allocator;
+    }
+
+    public SlabPageTable getPageTable()
+    {
+        return pageTable;
+    }
+
     public List<SlabManager> getSlabManagers()
     {
         return slabManagers;
     }
 
+    /**
+     * Returns the free chunks cached by the current thread to the shared free
+     * lists.
+     */
+    public void flushThreadCaches()
+    {
+        for (SlabManager slabManager : slabManagers) {
+            slabManager.flushThreadCache();
+        }
+    }
+
+    /**
+     * Gets the maximum number of bytes of slabs or 0 for no limit.
+     */
+    public long getMaxMemory()
+    {
+        return privateAllocator.getMaxSize();
+    }
+
+    /**
+     * Changes the maximum number of bytes of slabs.  Slabs that are already
+     * allocated are kept; use {@link Items#setMemoryLimit(long)} to evict
+     * items and release slabs until the cache is under the new limit.
+     *
+     * @param maxMemory the maximum number of bytes or 0 for no limit
+     */
+    public void setMaxMemory(long maxMemory)
+    {
+        privateAllocator.setMaxSize(maxMemory);
+    }
+
+    /**
+     * Gets the number of bytes in slabs that have not been released.
+     */
+    public long getAllocatedBytes()
+    {
+        return privateAllocator.getAllocatedBytes();
+    }
+
     public SlabManager getSlabManager(int id)
     {
         return slabManagers.get(id);
     }
 
+    /**
+     * Selects the slab class with the smallest chunk size that fits the
+     * size.
+     *
+     * @return the slab class or null if the size is larger than the largest
+     * chunk size
+     */
     public SlabManager selectSlabManager(long size)
     {
-        for (SlabManager slabClass : slabManagers) {
-            if (size < slabClass.getChunkSize()) {
-                return slabClass;
-            }
+        if (size < 0) {
+            throw new IllegalArgumentException("size is negative: " + size);
+        }
+        if (size <= smallSizeLimit) {
+            return slabManagers.get(smallSizeClasses[(int) (size + CHUNK_ALIGN_BYTES - 1) >> 3]);
+        }
+
+        // does not fit in largest size
+        if (size > chunkSizes[chunkSizes.length - 1]) {
+            return null;
+        }
+
+        // the first chunk size that is not smaller than the size
+        int position = Arrays.binarySearch(chunkSizes, (int) size);
+        if (position < 0) {
+            position = -(position + 1);
         }
-        // does not fit in larget size
-        return null;
+        return slabManagers.get(position);
     }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+/**
+ * Item statistics of a single slab class.  The counters are updated with the
+ * cache lock held, like the LRU they are attached to.
+ */
+public class SlabClassStats implements ItemStats
+{
+    private final ItemSizeHistogram sizeHistogram;
+    private long currentItems;
+    private long currentBytes;
+    private long totalItems;
+    private long evicted;
+    private long outOfMemory;
+    private long tailRepairs;
+
+    public SlabClassStats()
+    {
+        this(null);
+    }
+
+    /**
+     * @param sizeHistogram histogram of the sizes of the linked items of all
+     * slab classes or null
+     */
+    public SlabClassStats(ItemSizeHistogram sizeHistogram)
+    {
+        this.sizeHistogram = sizeHistogram;
+    }
+
+    @Override
+    public void added(Item item)
+    {
+        int size = item.getTotalSize();
+        currentBytes += size;
+        currentItems++;
+        totalItems++;
+        if (sizeHistogram != null) {
+            sizeHistogram.added(size);
+        }
+    }
+
+    @Override
+    public void removed(Item item)
+    {
+        int size = item.getTotalSize();
+        currentBytes -= size;
+        currentItems--;
+        if (sizeHistogram != null) {
+            sizeHistogram.removed(size);
+        }
+    }
+
+    /**
+     * Records that a linked item changed size in place.
+     */
+    public void resized(int oldSize, int newSize)
+    {
+        currentBytes += newSize - oldSize;
+        if (sizeHistogram != null) {
+            sizeHistogram.removed(oldSize);
+            sizeHistogram.added(newSize);
+        }
+    }
+
+    @Override
+    public void evicted(Item item)
+    {
+        evicted++;
+    }
+
+    @Override
+    public void outOfMemory()
+    {
+        outOfMemory++;
+    }
+
+    @Override
+    public void tailRepaired(Item item)
+    {
+        tailRepairs++;
+    }
+
+    public long getCurrentItems()
+    {
+        return currentItems;
+    }
+
+    public long getCurrentBytes()
+    {
+        return currentBytes;
+    }
+
+    public long getTotalItems()
+    {
+        return totalItems;
+    }
+
+    public long getEvicted()
+    {
+        return evicted;
+    }
+
+    public long getOutOfMemory()
+    {
+        return outOfMemory;
+    }
+
+    public long getTailRepairs()
+    {
+        return tailRepairs;
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("SlabClassStats");
+        sb.append("{currentItems=").append(currentItems);
+        sb.append(", currentBytes=").append(currentBytes);
+        sb.append(", totalItems=").append(totalItems);
+        sb.append(", evicted=").append(evicted);
+        sb.append(", outOfMemory=").append(outOfMemory);
+        sb.append(", tailRepairs=").append(tailRepairs);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+/**
+ * Compacts the slab classes of a cache a few slabs at a time.  Each run
+ * moves the items out of the sparsest slabs of each slab class into the
+ * free chunks of denser slabs and releases the emptied slabs, which can
+ * then be used by any slab class.  After a workload shift this recovers the
+ * memory of slabs that hold only a few live items.
+ * <p/>
+ * Items are not thread safe, so a run must happen on the thread that owns
+ * the cache, for example between the requests of a {@link CacheShard}.
+ */
+public class SlabDefragmenter implements Runnable
+{
+    /**
+     * Slabs with at most this share of linked items are emptied
+     */
+    public static final double DEFAULT_MAX_LIVE_RATIO = 0.5;
+
+    /**
+     * Number of slabs emptied by one run
+     */
+    public static final int DEFAULT_MAX_SLABS_PER_RUN = 4;
+
+    private final Items items;
+    private final double maxLiveRatio;
+    private final int maxSlabsPerRun;
+    private long releasedSlabs;
+
+    public SlabDefragmenter(Items items)
+    {
+        this(items, DEFAULT_MAX_LIVE_RATIO, DEFAULT_MAX_SLABS_PER_RUN);
+    }
+
+    public SlabDefragmenter(Items items, double maxLiveRatio, int maxSlabsPerRun)
+    {
+        if (items == null) {
+            throw new NullPointerException("items is null");
+        }
+        if (maxLiveRatio < 0 || maxLiveRatio >= 1) {
+            throw new IllegalArgumentException("maxLiveRatio must be at least 0 and less than 1: " + maxLiveRatio);
+        }
+        if (maxSlabsPerRun <= 0) {
+            throw new IllegalArgumentException("maxSlabsPerRun must be positive: " + maxSlabsPerRun);
+        }
+        this.items = items;
+        this.maxLiveRatio = maxLiveRatio;
+        this.maxSlabsPerRun = maxSlabsPerRun;
+    }
+
+    /**
+     * Gets the number of slabs released by all runs.
+     */
+    public long getReleasedSlabs()
+    {
+        return releasedSlabs;
+    }
+
+    @Override
+    public void run()
+    {
+        int remaining = maxSlabsPerRun;
+        int slabClassCount = items.getSlabAllocator().getSlabManagers().size();
+        for (int slabId = 0; slabId < slabClassCount && remaining > 0; slabId++) {
+            int released = items.defragment(slabId, maxLiveRatio, remaining);
+            releasedSlabs += released;
+            remaining -= released;
+        }
+    }
+}
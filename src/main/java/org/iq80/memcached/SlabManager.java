@@ -33,10 +33,15 @@ public class SlabManager
      */
     private final PrivateSlabAllocator allocator;
 
+    /**
+     * Table all slab pages are registered with
+     */
+    private final SlabPageTable pageTable;
+
     /**
      * Id of this slab manager
      */
-    private final byte id;
+    private final int id;
 
     /**
      * Size of a slot
@@ -63,34 +68,77 @@ public class SlabManager
      */
     public Pointer openSlab;
 
+    /**
+     * Address of the open slab
+     */
+    private long openSlabAddress;
+
     /**
      * Number of slabs that have been allocated by this manager
      */
     private int slabCount;
 
     /**
-     * All of the slabs that have been allocated (for debugging)
+     * All of the slabs that have been allocated and not released
      */
-    private long[] slabs = new long[16];
+    private Region[] slabs = new Region[16];
 
     /**
      * The number of requested bytes
      */
-    public int requested;
+    public long requested;
 
-    public SlabManager(PrivateSlabAllocator allocator, byte id, int chunkSize, int chunksPerSlab)
+    /**
+     * Number of free chunks each thread may cache or 0 for no thread caches
+     */
+    private final int magazineSize;
+
+    /**
+     * Free chunks cached by each thread
+     */
+    private final ThreadLocal<Magazine> magazines;
+
+    public SlabManager(PrivateSlabAllocator allocator, SlabPageTable pageTable, int id, int chunkSize, int chunksPerSlab)
     {
+        this(allocator, pageTable, id, chunkSize, chunksPerSlab, 0);
+    }
+
+    /**
+     * @param magazineSize number of free chunks each thread caches in front of
+     * the shared free list; 0 disables the thread caches
+     */
+    public SlabManager(PrivateSlabAllocator allocator, SlabPageTable pageTable, int id, int chunkSize, int chunksPerSlab, final int magazineSize)
+    {
+        if (magazineSize < 0) {
+            throw new IllegalArgumentException("magazineSize is negative: " + magazineSize);
+        }
+        this.magazineSize = magazineSize;
+        if (magazineSize > 0) {
+            magazines = new ThreadLocal<Magazine>()
+            {
+                @Override
+                protected Magazine initialValue()
+                {
+                    return new Magazine(magazineSize);
+                }
+            };
+        }
+        else {
+            magazines = null;
+        }
+
         this.allocator = allocator;
+        this.pageTable = pageTable;
         this.id = id;
         this.chunkSize = chunkSize;
         this.chunksPerSlab = chunksPerSlab;
 
-        allocateNewSlab();
-
+        // the first slab is allocated when the first chunk is needed, so
+        // unused classes use no memory
         log.info(this.toString());
     }
 
-    public byte getId()
+    public int getId()
     {
         return id;
     }
@@ -110,28 +158,89 @@ public class SlabManager
         return slabCount;
     }
 
+    /**
+     * Gets the address of the specified slab.  Slabs are numbered in the
+     * order they were allocated.
+     */
+    public long getSlabAddress(int index)
+    {
+        if (index < 0 || index >= slabCount) {
+            throw new IndexOutOfBoundsException("Invalid slab index " + index);
+        }
+        return slabs[index].getAddress();
+    }
+
+    /**
+     * Gets the number of bytes requested by the allocated chunks.
+     */
+    public long getRequested()
+    {
+        return requested;
+    }
+
+    /**
+     * Gets the number of chunks on the free list.
+     */
+    public int getFreeCount()
+    {
+        return freeListCurrsor;
+    }
+
+
+    public int getMagazineSize()
+    {
+        return magazineSize;
+    }
 
     public Region allocate(long size)
     {
+        assert size <= chunkSize : "size is larger than chunk size";
+
+        if (magazines != null) {
+            Magazine magazine = magazines.get();
+            if (magazine.count == 0 && !refill(magazine)) {
+                return null;
+            }
+            magazine.requested += size;
+            return allocator.region(magazine.chunks[--magazine.count], size);
+        }
+
         if (freeListCurrsor != 0) {
             // return off our freelist
             requested += size;
             long address = freeList[--freeListCurrsor];
             return allocator.region(address, size);
-        } else if(openSlab!=null) {
-            requested += size;
-            // if we recently allocated a whole page, return from that
-            Region region = openSlab.getRegion(size);
-            // if the open slab is fully committed, clear the reference
-            if ( !openSlab.hasRemaining(size) ) {
-                openSlab = null;
-            }
-            return region;
-        } else {
+        }
+
+        // if the open slab is used up, try to allocate a new page
+        if (openSlab == null && !allocateNewSlab()) {
             // fail unless we have space at the end of a recently allocated page,
             // we have something on our freelist, or we could allocate a new page
             return null;
         }
+
+        requested += size;
+        // if we recently allocated a whole page, return from that
+        Region region = openSlab.getRegion(chunkSize).getRegion(0, size);
+        // if the open slab is fully committed, clear the reference
+        if (!openSlab.hasRemaining(chunkSize)) {
+            openSlab = null;
+        }
+        return region;
+    }
+
+    /**
+     * Records that an allocated chunk now holds a different number of bytes.
+     */
+    public void resized(long oldSize, long newSize)
+    {
+        assert newSize <= chunkSize : "size is larger than chunk size";
+
+        if (magazines != null) {
+            magazines.get().requested += newSize - oldSize;
+            return;
+        }
+        requested += newSize - oldSize;
     }
 
     public void free(Region region, long size)
@@ -139,19 +248,21 @@ public class SlabManager
         if (region == null) {
             throw new NullPointerException("ptr is null");
         }
-
-        // Do we need more slots 
-        if (freeListCurrsor == freeList.length) {
-            // double slots
-            freeList = Arrays.copyOf(freeList, freeList.length * 2);
-        }
-
-        freeList[freeListCurrsor++] = region.getAddress();
-        requested -= size;
+        free(region.getAddress(), size);
     }
 
     public void free(long address, long size)
     {
+        if (magazines != null) {
+            Magazine magazine = magazines.get();
+            if (magazine.count == magazine.chunks.length) {
+                spill(magazine, Math.max(1, magazine.count / 2));
+            }
+            magazine.chunks[magazine.count++] = address;
+            magazine.requested -= size;
+            return;
+        }
+
         // Do we need more slots
         if (freeListCurrsor == freeList.length) {
             // double slots
@@ -162,6 +273,63 @@ public class SlabManager
         requested -= size;
     }
 
+    /**
+     * Returns the free chunks cached by the current thread to the shared free
+     * list.  Threads that stop using the cache should call this so their
+     * chunks can be reused.
+     */
+    public void flushThreadCache()
+    {
+        if (magazines != null) {
+            Magazine magazine = magazines.get();
+            spill(magazine, magazine.count);
+        }
+    }
+
+    /**
+     * Moves half a magazine of chunks from the shared free list, or from the
+     * open slab, to the magazine of the current thread.
+     *
+     * @return false if no chunk is available
+     */
+    private synchronized boolean refill(Magazine magazine)
+    {
+        requested += magazine.requested;
+        magazine.requested = 0;
+
+        int batch = Math.max(1, magazine.chunks.length / 2);
+        while (magazine.count < batch && freeListCurrsor != 0) {
+            magazine.chunks[magazine.count++] = freeList[--freeListCurrsor];
+        }
+        while (magazine.count < batch) {
+            if (openSlab == null && !allocateNewSlab()) {
+                break;
+            }
+            magazine.chunks[magazine.count++] = openSlab.getRegion(chunkSize).getAddress();
+            if (!openSlab.hasRemaining(chunkSize)) {
+                openSlab = null;
+            }
+        }
+        return magazine.count != 0;
+    }
+
+    /**
+     * Moves the most recently freed chunks of the magazine to the shared free
+     * list.
+     */
+    private synchronized void spill(Magazine magazine, int count)
+    {
+        requested += magazine.requested;
+        magazine.requested = 0;
+
+        if (freeListCurrsor + count > freeList.length) {
+            freeList = Arrays.copyOf(freeList, Math.max(freeList.length * 2, freeListCurrsor + count));
+        }
+        magazine.count -= count;
+        System.arraycopy(magazine.chunks, magazine.count, freeList, freeListCurrsor, count);
+        freeListCurrsor += count;
+    }
+
     private boolean allocateNewSlab()
     {
         if (openSlab != null) {
@@ -169,27 +337,147 @@ public class SlabManager
         }
 
         // all classes are allowed to allocate a single slab regardless of the limits
-        boolean forceAllocation = slabCount > 0;
+        boolean forceAllocation = slabCount == 0;
 
         Region region = allocator.allocate(chunkSize * chunksPerSlab, forceAllocation);
         if (region == null) {
-            throw new OutOfMemoryError("Could not allocate slab");
+            return false;
         }
 
-        region.setMemory((byte) 0);
+        // chunks of a page that can not be addressed by a handle are unusable
+        if (pageTable.addPage(region.getAddress(), chunkSize, chunksPerSlab) == 0) {
+            allocator.release(region);
+            log.warning("Too many slab pages for 32-bit handles; no slab allocated for " + this.toString());
+            return false;
+        }
+
+        // chunks that have never been used must not look like items
+        if (!allocator.isZeroed(region)) {
+            region.setMemory((byte) 0);
+        }
 
         openSlab = new Pointer(region);
+        openSlabAddress = region.getAddress();
         log.fine("Allocated slab " + slabCount + " for " + this.toString());
 
         if (slabs.length == slabCount) {
             slabs = Arrays.copyOf(slabs, slabs.length * 2);
         }
-        slabs[slabCount++] = region.getAddress();
+        slabs[slabCount++] = region;
 
 
         return true;
     }
 
+    /**
+     * Allocates a free chunk that is not in one of the excluded slabs.  The
+     * thread cache is bypassed.
+     *
+     * @param excludedSlabs the addresses of the excluded slabs in ascending
+     * order
+     * @return the chunk or null if every free chunk is in an excluded slab
+     */
+    public synchronized Region allocateOutside(long size, long[] excludedSlabs)
+    {
+        assert size <= chunkSize : "size is larger than chunk size";
+
+        for (int i = freeListCurrsor - 1; i >= 0; i--) {
+            long address = freeList[i];
+            if (!isInSlab(address, excludedSlabs)) {
+                freeList[i] = freeList[--freeListCurrsor];
+                requested += size;
+                return allocator.region(address, size);
+            }
+        }
+
+        if (openSlab != null && !isInSlab(openSlabAddress, excludedSlabs)) {
+            requested += size;
+            Region region = openSlab.getRegion(chunkSize).getRegion(0, size);
+            if (!openSlab.hasRemaining(chunkSize)) {
+                openSlab = null;
+            }
+            return region;
+        }
+        return null;
+    }
+
+    private boolean isInSlab(long address, long[] slabAddresses)
+    {
+        int position = Arrays.binarySearch(slabAddresses, address);
+        if (position >= 0) {
+            return true;
+        }
+        position = -(position + 1) - 1;
+        return position >= 0 && address - slabAddresses[position] < (long) chunkSize * chunksPerSlab;
+    }
+
+    /**
+     * Gets the number of chunks of the specified slab that are on the shared
+     * free list or have not been carved from the open slab yet.  Chunks
+     * cached by a thread are not counted.
+     */
+    public synchronized int getFreeChunkCount(int index)
+    {
+        if (index < 0 || index >= slabCount) {
+            throw new IndexOutOfBoundsException("Invalid slab index " + index);
+        }
+        long start = slabs[index].getAddress();
+        long end = start + (long) chunkSize * chunksPerSlab;
+
+        // chunks that have not been carved from the open slab are free
+        int freeChunks = 0;
+        if (openSlab != null && openSlabAddress == start) {
+            freeChunks = chunksPerSlab - (int) (openSlab.getPosition() / chunkSize);
+        }
+        for (int i = 0; i < freeListCurrsor; i++) {
+            if (freeList[i] >= start && freeList[i] < end) {
+                freeChunks++;
+            }
+        }
+        return freeChunks;
+    }
+
+    /**
+     * Returns the specified slab to the allocator if every chunk of it is
+     * free.  Chunks cached by a thread are not free, so thread caches should
+     * be flushed first.  The remaining slabs are renumbered.
+     *
+     * @return true if the slab was released
+     */
+    public synchronized boolean releaseSlab(int index)
+    {
+        if (index < 0 || index >= slabCount) {
+            throw new IndexOutOfBoundsException("Invalid slab index " + index);
+        }
+        if (getFreeChunkCount(index) != chunksPerSlab) {
+            return false;
+        }
+        Region slab = slabs[index];
+        long start = slab.getAddress();
+        long end = start + (long) chunkSize * chunksPerSlab;
+        boolean open = openSlab != null && openSlabAddress == start;
+
+        // drop the chunks of the slab from the free list
+        int count = 0;
+        for (int i = 0; i < freeListCurrsor; i++) {
+            if (freeList[i] < start || freeList[i] >= end) {
+                freeList[count++] = freeList[i];
+            }
+        }
+        freeListCurrsor = count;
+        if (open) {
+            openSlab = null;
+        }
+
+        pageTable.removePage(start);
+        System.arraycopy(slabs, index + 1, slabs, index, slabCount - index - 1);
+        slabs[--slabCount] = null;
+        allocator.release(slab);
+        log.fine("Released slab " + index + " for " + this.toString());
+
+        return true;
+    }
+
     @Override
     public boolean equals(Object o)
     {
@@ -235,4 +523,26 @@ public class SlabManager
     public Allocator getAllocator() {
         return allocator.getAllocator();
     }
+
+    /**
+     * Free chunks cached by one thread.  The requested bytes of the chunks
+     * allocated and freed through the magazine are added to the shared count
+     * when chunks move to or from the shared free list.
+     */
+    private static class Magazine
+    {
+        private final long[] chunks;
+        private int count;
+        private long requested;
+
+        private Magazine(int size)
+        {
+            chunks = new long[size];
+        }
+    }
+
+    public SlabPageTable getPageTable()
+    {
+        return pageTable;
+    }
 }
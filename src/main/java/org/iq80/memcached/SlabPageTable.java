@@ -0,0 +1,354 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import java.util.Arrays;
+
+/**
+ * Registry of every slab page handed out to a slab manager.
+ * <p/>
+ * A chunk inside a registered page can be addressed with a 32-bit handle
+ * made of the page index (high bits) and the chunk index inside the page
+ * (low bits).  Page index 0 is never used, so a handle of 0 is the null
+ * reference just like an address of 0.
+ * <p/>
+ * The index of a removed page is reused by the next page added, so a page
+ * must only be removed when no handle into it is stored anywhere.
+ * <p/>
+ * The table is shared by the slab managers of every slab class, which add
+ * and remove pages under their own locks, while items are read and linked
+ * without any lock.  Changes are serialized by the lock of the table and
+ * written in place into arrays that are only copied into larger arrays
+ * when they are full, so a change is amortized constant time.  The entry of
+ * a page index is written before any chunk of the page is handed out, so a
+ * thread holding a chunk or handle sees it.  Pages allocated in ascending
+ * address order are appended to the sorted index used to find the page of
+ * an address; a lookup that races with a change to the sorted index may
+ * miss, so a miss is repeated under the lock.
+ */
+public class SlabPageTable
+{
+    /**
+     * Number of low bits of a handle used for the chunk index
+     */
+    private final int chunkBits;
+
+    /**
+     * Mask for the chunk index of a handle
+     */
+    private final int chunkMask;
+
+    /**
+     * Largest page index that can be encoded in a handle
+     */
+    private final int maxPageIndex;
+
+    /**
+     * The page arrays; replaced with larger copies only when they are full
+     */
+    private volatile Pages pages = new Pages(16);
+
+    /**
+     * Number of entries in the sorted index; written after the entries
+     */
+    private volatile int sortedCount;
+
+    /**
+     * Next page index to hand out; index 0 is reserved for null
+     */
+    private int pageCount = 1;
+
+    /**
+     * Indexes of removed pages that can be reused
+     */
+    private int[] freePages = new int[16];
+
+    /**
+     * Number of entries in freePages
+     */
+    private int freePageCount;
+
+    public SlabPageTable(int maxChunksPerPage)
+    {
+        if (maxChunksPerPage <= 0) {
+            throw new IllegalArgumentException("maxChunksPerPage must be positive: " + maxChunksPerPage);
+        }
+        this.chunkBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(maxChunksPerPage - 1));
+        if (chunkBits >= 31) {
+            throw new IllegalArgumentException("Too many chunks per page for 32-bit handles: " + maxChunksPerPage);
+        }
+        this.chunkMask = (1 << chunkBits) - 1;
+        this.maxPageIndex = (int) ((1L << (32 - chunkBits)) - 1);
+    }
+
+    public int getChunkBits()
+    {
+        return chunkBits;
+    }
+
+    public int getPageCount()
+    {
+        return sortedCount;
+    }
+
+    /**
+     * Registers a new slab page.  A page whose index could not be encoded in
+     * a handle is rejected, so the caller can release the page and report
+     * that it is out of memory.
+     *
+     * @return the index of the page or 0 if every page index that fits in a
+     * handle is in use
+     */
+    public synchronized int addPage(long address, int chunkSize, int chunkCount)
+    {
+        if (address == 0) {
+            throw new IllegalArgumentException("address is 0");
+        }
+        if (chunkCount > chunkMask + 1) {
+            throw new IllegalArgumentException("Page has more chunks than a handle can address: " + chunkCount);
+        }
+
+        Pages pages = this.pages;
+        int sortedCount = this.sortedCount;
+        int position = Arrays.binarySearch(pages.sortedAddresses, 0, sortedCount, address);
+        if (position >= 0) {
+            throw new IllegalArgumentException("Page already registered: " + address);
+        }
+        position = -(position + 1);
+        if (freePageCount == 0 && pageCount > maxPageIndex) {
+            return 0;
+        }
+
+        int pageIndex;
+        if (freePageCount != 0) {
+            pageIndex = freePages[--freePageCount];
+        }
+        else {
+            pageIndex = pageCount++;
+        }
+        if (pageIndex == pages.pageAddresses.length) {
+            pages = pages.copyOf(pageIndex * 2);
+            this.pages = pages;
+        }
+
+        // no chunk of the page has been handed out, so nothing reads the entry
+        pages.pageAddresses[pageIndex] = address;
+        pages.pageChunkSizes[pageIndex] = chunkSize;
+        pages.pageChunkCounts[pageIndex] = chunkCount;
+
+        // a page above every other page is appended without moving entries
+        System.arraycopy(pages.sortedAddresses, position, pages.sortedAddresses, position + 1, sortedCount - position);
+        System.arraycopy(pages.sortedPages, position, pages.sortedPages, position + 1, sortedCount - position);
+        pages.sortedAddresses[position] = address;
+        pages.sortedPages[position] = pageIndex;
+        this.sortedCount = sortedCount + 1;
+
+        return pageIndex;
+    }
+
+    /**
+     * Unregisters the page starting at the specified address.  The page
+     * index will be reused, so no handle into the page may still be stored.
+     */
+    public synchronized void removePage(long address)
+    {
+        Pages pages = this.pages;
+        int sortedCount = this.sortedCount;
+        int position = Arrays.binarySearch(pages.sortedAddresses, 0, sortedCount, address);
+        if (position < 0) {
+            throw new IllegalArgumentException("Page is not registered: " + address);
+        }
+        int pageIndex = pages.sortedPages[position];
+
+        System.arraycopy(pages.sortedAddresses, position + 1, pages.sortedAddresses, position, sortedCount - position - 1);
+        System.arraycopy(pages.sortedPages, position + 1, pages.sortedPages, position, sortedCount - position - 1);
+        this.sortedCount = sortedCount - 1;
+
+        pages.pageAddresses[pageIndex] = 0;
+        pages.pageChunkSizes[pageIndex] = 0;
+        pages.pageChunkCounts[pageIndex] = 0;
+
+        if (freePageCount == freePages.length) {
+            freePages = Arrays.copyOf(freePages, freePageCount * 2);
+        }
+        freePages[freePageCount++] = pageIndex;
+    }
+
+    public long getPageAddress(int pageIndex)
+    {
+        return pages.pageAddresses[pageIndex];
+    }
+
+    public int getPageChunkSize(int pageIndex)
+    {
+        return pages.pageChunkSizes[pageIndex];
+    }
+
+    public int getPageChunkCount(int pageIndex)
+    {
+        return pages.pageChunkCounts[pageIndex];
+    }
+
+    /**
+     * Finds the page containing the specified address.
+     *
+     * @return the page index or 0 if the address is not inside a registered
+     * page
+     */
+    public int getPageIndex(long address)
+    {
+        // read the count first so the arrays are at least as new
+        int sortedCount = this.sortedCount;
+        int pageIndex = pages.getPageIndex(address, sortedCount);
+        if (pageIndex == 0) {
+            return getPageIndexLocked(address);
+        }
+        return pageIndex;
+    }
+
+    private synchronized int getPageIndexLocked(long address)
+    {
+        return pages.getPageIndex(address, sortedCount);
+    }
+
+    /**
+     * Converts the address of a chunk into a 32-bit handle.
+     */
+    public int getHandle(long address)
+    {
+        if (address == 0) {
+            return 0;
+        }
+
+        int pageIndex = getPageIndex(address);
+        if (pageIndex == 0) {
+            throw new IllegalArgumentException("Address is not in a slab page: " + address);
+        }
+        Pages pages = this.pages;
+        long offset = address - pages.pageAddresses[pageIndex];
+        int chunkSize = pages.pageChunkSizes[pageIndex];
+        assert offset % chunkSize == 0 : "address is not at the start of a chunk";
+
+        return (pageIndex << chunkBits) | (int) (offset / chunkSize);
+    }
+
+    /**
+     * Converts a 32-bit handle into the address of the chunk.
+     */
+    public long getAddress(int handle)
+    {
+        if (handle == 0) {
+            return 0;
+        }
+        Pages pages = this.pages;
+        int pageIndex = handle >>> chunkBits;
+        int chunkIndex = handle & chunkMask;
+        return pages.pageAddresses[pageIndex] + (long) chunkIndex * pages.pageChunkSizes[pageIndex];
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("SlabPageTable");
+        sb.append("{pages=").append(getPageCount());
+        sb.append(", chunkBits=").append(chunkBits);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * The arrays of the registered pages.
+     */
+    private static class Pages
+    {
+        /**
+         * Base address of each page by page index
+         */
+        private final long[] pageAddresses;
+
+        /**
+         * Chunk size of each page by page index
+         */
+        private final int[] pageChunkSizes;
+
+        /**
+         * Number of chunks in each page by page index
+         */
+        private final int[] pageChunkCounts;
+
+        /**
+         * Page base addresses in ascending order for address to page lookups
+         */
+        private final long[] sortedAddresses;
+
+        /**
+         * Page index for each entry in sortedAddresses
+         */
+        private final int[] sortedPages;
+
+        private Pages(int length)
+        {
+            this(new long[length], new int[length], new int[length], new long[length], new int[length]);
+        }
+
+        private Pages(long[] pageAddresses, int[] pageChunkSizes, int[] pageChunkCounts, long[] sortedAddresses, int[] sortedPages)
+        {
+            this.pageAddresses = pageAddresses;
+            this.pageChunkSizes = pageChunkSizes;
+            this.pageChunkCounts = pageChunkCounts;
+            this.sortedAddresses = sortedAddresses;
+            this.sortedPages = sortedPages;
+        }
+
+        private Pages copyOf(int length)
+        {
+            return new Pages(Arrays.copyOf(pageAddresses, length),
+                    Arrays.copyOf(pageChunkSizes, length),
+                    Arrays.copyOf(pageChunkCounts, length),
+                    Arrays.copyOf(sortedAddresses, length),
+                    Arrays.copyOf(sortedPages, length));
+        }
+
+        /**
+         * Finds the page containing the address.  The sorted index may be
+         * changing, so the page found is checked against its own entry.
+         *
+         * @return the page index or 0 if no page was found
+         */
+        private int getPageIndex(long address, int sortedCount)
+        {
+            int position = Arrays.binarySearch(sortedAddresses, 0, sortedCount, address);
+            if (position < 0) {
+                // the page is the one before the insertion point
+                position = -(position + 1) - 1;
+                if (position < 0) {
+                    return 0;
+                }
+            }
+            int pageIndex = sortedPages[position];
+            if (pageIndex <= 0 || pageIndex >= pageAddresses.length) {
+                return 0;
+            }
+            long pageAddress = pageAddresses[pageIndex];
+            if (pageAddress == 0 || address < pageAddress ||
+                    address - pageAddress >= (long) pageChunkSizes[pageIndex] * pageChunkCounts[pageIndex]) {
+                return 0;
+            }
+            return pageIndex;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer
+ * thread.  The producer publishes an element with an ordered write of the
+ * tail and the consumer releases the slot with an ordered write of the head,
+ * so neither side executes a lock or a compare and swap.  Each side caches
+ * the last position it read of the other side and only reads the shared
+ * position again when the cached value says the queue is full or empty.
+ */
+public class SpscQueue<E>
+{
+    private final Object[] buffer;
+    private final int mask;
+
+    // written by the producer
+    private final PaddedAtomicLong tail = new PaddedAtomicLong();
+    private long cachedHead;
+
+    // written by the consumer
+    private final PaddedAtomicLong head = new PaddedAtomicLong();
+    private long cachedTail;
+
+    /**
+     * @param capacity maximum number of queued elements; rounded up to a
+     * power of two
+     */
+    public SpscQueue(int capacity)
+    {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        buffer = new Object[capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1];
+        mask = buffer.length - 1;
+    }
+
+    public int capacity()
+    {
+        return buffer.length;
+    }
+
+    /**
+     * Adds an element.  Must only be called by the producer thread.
+     *
+     * @return false if the queue is full
+     */
+    public boolean offer(E element)
+    {
+        if (element == null) {
+            throw new NullPointerException("element is null");
+        }
+        long position = tail.get();
+        if (position - cachedHead >= buffer.length) {
+            cachedHead = head.get();
+            if (position - cachedHead >= buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) position & mask] = element;
+        tail.lazySet(position + 1);
+        return true;
+    }
+
+    /**
+     * Removes the oldest element.  Must only be called by the consumer
+     * thread.
+     *
+     * @return the element or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll()
+    {
+        long position = head.get();
+        if (position >= cachedTail) {
+            cachedTail = tail.get();
+            if (position >= cachedTail) {
+                return null;
+            }
+        }
+        int index = (int) position & mask;
+        E element = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(position + 1);
+        return element;
+    }
+
+    /**
+     * Is the queue empty?  Exact when called by the consumer thread.
+     */
+    public boolean isEmpty()
+    {
+        return head.get() >= tail.get();
+    }
+
+    public int size()
+    {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    /**
+     * Keeps the head and the tail on different cache lines.
+     */
+    @SuppressWarnings("UnusedDeclaration")
+    private static class PaddedAtomicLong
+            extends AtomicLong
+    {
+        private static final long serialVersionUID = 0;
+
+        public long p1, p2, p3, p4, p5, p6, p7 = 7L;
+
+        public long sumPaddingToPreventOptimisation()
+        {
+            return p1 + p2 + p3 + p4 + p5 + p6 + p7;
+        }
+    }
+}
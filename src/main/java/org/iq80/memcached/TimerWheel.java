@@ -0,0 +1,386 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchical timer wheel of item addresses keyed on the expiration time
+ * in seconds.  The first level has a slot for each of the next 256 seconds,
+ * and each of the three higher levels has 64 slots covering 64 times the
+ * span of the level below, so the wheel covers about two years.  Later
+ * times wait in an overflow list.  When the time advances past the span of
+ * a slot of a higher level, its entries cascade down to the lower levels, so
+ * each entry is moved at most four times.
+ * <p/>
+ * An address is in the wheel at most once.  The slot and position of each
+ * address are kept in a hash index, so an entry is removed in constant time
+ * when its item is deleted, replaced or evicted, and the wheel only holds
+ * the addresses of linked items.
+ * <p/>
+ * This class is not thread safe.
+ */
+public class TimerWheel
+{
+    private static final int ROOT_BITS = 8;
+    private static final int LEVEL_BITS = 6;
+    private static final int ROOT_SIZE = 1 << ROOT_BITS;
+    private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+    private static final int LEVELS = 4;
+
+    /**
+     * Every slot by slot id
+     */
+    private final Slot[] slots = new Slot[ROOT_SIZE + (LEVELS - 1) * LEVEL_SIZE + 2];
+    private int slotCount;
+
+    private final Slot[][] levels;
+    private final Slot overflow;
+    private final Slot due;
+    private int duePosition;
+
+    /**
+     * Slot id (high bits) and position (low bits) of each address
+     */
+    private final AddressIndex index = new AddressIndex();
+
+    /**
+     * The next second to be processed
+     */
+    private int time;
+
+    public TimerWheel(int currentTime)
+    {
+        levels = new Slot[LEVELS][];
+        levels[0] = newSlots(ROOT_SIZE);
+        for (int level = 1; level < LEVELS; level++) {
+            levels[level] = newSlots(LEVEL_SIZE);
+        }
+        overflow = newSlots(1)[0];
+        due = newSlots(1)[0];
+        time = currentTime;
+    }
+
+    private Slot[] newSlots(int count)
+    {
+        Slot[] newSlots = new Slot[count];
+        for (int i = 0; i < count; i++) {
+            newSlots[i] = new Slot(slotCount);
+            slots[slotCount++] = newSlots[i];
+        }
+        return newSlots;
+    }
+
+    /**
+     * Gets the number of entries in the wheel including the due entries.
+     */
+    public long size()
+    {
+        return index.size();
+    }
+
+    /**
+     * Adds the address of an item that expires at the specified time.  An
+     * entry for the same address is replaced.
+     */
+    public void add(long address, int exptime)
+    {
+        if (address == 0) {
+            throw new IllegalArgumentException("address is 0");
+        }
+        remove(address);
+        place(address, exptime);
+    }
+
+    /**
+     * Removes the entry for the specified address.
+     *
+     * @return false if the address is not in the wheel
+     */
+    public boolean remove(long address)
+    {
+        long location = index.remove(address);
+        if (location == AddressIndex.NONE) {
+            return false;
+        }
+        Slot slot = slots[(int) (location >>> 32)];
+        int position = (int) location;
+
+        // the last entry of the slot fills the gap
+        int last = slot.count - 1;
+        if (position != last) {
+            slot.addresses[position] = slot.addresses[last];
+            slot.exptimes[position] = slot.exptimes[last];
+            index.put(slot.addresses[position], location);
+        }
+        slot.count = last;
+
+        if (slot == due && duePosition == due.count) {
+            due.clear();
+            duePosition = 0;
+        }
+        return true;
+    }
+
+    private void place(long address, int exptime)
+    {
+        Slot slot;
+        long delta = (long) exptime - time;
+        if (delta < 0) {
+            slot = due;
+        }
+        else if (delta < ROOT_SIZE) {
+            slot = levels[0][exptime & (ROOT_SIZE - 1)];
+        }
+        else {
+            slot = overflow;
+            for (int level = 1; level < LEVELS; level++) {
+                int shift = ROOT_BITS + (level - 1) * LEVEL_BITS;
+                if (delta < 1L << (shift + LEVEL_BITS)) {
+                    slot = levels[level][(exptime >>> shift) & (LEVEL_SIZE - 1)];
+                    break;
+                }
+            }
+        }
+        int position = slot.add(address, exptime);
+        index.put(address, ((long) slot.id << 32) | position);
+    }
+
+    /**
+     * Moves the entries that expire at or before the specified time to the
+     * due list.  The work is proportional to the number of seconds advanced
+     * and the number of entries moved.
+     */
+    public void advance(int currentTime)
+    {
+        while (time - currentTime <= 0) {
+            if (index.size() == due.count - duePosition) {
+                // nothing is waiting in the wheel
+                time = currentTime + 1;
+                return;
+            }
+
+            int slotIndex = time & (ROOT_SIZE - 1);
+            if (slotIndex == 0) {
+                cascade();
+            }
+
+            Slot slot = levels[0][slotIndex];
+            for (int i = 0; i < slot.count; i++) {
+                int position = due.add(slot.addresses[i], slot.exptimes[i]);
+                index.put(slot.addresses[i], ((long) due.id << 32) | position);
+            }
+            slot.clear();
+            time++;
+        }
+    }
+
+    /**
+     * Re-places the entries of the higher level slots that start at the
+     * current time.
+     */
+    private void cascade()
+    {
+        for (int level = 1; level < LEVELS; level++) {
+            int shift = ROOT_BITS + (level - 1) * LEVEL_BITS;
+            int slotIndex = (time >>> shift) & (LEVEL_SIZE - 1);
+            replace(levels[level][slotIndex]);
+            if (slotIndex != 0) {
+                return;
+            }
+        }
+        replace(overflow);
+    }
+
+    private void replace(Slot slot)
+    {
+        if (slot.count == 0) {
+            return;
+        }
+        long[] addresses = slot.addresses;
+        int[] exptimes = slot.exptimes;
+        int count = slot.count;
+        slot.detach();
+        for (int i = 0; i < count; i++) {
+            place(addresses[i], exptimes[i]);
+        }
+    }
+
+    /**
+     * Removes the next due entry.
+     *
+     * @return the address of the item or 0 if no entry is due
+     */
+    public long pollDue()
+    {
+        if (duePosition == due.count) {
+            return 0;
+        }
+        long address = due.addresses[duePosition++];
+        index.remove(address);
+        if (duePosition == due.count) {
+            due.clear();
+            duePosition = 0;
+        }
+        return address;
+    }
+
+    private static class Slot
+    {
+        private static final long[] NO_ADDRESSES = new long[0];
+        private static final int[] NO_EXPTIMES = new int[0];
+
+        private final int id;
+        private long[] addresses = NO_ADDRESSES;
+        private int[] exptimes = NO_EXPTIMES;
+        private int count;
+
+        private Slot(int id)
+        {
+            this.id = id;
+        }
+
+        /**
+         * @return the position of the entry
+         */
+        private int add(long address, int exptime)
+        {
+            if (count == addresses.length) {
+                int capacity = Math.max(8, count * 2);
+                addresses = Arrays.copyOf(addresses, capacity);
+                exptimes = Arrays.copyOf(exptimes, capacity);
+            }
+            addresses[count] = address;
+            exptimes[count] = exptime;
+            return count++;
+        }
+
+        private void clear()
+        {
+            count = 0;
+            if (addresses.length > 1024) {
+                // don't hold on to the memory of a bulk expiration
+                detach();
+            }
+        }
+
+        private void detach()
+        {
+            addresses = NO_ADDRESSES;
+            exptimes = NO_EXPTIMES;
+            count = 0;
+        }
+    }
+
+    /**
+     * Open addressing hash map from an address to a long value.  Address 0
+     * marks an empty bucket.
+     */
+    private static class AddressIndex
+    {
+        private static final int MIN_CAPACITY = 16;
+        private static final long NONE = -1;
+
+        private long[] keys = new long[MIN_CAPACITY];
+        private long[] values = new long[MIN_CAPACITY];
+        private int size;
+
+        private int size()
+        {
+            return size;
+        }
+
+        private void put(long key, long value)
+        {
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            for (int i = bucket(key, mask); ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+                if (keys[i] == 0) {
+                    keys[i] = key;
+                    values[i] = value;
+                    size++;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the value of the removed key or NONE
+         */
+        private long remove(long key)
+        {
+            int mask = keys.length - 1;
+            int i = bucket(key, mask);
+            while (keys[i] != key) {
+                if (keys[i] == 0) {
+                    return NONE;
+                }
+                i = (i + 1) & mask;
+            }
+            long value = values[i];
+
+            // shift back the following keys that probed past the hole
+            int hole = i;
+            for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                if (((j - bucket(keys[j], mask)) & mask) >= ((j - hole) & mask)) {
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = 0;
+            values[hole] = 0;
+            size--;
+
+            if (keys.length > MIN_CAPACITY && size * 8 < keys.length) {
+                // don't hold on to the memory of a bulk expiration
+                resize(keys.length / 2);
+            }
+            return value;
+        }
+
+        private void resize(int capacity)
+        {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[capacity];
+            values = new long[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int j = bucket(oldKeys[i], mask);
+                    while (keys[j] != 0) {
+                        j = (j + 1) & mask;
+                    }
+                    keys[j] = oldKeys[i];
+                    values[j] = oldValues[i];
+                }
+            }
+        }
+
+        private static int bucket(long key, int mask)
+        {
+            // the high bits of the product depend on every bit of the key
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+/* =====================================================================
+ * xxHash64 by Yann Collet, BSD 2-Clause License:
+ *    <https://github.com/Cyan4973/xxHash>
+ * =====================================================================
+ */
+package org.iq80.memcached;
+
+import org.iq80.memory.Region;
+import org.iq80.memory.UnsafeAllocator;
+
+import java.nio.ByteOrder;
+
+import static org.iq80.memory.UnsafeAllocator.unsafe;
+
+/**
+ * 64-bit xxHash.  Keys are read 8 bytes at a time, and off-heap keys are
+ * read in place with Unsafe.
+ */
+public class XxHash64 implements HashFunction
+{
+    public static final XxHash64 INSTANCE = new XxHash64(0);
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    private static final long BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+    private static final boolean NATIVE_BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
+    private final long seed;
+
+    public XxHash64(long seed)
+    {
+        this.seed = seed;
+    }
+
+    @Override
+    public long hash(Region key)
+    {
+        int length = (int) key.size();
+        if (key.getAllocator() == UnsafeAllocator.INSTANCE) {
+            return hash(seed, null, key.getAddress(), length);
+        }
+
+        // the other allocators do not use native byte order
+        return hash(key.getBytes(0, length), 0, length);
+    }
+
+    @Override
+    public long hash(byte[] key, int offset, int length)
+    {
+        if (offset < 0 || length < 0 || offset > key.length - length) {
+            throw new IndexOutOfBoundsException("offset=" + offset + " length=" + length + " array length=" + key.length);
+        }
+        return hash(seed, key, BYTE_ARRAY_OFFSET + offset, length);
+    }
+
+    /**
+     * Hash of raw memory.  The base is an array or null for off-heap memory,
+     * like the Unsafe accessors.
+     */
+    private static long hash(long seed, Object base, long address, int length)
+    {
+        long end = address + length;
+        long hash;
+
+        if (length >= 32) {
+            long v1 = seed + PRIME64_1 + PRIME64_2;
+            long v2 = seed + PRIME64_2;
+            long v3 = seed;
+            long v4 = seed - PRIME64_1;
+
+            long limit = end - 32;
+            do {
+                v1 = round(v1, getLong(base, address));
+                v2 = round(v2, getLong(base, address + 8));
+                v3 = round(v3, getLong(base, address + 16));
+                v4 = round(v4, getLong(base, address + 24));
+                address += 32;
+            } while (address <= limit);
+
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        }
+        else {
+            hash = seed + PRIME64_5;
+        }
+
+        hash += length;
+
+        while (address + 8 <= end) {
+            hash ^= round(0, getLong(base, address));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+            address += 8;
+        }
+
+        if (address + 4 <= end) {
+            hash ^= (getInt(base, address) & 0xFFFFFFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            address += 4;
+        }
+
+        while (address < end) {
+            hash ^= (unsafe.getByte(base, address) & 0xFF) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+            address++;
+        }
+
+        // avalanche
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long accumulator, long input)
+    {
+        accumulator += input * PRIME64_2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME64_1;
+    }
+
+    private static long mergeRound(long hash, long value)
+    {
+        hash ^= round(0, value);
+        return hash * PRIME64_1 + PRIME64_4;
+    }
+
+    private static long getLong(Object base, long address)
+    {
+        long value = unsafe.getLong(base, address);
+        if (NATIVE_BIG_ENDIAN) {
+            value = Long.reverseBytes(value);
+        }
+        return value;
+    }
+
+    private static int getInt(Object base, long address)
+    {
+        int value = unsafe.getInt(base, address);
+        if (NATIVE_BIG_ENDIAN) {
+            value = Integer.reverseBytes(value);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "xxhash64";
+    }
+}
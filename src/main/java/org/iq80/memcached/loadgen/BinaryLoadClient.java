@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.loadgen;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * Load generator connection speaking the memcached binary protocol.
+ */
+public class BinaryLoadClient extends LoadClient
+{
+    static final int HEADER_SIZE = 24;
+    static final int REQUEST_MAGIC = 0x80;
+    static final int RESPONSE_MAGIC = 0x81;
+    static final int OPCODE_GET = 0x00;
+    static final int OPCODE_SET = 0x01;
+    static final int STATUS_OK = 0x0000;
+    static final int STATUS_KEY_NOT_FOUND = 0x0001;
+    static final int STATUS_KEY_EXISTS = 0x0002;
+    static final int STATUS_NOT_STORED = 0x0005;
+
+    private final byte[] header = new byte[HEADER_SIZE];
+
+    public BinaryLoadClient(Socket socket)
+            throws IOException
+    {
+        super(socket);
+    }
+
+    @Override
+    protected void writeGet(byte[] key)
+            throws IOException
+    {
+        writeHeader(OPCODE_GET, key.length, 0, key.length);
+        out.write(key);
+    }
+
+    @Override
+    protected void writeSet(byte[] key, byte[] value, int valueOffset, int valueLength)
+            throws IOException
+    {
+        writeHeader(OPCODE_SET, key.length, 8, 8 + key.length + valueLength);
+        // extras: flags and expiration
+        writeInt(0);
+        writeInt(0);
+        out.write(key);
+        out.write(value, valueOffset, valueLength);
+    }
+
+    @Override
+    protected boolean readGetResponse()
+            throws IOException
+    {
+        int status = readResponse(OPCODE_GET);
+        if (status == STATUS_OK) {
+            return true;
+        }
+        if (status == STATUS_KEY_NOT_FOUND) {
+            return false;
+        }
+        throw new IOException("Unexpected get response status: " + status);
+    }
+
+    @Override
+    protected boolean readSetResponse()
+            throws IOException
+    {
+        int status = readResponse(OPCODE_SET);
+        if (status == STATUS_OK) {
+            return true;
+        }
+        if (status == STATUS_KEY_EXISTS || status == STATUS_NOT_STORED) {
+            return false;
+        }
+        throw new IOException("Unexpected set response status: " + status);
+    }
+
+    /**
+     * Reads a response and skips the body.
+     *
+     * @return the response status
+     */
+    private int readResponse(int opcode)
+            throws IOException
+    {
+        in.readFully(header);
+        if ((header[0] & 0xFF) != RESPONSE_MAGIC) {
+            throw new IOException("Invalid response magic: " + (header[0] & 0xFF));
+        }
+        if ((header[1] & 0xFF) != opcode) {
+            throw new IOException("Response opcode " + (header[1] & 0xFF) + " does not match request opcode " + opcode);
+        }
+        int status = ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+        int bodyLength = ((header[8] & 0xFF) << 24) | ((header[9] & 0xFF) << 16) | ((header[10] & 0xFF) << 8) | (header[11] & 0xFF);
+        skipFully(bodyLength);
+        return status;
+    }
+
+    private void writeHeader(int opcode, int keyLength, int extrasLength, int bodyLength)
+            throws IOException
+    {
+        out.write(REQUEST_MAGIC);
+        out.write(opcode);
+        out.write(keyLength >>> 8);
+        out.write(keyLength);
+        out.write(extrasLength);
+        // data type and vbucket
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        writeInt(bodyLength);
+        // opaque
+        writeInt(0);
+        // cas
+        writeInt(0);
+        writeInt(0);
+    }
+
+    private void writeInt(int value)
+            throws IOException
+    {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.loadgen;
+
+import java.util.Random;
+
+/**
+ * Chooses the index of the key for the next operation.
+ */
+public abstract class KeyDistribution
+{
+    /**
+     * Parses a distribution spec:
+     * <ul>
+     * <li>uniform</li>
+     * <li>zipf[:theta], default theta 0.99</li>
+     * <li>hotspot[:hotKeyFraction[:hotOperationFraction]], default 0.2 of
+     * the keys receive 0.8 of the operations</li>
+     * </ul>
+     */
+    public static KeyDistribution parse(String spec, int keyCount)
+    {
+        String[] parts = spec.split(":");
+        String name = parts[0];
+        if (name.equals("uniform") && parts.length == 1) {
+            return new Uniform(keyCount);
+        }
+        if (name.equals("zipf") && parts.length <= 2) {
+            double theta = parts.length > 1 ? Double.parseDouble(parts[1]) : 0.99;
+            return new Zipfian(keyCount, theta);
+        }
+        if (name.equals("hotspot") && parts.length <= 3) {
+            double hotKeyFraction = parts.length > 1 ? Double.parseDouble(parts[1]) : 0.2;
+            double hotOperationFraction = parts.length > 2 ? Double.parseDouble(parts[2]) : 0.8;
+            return new Hotspot(keyCount, hotKeyFraction, hotOperationFraction);
+        }
+        throw new IllegalArgumentException("Invalid key distribution: " + spec);
+    }
+
+    protected final int keyCount;
+
+    protected KeyDistribution(int keyCount)
+    {
+        if (keyCount <= 0) {
+            throw new IllegalArgumentException("keyCount must be positive: " + keyCount);
+        }
+        this.keyCount = keyCount;
+    }
+
+    public int getKeyCount()
+    {
+        return keyCount;
+    }
+
+    /**
+     * @return a key index between 0 (inclusive) and the key count (exclusive)
+     */
+    public abstract int nextKey(Random random);
+
+    public static class Uniform extends KeyDistribution
+    {
+        public Uniform(int keyCount)
+        {
+            super(keyCount);
+        }
+
+        public int nextKey(Random random)
+        {
+            return random.nextInt(keyCount);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "uniform";
+        }
+    }
+
+    /**
+     * Zipfian distribution over the keys where key 0 is the most popular,
+     * using the method from Gray et al, "Quickly Generating Billion-Record
+     * Synthetic Databases" (the same generator as YCSB).
+     */
+    public static class Zipfian extends KeyDistribution
+    {
+        private final double theta;
+        private final double alpha;
+        private final double zetan;
+        private final double eta;
+
+        public Zipfian(int keyCount, double theta)
+        {
+            super(keyCount);
+            if (theta <= 0 || theta >= 1) {
+                throw new IllegalArgumentException("theta must be between 0 and 1 exclusive: " + theta);
+            }
+            this.theta = theta;
+            this.alpha = 1.0 / (1.0 - theta);
+            this.zetan = zeta(keyCount, theta);
+            double zeta2 = zeta(2, theta);
+            this.eta = (1 - Math.pow(2.0 / keyCount, 1 - theta)) / (1 - zeta2 / zetan);
+        }
+
+        private static double zeta(int n, double theta)
+        {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        public int nextKey(Random random)
+        {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1.0) {
+                return 0;
+            }
+            if (uz < 1.0 + Math.pow(0.5, theta)) {
+                return Math.min(1, keyCount - 1);
+            }
+            int key = (int) (keyCount * Math.pow(eta * u - eta + 1, alpha));
+            return Math.min(key, keyCount - 1);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "zipf:" + theta;
+        }
+    }
+
+    /**
+     * A fraction of the keys receives a fraction of the operations; both the
+     * hot and the cold keys are chosen uniformly.
+     */
+    public static class Hotspot extends KeyDistribution
+    {
+        private final double hotKeyFraction;
+        private final double hotOperationFraction;
+        private final int hotKeyCount;
+
+        public Hotspot(int keyCount, double hotKeyFraction, double hotOperationFraction)
+        {
+            super(keyCount);
+            if (hotKeyFraction <= 0 || hotKeyFraction > 1) {
+                throw new IllegalArgumentException("hotKeyFraction must be between 0 exclusive and 1: " + hotKeyFraction);
+            }
+            if (hotOperationFraction < 0 || hotOperationFraction > 1) {
+                throw new IllegalArgumentException("hotOperationFraction must be between 0 and 1: " + hotOperationFraction);
+            }
+            this.hotKeyFraction = hotKeyFraction;
+            this.hotOperationFraction = hotOperationFraction;
+            this.hotKeyCount = Math.max(1, (int) (keyCount * hotKeyFraction));
+        }
+
+        public int nextKey(Random random)
+        {
+            if (hotKeyCount == keyCount || random.nextDouble() < hotOperationFraction) {
+                return random.nextInt(hotKeyCount);
+            }
+            return hotKeyCount + random.nextInt(keyCount - hotKeyCount);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "hotspot:" + hotKeyFraction + ":" + hotOperationFraction;
+        }
+    }
+}
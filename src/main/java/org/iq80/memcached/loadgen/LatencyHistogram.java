@@ -0,0 +1,222 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.loadgen;
+
+import java.io.PrintStream;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds, laid out like an
+ * HdrHistogram.
+ * <p/>
+ * Values below the sub bucket count are recorded exactly.  Above that each
+ * power of two is split into half the sub bucket count linear buckets, so the
+ * recorded value is within 2^-(subBucketBits - 1) of the real value.
+ */
+public class LatencyHistogram
+{
+    /**
+     * Largest value that can be recorded; larger values are clamped
+     */
+    private static final long MAX_VALUE = (1L << 42) - 1;
+
+    private final int subBucketBits;
+    private final int subBucketCount;
+    private final int subBucketHalfCount;
+    private final long[] counts;
+
+    private long totalCount;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+    private double sumOfSquares;
+
+    public LatencyHistogram()
+    {
+        this(11);
+    }
+
+    public LatencyHistogram(int subBucketBits)
+    {
+        if (subBucketBits < 2 || subBucketBits > 20) {
+            throw new IllegalArgumentException("subBucketBits must be between 2 and 20: " + subBucketBits);
+        }
+        this.subBucketBits = subBucketBits;
+        this.subBucketCount = 1 << subBucketBits;
+        this.subBucketHalfCount = subBucketCount / 2;
+        this.counts = new long[getIndex(MAX_VALUE) + 1];
+    }
+
+    public void record(long value)
+    {
+        if (value < 0) {
+            value = 0;
+        }
+        if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        counts[getIndex(value)]++;
+        totalCount++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        sumOfSquares += (double) value * value;
+    }
+
+    public void add(LatencyHistogram other)
+    {
+        if (other.subBucketBits != subBucketBits) {
+            throw new IllegalArgumentException("Histograms have different precision");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+        sumOfSquares += other.sumOfSquares;
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+        sum = 0;
+        sumOfSquares = 0;
+    }
+
+    public long getTotalCount()
+    {
+        return totalCount;
+    }
+
+    public long getMin()
+    {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long getMax()
+    {
+        return max;
+    }
+
+    public double getMean()
+    {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    public double getStdDeviation()
+    {
+        if (totalCount == 0) {
+            return 0;
+        }
+        double mean = getMean();
+        return Math.sqrt(Math.max(0, sumOfSquares / totalCount - mean * mean));
+    }
+
+    /**
+     * Gets the largest value recorded at or below the percentile; the
+     * result is the upper bound of the bucket holding that value.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            count += counts[i];
+            if (count >= countAtPercentile) {
+                return Math.min(getHighestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Writes the percentile distribution in the HdrHistogram text format.
+     * Values are scaled by the ratio, e.g. 1000.0 for microseconds.
+     */
+    public void outputPercentileDistribution(PrintStream out, int ticksPerHalfDistance, double scalingRatio)
+    {
+        out.println("       Value     Percentile TotalCount 1/(1-Percentile)");
+        out.println();
+        if (totalCount != 0) {
+            double percentile = 0;
+            double halfDistance = 50;
+            while (true) {
+                long value = getValueAtPercentile(percentile);
+                long count = getCountAtValue(value);
+                if (percentile >= 100.0 || count >= totalCount) {
+                    out.printf("%12.3f %2.12f %10d%n", value / scalingRatio, 1.0, totalCount);
+                    break;
+                }
+                out.printf("%12.3f %2.12f %10d %14.2f%n", value / scalingRatio, percentile / 100.0, count, 1 / (1 - percentile / 100.0));
+
+                percentile += halfDistance / ticksPerHalfDistance;
+                if (percentile >= 100.0 - halfDistance) {
+                    halfDistance /= 2;
+                }
+            }
+        }
+        out.printf("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", getMean() / scalingRatio, getStdDeviation() / scalingRatio);
+        out.printf("#[Max     = %12.3f, Total count    = %12d]%n", getMax() / scalingRatio, totalCount);
+        out.printf("#[Buckets = %12d, SubBuckets     = %12d]%n", (counts.length - subBucketCount) / subBucketHalfCount + 1, subBucketCount);
+    }
+
+    /**
+     * Number of recorded values less than or equal to the value.
+     */
+    private long getCountAtValue(long value)
+    {
+        int index = getIndex(Math.min(value, MAX_VALUE));
+        long count = 0;
+        for (int i = 0; i <= index; i++) {
+            count += counts[i];
+        }
+        return count;
+    }
+
+    int getIndex(long value)
+    {
+        if (value < subBucketCount) {
+            return (int) value;
+        }
+        // shift the value so it is in the upper half of the sub buckets
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (subBucketBits - 1);
+        return subBucketCount + (shift - 1) * subBucketHalfCount + (int) (value >>> shift) - subBucketHalfCount;
+    }
+
+    long getLowestEquivalentValue(int index)
+    {
+        if (index < subBucketCount) {
+            return index;
+        }
+        int shift = (index - subBucketCount) / subBucketHalfCount + 1;
+        long subBucket = (index - subBucketCount) % subBucketHalfCount + subBucketHalfCount;
+        return subBucket << shift;
+    }
+
+    long getHighestEquivalentValue(int index)
+    {
+        return getLowestEquivalentValue(index + 1) - 1;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.loadgen;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A blocking memcached connection used by the load generator.  Requests are
+ * buffered until flushed, so several requests can be pipelined, and the
+ * responses are read back in request order.
+ */
+public abstract class LoadClient implements Closeable
+{
+    public static LoadClient connect(String protocol, InetSocketAddress address)
+            throws IOException
+    {
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(address);
+        if (protocol.equals("text")) {
+            return new TextLoadClient(socket);
+        }
+        if (protocol.equals("binary")) {
+            return new BinaryLoadClient(socket);
+        }
+        socket.close();
+        throw new IllegalArgumentException("Unknown protocol: " + protocol);
+    }
+
+    protected static final int GET = 0;
+    protected static final int SET = 1;
+
+    private final Socket socket;
+    protected final OutputStream out;
+    protected final DataInputStream in;
+
+    /**
+     * Operation type of each request waiting for a response
+     */
+    private int[] pending = new int[16];
+    private int pendingHead;
+    private int pendingCount;
+
+    protected LoadClient(Socket socket)
+            throws IOException
+    {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+    }
+
+    public void get(byte[] key)
+            throws IOException
+    {
+        writeGet(key);
+        addPending(GET);
+    }
+
+    public void set(byte[] key, byte[] value, int valueOffset, int valueLength)
+            throws IOException
+    {
+        writeSet(key, value, valueOffset, valueLength);
+        addPending(SET);
+    }
+
+    public void flush()
+            throws IOException
+    {
+        out.flush();
+    }
+
+    public int getPendingCount()
+    {
+        return pendingCount;
+    }
+
+    /**
+     * Reads the response to the oldest pending request.
+     *
+     * @return true if a get found the key or a set stored the value
+     * @throws IOException if the connection failed or the server returned an
+     * error
+     */
+    public boolean readResponse()
+            throws IOException
+    {
+        if (pendingCount == 0) {
+            throw new IllegalStateException("No pending requests");
+        }
+        int operation = pending[pendingHead];
+        pendingHead = (pendingHead + 1) % pending.length;
+        pendingCount--;
+
+        if (operation == GET) {
+            return readGetResponse();
+        }
+        return readSetResponse();
+    }
+
+    public void close()
+            throws IOException
+    {
+        socket.close();
+    }
+
+    protected void skipFully(int length)
+            throws IOException
+    {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped == 0) {
+                // skipBytes does not report end of stream
+                if (in.read() < 0) {
+                    throw new IOException("Connection closed by server");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    protected abstract void writeGet(byte[] key)
+            throws IOException;
+
+    protected abstract void writeSet(byte[] key, byte[] value, int valueOffset, int valueLength)
+            throws IOException;
+
+    protected abstract boolean readGetResponse()
+            throws IOException;
+
+    protected abstract boolean readSetResponse()
+            throws IOException;
+
+    private void addPending(int operation)
+    {
+        if (pendingCount == pending.length) {
+            int[] newPending = new int[pending.length * 2];
+            for (int i = 0; i < pendingCount; i++) {
+                newPending[i] = pending[(pendingHead + i) % pending.length];
+            }
+            pending = newPending;
+            pendingHead = 0;
+        }
+        pending[(pendingHead + pendingCount) % pending.length] = operation;
+        pendingCount++;
+    }
+}
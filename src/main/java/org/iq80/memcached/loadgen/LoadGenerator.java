@@ -0,0 +1,522 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.loadgen;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives get and set load against a memcached server and records the latency
+ * of every request.
+ * <p/>
+ * In the default closed loop mode each connection sends the next batch as
+ * soon as the previous one completes.  With a fixed rate (open loop) the
+ * requests are scheduled at evenly spaced intended start times and the latency
+ * is measured from the intended start time, so a stalled server is charged for
+ * the requests that could not be sent while it was stalled (coordinated
+ * omission).
+ * <p/>
+ * Usage: java org.iq80.memcached.loadgen.LoadGenerator [--option=value ...]
+ * <pre>
+ *   --host=localhost       server host
+ *   --port=11211           server port
+ *   --protocol=text        text or binary
+ *   --connections=4        connections, each driven by its own thread
+ *   --duration=10          seconds to run
+ *   --rate=0               total requests per second, 0 for closed loop
+ *   --pipeline=1           requests sent per connection before reading
+ *   --get-ratio=0.9        fraction of requests that are gets
+ *   --keys=100000          number of distinct keys
+ *   --key-size=16          key length, keys are zero padded to this length
+ *   --distribution=uniform uniform, zipf[:theta] or hotspot[:keys[:ops]]
+ *   --value-size=100       value size or min-max for a uniform size
+ *   --preload=false        set every key before the run
+ *   --histogram-log=file   write the percentile distribution to a file
+ *   --seed=0               random seed
+ * </pre>
+ */
+public class LoadGenerator
+{
+    private static final Logger log = Logger.getLogger(LoadGenerator.class.getName());
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    public static void main(String[] args)
+            throws Exception
+    {
+        Options options;
+        try {
+            options = Options.parse(args);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+        new LoadGenerator(options).run(System.out);
+    }
+
+    public static class Options
+    {
+        public String host = "localhost";
+        public int port = 11211;
+        public String protocol = "text";
+        public int connections = 4;
+        public int duration = 10;
+        public double rate = 0;
+        public int pipeline = 1;
+        public double getRatio = 0.9;
+        public int keys = 100000;
+        public int keySize = 16;
+        public String distribution = "uniform";
+        public int minValueSize = 100;
+        public int maxValueSize = 100;
+        public boolean preload = false;
+        public String histogramLog;
+        public long seed = 0;
+
+        public static Options parse(String[] args)
+        {
+            Options options = new Options();
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                if (!arg.startsWith("--") || equals < 0) {
+                    throw new IllegalArgumentException("Invalid option: " + arg);
+                }
+                String name = arg.substring(2, equals);
+                String value = arg.substring(equals + 1);
+                if (name.equals("host")) {
+                    options.host = value;
+                }
+                else if (name.equals("port")) {
+                    options.port = Integer.parseInt(value);
+                }
+                else if (name.equals("protocol")) {
+                    options.protocol = value;
+                }
+                else if (name.equals("connections")) {
+                    options.connections = Integer.parseInt(value);
+                }
+                else if (name.equals("duration")) {
+                    options.duration = Integer.parseInt(value);
+                }
+                else if (name.equals("rate")) {
+                    options.rate = Double.parseDouble(value);
+                }
+                else if (name.equals("pipeline")) {
+                    options.pipeline = Integer.parseInt(value);
+                }
+                else if (name.equals("get-ratio")) {
+                    options.getRatio = Double.parseDouble(value);
+                }
+                else if (name.equals("keys")) {
+                    options.keys = Integer.parseInt(value);
+                }
+                else if (name.equals("key-size")) {
+                    options.keySize = Integer.parseInt(value);
+                }
+                else if (name.equals("distribution")) {
+                    options.distribution = value;
+                }
+                else if (name.equals("value-size")) {
+                    int dash = value.indexOf('-');
+                    if (dash < 0) {
+                        options.minValueSize = options.maxValueSize = Integer.parseInt(value);
+                    }
+                    else {
+                        options.minValueSize = Integer.parseInt(value.substring(0, dash));
+                        options.maxValueSize = Integer.parseInt(value.substring(dash + 1));
+                    }
+                }
+                else if (name.equals("preload")) {
+                    options.preload = Boolean.parseBoolean(value);
+                }
+                else if (name.equals("histogram-log")) {
+                    options.histogramLog = value;
+                }
+                else if (name.equals("seed")) {
+                    options.seed = Long.parseLong(value);
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown option: " + name);
+                }
+            }
+            options.validate();
+            return options;
+        }
+
+        void validate()
+        {
+            if (!protocol.equals("text") && !protocol.equals("binary")) {
+                throw new IllegalArgumentException("protocol must be text or binary: " + protocol);
+            }
+            if (connections <= 0 || duration <= 0 || pipeline <= 0 || keys <= 0) {
+                throw new IllegalArgumentException("connections, duration, pipeline and keys must be positive");
+            }
+            if (rate < 0) {
+                throw new IllegalArgumentException("rate is negative: " + rate);
+            }
+            if (getRatio < 0 || getRatio > 1) {
+                throw new IllegalArgumentException("get-ratio must be between 0 and 1: " + getRatio);
+            }
+            if (minValueSize < 0 || maxValueSize < minValueSize) {
+                throw new IllegalArgumentException("Invalid value size range: " + minValueSize + "-" + maxValueSize);
+            }
+            if (keySize > 250) {
+                throw new IllegalArgumentException("key-size is larger than 250: " + keySize);
+            }
+            // fails on invalid specs
+            KeyDistribution.parse(distribution, keys);
+        }
+    }
+
+    private final Options options;
+    private final byte[][] keys;
+    private final byte[] values;
+    private final List<Worker> workers = new ArrayList<Worker>();
+
+    public LoadGenerator(Options options)
+    {
+        options.validate();
+        this.options = options;
+
+        keys = new byte[options.keys][];
+        int digits = Math.max(1, options.keySize - 4);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = String.format("key:%0" + digits + "d", i).getBytes(US_ASCII);
+        }
+
+        values = new byte[options.maxValueSize];
+        Random random = new Random(options.seed);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (byte) ('a' + random.nextInt(26));
+        }
+    }
+
+    /**
+     * Runs the load and prints a line per second and a summary.
+     *
+     * @return the latency of all requests
+     */
+    public LatencyHistogram run(PrintStream out)
+            throws IOException, InterruptedException
+    {
+        InetSocketAddress address = new InetSocketAddress(options.host, options.port);
+        for (int i = 0; i < options.connections; i++) {
+            KeyDistribution distribution = KeyDistribution.parse(options.distribution, options.keys);
+            workers.add(new Worker(i, LoadClient.connect(options.protocol, address), distribution, new Random(options.seed + i + 1)));
+        }
+
+        try {
+            if (options.preload) {
+                preload(out);
+            }
+
+            out.printf("%d connections, %s protocol, %s, pipeline %d, %s keys, get ratio %.2f, values %d-%d bytes%n",
+                    options.connections,
+                    options.protocol,
+                    options.rate > 0 ? String.format("%.0f requests/s", options.rate) : "closed loop",
+                    options.pipeline,
+                    options.distribution,
+                    options.getRatio,
+                    options.minValueSize,
+                    options.maxValueSize);
+            out.printf("%8s %10s %8s %10s %10s %10s %10s %8s%n", "time", "requests/s", "hit rate", "p50 us", "p99 us", "p99.9 us", "max us", "errors");
+
+            long startTime = System.nanoTime();
+            long endTime = startTime + TimeUnit.SECONDS.toNanos(options.duration);
+            CountDownLatch done = new CountDownLatch(workers.size());
+            List<Thread> threads = new ArrayList<Thread>();
+            for (Worker worker : workers) {
+                worker.start(startTime, endTime, done);
+                Thread thread = new Thread(worker, "load-" + worker.index);
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+
+            LatencyHistogram total = new LatencyHistogram();
+            Counts totalCounts = new Counts();
+            LatencyHistogram interval = new LatencyHistogram();
+            Counts intervalCounts = new Counts();
+            long reportTime = startTime;
+            boolean finished = false;
+            while (!finished) {
+                reportTime += TimeUnit.SECONDS.toNanos(1);
+                finished = done.await(Math.max(0, reportTime - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+                long now = System.nanoTime();
+                interval.reset();
+                intervalCounts.reset();
+                for (Worker worker : workers) {
+                    worker.drain(interval, intervalCounts);
+                }
+                total.add(interval);
+                totalCounts.add(intervalCounts);
+                printInterval(out, (now - startTime) / 1.0e9, interval, intervalCounts, 1.0e9 / (now - (reportTime - TimeUnit.SECONDS.toNanos(1))));
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            double seconds = (System.nanoTime() - startTime) / 1.0e9;
+            out.println();
+            printInterval(out, seconds, total, totalCounts, 1 / seconds);
+            out.println();
+            if (options.histogramLog != null) {
+                PrintStream histogramOut = new PrintStream(new FileOutputStream(options.histogramLog));
+                try {
+                    total.outputPercentileDistribution(histogramOut, 5, 1000.0);
+                }
+                finally {
+                    histogramOut.close();
+                }
+            }
+            else {
+                total.outputPercentileDistribution(out, 5, 1000.0);
+            }
+            return total;
+        }
+        finally {
+            for (Worker worker : workers) {
+                worker.client.close();
+            }
+            workers.clear();
+        }
+    }
+
+    private void preload(PrintStream out)
+            throws IOException
+    {
+        out.printf("preloading %d keys%n", keys.length);
+        // each connection loads the keys for its index
+        for (Worker worker : workers) {
+            for (int key = worker.index; key < keys.length; key += workers.size()) {
+                worker.set(key);
+                if (worker.client.getPendingCount() == Math.max(options.pipeline, 16)) {
+                    worker.readAll();
+                }
+            }
+            worker.readAll();
+        }
+    }
+
+    private static void printInterval(PrintStream out, double time, LatencyHistogram histogram, Counts counts, double scale)
+    {
+        out.printf("%8.1f %10.0f %8.3f %10.1f %10.1f %10.1f %10.1f %8d%n",
+                time,
+                histogram.getTotalCount() * scale,
+                counts.gets == 0 ? 0.0 : (double) counts.hits / counts.gets,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getValueAtPercentile(99.9) / 1000.0,
+                histogram.getMax() / 1000.0,
+                counts.errors);
+    }
+
+    private static class Counts
+    {
+        private long gets;
+        private long hits;
+        private long sets;
+        private long errors;
+
+        private void add(Counts other)
+        {
+            gets += other.gets;
+            hits += other.hits;
+            sets += other.sets;
+            errors += other.errors;
+        }
+
+        private void reset()
+        {
+            gets = 0;
+            hits = 0;
+            sets = 0;
+            errors = 0;
+        }
+    }
+
+    private class Worker implements Runnable
+    {
+        private final int index;
+        private final LoadClient client;
+        private final KeyDistribution distribution;
+        private final Random random;
+
+        /**
+         * Intended start time of each request in the current batch
+         */
+        private final long[] intendedTimes;
+        private final boolean[] gets;
+
+        // guarded by this
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final Counts counts = new Counts();
+
+        private long startTime;
+        private long endTime;
+        private CountDownLatch done;
+
+        private Worker(int index, LoadClient client, KeyDistribution distribution, Random random)
+        {
+            this.index = index;
+            this.client = client;
+            this.distribution = distribution;
+            this.random = random;
+            this.intendedTimes = new long[options.pipeline];
+            this.gets = new boolean[options.pipeline];
+        }
+
+        private void start(long startTime, long endTime, CountDownLatch done)
+        {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.done = done;
+        }
+
+        public void run()
+        {
+            try {
+                // each connection sends an equal share of the rate
+                long interval = options.rate > 0 ? (long) (1.0e9 * options.connections / options.rate) : 0;
+                // stagger the connections so the requests are evenly spaced
+                long nextIntendedTime = startTime + interval * index / options.connections;
+
+                while (true) {
+                    int batch;
+                    long now;
+                    if (interval > 0) {
+                        if (nextIntendedTime >= endTime) {
+                            break;
+                        }
+                        now = waitUntil(nextIntendedTime);
+                        batch = 0;
+                        while (batch < options.pipeline && nextIntendedTime <= now && nextIntendedTime < endTime) {
+                            intendedTimes[batch++] = nextIntendedTime;
+                            nextIntendedTime += interval;
+                        }
+                    }
+                    else {
+                        now = System.nanoTime();
+                        if (now >= endTime) {
+                            break;
+                        }
+                        batch = options.pipeline;
+                        for (int i = 0; i < batch; i++) {
+                            intendedTimes[i] = now;
+                        }
+                    }
+
+                    for (int i = 0; i < batch; i++) {
+                        int key = distribution.nextKey(random);
+                        gets[i] = random.nextDouble() < options.getRatio;
+                        if (gets[i]) {
+                            client.get(keys[key]);
+                        }
+                        else {
+                            set(key);
+                        }
+                    }
+                    client.flush();
+
+                    for (int i = 0; i < batch; i++) {
+                        boolean success = client.readResponse();
+                        record(System.nanoTime() - intendedTimes[i], gets[i], success);
+                    }
+                }
+            }
+            catch (IOException e) {
+                log.log(Level.WARNING, "Connection " + index + " failed", e);
+                synchronized (this) {
+                    counts.errors++;
+                }
+            }
+            finally {
+                done.countDown();
+            }
+        }
+
+        private void set(int key)
+                throws IOException
+        {
+            int valueSize = options.minValueSize;
+            if (options.maxValueSize > options.minValueSize) {
+                valueSize += random.nextInt(options.maxValueSize - options.minValueSize + 1);
+            }
+            client.set(keys[key], values, 0, valueSize);
+        }
+
+        private void readAll()
+                throws IOException
+        {
+            client.flush();
+            while (client.getPendingCount() > 0) {
+                client.readResponse();
+            }
+        }
+
+        private synchronized void record(long latency, boolean get, boolean success)
+        {
+            histogram.record(latency);
+            if (get) {
+                counts.gets++;
+                if (success) {
+                    counts.hits++;
+                }
+            }
+            else {
+                counts.sets++;
+            }
+        }
+
+        /**
+         * Moves the recorded values to the specified histogram and counts.
+         */
+        private synchronized void drain(LatencyHistogram histogram, Counts counts)
+        {
+            histogram.add(this.histogram);
+            this.histogram.reset();
+            counts.add(this.counts);
+            this.counts.reset();
+        }
+
+        private long waitUntil(long time)
+        {
+            long now = System.nanoTime();
+            while (now < time) {
+                long remaining = time - now;
+                if (remaining > TimeUnit.MICROSECONDS.toNanos(100)) {
+                    // park wakes up late, so leave the last part to the spin
+                    LockSupport.parkNanos(remaining - TimeUnit.MICROSECONDS.toNanos(50));
+                }
+                now = System.nanoTime();
+            }
+            return now;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.loadgen;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ * Load generator connection speaking the memcached text protocol.
+ */
+public class TextLoadClient extends LoadClient
+{
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final byte[] GET_COMMAND = "get ".getBytes(US_ASCII);
+    private static final byte[] SET_COMMAND = "set ".getBytes(US_ASCII);
+    private static final byte[] CRLF = "\r\n".getBytes(US_ASCII);
+
+    private final byte[] line = new byte[1024];
+
+    public TextLoadClient(Socket socket)
+            throws IOException
+    {
+        super(socket);
+    }
+
+    @Override
+    protected void writeGet(byte[] key)
+            throws IOException
+    {
+        out.write(GET_COMMAND);
+        out.write(key);
+        out.write(CRLF);
+    }
+
+    @Override
+    protected void writeSet(byte[] key, byte[] value, int valueOffset, int valueLength)
+            throws IOException
+    {
+        out.write(SET_COMMAND);
+        out.write(key);
+        out.write((" 0 0 " + valueLength).getBytes(US_ASCII));
+        out.write(CRLF);
+        out.write(value, valueOffset, valueLength);
+        out.write(CRLF);
+    }
+
+    @Override
+    protected boolean readGetResponse()
+            throws IOException
+    {
+        boolean found = false;
+        while (true) {
+            String response = readLine();
+            if (response.equals("END")) {
+                return found;
+            }
+            if (!response.startsWith("VALUE ")) {
+                throw new IOException("Unexpected get response: " + response);
+            }
+            // VALUE <key> <flags> <bytes> [<cas unique>]
+            String[] parts = response.split(" ");
+            if (parts.length < 4) {
+                throw new IOException("Invalid get response: " + response);
+            }
+            int length = Integer.parseInt(parts[3]);
+            skipFully(length);
+            if (!readLine().isEmpty()) {
+                throw new IOException("Value is not terminated with CRLF");
+            }
+            found = true;
+        }
+    }
+
+    @Override
+    protected boolean readSetResponse()
+            throws IOException
+    {
+        String response = readLine();
+        if (response.equals("STORED")) {
+            return true;
+        }
+        if (response.equals("NOT_STORED")) {
+            return false;
+        }
+        throw new IOException("Unexpected set response: " + response);
+    }
+
+    private String readLine()
+            throws IOException
+    {
+        int length = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            if (b == '\n' && length > 0 && line[length - 1] == '\r') {
+                return new String(line, 0, length - 1, US_ASCII);
+            }
+            if (length == line.length) {
+                throw new IOException("Response line is too long");
+            }
+            line[length++] = (byte) b;
+        }
+    }
+}
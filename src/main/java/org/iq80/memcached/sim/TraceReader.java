@@ -0,0 +1,229 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.sim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the requests of a cache trace one record at a time.  The reader
+ * reuses its state, so the accessors describe the most recent record
+ * returned by {@link #next()}.
+ * <p/>
+ * The csv format has one request per line, <code>op,key,size[,time]</code>,
+ * where op is get, set or delete, size is the value size in bytes and time
+ * is the request time in seconds.  Empty lines and lines starting with # are
+ * ignored.
+ * <p/>
+ * The binary format is a sequence of big endian records:
+ * <pre>
+ *   time (4)        request time in seconds
+ *   op (1)          0 get, 1 set, 2 delete
+ *   key length (1)  unsigned
+ *   key (key length)
+ *   size (4)        value size in bytes
+ * </pre>
+ */
+public abstract class TraceReader
+        implements Closeable
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final int MAX_KEY_LENGTH = 250;
+
+    public enum Operation
+    {
+        GET, SET, DELETE
+    }
+
+    /**
+     * Opens a reader for the csv or binary trace format.
+     */
+    public static TraceReader open(InputStream in, String format)
+    {
+        if (format.equals("csv")) {
+            return new CsvTraceReader(in);
+        }
+        if (format.equals("binary")) {
+            return new BinaryTraceReader(in);
+        }
+        throw new IllegalArgumentException("Unknown trace format: " + format);
+    }
+
+    protected Operation operation;
+    protected byte[] key;
+    protected int size;
+    protected int time;
+
+    /**
+     * Reads the next record.
+     *
+     * @return false at the end of the trace
+     */
+    public abstract boolean next()
+            throws IOException;
+
+    public Operation getOperation()
+    {
+        return operation;
+    }
+
+    public byte[] getKey()
+    {
+        return key;
+    }
+
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Gets the request time in seconds or 0 when the trace has no times.
+     */
+    public int getTime()
+    {
+        return time;
+    }
+
+    private static class CsvTraceReader
+            extends TraceReader
+    {
+        private final BufferedReader reader;
+        private int lineNumber;
+
+        private CsvTraceReader(InputStream in)
+        {
+            reader = new BufferedReader(new InputStreamReader(in, UTF8));
+        }
+
+        @Override
+        public boolean next()
+                throws IOException
+        {
+            String line;
+            do {
+                line = reader.readLine();
+                if (line == null) {
+                    return false;
+                }
+                lineNumber++;
+                line = line.trim();
+            } while (line.length() == 0 || line.charAt(0) == '#');
+
+            String[] fields = line.split(",");
+            if (fields.length < 3 || fields.length > 4) {
+                throw new IOException("Invalid trace record at line " + lineNumber + ": " + line);
+            }
+            try {
+                operation = parseOperation(fields[0].trim());
+                key = fields[1].trim().getBytes(UTF8);
+                size = Integer.parseInt(fields[2].trim());
+                time = fields.length == 4 ? Integer.parseInt(fields[3].trim()) : 0;
+            }
+            catch (IllegalArgumentException e) {
+                throw new IOException("Invalid trace record at line " + lineNumber + ": " + line);
+            }
+            if (key.length == 0 || key.length > MAX_KEY_LENGTH || size < 0) {
+                throw new IOException("Invalid trace record at line " + lineNumber + ": " + line);
+            }
+            return true;
+        }
+
+        private static Operation parseOperation(String op)
+        {
+            if (op.equalsIgnoreCase("get") || op.equalsIgnoreCase("gets")) {
+                return Operation.GET;
+            }
+            if (op.equalsIgnoreCase("set") || op.equalsIgnoreCase("add") || op.equalsIgnoreCase("replace") || op.equalsIgnoreCase("cas")) {
+                return Operation.SET;
+            }
+            if (op.equalsIgnoreCase("delete")) {
+                return Operation.DELETE;
+            }
+            throw new IllegalArgumentException("Unknown operation: " + op);
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            reader.close();
+        }
+    }
+
+    private static class BinaryTraceReader
+            extends TraceReader
+    {
+        private static final Operation[] OPERATIONS = Operation.values();
+
+        private final DataInputStream in;
+        private final byte[][] keys = new byte[MAX_KEY_LENGTH + 1][];
+
+        private BinaryTraceReader(InputStream in)
+        {
+            this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        }
+
+        @Override
+        public boolean next()
+                throws IOException
+        {
+            int first = in.read();
+            if (first < 0) {
+                return false;
+            }
+            time = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+
+            int op = in.readUnsignedByte();
+            if (op >= OPERATIONS.length) {
+                throw new IOException("Invalid trace operation: " + op);
+            }
+            operation = OPERATIONS[op];
+
+            int keyLength = in.readUnsignedByte();
+            if (keyLength == 0 || keyLength > MAX_KEY_LENGTH) {
+                throw new IOException("Invalid trace key length: " + keyLength);
+            }
+            // keys of the same length share a buffer
+            key = keys[keyLength];
+            if (key == null) {
+                key = new byte[keyLength];
+                keys[keyLength] = key;
+            }
+            in.readFully(key);
+
+            size = in.readInt();
+            if (size < 0) {
+                throw new IOException("Invalid trace value size: " + size);
+            }
+            return true;
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            in.close();
+        }
+    }
+}
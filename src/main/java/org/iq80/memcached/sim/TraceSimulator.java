@@ -0,0 +1,444 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.sim;
+
+import org.iq80.memcached.HotKeyTracker.HotKey;
+import org.iq80.memcached.Item;
+import org.iq80.memcached.ItemLayout;
+import org.iq80.memcached.ItemSizeHistogram;
+import org.iq80.memcached.Items;
+import org.iq80.memcached.ServerClock;
+import org.iq80.memcached.SlabAllocator;
+import org.iq80.memcached.SlabClassStats;
+import org.iq80.memcached.SlabManager;
+import org.iq80.memcached.XxHash64;
+import org.iq80.memory.Region;
+import org.iq80.memory.UnsafeAllocator;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays a cache trace through the slab allocator, LRUs and hash table of
+ * the server and reports how well the cache would have performed.
+ * <p/>
+ * A get that hits touches the item like the server does.  A get that misses
+ * stores the value when fill on miss is enabled, which simulates a look-aside
+ * client that loads the value from the database.  Item times and expiration
+ * use the trace times, so traces without times never move touched items in
+ * the LRU.
+ * <p/>
+ * Usage: java org.iq80.memcached.sim.TraceSimulator --trace=file [--option=value ...]
+ * <pre>
+ *   --trace=file           trace to replay
+ *   --format=csv           csv or binary, see {@link TraceReader}
+ *   --memory=64m           memory limit, k, m and g suffixes are allowed
+ *   --factor=1.25          chunk size growth factor
+ *   --chunk-size=48        minimum space for key, value and flags
+ *   --max-item-size=1m     slab page size and largest item
+ *   --compact=false        use compact item references
+ *   --eviction=lru         lru, clock or tinylfu
+ *   --fill-on-miss=true    store the value after a get misses
+ *   --chunk-sizes=a,b,...  explicit chunk sizes instead of factor and chunk-size
+ *   --optimize-classes=0   report the chunk sizes of this many slab classes
+ *                          that waste the least space for the cached items
+ * </pre>
+ */
+public class TraceSimulator
+{
+    public static void main(String[] args)
+            throws IOException
+    {
+        Options options;
+        try {
+            options = Options.parse(args);
+            if (options.trace == null) {
+                throw new IllegalArgumentException("--trace is required");
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        // the slab classes log when they are created
+        Logger.getLogger(SlabManager.class.getName()).setLevel(Level.WARNING);
+
+        TraceSimulator simulator = new TraceSimulator(options);
+        TraceReader reader = TraceReader.open(new FileInputStream(options.trace), options.format);
+        try {
+            simulator.replay(reader);
+        }
+        finally {
+            reader.close();
+        }
+        simulator.report(System.out);
+    }
+
+    public static class Options
+    {
+        public String trace;
+        public String format = "csv";
+        public long memory = 64 * 1024 * 1024;
+        public double factor = 1.25;
+        public int chunkSize = 48;
+        public int maxItemSize = 1024 * 1024;
+        public boolean compact = false;
+        public String eviction = "lru";
+        public boolean fillOnMiss = true;
+        public int[] chunkSizes;
+        public int optimizeClasses;
+
+        public static Options parse(String[] args)
+        {
+            Options options = new Options();
+            for (String arg : args) {
+                int equals = arg.indexOf('=');
+                if (!arg.startsWith("--") || equals < 0) {
+                    throw new IllegalArgumentException("Invalid option: " + arg);
+                }
+                String name = arg.substring(2, equals);
+                String value = arg.substring(equals + 1);
+                if (name.equals("trace")) {
+                    options.trace = value;
+                }
+                else if (name.equals("format")) {
+                    options.format = value;
+                }
+                else if (name.equals("memory")) {
+                    options.memory = parseSize(value);
+                }
+                else if (name.equals("factor")) {
+                    options.factor = Double.parseDouble(value);
+                }
+                else if (name.equals("chunk-size")) {
+                    options.chunkSize = Integer.parseInt(value);
+                }
+                else if (name.equals("max-item-size")) {
+                    options.maxItemSize = (int) parseSize(value);
+                }
+                else if (name.equals("compact")) {
+                    options.compact = Boolean.parseBoolean(value);
+                }
+                else if (name.equals("eviction")) {
+                    options.eviction = value;
+                }
+                else if (name.equals("fill-on-miss")) {
+                    options.fillOnMiss = Boolean.parseBoolean(value);
+                }
+                else if (name.equals("chunk-sizes")) {
+                    String[] sizes = value.split(",");
+                    options.chunkSizes = new int[sizes.length];
+                    for (int i = 0; i < sizes.length; i++) {
+                        options.chunkSizes[i] = (int) parseSize(sizes[i].trim());
+                    }
+                }
+                else if (name.equals("optimize-classes")) {
+                    options.optimizeClasses = Integer.parseInt(value);
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown option: " + name);
+                }
+            }
+            options.validate();
+            return options;
+        }
+
+        void validate()
+        {
+            if (!format.equals("csv") && !format.equals("binary")) {
+                throw new IllegalArgumentException("format must be csv or binary: " + format);
+            }
+            if (!eviction.equals("lru") && !eviction.equals("clock") && !eviction.equals("tinylfu")) {
+                throw new IllegalArgumentException("eviction must be lru, clock or tinylfu: " + eviction);
+            }
+            if (memory < 0) {
+                throw new IllegalArgumentException("memory is negative: " + memory);
+            }
+            if (factor <= 1.0) {
+                throw new IllegalArgumentException("factor must be greater than 1: " + factor);
+            }
+            if (chunkSize <= 0 || maxItemSize <= 0) {
+                throw new IllegalArgumentException("chunk-size and max-item-size must be positive");
+            }
+            if (optimizeClasses < 0) {
+                throw new IllegalArgumentException("optimize-classes is negative: " + optimizeClasses);
+            }
+        }
+
+        private static long parseSize(String value)
+        {
+            long multiplier = 1;
+            char unit = Character.toLowerCase(value.charAt(value.length() - 1));
+            if (unit == 'k') {
+                multiplier = 1024;
+            }
+            else if (unit == 'm') {
+                multiplier = 1024 * 1024;
+            }
+            else if (unit == 'g') {
+                multiplier = 1024 * 1024 * 1024;
+            }
+            if (multiplier != 1) {
+                value = value.substring(0, value.length() - 1);
+            }
+            return Long.parseLong(value) * multiplier;
+        }
+    }
+
+    private final Options options;
+    private final SlabAllocator slabAllocator;
+    private final Items items;
+    private final Region keyBuffer;
+
+    private long requests;
+    private long gets;
+    private long hits;
+    private long getBytes;
+    private long hitBytes;
+    private long sets;
+    private long deletes;
+    private long notStored;
+
+    public TraceSimulator(Options options)
+    {
+        options.validate();
+        this.options = options;
+        if (options.chunkSizes != null) {
+            slabAllocator = new SlabAllocator(UnsafeAllocator.INSTANCE, options.memory, options.chunkSizes, false, options.maxItemSize, 0);
+        }
+        else {
+            int itemHeaderSize = ItemLayout.fixedSize(options.compact, options.eviction.equals("clock"));
+            slabAllocator = new SlabAllocator(UnsafeAllocator.INSTANCE, options.memory, options.factor, false, options.chunkSize, options.maxItemSize, 0, false, itemHeaderSize);
+        }
+        ItemLayout layout = ItemLayout.forSlabAllocator(slabAllocator, options.compact, options.eviction.equals("clock"));
+        items = new Items(slabAllocator, layout, XxHash64.INSTANCE, options.eviction.equals("tinylfu"));
+
+        // the times of the trace drive a clock that is never started
+        items.setClock(new ServerClock());
+        keyBuffer = UnsafeAllocator.INSTANCE.allocate(TraceReader.MAX_KEY_LENGTH);
+    }
+
+    public Items getItems()
+    {
+        return items;
+    }
+
+    /**
+     * Replays every request in the trace.
+     */
+    public void replay(TraceReader reader)
+            throws IOException
+    {
+        while (reader.next()) {
+            process(reader.getOperation(), reader.getKey(), reader.getSize(), reader.getTime());
+        }
+    }
+
+    /**
+     * Applies a single request to the cache.
+     */
+    public void process(TraceReader.Operation operation, byte[] key, int size, int time)
+    {
+        requests++;
+        if (time > items.getCurrentTime()) {
+            items.setCurrentTime(time);
+        }
+
+        keyBuffer.putBytes(0, key);
+        Region keyRegion = keyBuffer.getRegion(0, key.length);
+
+        switch (operation) {
+            case GET:
+                get(key, keyRegion, size);
+                break;
+            case SET:
+                set(key, keyRegion, size);
+                break;
+            case DELETE:
+                delete(keyRegion);
+                break;
+        }
+    }
+
+    private void get(byte[] key, Region keyRegion, int size)
+    {
+        gets++;
+        Item item = items.get(keyRegion);
+        if (item != null) {
+            int valueSize = item.getValueLength() - 2;
+            hits++;
+            hitBytes += valueSize;
+            getBytes += valueSize;
+            items.touch(item);
+            items.release(item);
+            return;
+        }
+
+        getBytes += size;
+        if (options.fillOnMiss) {
+            set(key, keyRegion, size);
+        }
+    }
+
+    private void set(byte[] key, Region keyRegion, int size)
+    {
+        sets++;
+        Item oldItem = items.get(keyRegion);
+        Item item = items.allocateItem(key, 0, 0, size + 2);
+        if (item == null) {
+            // too large or out of memory, the old value is left in place
+            notStored++;
+        }
+        else {
+            if (oldItem != null) {
+                items.replace(oldItem, item);
+            }
+            else {
+                items.insert(item);
+            }
+            items.release(item);
+        }
+        if (oldItem != null) {
+            items.release(oldItem);
+        }
+    }
+
+    private void delete(Region keyRegion)
+    {
+        deletes++;
+        Item item = items.get(keyRegion);
+        if (item != null) {
+            items.remove(item);
+            items.release(item);
+        }
+    }
+
+    public long getRequests()
+    {
+        return requests;
+    }
+
+    public long getGets()
+    {
+        return gets;
+    }
+
+    public long getHits()
+    {
+        return hits;
+    }
+
+    public long getNotStored()
+    {
+        return notStored;
+    }
+
+    public double getHitRatio()
+    {
+        return gets == 0 ? 0 : (double) hits / gets;
+    }
+
+    public double getByteHitRatio()
+    {
+        return getBytes == 0 ? 0 : (double) hitBytes / getBytes;
+    }
+
+    public long getEvictions()
+    {
+        long evictions = 0;
+        for (SlabManager slabManager : slabAllocator.getSlabManagers()) {
+            evictions += items.getSlabClassStats(slabManager.getId()).getEvicted();
+        }
+        return evictions;
+    }
+
+    /**
+     * Prints the hit ratios and the evictions and memory use of each slab
+     * class that holds items.
+     */
+    public void report(PrintStream out)
+    {
+        out.printf("memory limit %d bytes, factor %.2f, %s references, %s eviction%n",
+                options.memory,
+                options.factor,
+                options.compact ? "compact" : "wide",
+                options.eviction);
+        out.printf("requests %d, gets %d, sets %d, deletes %d, not stored %d%n", requests, gets, sets, deletes, notStored);
+        out.printf("hit ratio %.4f, byte hit ratio %.4f, evictions %d%n", getHitRatio(), getByteHitRatio(), getEvictions());
+        out.println();
+
+        out.printf("%5s %8s %6s %10s %10s %8s %12s %12s %7s%n", "class", "chunk", "slabs", "items", "evictions", "oom", "item bytes", "slab bytes", "waste");
+        long totalItemBytes = 0;
+        long totalSlabBytes = 0;
+        for (SlabManager slabManager : slabAllocator.getSlabManagers()) {
+            SlabClassStats stats = items.getSlabClassStats(slabManager.getId());
+            if (stats.getTotalItems() == 0 && stats.getOutOfMemory() == 0) {
+                continue;
+            }
+            long slabBytes = (long) slabManager.getSlabCount() * slabManager.getChunksPerSlab() * slabManager.getChunkSize();
+            totalItemBytes += stats.getCurrentBytes();
+            totalSlabBytes += slabBytes;
+            out.printf("%5d %8d %6d %10d %10d %8d %12d %12d %6.1f%%%n",
+                    slabManager.getId(),
+                    slabManager.getChunkSize(),
+                    slabManager.getSlabCount(),
+                    stats.getCurrentItems(),
+                    stats.getEvicted(),
+                    stats.getOutOfMemory(),
+                    stats.getCurrentBytes(),
+                    slabBytes,
+                    waste(stats.getCurrentBytes(), slabBytes));
+        }
+        out.printf("%5s %8s %6s %10s %10s %8s %12d %12d %6.1f%%%n", "total", "", "", "", "", "", totalItemBytes, totalSlabBytes, waste(totalItemBytes, totalSlabBytes));
+        out.println();
+
+        if (options.optimizeClasses > 0) {
+            ItemSizeHistogram histogram = items.getSizeHistogram();
+            int[] chunkSizes = slabAllocator.getChunkSizes();
+            int[] optimized = histogram.optimizeChunkSizes(options.optimizeClasses);
+            out.printf("estimated chunk waste %d bytes with the current %d classes%n", histogram.estimateWaste(chunkSizes), chunkSizes.length);
+            out.printf("estimated chunk waste %d bytes with %d optimized classes%n", histogram.estimateWaste(optimized), optimized.length);
+
+            // the class for the largest items is always added
+            StringBuilder sizes = new StringBuilder();
+            for (int size : optimized) {
+                if (size < options.maxItemSize) {
+                    if (sizes.length() > 0) {
+                        sizes.append(',');
+                    }
+                    sizes.append(size);
+                }
+            }
+            out.printf("--chunk-sizes=%s%n", sizes);
+            out.println();
+        }
+
+        out.printf("%-40s %12s%n", "hot key", "requests");
+        for (HotKey hotKey : items.getHotKeyTracker().getHotKeys(10)) {
+            out.printf("%-40s %12d%n", hotKey.getKeyString(), hotKey.getCount());
+        }
+    }
+
+    private static double waste(long itemBytes, long slabBytes)
+    {
+        return slabBytes == 0 ? 0 : 100.0 * (slabBytes - itemBytes) / slabBytes;
+    }
+}
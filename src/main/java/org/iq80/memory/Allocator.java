@@ -167,6 +167,56 @@ public interface Allocator
             throw new UnsupportedOperationException();
         }
 
+        public int getIntVolatile(long offset)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void putIntVolatile(long offset, int value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void putIntOrdered(long offset, int value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean compareAndSwapInt(long offset, int expected, int value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public int getAndAddInt(long offset, int delta)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public long getLongVolatile(long offset)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void putLongVolatile(long offset, long value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void putLongOrdered(long offset, long value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean compareAndSwapLong(long offset, long expected, long value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public long getAndAddLong(long offset, long delta)
+        {
+            throw new UnsupportedOperationException();
+        }
+
         public float getFloat(long offset)
         {
             throw new UnsupportedOperationException();
@@ -15,20 +15,45 @@
  */
 package org.iq80.memory;
 
+import java.nio.ByteOrder;
+
+import static org.iq80.memory.Allocator.LONG_SIZE;
 import static org.iq80.memory.Allocator.NULL_POINTER;
+import static org.iq80.memory.UnsafeAllocator.unsafe;
 
 public final class AllocatorUtil
 {
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
     private AllocatorUtil()
     {
     }
 
+    /**
+     * Compares the bytes of two regions as signed bytes.  Regions from the
+     * same allocator are compared a long at a time; the byte-wise compare is
+     * only done on the first mismatching long and the tail.
+     */
     public static int compareMemory(Region src, long srcOffset, Region target, long targetOffset, long size)
     {
         src.checkBounds(srcOffset, size);
         target.checkBounds(targetOffset, size);
 
-        for (long index = 0; index < size; index++) {
+        if (isUnsafe(src) && isUnsafe(target)) {
+            return compareUnsafeMemory(src.getAddress() + srcOffset, target.getAddress() + targetOffset, size);
+        }
+
+        long index = 0;
+        if (src.getAllocator() == target.getAllocator()) {
+            // longs are only comparable when both regions use the same byte order
+            for (; index + LONG_SIZE <= size; index += LONG_SIZE) {
+                if (src.getLong(srcOffset + index) != target.getLong(targetOffset + index)) {
+                    // compare the mismatching word byte by byte
+                    break;
+                }
+            }
+        }
+        for (; index < size; index++) {
             byte b1 = src.getByte(srcOffset + index);
             byte b2 = target.getByte(targetOffset + index);
             if (b1 > b2) {
@@ -41,18 +66,106 @@ public final class AllocatorUtil
         return 0;
     }
 
+    /**
+     * Compares raw off-heap memory as signed bytes without bounds checks.
+     */
+    public static int compareUnsafeMemory(long srcAddress, long targetAddress, long size)
+    {
+        long index = 0;
+        for (; index + LONG_SIZE <= size; index += LONG_SIZE) {
+            long l1 = unsafe.getLong(srcAddress + index);
+            long l2 = unsafe.getLong(targetAddress + index);
+            if (l1 != l2) {
+                // find the first mismatching byte in memory order
+                long diff = l1 ^ l2;
+                int byteIndex;
+                if (LITTLE_ENDIAN) {
+                    byteIndex = Long.numberOfTrailingZeros(diff) >>> 3;
+                }
+                else {
+                    byteIndex = Long.numberOfLeadingZeros(diff) >>> 3;
+                }
+                return compareBytes(unsafe.getByte(srcAddress + index + byteIndex), unsafe.getByte(targetAddress + index + byteIndex));
+            }
+        }
+        for (; index < size; index++) {
+            int result = compareBytes(unsafe.getByte(srcAddress + index), unsafe.getByte(targetAddress + index));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    private static int compareBytes(byte b1, byte b2)
+    {
+        if (b1 > b2) {
+            return 1;
+        }
+        else if (b1 < b2) {
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Copies memory between two regions.  Off-heap regions are copied with a
+     * single bulk copy; other regions from the same allocator are copied a
+     * long at a time.
+     * Overlapping ranges in the same region are handled like memmove.
+     */
+    public static void copyMemory(Region src, long srcOffset, Region target, long targetOffset, long size)
+    {
+        src.checkBounds(srcOffset, size);
+        target.checkBounds(targetOffset, size);
+
+        if (isUnsafe(src) && isUnsafe(target)) {
+            // copyMemory has memmove semantics
+            unsafe.copyMemory(src.getAddress() + srcOffset, target.getAddress() + targetOffset, size);
+            return;
+        }
+
+        long index = 0;
+        if (src.getAllocator() == target.getAllocator()) {
+            long srcAddress = src.getAddress() + srcOffset;
+            long targetAddress = target.getAddress() + targetOffset;
+            if (targetAddress > srcAddress && targetAddress < srcAddress + size) {
+                // target overlaps the end of the source, so copy backwards
+                for (index = size - 1; index >= 0; index--) {
+                    target.putByte(targetOffset + index, src.getByte(srcOffset + index));
+                }
+                return;
+            }
+
+            // longs can only be copied when both regions use the same byte order
+            for (; index + LONG_SIZE <= size; index += LONG_SIZE) {
+                target.putLong(targetOffset + index, src.getLong(srcOffset + index));
+            }
+        }
+        for (; index < size; index++) {
+            target.putByte(targetOffset + index, src.getByte(srcOffset + index));
+        }
+    }
+
     public static void copyMemoryByteByByte(Region src, long srcOffset, Region target, long targetOffset, long size)
     {
         src.checkBounds(srcOffset, size);
         target.checkBounds(targetOffset, size);
 
-        // todo consider doing blocks of some kind
-        // todo make sure that overlapping regions works
         for (long index = 0; index < size; index++) {
             target.putByte(targetOffset + index, src.getByte(srcOffset + index));
         }
     }
 
+    /**
+     * Is the region raw off-heap memory that can be accessed directly by
+     * address with Unsafe?
+     */
+    public static boolean isUnsafe(Region region)
+    {
+        return region.getAllocator() == UnsafeAllocator.INSTANCE;
+    }
+
     public static Allocation reallocateWithAllocate(Allocator allocator, Allocation allocation, long size)
     {
         if (size < 0) {
@@ -169,6 +169,74 @@ public class ByteBufferAllocation implements Allocation
         toByteBuffer().putLong((int) index, value);
     }
 
+    //
+    // A ByteBuffer has no atomic access, so the atomic operations lock the
+    // allocation.  All regions of an allocation delegate to the allocation
+    // so they share the lock.
+    //
+
+    public synchronized int getIntVolatile(long index)
+    {
+        return getInt(index);
+    }
+
+    public synchronized void putIntVolatile(long index, int value)
+    {
+        putInt(index, value);
+    }
+
+    public synchronized void putIntOrdered(long index, int value)
+    {
+        putInt(index, value);
+    }
+
+    public synchronized boolean compareAndSwapInt(long index, int expected, int value)
+    {
+        if (getInt(index) != expected) {
+            return false;
+        }
+        putInt(index, value);
+        return true;
+    }
+
+    public synchronized int getAndAddInt(long index, int delta)
+    {
+        int current = getInt(index);
+        putInt(index, current + delta);
+        return current;
+    }
+
+    public synchronized long getLongVolatile(long index)
+    {
+        return getLong(index);
+    }
+
+    public synchronized void putLongVolatile(long index, long value)
+    {
+        putLong(index, value);
+    }
+
+    public synchronized void putLongOrdered(long index, long value)
+    {
+        putLong(index, value);
+    }
+
+    public synchronized boolean compareAndSwapLong(long index, long expected, long value)
+    {
+        if (getLong(index) != expected) {
+            return false;
+        }
+        putLong(index, value);
+        return true;
+    }
+
+    public synchronized long getAndAddLong(long index, long delta)
+    {
+        long current = getLong(index);
+        putLong(index, current + delta);
+        return current;
+    }
+
     public float getFloat(long index)
     {
         return toByteBuffer().getFloat((int) index);
@@ -220,7 +288,7 @@ public class ByteBufferAllocation implements Allocation
     public void copyMemory(long srcOffset, Region target, long targetOffset, long size)
     {
         if (!(target instanceof ByteBufferAllocation)) {
-            AllocatorUtil.copyMemoryByteByByte(this, srcOffset, target, targetOffset, size);
+            AllocatorUtil.copyMemory(this, srcOffset, target, targetOffset, size);
             return;
         }
         ByteBufferAllocation targetMemory = (ByteBufferAllocation) target;
@@ -73,6 +73,48 @@ public interface Region
 
     void putDouble(long offset, double value);
 
+    //
+    // Atomic access.  The offset must be naturally aligned for the type.
+    //
+
+    int getIntVolatile(long offset);
+
+    void putIntVolatile(long offset, int value);
+
+    /**
+     * Stores the value without a store-load barrier; the store is not
+     * reordered with earlier stores (lazySet).
+     */
+    void putIntOrdered(long offset, int value);
+
+    boolean compareAndSwapInt(long offset, int expected, int value);
+
+    /**
+     * Atomically adds the delta to the int at the offset.
+     *
+     * @return the previous value
+     */
+    int getAndAddInt(long offset, int delta);
+
+    long getLongVolatile(long offset);
+
+    void putLongVolatile(long offset, long value);
+
+    /**
+     * Stores the value without a store-load barrier; the store is not
+     * reordered with earlier stores (lazySet).
+     */
+    void putLongOrdered(long offset, long value);
+
+    boolean compareAndSwapLong(long offset, long expected, long value);
+
+    /**
+     * Atomically adds the delta to the long at the offset.
+     *
+     * @return the previous value
+     */
+    long getAndAddLong(long offset, long delta);
+
     void setMemory(byte value);
 
     void setMemory(long offset, long size, byte value);
@@ -243,6 +243,76 @@ public class SubRegion implements Region
         delegate.putDouble(location, value);
     }
 
+    public int getIntVolatile(long offset)
+    {
+        checkBounds(offset, INT_SIZE);
+        long location = delegateOffset + offset;
+        return delegate.getIntVolatile(location);
+    }
+
+    public void putIntVolatile(long offset, int value)
+    {
+        checkBounds(offset, INT_SIZE);
+        long location = delegateOffset + offset;
+        delegate.putIntVolatile(location, value);
+    }
+
+    public void putIntOrdered(long offset, int value)
+    {
+        checkBounds(offset, INT_SIZE);
+        long location = delegateOffset + offset;
+        delegate.putIntOrdered(location, value);
+    }
+
+    public boolean compareAndSwapInt(long offset, int expected, int value)
+    {
+        checkBounds(offset, INT_SIZE);
+        long location = delegateOffset + offset;
+        return delegate.compareAndSwapInt(location, expected, value);
+    }
+
+    public int getAndAddInt(long offset, int delta)
+    {
+        checkBounds(offset, INT_SIZE);
+        long location = delegateOffset + offset;
+        return delegate.getAndAddInt(location, delta);
+    }
+
+    public long getLongVolatile(long offset)
+    {
+        checkBounds(offset, LONG_SIZE);
+        long location = delegateOffset + offset;
+        return delegate.getLongVolatile(location);
+    }
+
+    public void putLongVolatile(long offset, long value)
+    {
+        checkBounds(offset, LONG_SIZE);
+        long location = delegateOffset + offset;
+        delegate.putLongVolatile(location, value);
+    }
+
+    public void putLongOrdered(long offset, long value)
+    {
+        checkBounds(offset, LONG_SIZE);
+        long location = delegateOffset + offset;
+        delegate.putLongOrdered(location, value);
+    }
+
+    public boolean compareAndSwapLong(long offset, long expected, long value)
+    {
+        checkBounds(offset, LONG_SIZE);
+        long location = delegateOffset + offset;
+        return delegate.compareAndSwapLong(location, expected, value);
+    }
+
+    public long getAndAddLong(long offset, long delta)
+    {
+        checkBounds(offset, LONG_SIZE);
+        long location = delegateOffset + offset;
+        return delegate.getAndAddLong(location, delta);
+    }
+
     public void setMemory(byte value)
     {
         delegate.setMemory(delegateOffset, size, value);
@@ -270,7 +340,8 @@ public class SubRegion implements Region
     public int compareMemory(long srcOffset, Region target, long targetOffset, long size)
     {
         checkBounds(srcOffset, size);
-        return delegate.compareMemory(srcOffset, target, targetOffset, size);
+        long location = delegateOffset + srcOffset;
+        return delegate.compareMemory(location, target, targetOffset, size);
     }
 
     public boolean isInBounds(long offset, long length)
@@ -272,6 +272,84 @@ public class UnsafeAllocation implements Allocation
         unsafe.putDouble(location, value);
     }
 
+    public int getIntVolatile(long offset)
+    {
+        checkAtomic(offset, INT_SIZE);
+        long location = address + offset;
+        return unsafe.getIntVolatile(null, location);
+    }
+
+    public void putIntVolatile(long offset, int value)
+    {
+        checkAtomic(offset, INT_SIZE);
+        long location = address + offset;
+        unsafe.putIntVolatile(null, location, value);
+    }
+
+    public void putIntOrdered(long offset, int value)
+    {
+        checkAtomic(offset, INT_SIZE);
+        long location = address + offset;
+        unsafe.putOrderedInt(null, location, value);
+    }
+
+    public boolean compareAndSwapInt(long offset, int expected, int value)
+    {
+        checkAtomic(offset, INT_SIZE);
+        long location = address + offset;
+        return unsafe.compareAndSwapInt(null, location, expected, value);
+    }
+
+    public int getAndAddInt(long offset, int delta)
+    {
+        checkAtomic(offset, INT_SIZE);
+        long location = address + offset;
+        int current;
+        do {
+            current = unsafe.getIntVolatile(null, location);
+        } while (!unsafe.compareAndSwapInt(null, location, current, current + delta));
+        return current;
+    }
+
+    public long getLongVolatile(long offset)
+    {
+        checkAtomic(offset, LONG_SIZE);
+        long location = address + offset;
+        return unsafe.getLongVolatile(null, location);
+    }
+
+    public void putLongVolatile(long offset, long value)
+    {
+        checkAtomic(offset, LONG_SIZE);
+        long location = address + offset;
+        unsafe.putLongVolatile(null, location, value);
+    }
+
+    public void putLongOrdered(long offset, long value)
+    {
+        checkAtomic(offset, LONG_SIZE);
+        long location = address + offset;
+        unsafe.putOrderedLong(null, location, value);
+    }
+
+    public boolean compareAndSwapLong(long offset, long expected, long value)
+    {
+        checkAtomic(offset, LONG_SIZE);
+        long location = address + offset;
+        return unsafe.compareAndSwapLong(null, location, expected, value);
+    }
+
+    public long getAndAddLong(long offset, long delta)
+    {
+        checkAtomic(offset, LONG_SIZE);
+        long location = address + offset;
+        long current;
+        do {
+            current = unsafe.getLongVolatile(null, location);
+        } while (!unsafe.compareAndSwapLong(null, location, current, current + delta));
+        return current;
+    }
+
     public void setMemory(byte value)
     {
         checkReleased();
@@ -299,17 +377,7 @@ public class UnsafeAllocation implements Allocation
 
     public void copyMemory(long srcOffset, Region target, long targetOffset, long size)
     {
-        if (!(target instanceof UnsafeAllocation)) {
-            AllocatorUtil.copyMemoryByteByByte(this, srcOffset, target, targetOffset, size);
-            return;
-        }
-        UnsafeAllocation unsafeMemory = (UnsafeAllocation) target;
-
-        checkBounds(srcOffset, size);
-        unsafeMemory.checkBounds(targetOffset, size);
-        long location = address + srcOffset;
-        long targetLocation = unsafeMemory.address + targetOffset;
-        unsafe.copyMemory(location, targetLocation, size);
+        AllocatorUtil.copyMemory(this, srcOffset, target, targetOffset, size);
     }
 
     public int compareMemory(long srcOffset, Region target, long targetOffset, long size)
@@ -340,6 +408,16 @@ public class UnsafeAllocation implements Allocation
         }
     }
 
+    private void checkAtomic(long offset, int length)
+    {
+        if (checkBounds) {
+            checkBounds(offset, length);
+            if (((address + offset) & (length - 1)) != 0) {
+                throw new IllegalArgumentException("Atomic access is not aligned: address=" + address + ", offset=" + offset + ", length=" + length);
+            }
+        }
+    }
+
     private void checkReleased()
     {
         if (checkBounds) {
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class CasIdGeneratorTest
+{
+    public void testUniqueAcrossThreads()
+            throws Exception
+    {
+        final CasIdGenerator generator = new CasIdGenerator(0, 16);
+        final int threadCount = 4;
+        final int count = 100000;
+        final long[][] ids = new long[threadCount][count];
+
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final long[] threadIds = ids[i];
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < count; j++) {
+                        threadIds[j] = generator.next();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long[] all = new long[threadCount * count];
+        for (int i = 0; i < threadCount; i++) {
+            // ordered within a thread
+            for (int j = 1; j < count; j++) {
+                assertTrue(ids[i][j] > ids[i][j - 1]);
+            }
+            System.arraycopy(ids[i], 0, all, i * count, count);
+        }
+        Arrays.sort(all);
+        assertTrue(all[0] > 0);
+        for (int i = 1; i < all.length; i++) {
+            assertTrue(all[i] != all[i - 1], "duplicate id " + all[i]);
+        }
+        assertTrue(generator.getHighWaterMark() > all[all.length - 1]);
+    }
+
+    public void testNextAfterPreviousId()
+    {
+        CasIdGenerator generator = new CasIdGenerator(0, 16);
+        assertEquals(generator.next(), 1);
+
+        // a previous version from a newer block of another thread
+        long id = generator.next(100);
+        assertTrue(id > 100);
+        assertTrue(generator.next() > id);
+        assertEquals(generator.next(0), id + 2);
+    }
+
+    public void testRestart()
+    {
+        CasIdGenerator generator = new CasIdGenerator();
+        long lastId = 0;
+        for (int i = 0; i < 5000; i++) {
+            lastId = generator.next();
+        }
+
+        // seeded with the saved high water mark
+        CasIdGenerator restarted = new CasIdGenerator(generator.getHighWaterMark(), CasIdGenerator.DEFAULT_BLOCK_SIZE);
+        assertTrue(restarted.next() > lastId);
+
+        // seeded with the ids of the restored items
+        restarted = new CasIdGenerator();
+        restarted.observe(lastId);
+        restarted.observe(17);
+        assertEquals(restarted.next(), lastId + 1);
+    }
+}
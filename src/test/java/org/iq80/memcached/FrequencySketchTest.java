@@ -0,0 +1,79 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class FrequencySketchTest
+{
+    public void testIncrement()
+    {
+        FrequencySketch sketch = new FrequencySketch(1000);
+        assertEquals(sketch.frequency(42), 0);
+        for (int i = 1; i <= 20; i++) {
+            sketch.increment(42);
+            // counters saturate at 15
+            assertEquals(sketch.frequency(42), Math.min(i, 15));
+        }
+        assertEquals(sketch.frequency(43), 0);
+    }
+
+    public void testGrowKeepsCounts()
+    {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int key = 0; key < 20; key++) {
+            for (int i = 0; i < key % 8; i++) {
+                sketch.increment(key);
+            }
+        }
+        int[] before = new int[20];
+        for (int key = 0; key < 20; key++) {
+            before[key] = sketch.frequency(key);
+            assertTrue(before[key] >= key % 8);
+        }
+
+        sketch.ensureCapacity(4096);
+        assertEquals(sketch.getSampleSize(), 40960);
+        for (int key = 0; key < 20; key++) {
+            assertEquals(sketch.frequency(key), before[key], "key " + key);
+        }
+    }
+
+    public void testAging()
+    {
+        FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment(7);
+        }
+        assertEquals(sketch.frequency(7), 10);
+
+        // fill the sample with other keys until the counts are halved
+        int key = 1000;
+        int size;
+        do {
+            size = sketch.getSize();
+            sketch.increment(key++);
+        } while (sketch.getSize() > size);
+
+        // other keys may share some of the counters
+        assertTrue(sketch.frequency(7) >= 5 && sketch.frequency(7) < 10, "frequency " + sketch.frequency(7));
+        assertTrue(sketch.getSize() < sketch.getSampleSize() / 2);
+    }
+}
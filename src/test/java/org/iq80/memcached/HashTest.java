@@ -18,10 +18,17 @@ package org.iq80.memcached;
 import org.iq80.memcached.Hash.InternalState;
 import org.iq80.memory.Allocation;
 import org.iq80.memory.Allocator;
+import org.iq80.memory.ByteBufferAllocator;
 import org.iq80.memory.UnsafeAllocator;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
 import static org.iq80.memcached.Hash.finalMix;
 import static org.iq80.memcached.Hash.hashBigEndian;
 import static org.iq80.memcached.Hash.hashLittleEndian;
@@ -241,6 +248,192 @@ public class HashTest
 
     }
 
+    public void testHashLittleEndianHighBytes()
+    {
+        // results generated from a C program; every byte has the high bit set
+        int[] results = {
+                0xdeadbeef,
+                0x88511acc,
+                0x2994c564,
+                0x2a2d3cdd,
+
+                0xdb7f69c9,
+                0xb7f57f6b,
+                0x0c586056,
+                0xa0dad7e2,
+
+                0xb0d8ad88,
+                0x0660d881,
+                0x3fabe207,
+                0x6a3040c1,
+
+                0xa8714458,
+                0x572a68ce,
+                0x1ce80dbd,
+                0xa7674368,
+
+                0x25b45e76,
+                0x57cd4a58,
+                0xc32bb1c6,
+                0x088463ee,
+
+                0xf89ff170,
+                0x9952590c,
+                0x1caefed4,
+                0x3636ffdd,
+
+                0x5e2578f0,
+                0xcb59dc6f,
+                0x300d0cf8,
+                0x263fe11f,
+
+                0x53361d1c,
+                0xfa670b4f,
+                0xfce9b3ad,
+                0x33a8ebe2,
+        };
+
+        byte[] data = new byte[32];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (0x80 + i * 37);
+        }
+
+        Allocation unsafe = UnsafeAllocator.INSTANCE.allocate(data.length);
+        unsafe.putBytes(0, data);
+        Allocation byteBuffer = ByteBufferAllocator.INSTANCE.allocate(data.length);
+        byteBuffer.putBytes(0, data);
+
+        for (int i = 0; i < 32; i++) {
+            Assert.assertEquals(hashLittleEndian(unsafe.getRegion(0, i), 0), results[i]);
+            Assert.assertEquals(hashLittleEndian(byteBuffer.getRegion(0, i), 0), results[i]);
+            Assert.assertEquals(hashLittleEndian(data, 0, i, 0), results[i]);
+        }
+    }
+
+    public void testHashOverloadsMatchRegion()
+    {
+        Random random = new Random(42);
+        byte[] data = new byte[300];
+        random.nextBytes(data);
+
+        Allocation allocation = UnsafeAllocator.INSTANCE.allocate(data.length);
+        allocation.putBytes(0, data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+
+        for (int offset = 0; offset < 8; offset++) {
+            for (int length = 0; length < 260; length++) {
+                int expected = hashLittleEndian(allocation.getRegion(offset, length), 7);
+
+                Assert.assertEquals(hashLittleEndian(data, offset, length, 7), expected);
+                Assert.assertEquals(hashLittleEndian(Arrays.copyOfRange(data, offset, offset + length), 7), expected);
+
+                ByteBuffer heap = ByteBuffer.wrap(data, offset, length);
+                Assert.assertEquals(hashLittleEndian(heap, 7), expected);
+                Assert.assertEquals(hashLittleEndian(heap.slice(), 7), expected);
+                Assert.assertEquals(heap.position(), offset);
+
+                direct.limit(offset + length).position(offset);
+                Assert.assertEquals(hashLittleEndian(direct, 7), expected);
+                Assert.assertEquals(hashLittleEndian(direct.asReadOnlyBuffer(), 7), expected);
+
+                ChannelBuffer channelBuffer = ChannelBuffers.wrappedBuffer(data);
+                channelBuffer.setIndex(offset, offset + length);
+                Assert.assertEquals(hashLittleEndian(channelBuffer, 7), expected);
+                Assert.assertEquals(channelBuffer.readerIndex(), offset);
+                Assert.assertEquals(hashLittleEndian(channelBuffer.slice(), 7), expected);
+            }
+        }
+    }
+
+    public void testXxHash64()
+    {
+        // results generated with the reference implementation
+        long[] results = {
+                0xef46db3751d8e999L,
+                0xd24ec4f1a98c6e5bL,
+                0x65f708ca92d04a61L,
+                0x44bc2cf5ad770999L,
+
+                0xde0327b0d25d92ccL,
+                0x07e3670c0c8dc7ebL,
+                0xfa8afd82c423144dL,
+                0x1860940e2902822dL,
+
+                0x3ad351775b4634b7L,
+                0x27f1a34fdbb95e13L,
+                0xd6287a1de5498bb2L,
+                0x814e257441cf78e0L,
+
+                0x4b09b7d3a233d4b3L,
+                0x934adbc0ebc51325L,
+                0xd66d2a9c05576b14L,
+                0x2e1218a2b1375068L,
+
+                0x71ce8137ca2dd53dL,
+                0x8feff49d8f62f402L,
+                0x6fa4f734e2143ba7L,
+                0xb95bae7304a854afL,
+
+                0xfccc974985dbdc9eL,
+                0x0feb122ce2f6dbe1L,
+                0x632cfeac07d58c73L,
+                0xcf41cc59032e08aaL,
+
+                0x0bec95e34669983bL,
+                0xb190b61ba94f20d8L,
+                0xcfe1f278fa89835cL,
+                0xae89c28aaf450c35L,
+
+                0xe53821f778497181L,
+                0x730fde538c658ef5L,
+                0xd283f80c17a70688L,
+                0xf915fa740ca89807L,
+
+                0x3ad589833ae45e0cL,
+                0x862cc1804cc62cf1L,
+                0x95371293e66a6da0L,
+                0xf2d0fb2bd0608420L,
+        };
+
+        byte[] data = "abcdefghijklmnopqrstuvwxyz023456789".getBytes();
+
+        Allocation unsafe = UnsafeAllocator.INSTANCE.allocate(data.length);
+        unsafe.putBytes(0, data);
+        Allocation byteBuffer = ByteBufferAllocator.INSTANCE.allocate(data.length);
+        byteBuffer.putBytes(0, data);
+
+        for (int i = 0; i < results.length; i++) {
+            Assert.assertEquals(XxHash64.INSTANCE.hash(unsafe.getRegion(0, i)), results[i]);
+            Assert.assertEquals(XxHash64.INSTANCE.hash(byteBuffer.getRegion(0, i)), results[i]);
+            Assert.assertEquals(XxHash64.INSTANCE.hash(data, 0, i), results[i]);
+        }
+    }
+
+    public void testHashFunctionsMatchAcrossKeySources()
+    {
+        Random random = new Random(42);
+        byte[] data = new byte[300];
+        random.nextBytes(data);
+
+        Allocation allocation = UnsafeAllocator.INSTANCE.allocate(data.length);
+        allocation.putBytes(0, data);
+
+        for (HashFunction hashFunction : new HashFunction[] {XxHash64.INSTANCE, JenkinsHashFunction.INSTANCE}) {
+            for (int offset = 0; offset < 8; offset++) {
+                for (int length = 0; length < 260; length++) {
+                    Assert.assertEquals(hashFunction.hash(data, offset, length), hashFunction.hash(allocation.getRegion(offset, length)));
+                }
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IndexOutOfBoundsException.class)
+    public void testHashByteArrayBounds()
+    {
+        hashLittleEndian(new byte[10], 5, 6, 0);
+    }
+
     @Test(enabled = false)
     public void testHashBigEndian()
     {
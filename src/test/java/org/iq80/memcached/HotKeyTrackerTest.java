@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.iq80.memcached.HotKeyTracker.HotKey;
+import org.iq80.memory.Region;
+import org.iq80.memory.UnsafeAllocator;
+import org.testng.annotations.Test;
+
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class HotKeyTrackerTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public void testHeavyHittersAmongManyKeys()
+    {
+        HotKeyTracker tracker = new HotKeyTracker(100, 1);
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            // three keys are used by 10%, 5% and 2% of the requests
+            double p = random.nextDouble();
+            String key;
+            if (p < 0.10) {
+                key = "hot0";
+            }
+            else if (p < 0.15) {
+                key = "hot1";
+            }
+            else if (p < 0.17) {
+                key = "hot2";
+            }
+            else {
+                key = "cold" + random.nextInt(100000);
+            }
+            record(tracker, key);
+        }
+
+        List<HotKey> hotKeys = tracker.getHotKeys(3);
+        assertEquals(hotKeys.size(), 3);
+        for (int i = 0; i < 3; i++) {
+            HotKey hotKey = hotKeys.get(i);
+            assertEquals(hotKey.getKeyString(), "hot" + i);
+            assertTrue(hotKey.getError() < hotKey.getCount());
+            assertTrue(hotKey.getRate() > 0);
+        }
+        // every key used more than 100000 / 100 times is tracked and its count is never an underestimate
+        assertTrue(hotKeys.get(2).getCount() >= 1800);
+
+        String stats = tracker.formatStats(2);
+        assertTrue(stats.startsWith("STAT hotkey:0 hot0 "), stats);
+        assertTrue(stats.endsWith("END\r\n"), stats);
+    }
+
+    public void testSampling()
+    {
+        HotKeyTracker tracker = new HotKeyTracker(4, 8);
+        int sampled = 0;
+        for (int i = 0; i < 80000; i++) {
+            if (tracker.sample()) {
+                sampled++;
+                record(tracker, "key");
+            }
+        }
+        assertTrue(sampled > 9000 && sampled < 11000, "sampled " + sampled);
+
+        // the count is scaled by the sample rate
+        assertEquals(tracker.getHotKeys(1).get(0).getCount(), sampled * 8L);
+    }
+
+    public void testItemsRecordGets()
+    {
+        Items items = new Items(new SlabAllocator(UnsafeAllocator.INSTANCE, 0, 2.0, false, 48, 64 * 1024));
+        Region key = region("popular");
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(items.get(key), null);
+        }
+        assertEquals(items.getHotKeyTracker().getHotKeys(1).get(0).getKeyString(), "popular");
+    }
+
+    private static void record(HotKeyTracker tracker, String key)
+    {
+        Region region = region(key);
+        tracker.record((int) XxHash64.INSTANCE.hash(region), region);
+    }
+
+    private static Region region(String key)
+    {
+        byte[] bytes = key.getBytes(UTF8);
+        Region region = UnsafeAllocator.INSTANCE.allocate(bytes.length);
+        region.putBytes(0, bytes);
+        return region;
+    }
+}
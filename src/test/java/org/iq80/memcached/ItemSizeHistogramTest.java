@@ -0,0 +1,113 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.iq80.memory.UnsafeAllocator;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class ItemSizeHistogramTest
+{
+    public void testBuckets()
+    {
+        ItemSizeHistogram histogram = new ItemSizeHistogram(1024);
+        histogram.added(1);
+        histogram.added(32);
+        histogram.added(33);
+        histogram.added(5000);
+        assertEquals(histogram.getItemCount(1), 2);
+        assertEquals(histogram.getItemCount(2), 1);
+
+        // items larger than the max item size are counted in the last bucket
+        assertEquals(histogram.getItemCount(histogram.getBucketCount() - 1), 1);
+
+        histogram.removed(32);
+        assertEquals(histogram.formatStats(), "STAT 32 1\r\nSTAT 64 1\r\nSTAT 1024 1\r\nEND\r\n");
+    }
+
+    public void testOptimizeSharpPeaks()
+    {
+        ItemSizeHistogram histogram = new ItemSizeHistogram(1024 * 1024);
+        for (int i = 0; i < 1000; i++) {
+            histogram.added(100);
+            histogram.added(1000);
+            histogram.added(5000);
+        }
+        histogram.added(300);
+
+        // the single odd sized item is cheaper to waste than a peak
+        int[] optimized = histogram.optimizeChunkSizes(3);
+        assertEquals(Arrays.toString(optimized), Arrays.toString(new int[] {128, 1024, 5024}));
+        assertEquals(histogram.estimateWaste(optimized), 1024 - 320);
+
+        // with enough classes every size gets its own class
+        optimized = histogram.optimizeChunkSizes(10);
+        assertEquals(Arrays.toString(optimized), Arrays.toString(new int[] {128, 320, 1024, 5024}));
+        assertEquals(histogram.estimateWaste(optimized), 0);
+
+        int[] geometric = new SlabAllocator(UnsafeAllocator.INSTANCE, 0, 1.25, false, 48, 1024 * 1024).getChunkSizes();
+        assertTrue(histogram.estimateWaste(histogram.optimizeChunkSizes(4)) < histogram.estimateWaste(geometric));
+    }
+
+    public void testOptimizeManySizes()
+    {
+        ItemSizeHistogram histogram = new ItemSizeHistogram(1024 * 1024);
+        for (int size = 1; size < 1024 * 1024; size += 97) {
+            histogram.added(size);
+        }
+        int[] optimized = histogram.optimizeChunkSizes(40);
+        assertEquals(optimized.length, 40);
+        assertTrue(optimized[39] >= 1024 * 1024 - 97, Arrays.toString(optimized));
+        for (int i = 1; i < optimized.length; i++) {
+            assertTrue(optimized[i] > optimized[i - 1]);
+        }
+    }
+
+    public void testItemsTrackSizes()
+    {
+        SlabAllocator slabAllocator = new SlabAllocator(UnsafeAllocator.INSTANCE, 0, new int[] {128, 256, 1024}, false, 64 * 1024, 0);
+        assertEquals(Arrays.toString(slabAllocator.getChunkSizes()), Arrays.toString(new int[] {128, 256, 1024, 64 * 1024}));
+
+        Items items = new Items(slabAllocator);
+        Item[] stored = new Item[100];
+        for (int i = 0; i < stored.length; i++) {
+            stored[i] = items.allocateItem(("key" + i).getBytes(), 0, 0, i * 5);
+            items.insert(stored[i]);
+        }
+        ItemSizeHistogram histogram = items.getSizeHistogram();
+        assertEquals(countItems(histogram), 100);
+
+        for (Item item : stored) {
+            items.remove(item);
+            items.release(item);
+        }
+        assertEquals(countItems(histogram), 0);
+    }
+
+    private static long countItems(ItemSizeHistogram histogram)
+    {
+        long count = 0;
+        for (int bucket = 0; bucket < histogram.getBucketCount(); bucket++) {
+            count += histogram.getItemCount(bucket);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,855 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.iq80.memory.Region;
+import org.iq80.memory.UnsafeAllocator;
+import org.testng.annotations.Test;
+
+import java.nio.charset.Charset;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class ItemsTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public void testCompactLayoutIsSmaller()
+    {
+        SlabAllocator slabAllocator = createSlabAllocator(0, false);
+        ItemLayout wide = ItemLayout.wide(slabAllocator);
+        ItemLayout compact = ItemLayout.compact(slabAllocator, slabAllocator.getPageTable());
+
+        assertEquals(wide.getFixedSize(), ItemLayout.WIDE_FIXED_SIZE);
+        assertEquals(wide.getFixedSize() - compact.getFixedSize(), 8);
+        assertTrue(compact.calculateTotalSize(10, 8, 100, true) < wide.calculateTotalSize(10, 8, 100, true));
+
+        // the slab classes are sized for the header of the layout
+        SlabAllocator compactAllocator = new SlabAllocator(UnsafeAllocator.INSTANCE, 0, 1.25, false, 48, 64 * 1024, 0, false, ItemLayout.fixedSize(true, false));
+        assertEquals(compactAllocator.getChunkSizes()[0], compact.getFixedSize() + 48);
+        assertEquals(slabAllocator.getChunkSizes()[0], 128);
+    }
+
+    public void testKeysAreWordAligned()
+    {
+        for (boolean compact : new boolean[] {false, true}) {
+            Items items = new Items(createSlabAllocator(0, false), compact);
+            for (int i = 0; i < 100; i++) {
+                Item item = items.allocateItem(bytes("key" + i), 0, 0, 2 + i);
+                assertEquals(item.getKey().getAddress() % 8, 0);
+                items.release(item);
+            }
+        }
+    }
+
+    public void testPageTableHandles()
+    {
+        SlabPageTable pageTable = new SlabPageTable(100);
+        pageTable.addPage(10000, 64, 100);
+        pageTable.addPage(1000, 32, 100);
+
+        assertEquals(pageTable.getHandle(0), 0);
+        assertEquals(pageTable.getAddress(0), 0);
+        for (int chunk = 0; chunk < 100; chunk++) {
+            long address = 10000 + chunk * 64;
+            int handle = pageTable.getHandle(address);
+            assertTrue(handle != 0);
+            assertEquals(pageTable.getAddress(handle), address);
+
+            address = 1000 + chunk * 32;
+            handle = pageTable.getHandle(address);
+            assertEquals(pageTable.getAddress(handle), address);
+        }
+        assertEquals(pageTable.getPageIndex(999), 0);
+        assertEquals(pageTable.getPageIndex(1000 + 3200), 0);
+        assertEquals(pageTable.getPageIndex(10000 + 6400), 0);
+
+        // a removed page no longer resolves and its index is reused
+        int pageIndex = pageTable.getPageIndex(1000);
+        pageTable.removePage(1000);
+        assertEquals(pageTable.getPageIndex(1000), 0);
+        assertEquals(pageTable.getPageCount(), 1);
+        assertEquals(pageTable.addPage(50000, 16, 100), pageIndex);
+        assertEquals(pageTable.getAddress(pageTable.getHandle(50000 + 16 * 7)), 50000 + 16 * 7);
+        assertEquals(pageTable.getAddress(pageTable.getHandle(10000 + 64 * 7)), 10000 + 64 * 7);
+    }
+
+    public void testPageTableRejectsPagesPastHandleRange()
+    {
+        // 30 chunk bits leave page indexes 1 to 3
+        SlabPageTable pageTable = new SlabPageTable(1 << 30);
+        assertEquals(pageTable.addPage(1000, 8, 10), 1);
+        assertEquals(pageTable.addPage(2000, 8, 10), 2);
+        assertEquals(pageTable.addPage(3000, 8, 10), 3);
+        assertEquals(pageTable.addPage(4000, 8, 10), 0);
+        assertEquals(pageTable.getPageIndex(4000), 0);
+        assertEquals(pageTable.getPageCount(), 3);
+
+        // a removed page frees its index
+        pageTable.removePage(2000);
+        assertEquals(pageTable.addPage(4000, 8, 10), 2);
+        assertEquals(pageTable.getAddress(pageTable.getHandle(4000 + 8 * 9)), 4000 + 8 * 9);
+    }
+
+    public void testPageTableGrowth()
+    {
+        // pages added out of address order past the initial capacity
+        SlabPageTable pageTable = new SlabPageTable(100);
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            int page = (i * 7) % count;
+            pageTable.addPage(10000 + page * 1000L, 8, 100);
+        }
+        assertEquals(pageTable.getPageCount(), count);
+
+        // remove every other page and add them back
+        for (int page = 0; page < count; page += 2) {
+            pageTable.removePage(10000 + page * 1000L);
+        }
+        assertEquals(pageTable.getPageCount(), count / 2);
+        assertEquals(pageTable.getPageIndex(10000), 0);
+        for (int page = 0; page < count; page += 2) {
+            pageTable.addPage(10000 + page * 1000L, 8, 100);
+        }
+        assertEquals(pageTable.getPageCount(), count);
+
+        for (int page = 0; page < count; page++) {
+            long address = 10000 + page * 1000L + 8 * 99;
+            assertEquals(pageTable.getAddress(pageTable.getHandle(address)), address);
+        }
+        assertEquals(pageTable.getPageIndex(10000 + count * 1000L), 0);
+    }
+
+    public void testWideLayout()
+    {
+        assertInsertGetRemove(false);
+    }
+
+    public void testCompactLayout()
+    {
+        assertInsertGetRemove(true);
+    }
+
+    public void testJenkinsHash()
+    {
+        assertInsertGetRemove(new Items(createSlabAllocator(0, false), false, JenkinsHashFunction.INSTANCE));
+    }
+
+    public void testWideEviction()
+    {
+        assertEviction(false);
+    }
+
+    public void testCompactEviction()
+    {
+        assertEviction(true);
+    }
+
+    public void testUncheckedLayouts()
+    {
+        for (boolean compact : new boolean[] {false, true}) {
+            SlabAllocator slabAllocator = createSlabAllocator(0, false);
+            ItemLayout layout = ItemLayout.create(slabAllocator, slabAllocator.getPageTable(), compact, true);
+            Items items = new Items(slabAllocator, layout, XxHash64.INSTANCE);
+            assertInsertGetRemove(items);
+            assertTrue(items.getLayout().isUnchecked());
+        }
+    }
+
+    public void testUncheckedEvictionAndExpiryReuse()
+    {
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            padding.append('x');
+        }
+        for (int mode = 0; mode < 3; mode++) {
+            SlabAllocator slabAllocator = createSlabAllocator(2 * 1024 * 1024, true);
+            ItemLayout layout = ItemLayout.create(slabAllocator, slabAllocator.getPageTable(), mode == 1, true, mode == 2);
+            Items items = new Items(slabAllocator, layout, XxHash64.INSTANCE);
+            items.setClock(new ServerClock());
+            items.setCurrentTime(100);
+
+            // the chunks of expired items are reused
+            for (int i = 0; i < 1000; i++) {
+                store(items, "old" + i, padding + "old" + i, 200);
+            }
+            items.setCurrentTime(300);
+            for (int i = 0; i < 1000; i++) {
+                store(items, "new" + i, padding + "new" + i);
+            }
+            assertNull(items.get(key("old0")));
+
+            // the chunks of evicted items are reused
+            int count = 50000;
+            for (int i = 0; i < count; i++) {
+                store(items, "key" + i, padding + "key" + i);
+            }
+            Item item = items.get(key("key" + (count - 1)));
+            assertNotNull(item);
+            assertEquals(value(item), padding + "key" + (count - 1));
+            assertTrue(item.getSlabId() > 0);
+            assertTrue(items.getSlabClassStats(item.getSlabId()).getEvicted() > 0);
+            items.release(item);
+        }
+    }
+
+    public void testClockLayoutIsSmaller()
+    {
+        SlabAllocator slabAllocator = createSlabAllocator(0, false);
+        assertEquals(ItemLayout.wide(slabAllocator).getFixedSize() - ItemLayout.forSlabAllocator(slabAllocator, false, true).getFixedSize(), 16);
+        assertEquals(ItemLayout.compact(slabAllocator, slabAllocator.getPageTable()).getFixedSize() - ItemLayout.forSlabAllocator(slabAllocator, true, true).getFixedSize(), 8);
+    }
+
+    public void testClockLayouts()
+    {
+        for (boolean compact : new boolean[] {false, true}) {
+            SlabAllocator slabAllocator = createSlabAllocator(0, false);
+            Items items = new Items(slabAllocator, ItemLayout.forSlabAllocator(slabAllocator, compact, true), XxHash64.INSTANCE);
+            assertInsertGetRemove(items);
+        }
+    }
+
+    public void testClockEviction()
+    {
+        for (boolean compact : new boolean[] {false, true}) {
+            SlabAllocator slabAllocator = createSlabAllocator(2 * 1024 * 1024, true);
+            Items items = new Items(slabAllocator, ItemLayout.forSlabAllocator(slabAllocator, compact, true), XxHash64.INSTANCE);
+            store(items, "hot", "value");
+
+            int count = 50000;
+            for (int i = 0; i < count; i++) {
+                store(items, "key" + i, "value" + i);
+
+                // the referenced item gets a second chance every time the hand passes
+                Item item = items.get(key("hot"));
+                assertNotNull(item, "hot");
+                items.touch(item);
+                items.release(item);
+            }
+
+            Item item = items.get(key("key" + (count - 1)));
+            assertNotNull(item);
+            assertEquals(value(item), "value" + (count - 1));
+            items.release(item);
+
+            assertNull(items.get(key("key0")));
+            assertTrue(items.getSlabClassStats(item.getSlabId()).getEvicted() > 0);
+        }
+    }
+
+    public void testClockFindsExpiredItemsPastTheHand()
+    {
+        for (boolean compact : new boolean[] {false, true}) {
+            SlabAllocator slabAllocator = createSlabAllocator(2 * 1024 * 1024, true);
+            Items items = new Items(slabAllocator, ItemLayout.forSlabAllocator(slabAllocator, compact, true), XxHash64.INSTANCE);
+            items.setClock(new ServerClock());
+
+            // a few items that are kept, then fill the class with items that expire
+            for (int i = 0; i < 20; i++) {
+                store(items, "keep" + i, "value" + i);
+                Item item = items.get(key("keep" + i));
+                items.touch(item);
+                items.release(item);
+            }
+            Item keep = items.get(key("keep0"));
+            SlabClassStats stats = items.getSlabClassStats(keep.getSlabId());
+            items.release(keep);
+            for (int i = 0; stats.getEvicted() == 0; i++) {
+                store(items, "key" + i, "value" + i, 100);
+            }
+            long evicted = stats.getEvicted();
+
+            // the expired items are reused one window after another
+            items.setCurrentTime(200);
+            for (int i = 0; i < 1000; i++) {
+                store(items, "new" + i, "value" + i);
+            }
+            assertEquals(stats.getEvicted(), evicted);
+            for (int i = 0; i < 20; i++) {
+                Item item = items.get(key("keep" + i));
+                assertNotNull(item, "keep" + i);
+                items.release(item);
+            }
+        }
+    }
+
+    public void testTinyLfu()
+    {
+        SlabAllocator slabAllocator = createSlabAllocator(0, false);
+        assertInsertGetRemove(new Items(slabAllocator, ItemLayout.forSlabAllocator(slabAllocator, false), XxHash64.INSTANCE, true));
+    }
+
+    public void testTinyLfuKeepsFrequentItems()
+    {
+        SlabAllocator slabAllocator = createSlabAllocator(2 * 1024 * 1024, true);
+        Items items = new Items(slabAllocator, ItemLayout.forSlabAllocator(slabAllocator, false), XxHash64.INSTANCE, true);
+
+        int hotCount = 200;
+        for (int i = 0; i < hotCount; i++) {
+            store(items, "hot" + i, "value" + i);
+        }
+
+        // a scan of keys that are written once and never read
+        int count = 50000;
+        for (int i = 0; i < count; i++) {
+            store(items, "key" + i, "value" + i);
+
+            Item item = items.get(key("hot" + (i % hotCount)));
+            assertNotNull(item, "hot" + (i % hotCount));
+            items.touch(item);
+            items.release(item);
+        }
+
+        // the newest key is still in the admission window
+        Item item = items.get(key("key" + (count - 1)));
+        assertNotNull(item);
+        items.release(item);
+        assertTrue(items.getSlabClassStats(item.getSlabId()).getEvicted() > 0);
+    }
+
+    public void testShrinkMemoryLimit()
+    {
+        for (boolean compact : new boolean[] {false, true}) {
+            for (boolean prealloc : new boolean[] {false, true}) {
+                long maxMemory = 4 * 1024 * 1024;
+                SlabAllocator slabAllocator = new SlabAllocator(UnsafeAllocator.INSTANCE, maxMemory, 2.0, prealloc, 48, 64 * 1024, 0, prealloc);
+                Items items = new Items(slabAllocator, compact);
+                for (int i = 0; i < 30000; i++) {
+                    store(items, "key" + i, "value" + i);
+                }
+                assertTrue(slabAllocator.getAllocatedBytes() > maxMemory / 2);
+
+                // shrinking releases whole slabs
+                int pages = slabAllocator.getPageTable().getPageCount();
+                assertTrue(items.setMemoryLimit(maxMemory / 4));
+                assertTrue(slabAllocator.getAllocatedBytes() <= maxMemory / 4);
+                assertTrue(slabAllocator.getPageTable().getPageCount() < pages);
+
+                // the cache keeps working within the new limit
+                for (int i = 0; i < 10000; i++) {
+                    store(items, "new" + i, "value" + i);
+                }
+                assertTrue(slabAllocator.getAllocatedBytes() <= maxMemory / 4);
+                Item item = items.get(key("new9999"));
+                assertNotNull(item);
+                assertEquals(value(item), "value9999");
+                items.release(item);
+
+                // growing the limit lets the cache allocate again
+                items.setMemoryLimit(maxMemory);
+                for (int i = 0; i < 30000; i++) {
+                    store(items, "more" + i, "value" + i);
+                }
+                assertTrue(slabAllocator.getAllocatedBytes() > maxMemory / 2);
+            }
+        }
+    }
+
+    public void testShrinkKeepsSlabsWithReferencedItems()
+    {
+        SlabAllocator slabAllocator = createSlabAllocator(0, false);
+        Items items = new Items(slabAllocator);
+        for (int i = 0; i < 1500; i++) {
+            store(items, "key" + i, "value" + i);
+        }
+        Item referenced = items.get(key("key0"));
+        SlabManager slabManager = slabAllocator.getSlabManager(referenced.getSlabId());
+        assertEquals(slabManager.getSlabCount(), 3);
+
+        // the slab holding the referenced item can not be released, so its
+        // other items are not evicted
+        assertFalse(items.setMemoryLimit(1));
+        assertEquals(slabManager.getSlabCount(), 1);
+        int present = 0;
+        for (int i = 0; i < 1500; i++) {
+            Item item = items.get(key("key" + i));
+            if (item != null) {
+                present++;
+                items.release(item);
+            }
+        }
+        assertEquals(present, slabManager.getChunksPerSlab());
+        items.release(referenced);
+    }
+
+    public void testDefragment()
+    {
+        for (int mode = 0; mode < 4; mode++) {
+            SlabAllocator slabAllocator = createSlabAllocator(0, false);
+            boolean compact = mode == 1;
+            boolean clock = mode == 2;
+            Items items = new Items(slabAllocator, ItemLayout.forSlabAllocator(slabAllocator, compact, clock), XxHash64.INSTANCE, mode == 3);
+
+            int count = 10000;
+            for (int i = 0; i < count; i++) {
+                store(items, "key" + i, "value" + i);
+            }
+            // leave one item in ten
+            for (int i = 0; i < count; i++) {
+                if (i % 10 != 0) {
+                    Item item = items.get(key("key" + i));
+                    items.remove(item);
+                    items.release(item);
+                }
+            }
+
+            int slabId = slabAllocator.selectSlabManager(items.getLayout().calculateTotalSize(8, 8, 10, true)).getId();
+            int slabs = slabAllocator.getSlabManager(slabId).getSlabCount();
+            SlabDefragmenter defragmenter = new SlabDefragmenter(items, 0.5, 1000);
+            defragmenter.run();
+            assertTrue(defragmenter.getReleasedSlabs() > slabs / 2, "released " + defragmenter.getReleasedSlabs() + " of " + slabs);
+            assertEquals(slabAllocator.getSlabManager(slabId).getSlabCount(), slabs - defragmenter.getReleasedSlabs());
+
+            // the moved items are still in the hash table and the eviction policy
+            for (int i = 0; i < count; i += 10) {
+                Item item = items.get(key("key" + i));
+                assertNotNull(item, "key" + i);
+                assertEquals(value(item), "value" + i);
+                items.touch(item);
+                items.remove(item);
+                items.release(item);
+            }
+            assertEquals(items.getSlabClassStats(slabId).getCurrentItems(), 0);
+            assertInsertGetRemove(items);
+        }
+    }
+
+    public void testReclaimExpired()
+    {
+        for (boolean compact : new boolean[] {false, true}) {
+            SlabAllocator slabAllocator = createSlabAllocator(0, false);
+            Items items = new Items(slabAllocator, compact);
+            items.setClock(new ServerClock());
+            items.setCurrentTime(100);
+
+            // a bulk load with the same ttl and a few keys that live longer
+            int count = 10000;
+            for (int i = 0; i < count; i++) {
+                store(items, "key" + i, "value" + i, i % 100 == 0 ? 2000 : 400);
+            }
+            store(items, "forever", "value", 0);
+            int slabId = slabAllocator.selectSlabManager(items.getLayout().calculateTotalSize(7, 8, 10, true)).getId();
+            assertEquals(items.getSlabClassStats(slabId).getCurrentItems(), count + 1);
+
+            // deleted and replaced items leave the wheel
+            for (String key : new String[] {"key1", "key2"}) {
+                Item deleted = items.get(key(key));
+                items.remove(deleted);
+                items.release(deleted);
+            }
+            store(items, "key2", "value2", 0);
+            assertEquals(items.getExpirationCount(), count - 2);
+
+            // nothing has expired yet
+            items.setCurrentTime(399);
+            assertEquals(items.reclaimExpired(Integer.MAX_VALUE), 0);
+
+            // the reaper removes the expired items in batches
+            items.setCurrentTime(400);
+            ExpirationReaper reaper = new ExpirationReaper(items, 1000);
+            for (int i = 0; i < 20; i++) {
+                reaper.run();
+            }
+            assertEquals(reaper.getReclaimedItems(), count - count / 100 - 2);
+            assertEquals(items.getSlabClassStats(slabId).getCurrentItems(), count / 100 + 2);
+            assertNull(items.peek(key("key3")));
+
+            Item item = items.get(key("key2"));
+            assertNotNull(item);
+            items.release(item);
+            item = items.get(key("key100"));
+            assertNotNull(item);
+            items.release(item);
+
+            // a long jump in time reclaims the rest
+            items.setCurrentTime(5000);
+            assertEquals(items.reclaimExpired(Integer.MAX_VALUE), count / 100);
+            assertEquals(items.getSlabClassStats(slabId).getCurrentItems(), 2);
+            assertNull(items.peek(key("key100")));
+            assertEquals(items.getExpirationCount(), 0);
+        }
+    }
+
+    public void testDefaultClockFollowsWallTime()
+            throws InterruptedException
+    {
+        Items items = new Items(createSlabAllocator(0, false));
+        assertTrue(items.getClock().isRunning());
+
+        int exptime = items.getCurrentTime() + 1;
+        store(items, "key", "value", exptime);
+        Item item = items.get(key("key"));
+        assertNotNull(item);
+        items.release(item);
+
+        // wait for the clock to pass the expiration time
+        long deadline = System.currentTimeMillis() + 10000;
+        while (items.getCurrentTime() < exptime && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertNull(items.get(key("key")));
+    }
+
+    public void testExpirationWheelOnlyHoldsLinkedItems()
+    {
+        for (int mode = 0; mode < 3; mode++) {
+            SlabAllocator slabAllocator = createSlabAllocator(1024 * 1024, false);
+            Items items = new Items(slabAllocator, ItemLayout.forSlabAllocator(slabAllocator, mode == 1, mode == 2), XxHash64.INSTANCE);
+            items.setClock(new ServerClock());
+            items.setCurrentTime(100);
+
+            for (int i = 0; i < 100; i++) {
+                store(items, "key" + i, "value" + i, 1000);
+            }
+            assertEquals(items.getExpirationCount(), 100);
+
+            // replacing with a new ttl keeps one entry, replacing without a
+            // ttl or deleting drops it
+            for (int i = 0; i < 75; i++) {
+                replace(items, "key" + i, "new" + i, i < 50 ? 2000 : 0);
+            }
+            assertEquals(items.getExpirationCount(), 75);
+            for (int i = 75; i < 100; i++) {
+                Item item = items.get(key("key" + i));
+                items.remove(item);
+                items.release(item);
+            }
+            assertEquals(items.getExpirationCount(), 50);
+
+            // evicted items leave the wheel
+            for (int i = 0; i < 20000; i++) {
+                store(items, "more" + i, "value" + i, 3000);
+            }
+            long linked = 0;
+            for (int slabId = 0; slabId < slabAllocator.getSlabManagers().size(); slabId++) {
+                linked += items.getSlabClassStats(slabId).getCurrentItems();
+            }
+            assertTrue(linked < 20000);
+            for (int i = 50; i < 75; i++) {
+                Item item = items.peek(key("key" + i));
+                if (item != null) {
+                    linked--;
+                    items.release(item);
+                }
+            }
+            assertEquals(items.getExpirationCount(), linked);
+
+            items.setCurrentTime(5000);
+            assertEquals(items.reclaimExpired(Integer.MAX_VALUE), linked);
+            assertEquals(items.getExpirationCount(), 0);
+        }
+    }
+
+    public void testIncrDecr()
+    {
+        Items items = new Items(createSlabAllocator(0, false));
+        long[] value = new long[1];
+
+        // changes that fit are made in place
+        store(items, "count", "10");
+        Item item = items.get(key("count"));
+        long cas = item.getCas();
+        assertEquals(items.addDelta(item, true, 5, value), DeltaResult.OK);
+        assertEquals(value[0], 15);
+        assertEquals(value(item), "15");
+        assertTrue(item.getCas() > cas);
+        assertEquals(items.addDelta(item, false, 20, value), DeltaResult.OK);
+        assertEquals(value[0], 0);
+        assertEquals(value(item), "0 ");
+        assertEquals(items.addDelta(item, true, 99, value), DeltaResult.OK);
+        assertEquals(value(item), "99");
+        items.release(item);
+
+        // another digit needs a new item
+        item = items.get(key("count"));
+        assertEquals(items.addDelta(item, true, 1, value), DeltaResult.OK);
+        items.release(item);
+        Item grown = items.get(key("count"));
+        assertTrue(grown.getAddress() != item.getAddress());
+        assertEquals(value(grown), "100");
+        assertTrue(grown.getCas() > item.getCas());
+        items.release(grown);
+
+        // increments wrap around at 2^64
+        store(items, "max", "18446744073709551615");
+        item = items.get(key("max"));
+        assertEquals(items.addDelta(item, true, 2, value), DeltaResult.OK);
+        assertEquals(value[0], 1);
+        assertEquals(value(item), "1                   ");
+        items.release(item);
+
+        store(items, "text", "12a");
+        item = items.get(key("text"));
+        assertEquals(items.addDelta(item, true, 1, value), DeltaResult.NON_NUMERIC);
+        assertEquals(value(item), "12a");
+        items.release(item);
+
+        store(items, "big", "18446744073709551616");
+        item = items.get(key("big"));
+        assertEquals(items.addDelta(item, true, 1, value), DeltaResult.NON_NUMERIC);
+        items.release(item);
+    }
+
+    public void testCounter()
+    {
+        Items items = new Items(createSlabAllocator(0, false));
+        long[] value = new long[1];
+
+        Item item = items.allocateCounter(bytes("hits"), 7, 0, 5);
+        items.insert(item);
+        items.release(item);
+
+        item = items.get(key("hits"));
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(items.addDelta(item, true, 1, value), DeltaResult.OK);
+        }
+        assertEquals(value[0], 1005);
+        items.release(item);
+
+        // the counter never moves and is rendered as text on read
+        Item counter = items.get(key("hits"));
+        assertEquals(counter.getAddress(), item.getAddress());
+        assertTrue(counter.isCounter());
+        assertEquals(new String(counter.formatValue(), UTF8), "1005\r\n");
+        assertEquals(new String(counter.formatSuffix(), UTF8), " 7 4\r\n");
+
+        assertEquals(items.addDelta(counter, false, 2000, value), DeltaResult.OK);
+        assertEquals(new String(counter.formatValue(), UTF8), "0\r\n");
+        assertEquals(items.addDelta(counter, false, 1, value), DeltaResult.OK);
+        assertEquals(items.addDelta(counter, true, -1, value), DeltaResult.OK);
+        assertEquals(new String(counter.formatValue(), UTF8), "18446744073709551615\r\n");
+        items.release(counter);
+
+        // a reused chunk is not a counter
+        items.remove(counter);
+        store(items, "plain", "1");
+        item = items.get(key("plain"));
+        assertEquals(item.getAddress(), counter.getAddress());
+        assertFalse(item.isCounter());
+        assertEquals(new String(item.formatSuffix(), UTF8), " 0 1\r\n");
+        items.release(item);
+    }
+
+    public void testAppendPrepend()
+    {
+        for (boolean compact : new boolean[] {false, true}) {
+            Items items = new Items(createSlabAllocator(0, false), compact);
+            store(items, "list", "m");
+            StringBuilder expected = new StringBuilder("m");
+
+            int inPlace = 0;
+            int moved = 0;
+            for (int i = 0; i < 300; i++) {
+                Item item = items.get(key("list"));
+                long address = item.getAddress();
+                long cas = item.getCas();
+                boolean append = i % 3 != 0;
+                String data = String.valueOf((char) ('a' + i % 26));
+                assertTrue(items.concatenate(item, bytes(data), append));
+                items.release(item);
+                if (append) {
+                    expected.append(data);
+                }
+                else {
+                    expected.insert(0, data);
+                }
+
+                item = items.get(key("list"));
+                assertEquals(value(item), expected.toString());
+                assertEquals(new String(item.formatSuffix(), UTF8), " 0 " + expected.length() + "\r\n");
+                assertTrue(item.getCas() > cas);
+                if (item.getAddress() == address) {
+                    inPlace++;
+                }
+                else {
+                    moved++;
+                }
+
+                // the stats follow the size of the item
+                SlabClassStats stats = items.getSlabClassStats(item.getSlabId());
+                assertEquals(stats.getCurrentItems(), 1);
+                assertEquals(stats.getCurrentBytes(), item.getTotalSize());
+                items.release(item);
+            }
+            assertTrue(moved > 0);
+            assertTrue(inPlace > moved * 10, inPlace + " in place and " + moved + " moved");
+
+            // a reader of the old value keeps seeing it
+            Item reader = items.get(key("list"));
+            Item writer = items.get(key("list"));
+            assertTrue(items.concatenate(writer, bytes("z"), true));
+            items.release(writer);
+            assertEquals(value(reader), expected.toString());
+            items.release(reader);
+            Item item = items.get(key("list"));
+            assertEquals(value(item), expected + "z");
+            items.release(item);
+
+            // a counter becomes text
+            item = items.allocateCounter(bytes("counter"), 3, 0, 42);
+            items.insert(item);
+            assertTrue(items.concatenate(item, bytes("1"), true));
+            items.release(item);
+            item = items.get(key("counter"));
+            assertFalse(item.isCounter());
+            assertEquals(value(item), "421");
+            assertEquals(new String(item.formatSuffix(), UTF8), " 3 3\r\n");
+            items.release(item);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testUncheckedCastVerifiesAddress()
+    {
+        SlabAllocator slabAllocator = createSlabAllocator(0, false);
+        ItemLayout layout = ItemLayout.create(slabAllocator, slabAllocator.getPageTable(), false, true);
+        Item item = new Items(slabAllocator, layout, XxHash64.INSTANCE).allocateItem(bytes("key"), 0, 0, 10);
+
+        // one byte into the chunk is not an item; the tests run with
+        // assertions enabled, which turns on the address check
+        Item.cast(layout, item.getAddress() + 1);
+    }
+
+    private void assertInsertGetRemove(boolean compact)
+    {
+        Items items = new Items(createSlabAllocator(0, false), compact);
+        assertEquals(items.getLayout().isCompact(), compact);
+        assertInsertGetRemove(items);
+    }
+
+    private void assertInsertGetRemove(Items items)
+    {
+
+        for (int i = 0; i < 1000; i++) {
+            store(items, "key" + i, "value" + i);
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            Item item = items.get(key("key" + i));
+            assertNotNull(item, "key" + i);
+            assertEquals(value(item), "value" + i);
+            items.release(item);
+        }
+        assertNull(items.get(key("missing")));
+
+        // replace an existing item
+        Item oldItem = items.get(key("key7"));
+        Item newItem = items.allocateItem(bytes("key7"), 0, 0, "changed".length() + 2);
+        newItem.getValue().putBytes(0, bytes("changed\r\n"));
+        items.replace(oldItem, newItem);
+        items.release(oldItem);
+        items.release(newItem);
+
+        Item item = items.get(key("key7"));
+        assertEquals(value(item), "changed");
+        items.release(item);
+
+        // remove every other item
+        for (int i = 0; i < 1000; i += 2) {
+            item = items.get(key("key" + i));
+            items.remove(item);
+            items.release(item);
+        }
+        for (int i = 0; i < 1000; i++) {
+            item = items.get(key("key" + i));
+            if (i % 2 == 0) {
+                assertNull(item, "key" + i);
+            }
+            else {
+                assertNotNull(item, "key" + i);
+                items.release(item);
+            }
+        }
+    }
+
+    private void assertEviction(boolean compact)
+    {
+        Items items = new Items(createSlabAllocator(2 * 1024 * 1024, true), compact);
+
+        // write far more data than the cache can hold
+        int count = 50000;
+        for (int i = 0; i < count; i++) {
+            store(items, "key" + i, "value" + i);
+        }
+
+        // the most recent items are still present and the oldest were evicted
+        Item item = items.get(key("key" + (count - 1)));
+        assertNotNull(item);
+        assertEquals(value(item), "value" + (count - 1));
+        items.release(item);
+
+        assertNull(items.get(key("key0")));
+    }
+
+    private static SlabAllocator createSlabAllocator(long maxMemory, boolean prealloc)
+    {
+        return new SlabAllocator(UnsafeAllocator.INSTANCE, maxMemory, 2.0, prealloc, 48, 64 * 1024);
+    }
+
+    private static void store(Items items, String key, String value)
+    {
+        store(items, key, value, 0);
+    }
+
+    private static void store(Items items, String key, String value, int exptime)
+    {
+        byte[] data = bytes(value + "\r\n");
+        Item item = items.allocateItem(bytes(key), 0, exptime, data.length);
+        assertNotNull(item);
+        item.getValue().putBytes(0, data);
+        items.insert(item);
+        assertTrue(item.isLinked());
+        items.release(item);
+        assertFalse(item.isSlabbed());
+    }
+
+    private static void replace(Items items, String key, String value, int exptime)
+    {
+        Item oldItem = items.get(key(key));
+        assertNotNull(oldItem);
+        byte[] data = bytes(value + "\r\n");
+        Item item = items.allocateItem(bytes(key), 0, exptime, data.length);
+        assertNotNull(item);
+        item.getValue().putBytes(0, data);
+        items.replace(oldItem, item);
+        items.release(oldItem);
+        items.release(item);
+    }
+
+    private static Region key(String key)
+    {
+        byte[] bytes = bytes(key);
+        Region region = UnsafeAllocator.INSTANCE.allocate(bytes.length);
+        region.putBytes(0, bytes);
+        return region;
+    }
+
+    private static String value(Item item)
+    {
+        Region value = item.getValue();
+        return new String(value.getBytes(0, (int) value.size() - 2), UTF8);
+    }
+
+    private static byte[] bytes(String value)
+    {
+        return value.getBytes(UTF8);
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.iq80.memory.Region;
+import org.iq80.memory.UnsafeAllocator;
+import org.testng.annotations.Test;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class ShardedCacheTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public void testKeysAreSpreadOverShards()
+    {
+        for (HashFunction hashFunction : new HashFunction[] {XxHash64.INSTANCE, JenkinsHashFunction.INSTANCE}) {
+            ShardedCache cache = new ShardedCache(4, UnsafeAllocator.INSTANCE, 0, 2.0, 48, 64 * 1024, false, hashFunction, 16);
+            int[] counts = new int[4];
+            int[] buckets = new int[16];
+            for (int i = 0; i < 10000; i++) {
+                byte[] key = bytes("key" + i);
+                int shard = cache.getShard(key).getId();
+                counts[shard]++;
+                if (shard == 0) {
+                    buckets[(int) hashFunction.hash(key, 0, key.length) & 15]++;
+                }
+            }
+            for (int count : counts) {
+                assertTrue(count > 2000 && count < 3000, hashFunction + " count " + count);
+            }
+
+            // the keys of a shard still use every bucket
+            for (int count : buckets) {
+                assertTrue(count > 80 && count < 240, hashFunction + " bucket count " + count);
+            }
+        }
+
+        ShardedCache cache = createCache(4);
+
+        Region key = UnsafeAllocator.INSTANCE.allocate(5);
+        key.putBytes(0, bytes("key42"));
+        assertEquals(cache.getShard(key), cache.getShard(bytes("key42")));
+    }
+
+    public void testRequestsFromOtherShards()
+            throws Exception
+    {
+        final ShardedCache cache = createCache(4);
+        cache.start();
+        try {
+            final int count = 2000;
+            final CountDownLatch done = new CountDownLatch(cache.getShardCount());
+            final AtomicInteger hits = new AtomicInteger();
+
+            // every shard stores and then reads every key through the owner shard
+            for (final CacheShard source : cache.getShards()) {
+                assertTrue(source.offerExternal(new Runnable()
+                {
+                    private int responses;
+
+                    @Override
+                    public void run()
+                    {
+                        for (int i = 0; i < count; i++) {
+                            final byte[] key = bytes("shard" + source.getId() + "-key" + i);
+                            final CacheShard owner = cache.getShard(key);
+                            source.send(owner, new Runnable()
+                            {
+                                @Override
+                                public void run()
+                                {
+                                    assertTrue(owner.isOwnerThread());
+                                    store(owner.getItems(), key);
+                                    final boolean hit = contains(owner.getItems(), key);
+                                    owner.send(source, new Runnable()
+                                    {
+                                        @Override
+                                        public void run()
+                                        {
+                                            if (hit) {
+                                                hits.incrementAndGet();
+                                            }
+                                            if (++responses == count) {
+                                                done.countDown();
+                                            }
+                                        }
+                                    });
+                                }
+                            });
+                        }
+                    }
+                }));
+            }
+
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            assertEquals(hits.get(), count * cache.getShardCount());
+        }
+        finally {
+            cache.stop();
+        }
+    }
+
+    public void testExpiredItemsAreReaped()
+            throws Exception
+    {
+        ShardedCache cache = createCache(2);
+        cache.start();
+        try {
+            assertTrue(cache.getClock().isRunning());
+            final CacheShard shard = cache.getShard(0);
+            final int count = 100;
+            final CountDownLatch stored = new CountDownLatch(1);
+            assertTrue(shard.offerExternal(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Items items = shard.getItems();
+                    for (int i = 0; i < count; i++) {
+                        store(items, bytes("key" + i), items.getCurrentTime() + 1);
+                    }
+                    stored.countDown();
+                }
+            }));
+            assertTrue(stored.await(10, TimeUnit.SECONDS));
+
+            // the items are freed by the owner thread without being read
+            final AtomicLong remaining = new AtomicLong(count);
+            final AtomicLong reclaimed = new AtomicLong();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (remaining.get() != 0 && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+                final CountDownLatch checked = new CountDownLatch(1);
+                assertTrue(shard.offerExternal(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        remaining.set(shard.getItems().getExpirationCount());
+                        reclaimed.set(shard.getReaper().getReclaimedItems());
+                        checked.countDown();
+                    }
+                }));
+                assertTrue(checked.await(10, TimeUnit.SECONDS));
+            }
+            assertEquals(remaining.get(), 0);
+            assertEquals(reclaimed.get(), count);
+        }
+        finally {
+            cache.stop();
+        }
+        assertTrue(!cache.getClock().isRunning());
+    }
+
+    public void testSparseSlabsAreDefragmented()
+            throws Exception
+    {
+        ShardedCache cache = createCache(1);
+        cache.start();
+        try {
+            final CacheShard shard = cache.getShard(0);
+            final CountDownLatch stored = new CountDownLatch(1);
+            assertTrue(shard.offerExternal(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // leave one item in ten
+                    Items items = shard.getItems();
+                    for (int i = 0; i < 10000; i++) {
+                        store(items, bytes("key" + i));
+                    }
+                    for (int i = 0; i < 10000; i++) {
+                        if (i % 10 != 0) {
+                            remove(items, bytes("key" + i));
+                        }
+                    }
+                    stored.countDown();
+                }
+            }));
+            assertTrue(stored.await(10, TimeUnit.SECONDS));
+
+            // the owner thread releases the sparse slabs without being asked
+            final AtomicLong released = new AtomicLong();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CacheShard.DEFRAGMENT_INTERVAL + 10);
+            while (released.get() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(100);
+                final CountDownLatch checked = new CountDownLatch(1);
+                assertTrue(shard.offerExternal(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        released.set(shard.getDefragmenter().getReleasedSlabs());
+                        checked.countDown();
+                    }
+                }));
+                assertTrue(checked.await(10, TimeUnit.SECONDS));
+            }
+            assertTrue(released.get() > 0);
+        }
+        finally {
+            cache.stop();
+        }
+    }
+
+    private static ShardedCache createCache(int shards)
+    {
+        // small queues make the shards wait for each other
+        return new ShardedCache(shards, UnsafeAllocator.INSTANCE, 0, 2.0, 48, 64 * 1024, false, XxHash64.INSTANCE, 16);
+    }
+
+    private static void store(Items items, byte[] key)
+    {
+        store(items, key, 0);
+    }
+
+    private static void store(Items items, byte[] key, int exptime)
+    {
+        Item item = items.allocateItem(key, 0, exptime, 3);
+        item.getValue().putBytes(0, bytes("x\r\n"));
+        items.insert(item);
+        items.release(item);
+    }
+
+    private static void remove(Items items, byte[] key)
+    {
+        Region region = UnsafeAllocator.INSTANCE.allocate(key.length);
+        region.putBytes(0, key);
+        Item item = items.get(region);
+        items.remove(item);
+        items.release(item);
+    }
+
+    private static boolean contains(Items items, byte[] key)
+    {
+        Region region = UnsafeAllocator.INSTANCE.allocate(key.length);
+        region.putBytes(0, key);
+        Item item = items.get(region);
+        if (item == null) {
+            return false;
+        }
+        items.release(item);
+        return true;
+    }
+
+    private static byte[] bytes(String value)
+    {
+        return value.getBytes(UTF8);
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.iq80.memory.ByteBufferAllocator;
+import org.iq80.memory.Region;
+import org.iq80.memory.UnsafeAllocator;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class SlabAllocatorTest
+{
+    public void testSlabsAreAllocatedOnFirstUse()
+    {
+        SlabAllocator slabAllocator = new SlabAllocator(UnsafeAllocator.INSTANCE, 0, 1.25, false, 48, 1024 * 1024);
+        for (SlabManager slabManager : slabAllocator.getSlabManagers()) {
+            assertEquals(slabManager.getSlabCount(), 0);
+        }
+
+        Items items = new Items(slabAllocator);
+        Item item = items.allocateItem("key".getBytes(), 0, 0, 1000);
+        for (SlabManager slabManager : slabAllocator.getSlabManagers()) {
+            assertEquals(slabManager.getSlabCount(), slabManager.getId() == item.getSlabId() ? 1 : 0);
+        }
+        items.release(item);
+    }
+
+    public void testThreadCache()
+    {
+        SlabAllocator slabAllocator = new SlabAllocator(UnsafeAllocator.INSTANCE, 0, 2.0, false, 48, 64 * 1024, 8);
+        SlabManager slabManager = slabAllocator.getSlabManager(0);
+        assertEquals(slabManager.getMagazineSize(), 8);
+
+        // a freed chunk is reused by the same thread without touching the shared list
+        Region region = slabManager.allocate(100);
+        slabManager.free(region, 100);
+        assertEquals(slabManager.getFreeCount(), 0);
+        assertEquals(slabManager.allocate(100).getAddress(), region.getAddress());
+
+        // freeing more than a magazine spills half of it to the shared list
+        List<Region> regions = new ArrayList<Region>();
+        for (int i = 0; i < 9; i++) {
+            regions.add(slabManager.allocate(100));
+        }
+        for (Region allocated : regions) {
+            slabManager.free(allocated, 100);
+        }
+        assertEquals(slabManager.getFreeCount(), 4);
+
+        // three refills of 4 chunks were taken from the slab and one chunk is still allocated
+        slabAllocator.flushThreadCaches();
+        assertEquals(slabManager.getFreeCount(), 11);
+    }
+
+    public void testConcurrentThreadCaches()
+            throws Exception
+    {
+        final SlabAllocator slabAllocator = new SlabAllocator(UnsafeAllocator.INSTANCE, 0, 2.0, false, 48, 64 * 1024, 16);
+        final SlabPageTable pageTable = slabAllocator.getPageTable();
+        final Set<Long> inUse = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final AtomicReference<String> failure = new AtomicReference<String>();
+
+        // two threads per slab class, so refills of different classes add
+        // pages to the shared page table at the same time
+        final int classCount = 4;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 2 * classCount; t++) {
+            final Random random = new Random(t);
+            final SlabManager slabManager = slabAllocator.getSlabManager(t % classCount);
+            final int size = slabManager.getChunkSize();
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    List<Region> held = new ArrayList<Region>();
+                    for (int i = 0; i < 100000 && failure.get() == null; i++) {
+                        if (held.isEmpty() || (held.size() < 1000 && random.nextBoolean())) {
+                            Region region = slabManager.allocate(size);
+                            if (!inUse.add(region.getAddress())) {
+                                failure.set("chunk allocated twice: " + region.getAddress());
+                            }
+                            if (pageTable.getAddress(pageTable.getHandle(region.getAddress())) != region.getAddress()) {
+                                failure.set("chunk not in page table: " + region.getAddress());
+                            }
+                            held.add(region);
+                        }
+                        else {
+                            Region region = held.remove(random.nextInt(held.size()));
+                            inUse.remove(region.getAddress());
+                            slabManager.free(region, size);
+                        }
+                    }
+                    for (Region region : held) {
+                        inUse.remove(region.getAddress());
+                        slabManager.free(region, size);
+                    }
+                    slabManager.flushThreadCache();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        int pages = 0;
+        for (int id = 0; id < classCount; id++) {
+            SlabManager slabManager = slabAllocator.getSlabManager(id);
+            assertEquals(slabManager.getRequested(), 0);
+            // every chunk handed out went back to the shared list
+            int chunks = slabManager.getSlabCount() * slabManager.getChunksPerSlab();
+            assertTrue(slabManager.getFreeCount() <= chunks);
+            assertTrue(slabManager.getFreeCount() > 0);
+            pages += slabManager.getSlabCount();
+        }
+        assertEquals(pageTable.getPageCount(), pages);
+    }
+
+    public void testItemsWithThreadCaches()
+    {
+        SlabAllocator slabAllocator = new SlabAllocator(UnsafeAllocator.INSTANCE, 0, 2.0, false, 48, 64 * 1024, 16);
+        Items items = new Items(slabAllocator);
+        for (int i = 0; i < 1000; i++) {
+            Item item = items.allocateItem(("key" + i).getBytes(), 0, 0, 10);
+            assertNotNull(item);
+            items.insert(item);
+            items.release(item);
+            items.remove(item);
+        }
+    }
+
+    public void testPrefaultedArena()
+    {
+        long maxMemory = 8 * 1024 * 1024;
+        SlabAllocator slabAllocator = new SlabAllocator(UnsafeAllocator.INSTANCE, maxMemory, 2.0, true, 48, 64 * 1024, 0, true);
+        SlabManager slabManager = slabAllocator.getSlabManager(0);
+
+        // slabs are carved from the start of the huge page aligned arena
+        Region region = slabManager.allocate(100);
+        assertEquals(slabManager.getSlabAddress(0) % PrivateSlabAllocator.HUGE_PAGE_SIZE, 0);
+        assertEquals(region.getByte(0), 0);
+
+        Items items = new Items(slabAllocator);
+        for (int i = 0; i < 1000; i++) {
+            Item item = items.allocateItem(("key" + i).getBytes(), 0, 0, 10);
+            assertNotNull(item);
+            items.insert(item);
+            items.release(item);
+        }
+    }
+
+    public void testReleasedPagesAreZeroed()
+    {
+        PrivateSlabAllocator allocator = new PrivateSlabAllocator(ByteBufferAllocator.INSTANCE, 1024 * 1024, true);
+        Region page = allocator.allocate(64 * 1024, false);
+        assertTrue(allocator.isZeroed(page));
+        page.setMemory((byte) 0x55);
+        allocator.release(page);
+
+        // the page is not cleared until it is handed out again
+        assertEquals(page.getByte(0), 0x55);
+
+        // the released page is reused and is still reported as zeroed
+        Region reused = allocator.allocate(64 * 1024, false);
+        assertEquals(reused.getAddress(), page.getAddress());
+        assertTrue(allocator.isZeroed(reused));
+        for (long offset = 0; offset < reused.size(); offset += 511) {
+            assertEquals(reused.getByte(offset), 0);
+        }
+    }
+
+    public void testPrefaultZeroesRegion()
+    {
+        Region region = UnsafeAllocator.INSTANCE.allocate(5 * 1024 * 1024 + 123);
+        region.setMemory((byte) 0x55);
+        PrivateSlabAllocator.prefault(region, 3);
+        for (long offset = 0; offset < region.size(); offset += 4093) {
+            assertEquals(region.getByte(offset), 0);
+        }
+        assertEquals(region.getByte(region.size() - 1), 0);
+    }
+
+    public void testSelectSlabManager()
+    {
+        for (double factor : new double[] {1.05, 1.25, 2.0}) {
+            // a max item size that is not a multiple of 8 is the one unaligned chunk size
+            int maxItemSize = factor == 2.0 ? 1001 : 1024 * 1024;
+            SlabAllocator slabAllocator = new SlabAllocator(UnsafeAllocator.INSTANCE, 0, factor, false, 48, maxItemSize);
+            for (int size = 0; size <= maxItemSize + 100; size++) {
+                SlabManager expected = null;
+                for (SlabManager slabManager : slabAllocator.getSlabManagers()) {
+                    if (size <= slabManager.getChunkSize()) {
+                        expected = slabManager;
+                        break;
+                    }
+                }
+                assertTrue(slabAllocator.selectSlabManager(size) == expected, "size " + size);
+            }
+
+            // a size equal to a chunk size uses that class
+            for (SlabManager slabManager : slabAllocator.getSlabManagers()) {
+                assertEquals(slabAllocator.selectSlabManager(slabManager.getChunkSize()), slabManager);
+            }
+        }
+    }
+}
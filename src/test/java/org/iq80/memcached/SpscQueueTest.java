@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class SpscQueueTest
+{
+    public void testFull()
+    {
+        SpscQueue<Integer> queue = new SpscQueue<Integer>(3);
+        assertEquals(queue.capacity(), 4);
+        assertTrue(queue.isEmpty());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(queue.size(), 4);
+
+        assertEquals(queue.poll(), (Integer) 0);
+        assertTrue(queue.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(queue.poll(), (Integer) i);
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    public void testConcurrentProducerAndConsumer()
+            throws Exception
+    {
+        final SpscQueue<Integer> queue = new SpscQueue<Integer>(64);
+        final int count = 1000000;
+        final AtomicReference<String> failure = new AtomicReference<String>();
+
+        Thread consumer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                int expected = 0;
+                while (expected < count) {
+                    Integer value = queue.poll();
+                    if (value == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    if (value != expected) {
+                        failure.set("expected " + expected + " but was " + value);
+                        return;
+                    }
+                    expected++;
+                }
+            }
+        });
+        consumer.start();
+
+        for (int i = 0; i < count; i++) {
+            while (!queue.offer(i)) {
+                Thread.yield();
+            }
+        }
+        consumer.join();
+        assertNull(failure.get());
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.iq80.memory.Allocation;
+import org.iq80.memory.UnsafeAllocator;
+
+import java.util.Random;
+
+/**
+ * Compares the speed of the key hash functions over memcached key lengths.
+ */
+public class TestHashSpeed
+{
+    private static final int[] KEY_LENGTHS = {8, 16, 32, 64, 128, 250};
+    private static final int KEY_COUNT = 1024;
+
+    public static void main(String[] args)
+    {
+        HashFunction[] hashFunctions = {JenkinsHashFunction.INSTANCE, XxHash64.INSTANCE};
+
+        for (int keyLength : KEY_LENGTHS) {
+            Allocation keys = UnsafeAllocator.INSTANCE.allocate(keyLength * KEY_COUNT);
+            byte[] bytes = new byte[keyLength * KEY_COUNT];
+            new Random().nextBytes(bytes);
+            keys.putBytes(0, bytes);
+
+            for (HashFunction hashFunction : hashFunctions) {
+                long elapsedTime = 0;
+                long hashes = 0;
+                long sum = 0;
+                for (int loops = 0; loops < 20; loops++) {
+                    long startTime = System.nanoTime();
+                    for (int i = 0; i < 1000; i++) {
+                        for (int key = 0; key < KEY_COUNT; key++) {
+                            sum += hashFunction.hash(keys.getRegion(key * keyLength, keyLength));
+                        }
+                    }
+                    // skip the warm up loops
+                    if (loops >= 10) {
+                        elapsedTime += System.nanoTime() - startTime;
+                        hashes += 1000 * KEY_COUNT;
+                    }
+                }
+                System.out.printf("%-10s %4d bytes: %6.1f ns/hash (%d)%n", hashFunction, keyLength, (double) elapsedTime / hashes, sum & 1);
+            }
+            keys.free();
+        }
+    }
+}
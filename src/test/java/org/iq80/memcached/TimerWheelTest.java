@@ -0,0 +1,166 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached;
+
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class TimerWheelTest
+{
+    public void testDueInOrder()
+    {
+        TimerWheel wheel = new TimerWheel(10);
+        wheel.add(1, 12);
+        wheel.add(2, 10);
+        wheel.add(3, 5);
+        wheel.add(4, 10 + 300);
+        wheel.add(5, 10 + 20000);
+        assertEquals(wheel.size(), 5);
+
+        // entries that are already expired are due immediately
+        assertEquals(wheel.pollDue(), 3);
+        assertEquals(wheel.pollDue(), 0);
+
+        wheel.advance(11);
+        assertEquals(wheel.pollDue(), 2);
+        assertEquals(wheel.pollDue(), 0);
+
+        wheel.advance(309);
+        assertEquals(wheel.pollDue(), 1);
+        assertEquals(wheel.pollDue(), 0);
+
+        wheel.advance(310);
+        assertEquals(wheel.pollDue(), 4);
+        assertEquals(wheel.pollDue(), 0);
+
+        wheel.advance(20009);
+        assertEquals(wheel.pollDue(), 0);
+        wheel.advance(20010);
+        assertEquals(wheel.pollDue(), 5);
+        assertEquals(wheel.size(), 0);
+    }
+
+    public void testRemove()
+    {
+        TimerWheel wheel = new TimerWheel(10);
+        wheel.add(1, 5);
+        wheel.add(2, 5);
+        wheel.add(3, 12);
+        wheel.add(4, 12);
+        wheel.add(5, 10 + 300);
+        wheel.add(6, 10 + 300);
+        wheel.add(7, 10 + (1 << 27));
+        assertEquals(wheel.size(), 7);
+
+        // from the due list, a first level slot, a higher level slot and the overflow
+        assertTrue(wheel.remove(1));
+        assertTrue(wheel.remove(3));
+        assertTrue(wheel.remove(5));
+        assertTrue(wheel.remove(7));
+        assertFalse(wheel.remove(7));
+        assertFalse(wheel.remove(8));
+        assertEquals(wheel.size(), 3);
+
+        // adding an address again replaces its entry
+        wheel.add(4, 20);
+        assertEquals(wheel.size(), 3);
+
+        assertEquals(wheel.pollDue(), 2);
+        assertEquals(wheel.pollDue(), 0);
+        wheel.advance(19);
+        assertEquals(wheel.pollDue(), 0);
+        wheel.advance(20);
+        assertEquals(wheel.pollDue(), 4);
+        wheel.advance(310);
+        assertEquals(wheel.pollDue(), 6);
+        wheel.advance(20 + (1 << 27));
+        assertEquals(wheel.pollDue(), 0);
+        assertEquals(wheel.size(), 0);
+    }
+
+    public void testRemoveMany()
+    {
+        Random random = new Random(7);
+        TimerWheel wheel = new TimerWheel(0);
+        int count = 50000;
+        for (int i = 0; i < count; i++) {
+            wheel.add((i + 1) * 64L, random.nextInt(1000));
+        }
+
+        // remove every other entry, in an order unrelated to the slots
+        for (int i = 1; i < count; i += 2) {
+            assertTrue(wheel.remove((i + 1) * 64L));
+        }
+        assertEquals(wheel.size(), count / 2);
+
+        wheel.advance(1000);
+        int polled = 0;
+        for (long address = wheel.pollDue(); address != 0; address = wheel.pollDue()) {
+            assertEquals((address / 64 - 1) % 2, 0, "removed entry is due");
+            polled++;
+        }
+        assertEquals(polled, count / 2);
+        assertEquals(wheel.size(), 0);
+    }
+
+    public void testNeverEarlyNeverLate()
+    {
+        Random random = new Random(42);
+        int time = 1000;
+        TimerWheel wheel = new TimerWheel(time);
+        int count = 20000;
+        int[] exptimes = new int[count];
+        boolean[] delivered = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            // a mix of short ttls, long ttls and times beyond the wheel
+            int ttl;
+            switch (i % 3) {
+                case 0:
+                    ttl = random.nextInt(300);
+                    break;
+                case 1:
+                    ttl = random.nextInt(1 << 21);
+                    break;
+                default:
+                    ttl = (1 << 26) + random.nextInt(1 << 20);
+            }
+            exptimes[i] = time + ttl;
+            wheel.add(i + 1, exptimes[i]);
+        }
+
+        int deliveredCount = 0;
+        while (deliveredCount < count) {
+            // advance by irregular steps
+            time += 1 + random.nextInt(5000);
+            wheel.advance(time);
+            for (long address = wheel.pollDue(); address != 0; address = wheel.pollDue()) {
+                int index = (int) address - 1;
+                assertTrue(exptimes[index] <= time, "early");
+                assertTrue(!delivered[index], "duplicate");
+                assertTrue(exptimes[index] > time - 5001, "late");
+                delivered[index] = true;
+                deliveredCount++;
+            }
+        }
+        assertEquals(wheel.size(), 0);
+    }
+}
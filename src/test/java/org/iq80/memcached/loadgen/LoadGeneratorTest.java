@@ -0,0 +1,375 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.loadgen;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class LoadGeneratorTest
+{
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private FakeServer server;
+
+    @BeforeMethod
+    public void startServer()
+            throws IOException
+    {
+        server = new FakeServer();
+    }
+
+    @AfterMethod
+    public void stopServer()
+            throws IOException
+    {
+        server.close();
+    }
+
+    public void testHistogram()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(histogram.getTotalCount(), 100000);
+        assertEquals(histogram.getMin(), 1000);
+        assertEquals(histogram.getMax(), 100000000);
+        assertWithinPrecision(histogram.getValueAtPercentile(50), 50000000);
+        assertWithinPrecision(histogram.getValueAtPercentile(99), 99000000);
+        assertWithinPrecision(histogram.getValueAtPercentile(99.9), 99900000);
+        assertEquals(histogram.getValueAtPercentile(100), 100000000);
+
+        // every value maps to a bucket containing it
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            long value = random.nextLong() >>> (22 + random.nextInt(40));
+            int index = histogram.getIndex(value);
+            assertTrue(histogram.getLowestEquivalentValue(index) <= value, "value " + value);
+            assertTrue(histogram.getHighestEquivalentValue(index) >= value, "value " + value);
+        }
+
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(5);
+        other.add(histogram);
+        assertEquals(other.getTotalCount(), 100001);
+        assertEquals(other.getMin(), 5);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        histogram.outputPercentileDistribution(new PrintStream(out), 5, 1000.0);
+        assertTrue(out.toString().contains("#[Max     =   100000.000, Total count    =       100000]"), out.toString());
+    }
+
+    public void testKeyDistributions()
+    {
+        Random random = new Random(0);
+        for (String spec : new String[] {"uniform", "zipf", "zipf:0.5", "hotspot", "hotspot:0.1:0.9"}) {
+            KeyDistribution distribution = KeyDistribution.parse(spec, 1000);
+            int[] counts = new int[1000];
+            for (int i = 0; i < 100000; i++) {
+                int key = distribution.nextKey(random);
+                assertTrue(key >= 0 && key < 1000, spec + " key " + key);
+                counts[key]++;
+            }
+            if (spec.startsWith("zipf")) {
+                assertTrue(counts[0] > counts[10] && counts[10] > counts[500], spec);
+            }
+        }
+
+        KeyDistribution hotspot = KeyDistribution.parse("hotspot:0.1:0.9", 1000);
+        int hot = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (hotspot.nextKey(random) < 100) {
+                hot++;
+            }
+        }
+        assertTrue(hot > 89000 && hot < 91000, "hot " + hot);
+    }
+
+    public void testTextClient()
+            throws IOException
+    {
+        assertClient("text");
+    }
+
+    public void testBinaryClient()
+            throws IOException
+    {
+        assertClient("binary");
+    }
+
+    private void assertClient(String protocol)
+            throws IOException
+    {
+        LoadClient client = LoadClient.connect(protocol, server.getAddress());
+        try {
+            byte[] value = "hello world".getBytes(US_ASCII);
+            client.get(bytes("missing"));
+            client.set(bytes("key"), value, 0, 5);
+            client.get(bytes("key"));
+            client.flush();
+            assertFalse(client.readResponse());
+            assertTrue(client.readResponse());
+            assertTrue(client.readResponse());
+            assertEquals(client.getPendingCount(), 0);
+            assertEquals(new String(server.data.get("key"), US_ASCII), "hello");
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    public void testClosedLoop()
+            throws Exception
+    {
+        for (String protocol : new String[] {"text", "binary"}) {
+            LoadGenerator.Options options = createOptions(protocol);
+            options.pipeline = 4;
+            options.preload = true;
+            LatencyHistogram histogram = new LoadGenerator(options).run(new PrintStream(new ByteArrayOutputStream()));
+            assertTrue(histogram.getTotalCount() > 0);
+            assertEquals(server.data.size(), options.keys);
+        }
+    }
+
+    public void testOpenLoop()
+            throws Exception
+    {
+        LoadGenerator.Options options = createOptions("text");
+        options.rate = 2000;
+        options.pipeline = 2;
+        options.distribution = "zipf";
+        LatencyHistogram histogram = new LoadGenerator(options).run(new PrintStream(new ByteArrayOutputStream()));
+
+        // the request count is fixed by the rate
+        assertTrue(histogram.getTotalCount() > 1800 && histogram.getTotalCount() <= 2000, "count " + histogram.getTotalCount());
+    }
+
+    private LoadGenerator.Options createOptions(String protocol)
+    {
+        LoadGenerator.Options options = LoadGenerator.Options.parse(new String[] {
+                "--port=" + server.getAddress().getPort(),
+                "--protocol=" + protocol,
+                "--connections=2",
+                "--duration=1",
+                "--keys=1000",
+                "--value-size=10-100",
+        });
+        options.host = server.getAddress().getHostName();
+        return options;
+    }
+
+    private static void assertWithinPrecision(long actual, long expected)
+    {
+        assertTrue(Math.abs(actual - expected) <= expected / 512, "expected " + expected + " but was " + actual);
+    }
+
+    private static byte[] bytes(String value)
+    {
+        return value.getBytes(US_ASCII);
+    }
+
+    /**
+     * Minimal memcached server supporting get and set in both protocols.
+     */
+    private static class FakeServer
+            implements Runnable
+    {
+        private final ServerSocket serverSocket;
+        private final Map<String, byte[]> data = new ConcurrentHashMap<String, byte[]>();
+
+        private FakeServer()
+                throws IOException
+        {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "fake-memcached");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private InetSocketAddress getAddress()
+        {
+            return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+        }
+
+        private void close()
+                throws IOException
+        {
+            serverSocket.close();
+        }
+
+        public void run()
+        {
+            while (!serverSocket.isClosed()) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    Thread thread = new Thread(new Runnable()
+                    {
+                        public void run()
+                        {
+                            try {
+                                serve(socket);
+                            }
+                            catch (IOException ignored) {
+                            }
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void serve(Socket socket)
+                throws IOException
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            try {
+                while (true) {
+                    in.mark(1);
+                    int first = in.read();
+                    if (first < 0) {
+                        return;
+                    }
+                    in.reset();
+                    if (first == BinaryLoadClient.REQUEST_MAGIC) {
+                        serveBinary(in, out);
+                    }
+                    else {
+                        serveText(in, out);
+                    }
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                }
+            }
+            finally {
+                socket.close();
+            }
+        }
+
+        private void serveText(DataInputStream in, OutputStream out)
+                throws IOException
+        {
+            String[] command = readLine(in).split(" ");
+            if (command[0].equals("get")) {
+                byte[] value = data.get(command[1]);
+                if (value != null) {
+                    out.write(bytes("VALUE " + command[1] + " 0 " + value.length + "\r\n"));
+                    out.write(value);
+                    out.write(bytes("\r\n"));
+                }
+                out.write(bytes("END\r\n"));
+            }
+            else if (command[0].equals("set")) {
+                byte[] value = new byte[Integer.parseInt(command[4])];
+                in.readFully(value);
+                readLine(in);
+                data.put(command[1], value);
+                out.write(bytes("STORED\r\n"));
+            }
+            else {
+                out.write(bytes("ERROR\r\n"));
+            }
+        }
+
+        private void serveBinary(DataInputStream in, OutputStream out)
+                throws IOException
+        {
+            byte[] header = new byte[BinaryLoadClient.HEADER_SIZE];
+            in.readFully(header);
+            int opcode = header[1] & 0xFF;
+            int keyLength = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+            int extrasLength = header[4] & 0xFF;
+            int bodyLength = ((header[8] & 0xFF) << 24) | ((header[9] & 0xFF) << 16) | ((header[10] & 0xFF) << 8) | (header[11] & 0xFF);
+            byte[] body = new byte[bodyLength];
+            in.readFully(body);
+            String key = new String(body, extrasLength, keyLength, US_ASCII);
+
+            int status = BinaryLoadClient.STATUS_OK;
+            byte[] responseBody = new byte[0];
+            if (opcode == BinaryLoadClient.OPCODE_GET) {
+                byte[] value = data.get(key);
+                if (value == null) {
+                    status = BinaryLoadClient.STATUS_KEY_NOT_FOUND;
+                }
+                else {
+                    // 4 bytes of flags extras and the value
+                    responseBody = new byte[4 + value.length];
+                    System.arraycopy(value, 0, responseBody, 4, value.length);
+                }
+            }
+            else {
+                int valueOffset = extrasLength + keyLength;
+                byte[] value = new byte[bodyLength - valueOffset];
+                System.arraycopy(body, valueOffset, value, 0, value.length);
+                data.put(key, value);
+            }
+
+            out.write(BinaryLoadClient.RESPONSE_MAGIC);
+            out.write(opcode);
+            out.write(new byte[4]);
+            out.write(status >>> 8);
+            out.write(status);
+            out.write(responseBody.length >>> 24);
+            out.write(responseBody.length >>> 16);
+            out.write(responseBody.length >>> 8);
+            out.write(responseBody.length);
+            out.write(new byte[12]);
+            out.write(responseBody);
+        }
+
+        private static String readLine(DataInputStream in)
+                throws IOException
+        {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException("closed");
+                }
+                if (b == '\n') {
+                    return line.substring(0, line.length() - 1);
+                }
+                line.append((char) b);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010 Proofpoint, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.iq80.memcached.sim;
+
+import org.iq80.memcached.sim.TraceReader.Operation;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class TraceSimulatorTest
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public void testCsvTrace()
+            throws IOException
+    {
+        String trace = "# op,key,size,time\n" +
+                "set,a,10,5\n" +
+                "\n" +
+                "get,a,10\n" +
+                "delete,a,0,7\n";
+        TraceReader reader = TraceReader.open(new ByteArrayInputStream(trace.getBytes(UTF8)), "csv");
+
+        assertRecord(reader, Operation.SET, "a", 10, 5);
+        assertRecord(reader, Operation.GET, "a", 10, 0);
+        assertRecord(reader, Operation.DELETE, "a", 0, 7);
+        assertFalse(reader.next());
+    }
+
+    public void testBinaryTrace()
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeRecord(out, 1, Operation.GET, "key", 100);
+        writeRecord(out, 70000, Operation.SET, "other", 0);
+        TraceReader reader = TraceReader.open(new ByteArrayInputStream(bytes.toByteArray()), "binary");
+
+        assertRecord(reader, Operation.GET, "key", 100, 1);
+        assertRecord(reader, Operation.SET, "other", 0, 70000);
+        assertFalse(reader.next());
+    }
+
+    public void testWorkingSetFits()
+            throws IOException
+    {
+        TraceSimulator simulator = new TraceSimulator(options(0));
+        simulator.replay(TraceReader.open(new ByteArrayInputStream(loopTrace(100, 10)), "csv"));
+
+        // only the first pass misses
+        assertEquals(simulator.getGets(), 1000);
+        assertEquals(simulator.getHits(), 900);
+        assertEquals(simulator.getEvictions(), 0);
+        assertEquals(simulator.getByteHitRatio(), 0.9, 0.0001);
+
+        simulator.report(new PrintStream(new ByteArrayOutputStream()));
+    }
+
+    public void testWorkingSetExceedsMemoryLimit()
+            throws IOException
+    {
+        TraceSimulator simulator = new TraceSimulator(options(256 * 1024));
+        simulator.replay(TraceReader.open(new ByteArrayInputStream(loopTrace(10000, 3)), "csv"));
+
+        // a loop larger than the cache always evicts the key before it is read again
+        assertEquals(simulator.getGets(), 30000);
+        assertEquals(simulator.getHits(), 0);
+        assertTrue(simulator.getEvictions() > 0);
+        assertEquals(simulator.getNotStored(), 0);
+    }
+
+    private static TraceSimulator.Options options(long memory)
+    {
+        TraceSimulator.Options options = new TraceSimulator.Options();
+        options.memory = memory;
+        options.factor = 2.0;
+        options.maxItemSize = 64 * 1024;
+        return options;
+    }
+
+    private static byte[] loopTrace(int keys, int loops)
+    {
+        StringBuilder trace = new StringBuilder();
+        for (int loop = 0; loop < loops; loop++) {
+            for (int key = 0; key < keys; key++) {
+                trace.append("get,key").append(key).append(",100\n");
+            }
+        }
+        return trace.toString().getBytes(UTF8);
+    }
+
+    private static void writeRecord(DataOutputStream out, int time, Operation operation, String key, int size)
+            throws IOException
+    {
+        byte[] keyBytes = key.getBytes(UTF8);
+        out.writeInt(time);
+        out.writeByte(operation.ordinal());
+        out.writeByte(keyBytes.length);
+        out.write(keyBytes);
+        out.writeInt(size);
+    }
+
+    private static void assertRecord(TraceReader reader, Operation operation, String key, int size, int time)
+            throws IOException
+    {
+        assertTrue(reader.next());
+        assertEquals(reader.getOperation(), operation);
+        assertEquals(new String(reader.getKey(), UTF8), key);
+        assertEquals(reader.getSize(), size);
+        assertEquals(reader.getTime(), time);
+    }
+}
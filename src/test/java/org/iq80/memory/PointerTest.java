@@ -781,4 +781,146 @@ public class PointerTest
             }
         }
     }
+
+    public void testCompareMemory()
+    {
+        Region[] regions = new Region[] {
+                unsafeAllocator.allocate(300),
+                unsafeAllocator.allocate(301).getRegion(1),
+                ByteBufferAllocator.INSTANCE.allocate(300)
+        };
+        try {
+            for (Region region : regions) {
+                for (int i = 0; i < 300; i++) {
+                    region.putByte(i, (byte) (i * 7));
+                }
+            }
+
+            for (Region left : regions) {
+                for (Region right : regions) {
+                    // equal at every length and unaligned start
+                    for (int offset = 0; offset < 9; offset++) {
+                        for (int length = 0; length < 40; length++) {
+                            assertEquals(left.compareMemory(offset, right, offset, length), 0);
+                        }
+                    }
+                    assertEquals(left.compareMemory(0, right, 0, 300), 0);
+
+                    if (left == right) {
+                        continue;
+                    }
+
+                    // a mismatch anywhere in a word or the tail is ordered as a signed byte
+                    for (int mismatch = 0; mismatch < 20; mismatch++) {
+                        byte original = right.getByte(mismatch);
+                        right.putByte(mismatch, (byte) 0x80);
+                        assertEquals(left.compareMemory(0, right, 0, 20), original == (byte) 0x80 ? 0 : 1);
+                        assertEquals(right.compareMemory(0, left, 0, 20), original == (byte) 0x80 ? 0 : -1);
+                        right.putByte(mismatch, original);
+                    }
+                }
+            }
+        }
+        finally {
+            ((Allocation) regions[0]).free();
+        }
+    }
+
+    public void testCopyMemoryBetweenBackends()
+    {
+        Region[] regions = new Region[] {
+                unsafeAllocator.allocate(300),
+                unsafeAllocator.allocate(301).getRegion(1),
+                ByteBufferAllocator.INSTANCE.allocate(300)
+        };
+        try {
+            for (Region src : regions) {
+                for (Region target : regions) {
+                    if (src == target) {
+                        continue;
+                    }
+                    for (int i = 0; i < 300; i++) {
+                        src.putByte(i, (byte) i);
+                    }
+                    target.setMemory((byte) 0);
+                    src.copyMemory(3, target, 5, 200);
+                    for (int i = 0; i < 200; i++) {
+                        assertEquals(target.getByte(5 + i), (byte) (i + 3));
+                    }
+                    assertEquals(target.getByte(4), 0);
+                    assertEquals(target.getByte(205), 0);
+                }
+
+                // overlapping copy within the same region
+                for (int i = 0; i < 300; i++) {
+                    src.putByte(i, (byte) i);
+                }
+                src.copyMemory(0, src, 3, 100);
+                for (int i = 0; i < 100; i++) {
+                    assertEquals(src.getByte(3 + i), (byte) i);
+                }
+            }
+        }
+        finally {
+            ((Allocation) regions[0]).free();
+        }
+    }
+
+    public void testAtomicAccess()
+            throws Exception
+    {
+        final Region[] regions = new Region[] {
+                unsafeAllocator.allocate(64),
+                unsafeAllocator.allocate(64).getRegion(8),
+                ByteBufferAllocator.INSTANCE.allocate(64)
+        };
+        for (final Region region : regions) {
+            region.setMemory((byte) 0);
+
+            assertTrue(region.compareAndSwapInt(4, 0, 42));
+            assertTrue(!region.compareAndSwapInt(4, 0, 43));
+            assertEquals(region.getIntVolatile(4), 42);
+            region.putIntOrdered(4, 7);
+            assertEquals(region.getAndAddInt(4, 3), 7);
+            assertEquals(region.getInt(4), 10);
+
+            assertTrue(region.compareAndSwapLong(8, 0, Long.MAX_VALUE));
+            assertTrue(!region.compareAndSwapLong(8, 0, 1));
+            region.putLongVolatile(16, 5);
+            region.putLongOrdered(24, 6);
+            assertEquals(region.getLongVolatile(8), Long.MAX_VALUE);
+            assertEquals(region.getAndAddLong(16, 1), 5);
+            assertEquals(region.getLong(16), 6);
+            assertEquals(region.getLongVolatile(24), 6);
+
+            // concurrent increments are not lost
+            region.putIntVolatile(0, 0);
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread()
+                {
+                    public void run()
+                    {
+                        for (int j = 0; j < 10000; j++) {
+                            region.getAndAddInt(0, 1);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(region.getIntVolatile(0), threads.length * 10000);
+        }
+
+        if (UnsafeAllocator.checkBounds) {
+            try {
+                regions[0].getIntVolatile(2);
+                fail("Expected IllegalArgumentException");
+            }
+            catch (IllegalArgumentException expected) {
+            }
+        }
+    }
 }